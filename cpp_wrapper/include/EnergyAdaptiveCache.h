@@ -3,6 +3,7 @@
 
 #include <pthread.h>
 #include <jni.h>
+#include <vector>
 
 class Future;
 
@@ -34,6 +35,11 @@ public:
     Future * prefetchNow(JNICacheFetcherPtr fetcher);
     Future * fetch(JNICacheFetcherPtr fetcher);
 
+    // Same as calling prefetch() on each fetcher, but in one call into
+    //  java.  The Futures share one global ref, so this is much cheaper
+    //  for hinting many items at once.  Entries are NULL for NULL fetchers.
+    std::vector<Future *> prefetchAll(const std::vector<JNICacheFetcherPtr>& fetchers);
+
     // Each thread that will use an EAC or a Future must create
     //   a detacher on the stack in its thread function, so that
     //   before the thread exits, the detacher's destructor will
@@ -61,14 +67,10 @@ private:
     void init(JNIEnv *env, jobject context, PrefetchStrategyType type,
               struct timeval goalTime, double energyBudget, int dataBudget);
     Future * prefetch(JNICacheFetcherPtr fetcher, bool now, bool demand);
+    jobject newFetcherObject(JNIEnv *jenv, JNICacheFetcherPtr fetcher);
     
     JavaVM *vm;
-    jclass cacheClazz;
     jobject realCacheObj;
-    jmethodID prefetchMID;
-    jmethodID prefetchNowMID;
-    jmethodID fetchMID;
-    jmethodID updateGoalTimeMID;
 };
 
 #endif
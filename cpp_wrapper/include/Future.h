@@ -33,17 +33,20 @@ public:
 private:
     friend class EnergyAdaptiveCache;
     
+    // The java Futures from one EnergyAdaptiveCache::prefetchAll(),
+    //  held by one global ref that the last of their Futures deletes.
+    struct SharedRefs;
+    static SharedRefs *newSharedRefs(jobjectArray jfutures, int count);
+    
     JavaVM *vm;
-    jobject jfuture;
+    jobject jfuture; // global ref, or NULL if in shared
+    SharedRefs *shared;
+    int index;
     Future(JavaVM *jvm, jobject jfuture_);
+    Future(JavaVM *jvm, SharedRefs *shared_, int index_);
+    jobject ref(JNIEnv *jenv);
+    void unref(JNIEnv *jenv, jobject obj);
     long getPtr(JNIEnv *jenv, jobject swig_voidptr);
-
-    jclass futureClass;
-    jmethodID get_mid;
-    jmethodID getWithTimeout_mid;
-    jmethodID cancel_mid;
-    jmethodID isCancelled_mid;
-    jmethodID isDone_mid;
 };
 
 #endif
@@ -3,21 +3,50 @@
 
 #include <jni.h>
 
+// Classes, method IDs and constants that native code uses, all
+//  resolved once, in init().
 class JClasses {
 public:
     static void init(JNIEnv *jenv);
-    
+
     static jclass EnergyAdaptiveCache;
+    static jclass CacheFetcher;
     static jclass JNICacheFetcher;
     static jclass SWIGTYPE_p_void;
+    static jclass Throwable;
     static jclass CancellationException;
     static jclass TimeoutException;
     static jclass TimeUnit;
     static jclass Future;
     static jclass Assert;
     static jclass PrefetchStrategyType;
+
+    static jmethodID EnergyAdaptiveCache_ctor;
+    static jmethodID EnergyAdaptiveCache_prefetch;
+    static jmethodID EnergyAdaptiveCache_prefetchNow;
+    static jmethodID EnergyAdaptiveCache_fetch;
+    static jmethodID EnergyAdaptiveCache_prefetchAll;
+    static jmethodID EnergyAdaptiveCache_updateGoalTime;
+    static jmethodID JNICacheFetcher_ctor;
+    static jmethodID SWIGTYPE_p_void_getCPtr;
+    static jmethodID Throwable_getMessage;
+    static jmethodID Throwable_toString;
+    static jmethodID Future_get;
+    static jmethodID Future_getWithTimeout;
+    static jmethodID Future_cancel;
+    static jmethodID Future_isCancelled;
+    static jmethodID Future_isDone;
+
+    // global refs, indexed by Future.h's enum TimeUnit.
+    static jobject TimeUnits[4];
 private:
     static jclass find(JNIEnv *jenv, const char *name);
+    static jmethodID method(JNIEnv *jenv, jclass clazz,
+                            const char *name, const char *sig);
+    static jmethodID staticMethod(JNIEnv *jenv, jclass clazz,
+                                  const char *name, const char *sig);
+    static jobject staticField(JNIEnv *jenv, jclass clazz,
+                               const char *name, const char *sig);
 };
 
 #endif /* end of include guard: CLASSES_H_BKY7BYKE */
@@ -120,10 +120,6 @@ getEnumValue(JNIEnv *jenv, enum PrefetchStrategyType type)
     return jobj;
 }
 
-static const char *prefetchMethodSig = 
-    "(Ledu/umich/eac/CacheFetcher;)Ljava/util/concurrent/Future;";
-static const char *updateGoalTimeMethodSig = "(I)V";
-
 EnergyAdaptiveCache::EnergyAdaptiveCache(JNIEnv *jenv, jobject context,
                                          enum PrefetchStrategyType type)
 {
@@ -146,10 +142,7 @@ EnergyAdaptiveCache::init(JNIEnv *jenv, jobject context,
                           struct timeval goalTime, double energyBudget, int dataBudget)
 {
     vm = NULL;
-    cacheClazz = NULL;
     realCacheObj = NULL;
-    prefetchMID = NULL;
-    updateGoalTimeMID = NULL;
     
     jint rc = jenv->GetJavaVM(&vm);
     if (rc != 0) {
@@ -158,33 +151,6 @@ EnergyAdaptiveCache::init(JNIEnv *jenv, jobject context,
     
     JClasses::init(jenv);
     
-    cacheClazz = JClasses::EnergyAdaptiveCache;
-    prefetchMID = jenv->GetMethodID(cacheClazz, "prefetch", prefetchMethodSig);
-    if (!prefetchMID || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find prefetch method");
-    }
-    prefetchNowMID = jenv->GetMethodID(cacheClazz, "prefetchNow", 
-                                       prefetchMethodSig);
-    if (!prefetchNowMID || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find prefetchNow method");
-    }
-    fetchMID = jenv->GetMethodID(cacheClazz, "fetch", 
-                                 prefetchMethodSig);
-    if (!fetchMID || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find fetch method");
-    }
-    updateGoalTimeMID = jenv->GetMethodID(cacheClazz, "updateGoalTime", 
-                                          updateGoalTimeMethodSig);
-    if (!updateGoalTimeMID || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find fetch method");
-    }
-    jmethodID ctor = jenv->GetMethodID(
-        cacheClazz, "<init>", 
-        "(Landroid/content/Context;Ledu/umich/eac/PrefetchStrategyType;JDI)V"
-    );
-    if (!ctor || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find EAC constructor");
-    }
     jobject prefetchType = getEnumValue(jenv, type);
     jlong goalTimeMillis = (jlong) goalTime.tv_sec;
     goalTimeMillis *= 1000;
@@ -198,7 +164,9 @@ EnergyAdaptiveCache::init(JNIEnv *jenv, jobject context,
     eac_dprintf("Creating new Java EnergyAdaptiveCache object; "
                 "energyBudget %.3f%% dataBudget %d bytes goalTimeMillis %lld  goalDuration %lld\n",
                 energyBudget, dataBudget, goalTimeMillis, goalDuration);
-    jobject local = jenv->NewObject(cacheClazz, ctor, context, prefetchType,
+    jobject local = jenv->NewObject(JClasses::EnergyAdaptiveCache, 
+                                    JClasses::EnergyAdaptiveCache_ctor,
+                                    context, prefetchType,
                                     goalTimeMillis, energyBudget, dataBudget);
     if (!local || JAVA_EXCEPTION_OCCURRED(jenv) ||
         !(realCacheObj = jenv->NewGlobalRef(local))) {
@@ -223,7 +191,8 @@ void
 EnergyAdaptiveCache::updateGoalTime(int startDelayedMillis)
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    jenv->CallVoidMethod(realCacheObj, updateGoalTimeMID, startDelayedMillis);
+    jenv->CallVoidMethod(realCacheObj, JClasses::EnergyAdaptiveCache_updateGoalTime,
+                         startDelayedMillis);
     if (JAVA_EXCEPTION_OCCURRED(jenv)) {
         fatal_error("Can't update goal time");
     }
@@ -247,30 +216,16 @@ EnergyAdaptiveCache::fetch(JNICacheFetcherPtr fetcher)
     return prefetch(fetcher, true, true);
 }
 
-Future *
-EnergyAdaptiveCache::prefetch(JNICacheFetcherPtr fetcher, 
-                              bool now, bool demand)
+jobject
+EnergyAdaptiveCache::newFetcherObject(JNIEnv *jenv, JNICacheFetcherPtr fetcher)
 {
-    JNIEnv *jenv = getJNIEnv(vm);
-    
-    if (!fetcher) {
-        eac_dprintf("Error: prefetch called with NULL fetcher; "
-                    "returning NULL\n");
-        return NULL;
-    }
-    
-    jclass clazz = JClasses::JNICacheFetcher;
-    jmethodID ctor = jenv->GetMethodID(clazz, "<init>", "(IZ)V");
-    if (!ctor || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find JNICacheFetcher ctor");
-    }
-    
     // create new shared_ptr, owned by the java object.
     //  when that object is garbage collected, it will delete
     //  the shared_ptr (not necessarily the raw ptr).
     JNICacheFetcherPtr *newSharedPtr = new JNICacheFetcherPtr(fetcher);
     jobject fetcher_jobj = jenv->NewObject(
-        clazz, ctor, (int)newSharedPtr, true
+        JClasses::JNICacheFetcher, JClasses::JNICacheFetcher_ctor, 
+        (int)newSharedPtr, true
     );
     if (!fetcher_jobj || JAVA_EXCEPTION_OCCURRED(jenv)) {
         // the object wasn't constructed, so it won't be garbage collected,
@@ -280,31 +235,104 @@ EnergyAdaptiveCache::prefetch(JNICacheFetcherPtr fetcher,
         fatal_error("Can't create JNICacheFetcher "
                                  "java object");
     }
+    return fetcher_jobj;
+}
+
+Future *
+EnergyAdaptiveCache::prefetch(JNICacheFetcherPtr fetcher, 
+                              bool now, bool demand)
+{
+    JNIEnv *jenv = getJNIEnv(vm);
+    
+    if (!fetcher) {
+        eac_dprintf("Error: prefetch called with NULL fetcher; "
+                    "returning NULL\n");
+        return NULL;
+    }
+    
+    jobject fetcher_jobj = newFetcherObject(jenv, fetcher);
     
     // create a java Future object by submitting this java Fetcher object
     //  to the java EnergyAdaptiveCache
     jmethodID method = NULL;
     if (demand) {
-        method = fetchMID;
+        method = JClasses::EnergyAdaptiveCache_fetch;
     } else {
         if (now) {
-            method = prefetchNowMID;
+            method = JClasses::EnergyAdaptiveCache_prefetchNow;
         } else {
-            method = prefetchMID;
+            method = JClasses::EnergyAdaptiveCache_prefetch;
         }
     }
     jobject local = jenv->CallObjectMethod(realCacheObj, method, fetcher_jobj);
+    jenv->DeleteLocalRef(fetcher_jobj);
     jobject future_jobj;
     if (!local || JAVA_EXCEPTION_OCCURRED(jenv) ||
         !(future_jobj = jenv->NewGlobalRef(local))) {
         fatal_error("Can't create Future java object");
     }
+    jenv->DeleteLocalRef(local);
     
     // Wrap the returned Future in my proxy class
     Future *future = new Future(vm, future_jobj);
     return future;
 }
 
+std::vector<Future *>
+EnergyAdaptiveCache::prefetchAll(const std::vector<JNICacheFetcherPtr>& fetchers)
+{
+    std::vector<Future *> futures(fetchers.size(), (Future *) NULL);
+    if (fetchers.empty()) {
+        return futures;
+    }
+    
+    JNIEnv *jenv = getJNIEnv(vm);
+    jobjectArray fetcher_jarray = jenv->NewObjectArray(
+        fetchers.size(), JClasses::CacheFetcher, NULL
+    );
+    if (!fetcher_jarray || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        fatal_error("Can't create CacheFetcher array");
+    }
+    int count = 0;
+    for (size_t i = 0; i < fetchers.size(); ++i) {
+        if (!fetchers[i]) {
+            eac_dprintf("Error: prefetchAll called with NULL fetcher at %d; "
+                        "its Future will be NULL\n", (int) i);
+            continue;
+        }
+        jobject fetcher_jobj = newFetcherObject(jenv, fetchers[i]);
+        jenv->SetObjectArrayElement(fetcher_jarray, i, fetcher_jobj);
+        jenv->DeleteLocalRef(fetcher_jobj);
+        if (JAVA_EXCEPTION_OCCURRED(jenv)) {
+            fatal_error("Can't fill CacheFetcher array");
+        }
+        count++;
+    }
+    
+    jobject local = jenv->CallObjectMethod(
+        realCacheObj, JClasses::EnergyAdaptiveCache_prefetchAll, fetcher_jarray
+    );
+    jenv->DeleteLocalRef(fetcher_jarray);
+    jobjectArray futures_jarray;
+    if (!local || JAVA_EXCEPTION_OCCURRED(jenv) ||
+        !(futures_jarray = (jobjectArray) jenv->NewGlobalRef(local))) {
+        fatal_error("Can't create Future java objects");
+    }
+    jenv->DeleteLocalRef(local);
+    if (count == 0) {
+        jenv->DeleteGlobalRef(futures_jarray);
+        return futures;
+    }
+    
+    Future::SharedRefs *shared = Future::newSharedRefs(futures_jarray, count);
+    for (size_t i = 0; i < fetchers.size(); ++i) {
+        if (fetchers[i]) {
+            futures[i] = new Future(vm, shared, i);
+        }
+    }
+    return futures;
+}
+
 pthread_key_t EnergyAdaptiveCache::detacher::key;
 
 void 
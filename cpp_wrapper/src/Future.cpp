@@ -1,22 +1,38 @@
 #include "Future.h"
 #include "eac_utility.h"
 #include "jclasses.h"
+#include <pthread.h>
 #include <stdlib.h>
 #include <stdexcept>
 #include <sstream>
 using std::ostringstream;
 
+struct Future::SharedRefs {
+    jobjectArray jfutures; // global ref
+    int count;
+    pthread_mutex_t lock;
+
+    SharedRefs(jobjectArray jfutures_, int count_)
+        : jfutures(jfutures_), count(count_) {
+        pthread_mutex_init(&lock, NULL);
+    }
+    ~SharedRefs() {
+        pthread_mutex_destroy(&lock);
+    }
+};
+
+Future::SharedRefs *
+Future::newSharedRefs(jobjectArray jfutures, int count)
+{
+    return new SharedRefs(jfutures, count);
+}
+
 long 
 Future::getPtr(JNIEnv *jenv, jobject swig_voidptr)
 {
-    jclass clazz = JClasses::SWIGTYPE_p_void;
-    jmethodID mid = jenv->GetStaticMethodID(
-        clazz, "getCPtr", "(Ledu/umich/eac/SWIGTYPE_p_void;)I"
-    );
-    if (!mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find getCPtr method");
-    }
-    long result = jenv->CallStaticIntMethod(clazz, mid, swig_voidptr);
+    long result = jenv->CallStaticIntMethod(JClasses::SWIGTYPE_p_void, 
+                                            JClasses::SWIGTYPE_p_void_getCPtr,
+                                            swig_voidptr);
     if (JAVA_EXCEPTION_OCCURRED(jenv)) {
         fatal_error("Future.getPtr() threw an exception");
     }
@@ -29,18 +45,13 @@ static void throwNativeException(JNIEnv *jenv, jthrowable err)
     jenv->ExceptionDescribe();
     jenv->ExceptionClear();
 
-    jclass throwable = jenv->GetObjectClass(err);
     jclass cancel_exception = JClasses::CancellationException;
     jclass timeout_exception = JClasses::TimeoutException;
-    jmethodID get_message
-        = jenv->GetMethodID(throwable, "getMessage", "()Ljava/lang/String;");
-        
-    jmethodID to_string
-        = jenv->GetMethodID(throwable, "toString", "()Ljava/lang/String;");
+    jmethodID get_message = JClasses::Throwable_getMessage;
+    jmethodID to_string = JClasses::Throwable_toString;
     
-    if (!throwable || !cancel_exception || 
-        !timeout_exception || !get_message ||
-        !to_string || JAVA_EXCEPTION_OCCURRED(jenv)) {
+    if (!cancel_exception || !timeout_exception || 
+        !get_message || !to_string) {
         eac_dprintf("Failed to init exception-related class handles\n");
         abort();
     }
@@ -103,54 +114,36 @@ void*
 Future::get()
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    jobject jresult = jenv->CallObjectMethod(jfuture, get_mid);
+    jobject obj = ref(jenv);
+    jobject jresult = jenv->CallObjectMethod(obj, JClasses::Future_get);
+    unref(jenv, obj);
     checkExceptions(jenv);
-    return (void*)getPtr(jenv, jresult);
-}
-
-static const char *enumNames[SECONDS+1] = {
-    "NANOSECONDS",
-    "MICROSECONDS",
-    "MILLISECONDS",
-    "SECONDS"
-};
-
-jobject
-getEnumValue(JNIEnv *jenv, enum TimeUnit units)
-{
-    jclass clazz = JClasses::TimeUnit;
-    if (!clazz || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find TimeUnit class");
-    }
-    jfieldID fid = jenv->GetStaticFieldID(clazz, enumNames[units], 
-                                          "Ljava/util/concurrent/TimeUnit;");
-                                          
-    if (!fid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find TimeUnit constant");
-    }
-    jobject jobj = jenv->GetStaticObjectField(clazz, fid);
-    if (JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't get TimeUnit constant");
-    }
-    return jobj;
+    long result = getPtr(jenv, jresult);
+    jenv->DeleteLocalRef(jresult);
+    return (void*)result;
 }
 
 void* 
 Future::get(long long timeout, enum TimeUnit units)
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    jobject enumValue = getEnumValue(jenv, units);
-    jobject jresult = jenv->CallObjectMethod(jfuture, getWithTimeout_mid, 
-                                             timeout, enumValue);
+    jobject obj = ref(jenv);
+    jobject jresult = jenv->CallObjectMethod(obj, JClasses::Future_getWithTimeout, 
+                                             timeout, JClasses::TimeUnits[units]);
+    unref(jenv, obj);
     checkExceptions(jenv);
-    return (void*)getPtr(jenv, jresult);
+    long result = getPtr(jenv, jresult);
+    jenv->DeleteLocalRef(jresult);
+    return (void*)result;
 }
 
 bool
 Future::cancel(bool mayInterrupt)
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    bool ret = jenv->CallBooleanMethod(jfuture, cancel_mid, mayInterrupt);
+    jobject obj = ref(jenv);
+    bool ret = jenv->CallBooleanMethod(obj, JClasses::Future_cancel, mayInterrupt);
+    unref(jenv, obj);
     checkExceptions(jenv);
     return ret;
 }
@@ -159,7 +152,9 @@ bool
 Future::isCancelled()
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    bool res = jenv->CallBooleanMethod(jfuture, isCancelled_mid);
+    jobject obj = ref(jenv);
+    bool res = jenv->CallBooleanMethod(obj, JClasses::Future_isCancelled);
+    unref(jenv, obj);
     checkExceptions(jenv);
     return res;
 }
@@ -168,7 +163,9 @@ bool
 Future::isDone()
 {
     JNIEnv *jenv = getJNIEnv(vm);
-    bool res = jenv->CallBooleanMethod(jfuture, isDone_mid);
+    jobject obj = ref(jenv);
+    bool res = jenv->CallBooleanMethod(obj, JClasses::Future_isDone);
+    unref(jenv, obj);
     checkExceptions(jenv);
     return res;
 }
@@ -177,34 +174,36 @@ Future::Future(JavaVM *jvm, jobject jfuture_)
 {
     vm = jvm;
     jfuture = jfuture_; // global ref; release in destructor
-    
-    JNIEnv *jenv = getJNIEnv(jvm);
-    jclass futureClass = JClasses::Future;
-    if (!futureClass || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future class");
-    }
-    get_mid = jenv->GetMethodID(futureClass, "get", "()Ljava/lang/Object;");
-    if (!get_mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future.get() method");
-    }
-    getWithTimeout_mid = jenv->GetMethodID(
-        futureClass, "get", 
-        "(JLjava/util/concurrent/TimeUnit;)Ljava/lang/Object;"
-    );
-    if (!getWithTimeout_mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future.get(timeout) method");
-    }
-    cancel_mid = jenv->GetMethodID(futureClass, "cancel", "(Z)Z");
-    if (!cancel_mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future.cancel() method");
+    shared = NULL;
+    index = -1;
+}
+
+Future::Future(JavaVM *jvm, SharedRefs *shared_, int index_)
+{
+    vm = jvm;
+    jfuture = NULL;
+    shared = shared_; // counted reference; release in destructor
+    index = index_;
+}
+
+jobject
+Future::ref(JNIEnv *jenv)
+{
+    if (jfuture) {
+        return jfuture;
     }
-    isCancelled_mid = jenv->GetMethodID(futureClass, "isCancelled", "()Z");
-    if (!isCancelled_mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future.isCancelled() method");
+    jobject obj = jenv->GetObjectArrayElement(shared->jfutures, index);
+    if (!obj || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        fatal_error("Can't get Future from shared array");
     }
-    isDone_mid = jenv->GetMethodID(futureClass, "isDone", "()Z");
-    if (!isDone_mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        fatal_error("Can't find Future.isDone() method");
+    return obj;
+}
+
+void
+Future::unref(JNIEnv *jenv, jobject obj)
+{
+    if (obj != jfuture) {
+        jenv->DeleteLocalRef(obj);
     }
 }
 
@@ -214,5 +213,15 @@ Future::~Future()
         cancel(true);
     }
     JNIEnv *jenv = getJNIEnv(vm);
-    jenv->DeleteGlobalRef(jfuture);
+    if (jfuture) {
+        jenv->DeleteGlobalRef(jfuture);
+    } else {
+        pthread_mutex_lock(&shared->lock);
+        bool last = (--shared->count == 0);
+        pthread_mutex_unlock(&shared->lock);
+        if (last) {
+            jenv->DeleteGlobalRef(shared->jfutures);
+            delete shared;
+        }
+    }
 }
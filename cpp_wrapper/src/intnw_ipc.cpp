@@ -7,202 +7,107 @@
 
 #include <netinet/in.h>
 #include <arpa/inet.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <string.h>
 
 #include <vector>
-#include <string>
-#include <sstream>
-#include <stdexcept>
 using std::vector;
-using std::string;
-using std::ostringstream;
-using std::runtime_error;
 
-static jclass networkStatsClass;
-static jmethodID networkStatsCtor;
-static jclass hashMapClass;
-static jmethodID hashMapCtor;
-static jmethodID hashMapPut;
-static jclass integerClass;
-static jmethodID integerCtor;
+/* Must match the layout in NetworkStatsBuffer.java. */
+#define MAX_STATS_INTERFACES 16
 
-static void
-checkJavaError(JNIEnv *jenv, bool fail_condition, const char *err_msg)
-{
-    if (fail_condition || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        throw runtime_error(err_msg);
-    }
-}
-
-static void initCachedJNIData(JNIEnv *jenv)
-{
-    networkStatsClass = jenv->FindClass("edu/umich/eac/NetworkStats");
-    checkJavaError(jenv, !networkStatsClass, "Can't find NetworkStats class");
-
-    networkStatsCtor = jenv->GetMethodID(networkStatsClass, "<init>", "()V");
-    checkJavaError(jenv, !networkStatsCtor, "Can't find NetworkStats constructor");
-    
-    hashMapClass = jenv->FindClass("java/util/HashMap");
-    checkJavaError(jenv, !hashMapClass, "Can't find HashMap class");
-
-    hashMapCtor = jenv->GetMethodID(hashMapClass, "<init>", "()V");
-    checkJavaError(jenv, !hashMapCtor, "Can't find HashMap constructor");
-
-    const char *putSignature = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
-    hashMapPut = jenv->GetMethodID(hashMapClass, "put", putSignature);
-    checkJavaError(jenv, !hashMapPut, "Can't find HashMap put method");
-    
-    integerClass = jenv->FindClass("java/lang/Integer");
-    integerCtor = jenv->GetMethodID(integerClass, "<init>", "(I)V");
-}
-
-static jobject newNetworkStats(JNIEnv *jenv)
-{
-    //eac_dprintf("JNIEnv ptr: %p\n", jenv);
-    //eac_dprintf("networkStatsClass ptr: %p\n", networkStatsClass);
-    //eac_dprintf("networkStatsCtor ptr: %p\n", networkStatsCtor);
-    jobject stats = jenv->NewObject(networkStatsClass, networkStatsCtor);
-    checkJavaError(jenv, !stats, "Can't create NetworkStats java object");
-    return stats;
-}
-
-static jobject newStatsMap(JNIEnv *jenv)
-{
-    //eac_dprintf("JNIEnv ptr: %p\n", jenv);
-    //eac_dprintf("hashMapClass ptr: %p\n", hashMapClass);
-    //eac_dprintf("hashMapCtor ptr: %p\n", hashMapCtor);
-    jobject theMap = jenv->NewObject(hashMapClass, hashMapCtor);
-    checkJavaError(jenv, !theMap, "Can't create HashMap java object");
-    return theMap;
-}
+struct stats_record {
+    int32_t ip_addr;
+    int32_t bandwidth_down;
+    int32_t bandwidth_up;
+    int32_t rtt_ms;
+};
 
-static void addMapping(JNIEnv *jenv, jobject mapObj, 
-                       int ip_addr, jobject stats)
-{
-    jobject ipAddrInteger = jenv->NewObject(integerClass, integerCtor, ip_addr);
-    checkJavaError(jenv, !ipAddrInteger, "Can't create Java Integer");
-
-    (void) jenv->CallObjectMethod(mapObj, hashMapPut, ipAddrInteger, stats);
-    checkJavaError(jenv, false, "HashMap.put threw an exception");
-}
-
-static void fillField(JNIEnv *jenv, jobject obj, string fieldName, int fieldValue)
-{
-    jclass objClass = jenv->GetObjectClass(obj);
-    if (!objClass || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        throw runtime_error("GetClass failed in fillField");
-    }
-    jfieldID fieldID = jenv->GetFieldID(objClass, fieldName.c_str(), "I");
-    if (!fieldID || JAVA_EXCEPTION_OCCURRED(jenv)) {
-        ostringstream oss;
-        oss << "fillField: failed to get field ID for " << fieldName;
-        throw runtime_error(oss.str());
-    }
-    jenv->SetIntField(obj, fieldID, fieldValue);
-    if (JAVA_EXCEPTION_OCCURRED(jenv)) {
-        ostringstream oss;
-        oss << "fillField: failed to set " << fieldName << "field";
-        throw runtime_error(oss.str());
-    }
-}
+struct stats_buffer {
+    volatile int32_t seq; /* odd while the records are being written */
+    int32_t count;
+    struct stats_record records[MAX_STATS_INTERFACES];
+};
 
-static void fillStats(JNIEnv *jenv, jobject stats, int bw_down, int bw_up, int rtt_ms)
-{
-    fillField(jenv, stats, "bandwidthDown", bw_down);
-    fillField(jenv, stats, "bandwidthUp", bw_up);
-    fillField(jenv, stats, "rttMillis", rtt_ms);
-}
+static pthread_mutex_t stats_lock = PTHREAD_MUTEX_INITIALIZER;
+static jobject statsBufferRef;
+static struct stats_buffer *shared_stats;
 
 extern "C"
-JNIEXPORT jobject JNICALL 
-Java_edu_umich_eac_NetworkStats_getBestNetworkStats(JNIEnv *jenv, jclass cls)
+JNIEXPORT jboolean JNICALL 
+Java_edu_umich_eac_NetworkStatsBuffer_attach(JNIEnv *jenv, jclass cls, jobject buffer)
 {
     if (!jenv) {
         // for linker coercion only.
-        return NULL;
+        return JNI_FALSE;
     }
 
-    initCachedJNIData(jenv);
-
-    // look at all available networks and pick the one with the best bandwidth.
-
-    jobject stats = NULL;
-    try {
-        stats = newNetworkStats(jenv);
-        fillStats(jenv, stats, 0, 0, 0);
-    } catch (runtime_error& e) {
-        return NULL;
+    void *addr = jenv->GetDirectBufferAddress(buffer);
+    jlong capacity = jenv->GetDirectBufferCapacity(buffer);
+    if (!addr || capacity < (jlong) sizeof(struct stats_buffer)) {
+        eac_dprintf("Network stats buffer is unusable (%p, %d bytes)\n",
+                    addr, (int) capacity);
+        return JNI_FALSE;
     }
-    
-    int best_bandwidth = -1;
-    int index = -1;
-
-    vector<struct net_interface> ifaces;
-    bool result = get_local_interfaces(ifaces);
-    if (result) {
-        for (size_t i = 0; i < ifaces.size(); ++i) {
-            int bandwidth_sum = ifaces[i].bandwidth_down + ifaces[i].bandwidth_up;
-            if (bandwidth_sum > best_bandwidth) {
-                best_bandwidth = bandwidth_sum;
-                index = (int) i;
-            }
-        }
 
-        if (index != -1) {
-            struct net_interface& iface = ifaces[index];
-            fillStats(jenv, stats,
-                      iface.bandwidth_down, 
-                      iface.bandwidth_up,
-                      iface.RTT);
-        }
+    pthread_mutex_lock(&stats_lock);
+    if (statsBufferRef) {
+        jenv->DeleteGlobalRef(statsBufferRef);
     }
-
-    return stats;
+    statsBufferRef = jenv->NewGlobalRef(buffer);
+    shared_stats = (struct stats_buffer *) addr;
+    pthread_mutex_unlock(&stats_lock);
+    return JNI_TRUE;
 }
 
 extern "C"
-JNIEXPORT jobject JNICALL 
-Java_edu_umich_eac_NetworkStats_getAllNetworkStatsByIp(JNIEnv *jenv, jclass cls)
+JNIEXPORT jint JNICALL 
+Java_edu_umich_eac_NetworkStatsBuffer_refresh(JNIEnv *jenv, jclass cls)
 {
     if (!jenv) {
         // for linker coercion only.
-        return NULL;
+        return 0;
     }
 
-    initCachedJNIData(jenv);
-
-    // look at all available networks and bundle them all as a HashMap of
-    //  (IP, stats) pairs.
+    struct stats_record records[MAX_STATS_INTERFACES];
+    memset(records, 0, sizeof(records));
+    int count = 0;
 
-    jobject theMap = NULL;
-    try {
-        theMap = newStatsMap(jenv);
-    
-        vector<struct net_interface> ifaces;
-        bool result = get_local_interfaces(ifaces);
-        if (result) {
-            for (size_t i = 0; i < ifaces.size(); ++i) {
-                struct net_interface& iface = ifaces[i];
-
-                uint32_t ip_addr = iface.ip_addr.s_addr;
-                jobject stats = newNetworkStats(jenv);
-                fillStats(jenv, stats,
-                          iface.bandwidth_down, 
-                          iface.bandwidth_up,
-                          iface.RTT);
-
-                addMapping(jenv, theMap, ip_addr, stats);
-            }
+    vector<struct net_interface> ifaces;
+    if (get_local_interfaces(ifaces)) {
+        for (size_t i = 0; i < ifaces.size() && count < MAX_STATS_INTERFACES; ++i) {
+            struct net_interface& iface = ifaces[i];
+            records[count].ip_addr = iface.ip_addr.s_addr;
+            records[count].bandwidth_down = iface.bandwidth_down;
+            records[count].bandwidth_up = iface.bandwidth_up;
+            records[count].rtt_ms = iface.RTT;
+            count++;
         }
-    } catch (runtime_error& e) {
-        return NULL;
     }
 
-    return theMap;
+    jint seq = 0;
+    pthread_mutex_lock(&stats_lock);
+    if (shared_stats) {
+        if (shared_stats->count != count ||
+            memcmp(shared_stats->records, records, sizeof(records)) != 0) {
+            shared_stats->seq++;
+            __sync_synchronize();
+            shared_stats->count = count;
+            memcpy(shared_stats->records, records, sizeof(records));
+            __sync_synchronize();
+            shared_stats->seq++;
+        }
+        // else unchanged; readers can keep their copies.
+        seq = shared_stats->seq;
+    }
+    pthread_mutex_unlock(&stats_lock);
+    return seq;
 }
 
 extern "C"
 JNIEXPORT jboolean JNICALL 
-Java_edu_umich_eac_WifiTracker_askScoutIfIpIsConnected(JNIEnv *jenv, jobject jobj, jint ipAddr)
+Java_edu_umich_eac_AndroidPlatform_askScoutIfIpIsConnected(JNIEnv *jenv, jclass cls, jint ipAddr)
 {
     return is_ip_connected(ipAddr);
 }
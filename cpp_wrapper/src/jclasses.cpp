@@ -1,6 +1,8 @@
 #include <stdlib.h>
 #include <jni.h>
+#include <pthread.h>
 #include <stdexcept>
+#include <string>
 #include "eac_utility.h"
 #include "jclasses.h"
 
@@ -15,12 +17,51 @@ JClasses::find(JNIEnv *jenv, const char *className)
     if (!global || JAVA_EXCEPTION_OCCURRED(jenv)) {
         throw std::runtime_error(className);
     }
+    jenv->DeleteLocalRef(local);
+    return global;
+}
+
+jmethodID
+JClasses::method(JNIEnv *jenv, jclass clazz, const char *name, const char *sig)
+{
+    jmethodID mid = clazz ? jenv->GetMethodID(clazz, name, sig) : NULL;
+    if (!mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        throw std::runtime_error(std::string(name) + sig);
+    }
+    return mid;
+}
+
+jmethodID
+JClasses::staticMethod(JNIEnv *jenv, jclass clazz, const char *name, const char *sig)
+{
+    jmethodID mid = clazz ? jenv->GetStaticMethodID(clazz, name, sig) : NULL;
+    if (!mid || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        throw std::runtime_error(std::string(name) + sig);
+    }
+    return mid;
+}
+
+jobject
+JClasses::staticField(JNIEnv *jenv, jclass clazz, const char *name, const char *sig)
+{
+    jfieldID fid = clazz ? jenv->GetStaticFieldID(clazz, name, sig) : NULL;
+    if (!fid || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        throw std::runtime_error(name);
+    }
+    jobject local = jenv->GetStaticObjectField(clazz, fid);
+    jobject global = local ? jenv->NewGlobalRef(local) : NULL;
+    if (!global || JAVA_EXCEPTION_OCCURRED(jenv)) {
+        throw std::runtime_error(name);
+    }
+    jenv->DeleteLocalRef(local);
     return global;
 }
 
 jclass JClasses::EnergyAdaptiveCache = NULL;
+jclass JClasses::CacheFetcher = NULL;
 jclass JClasses::JNICacheFetcher = NULL;
 jclass JClasses::SWIGTYPE_p_void = NULL;
+jclass JClasses::Throwable = NULL;
 jclass JClasses::CancellationException = NULL;
 jclass JClasses::TimeoutException = NULL;
 jclass JClasses::TimeUnit = NULL;
@@ -28,6 +69,33 @@ jclass JClasses::Future = NULL;
 jclass JClasses::Assert = NULL;
 jclass JClasses::PrefetchStrategyType = NULL;
 
+jmethodID JClasses::EnergyAdaptiveCache_ctor = NULL;
+jmethodID JClasses::EnergyAdaptiveCache_prefetch = NULL;
+jmethodID JClasses::EnergyAdaptiveCache_prefetchNow = NULL;
+jmethodID JClasses::EnergyAdaptiveCache_fetch = NULL;
+jmethodID JClasses::EnergyAdaptiveCache_prefetchAll = NULL;
+jmethodID JClasses::EnergyAdaptiveCache_updateGoalTime = NULL;
+jmethodID JClasses::JNICacheFetcher_ctor = NULL;
+jmethodID JClasses::SWIGTYPE_p_void_getCPtr = NULL;
+jmethodID JClasses::Throwable_getMessage = NULL;
+jmethodID JClasses::Throwable_toString = NULL;
+jmethodID JClasses::Future_get = NULL;
+jmethodID JClasses::Future_getWithTimeout = NULL;
+jmethodID JClasses::Future_cancel = NULL;
+jmethodID JClasses::Future_isCancelled = NULL;
+jmethodID JClasses::Future_isDone = NULL;
+
+jobject JClasses::TimeUnits[4] = { NULL, NULL, NULL, NULL };
+
+static const char *timeUnitNames[4] = {
+    "NANOSECONDS",
+    "MICROSECONDS",
+    "MILLISECONDS",
+    "SECONDS"
+};
+
+static pthread_mutex_t init_lock = PTHREAD_MUTEX_INITIALIZER;
+static bool initialized = false;
 
 #ifndef SWIGEXPORT
 # if defined(_WIN32) || defined(__WIN32__) || defined(__CYGWIN__)
@@ -54,8 +122,8 @@ SWIGEXPORT jdouble JNICALL Java_edu_umich_eac_eacJNI_JNICacheFetcher_1estimateFe
 SWIGEXPORT void JNICALL Java_edu_umich_eac_eacJNI_JNICacheFetcher_1onCancelled(JNIEnv *jenv, jclass jcls, jint jarg1, jobject jarg1_);
 SWIGEXPORT void JNICALL Java_edu_umich_eac_eacJNI_delete_1JNICacheFetcher(JNIEnv *jenv, jclass jcls, jint jarg1);
 
-JNIEXPORT jobject JNICALL Java_edu_umich_eac_NetworkStats_getBestNetworkStats(JNIEnv *jenv, jclass jcls);
-JNIEXPORT jobject JNICALL Java_edu_umich_eac_NetworkStats_getAllNetworkStatsByIp(JNIEnv *jenv, jclass jcls);
+JNIEXPORT jboolean JNICALL Java_edu_umich_eac_NetworkStatsBuffer_attach(JNIEnv *jenv, jclass jcls, jobject buffer);
+JNIEXPORT jint JNICALL Java_edu_umich_eac_NetworkStatsBuffer_refresh(JNIEnv *jenv, jclass jcls);
 #ifdef __cplusplus
 }
 #endif
@@ -63,19 +131,79 @@ JNIEXPORT jobject JNICALL Java_edu_umich_eac_NetworkStats_getAllNetworkStatsByIp
 void
 JClasses::init(JNIEnv *jenv)
 {
+    pthread_mutex_lock(&init_lock);
+    if (initialized) {
+        pthread_mutex_unlock(&init_lock);
+        return;
+    }
+    initialized = true;
+
     try {
         EnergyAdaptiveCache = find(jenv, "edu/umich/eac/EnergyAdaptiveCache");
+        CacheFetcher = find(jenv, "edu/umich/eac/CacheFetcher");
         JNICacheFetcher = find(jenv, "edu/umich/eac/JNICacheFetcher");
         SWIGTYPE_p_void = find(jenv, "edu/umich/eac/SWIGTYPE_p_void");
+        Throwable = find(jenv, "java/lang/Throwable");
         CancellationException = find(jenv, "java/util/concurrent/CancellationException");
         TimeoutException = find(jenv, "java/util/concurrent/TimeoutException");
         TimeUnit = find(jenv, "java/util/concurrent/TimeUnit");
         Future = find(jenv, "java/util/concurrent/Future");
-        Assert = find(jenv, "junit/framework/Assert");
         PrefetchStrategyType = find(jenv, "edu/umich/eac/PrefetchStrategyType");
     } catch (std::runtime_error& e) {
         eac_dprintf("failed loading class: %s\n", e.what());
     }
+    try {
+        // only there in tests.
+        Assert = find(jenv, "junit/framework/Assert");
+    } catch (std::runtime_error& e) {
+        jenv->ExceptionClear();
+    }
+
+    const char *prefetchSig = 
+        "(Ledu/umich/eac/CacheFetcher;)Ljava/util/concurrent/Future;";
+    try {
+        EnergyAdaptiveCache_ctor = method(
+            jenv, EnergyAdaptiveCache, "<init>", 
+            "(Landroid/content/Context;Ledu/umich/eac/PrefetchStrategyType;JDI)V"
+        );
+        EnergyAdaptiveCache_prefetch = method(jenv, EnergyAdaptiveCache, 
+                                              "prefetch", prefetchSig);
+        EnergyAdaptiveCache_prefetchNow = method(jenv, EnergyAdaptiveCache, 
+                                                 "prefetchNow", prefetchSig);
+        EnergyAdaptiveCache_fetch = method(jenv, EnergyAdaptiveCache, 
+                                           "fetch", prefetchSig);
+        EnergyAdaptiveCache_prefetchAll = method(
+            jenv, EnergyAdaptiveCache, "prefetchAll",
+            "([Ledu/umich/eac/CacheFetcher;)[Ljava/util/concurrent/Future;"
+        );
+        EnergyAdaptiveCache_updateGoalTime = method(jenv, EnergyAdaptiveCache, 
+                                                    "updateGoalTime", "(I)V");
+        JNICacheFetcher_ctor = method(jenv, JNICacheFetcher, "<init>", "(IZ)V");
+        SWIGTYPE_p_void_getCPtr = staticMethod(
+            jenv, SWIGTYPE_p_void, "getCPtr", "(Ledu/umich/eac/SWIGTYPE_p_void;)I"
+        );
+        Throwable_getMessage = method(jenv, Throwable, "getMessage", 
+                                      "()Ljava/lang/String;");
+        Throwable_toString = method(jenv, Throwable, "toString", 
+                                    "()Ljava/lang/String;");
+        Future_get = method(jenv, Future, "get", "()Ljava/lang/Object;");
+        Future_getWithTimeout = method(
+            jenv, Future, "get", 
+            "(JLjava/util/concurrent/TimeUnit;)Ljava/lang/Object;"
+        );
+        Future_cancel = method(jenv, Future, "cancel", "(Z)Z");
+        Future_isCancelled = method(jenv, Future, "isCancelled", "()Z");
+        Future_isDone = method(jenv, Future, "isDone", "()Z");
+
+        for (int i = 0; i < 4; ++i) {
+            TimeUnits[i] = staticField(jenv, TimeUnit, timeUnitNames[i],
+                                       "Ljava/util/concurrent/TimeUnit;");
+        }
+    } catch (std::runtime_error& e) {
+        pthread_mutex_unlock(&init_lock);
+        fatal_error(std::string("Can't find ") + e.what());
+    }
+    pthread_mutex_unlock(&init_lock);
 
     // force the linker to pull in these symbols
     // TODO: there's got to be a better way.  find it.
@@ -84,6 +212,6 @@ JClasses::init(JNIEnv *jenv)
     Java_edu_umich_eac_eacJNI_JNICacheFetcher_1estimateFetchTime(NULL, NULL, 0, NULL, 0, 0, 0);
     Java_edu_umich_eac_eacJNI_JNICacheFetcher_1onCancelled(NULL, NULL, 0, NULL);
     Java_edu_umich_eac_eacJNI_delete_1JNICacheFetcher(NULL, NULL, 0);
-    Java_edu_umich_eac_NetworkStats_getBestNetworkStats(NULL, NULL);
-    Java_edu_umich_eac_NetworkStats_getAllNetworkStatsByIp(NULL, NULL);
+    Java_edu_umich_eac_NetworkStatsBuffer_attach(NULL, NULL, NULL);
+    Java_edu_umich_eac_NetworkStatsBuffer_refresh(NULL, NULL);
 }
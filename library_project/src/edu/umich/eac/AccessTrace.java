@@ -0,0 +1,122 @@
+package edu.umich.eac;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What an app hints and demands over time, for TraceSimulator.
+ *
+ * One line per event, in time order:
+ *   seconds hint ID BYTES [CLASS]
+ *   seconds demand ID [BYTES]
+ *   seconds cancel ID
+ * A demand for an ID that wasn't hinted is an unhinted demand fetch;
+ * that's what its BYTES are for.  Blank lines and lines starting with
+ * # are ignored.
+ */
+public class AccessTrace {
+    enum Type { HINT, DEMAND, CANCEL }
+
+    static class Event {
+        final long timeMillis;
+        final Type type;
+        final String id;
+        final int bytes;
+        final int prefetchClass;
+
+        Event(long timeMillis, Type type, String id, int bytes, int prefetchClass) {
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.id = id;
+            this.bytes = bytes;
+            this.prefetchClass = prefetchClass;
+        }
+    }
+
+    private final List<Event> events;
+
+    AccessTrace(List<Event> events) {
+        this.events = events;
+    }
+
+    public static AccessTrace read(String filename) throws IOException {
+        return read(new FileReader(filename));
+    }
+
+    public static AccessTrace read(Reader input) throws IOException {
+        BufferedReader in = new BufferedReader(input);
+        List<Event> events = new ArrayList<Event>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    events.add(parse(fields));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("Line %d: %s", lineNumber, e.getMessage()));
+                }
+                if (events.size() > 1 &&
+                    events.get(events.size() - 1).timeMillis < events.get(events.size() - 2).timeMillis) {
+                    throw new IOException(String.format("Line %d: time goes backwards", lineNumber));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new AccessTrace(events);
+    }
+
+    private static Event parse(String[] fields) {
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("expected at least 3 fields");
+        }
+        long time = Math.round(Double.parseDouble(fields[0]) * 1000);
+        Type type = Type.valueOf(fields[1].toUpperCase());
+        String id = fields[2];
+        int bytes = 0;
+        int prefetchClass = CacheFetcher.DEFAULT_PREFETCH_CLASS;
+        switch (type) {
+        case HINT:
+            if (fields.length < 4 || fields.length > 5) {
+                throw new IllegalArgumentException("hint needs ID BYTES [CLASS]");
+            }
+            bytes = Integer.parseInt(fields[3]);
+            if (fields.length == 5) {
+                prefetchClass = Integer.parseInt(fields[4]);
+            }
+            break;
+        case DEMAND:
+            if (fields.length > 4) {
+                throw new IllegalArgumentException("demand needs ID [BYTES]");
+            }
+            if (fields.length == 4) {
+                bytes = Integer.parseInt(fields[3]);
+            }
+            break;
+        case CANCEL:
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("cancel needs ID");
+            }
+            break;
+        }
+        return new Event(time, type, id, bytes, prefetchClass);
+    }
+
+    int size() {
+        return events.size();
+    }
+
+    Event get(int i) {
+        return events.get(i);
+    }
+}
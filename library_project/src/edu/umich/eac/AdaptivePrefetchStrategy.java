@@ -6,71 +6,90 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.math.optimization.GoalType;
 
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.util.Log;
 import edu.umich.eac.AdaptivePrefetchStrategy.PrefetchTask;
 import edu.umich.eac.WifiTracker.ConditionChange;
 import edu.umich.eac.WifiTracker.Prediction;
 import edu.umich.libpowertutor.EnergyEstimates;
-import edu.umich.libpowertutor.EnergyUsage;
 
 public class AdaptivePrefetchStrategy extends PrefetchStrategy {
     static final String TAG = AdaptivePrefetchStrategy.class.getName();
 
-    // TODO: determine this from Android APIs
-    private static final String CELLULAR_IFNAME = "rmnet0";
-    
     private static int nextOrder = 0;
     
     static class PrefetchTask implements Comparable<PrefetchTask> {
-        private Date scheduledTime;
+        // accuracies closer than this are considered equal.
+        private static final int ACCURACY_BUCKETS = 1000;
+        
+        // on the cache's clock.nanoTime().
+        private final long scheduledNanos;
         FetchFuture<?> prefetch;
+        final int prefetchClass;
         private int order;
+        // position in the PrefetchTaskQueue's heap; -1 if not queued.
+        int heapIndex = -1;
+        // the slot it holds while in prefetchesInProgress.
+        PrefetchSlot slot;
+        
+        // Cached so that comparisons don't touch CacheStats.
+        //  Only changed by PrefetchTaskQueue.reprioritize, under the queue's lock.
+        private double accuracy;
+        private long priorityKey;
         
         /** 
          * Schedule the prefetch for this many milliseconds in the future. 
          */
         PrefetchTask(FetchFuture<?> pf) {
             prefetch = pf;
-            scheduledTime = new Date();
+            prefetchClass = pf.getPrefetchClass();
+            scheduledNanos = pf.getCache().clock().nanoTime();
             synchronized(PrefetchTask.class) {
                 order = ++nextOrder;
             }
+            setAccuracy(pf.getCache().stats.getPriorityAccuracy(pf));
+        }
+        
+        double getAccuracy() {
+            return accuracy;
+        }
+        
+        /**
+         * Recompute the priority key: descending by accuracy bucket,
+         *  then ascending by hint order.
+         * @return true iff the key changed.
+         */
+        boolean setAccuracy(double newAccuracy) {
+            long bucket = Math.round(Math.max(0.0, Math.min(1.0, newAccuracy)) * ACCURACY_BUCKETS);
+            long newKey = ((ACCURACY_BUCKETS - bucket) << 32) | (order & 0xffffffffL);
+            accuracy = newAccuracy;
+            boolean changed = (newKey != priorityKey);
+            priorityKey = newKey;
+            return changed;
         }
 
         public int compareTo(PrefetchTask another) {
             if (prefetch.equals(another.prefetch)) {
                 return 0;
             }
-            double myAccuracy = prefetch.getCache().stats.getHardcodedPrefetchAccuracy(prefetch);
-            double yourAccuracy = another.prefetch.getCache().stats.getHardcodedPrefetchAccuracy(another.prefetch);
-            if (Math.abs(myAccuracy - yourAccuracy) > 0.001) {
-                // sort in descending order by accuracy
-                if (myAccuracy > yourAccuracy) {
-                    // higher accuracy; I'm first
-                    return -1;
-                } else if (myAccuracy < yourAccuracy) {
-                    // lower accuracy; you're first
-                    return 1;
-                }
+            // higher accuracy first; all accuracies being equal, preserve hint order
+            if (priorityKey < another.priorityKey) {
+                return -1;
+            } else if (priorityKey > another.priorityKey) {
+                return 1;
             }
-            // all prefetch accuracies being equal, preserve hint order
-            return order - another.order;
+            return 0;
         }
 
         public void reset() {
@@ -79,23 +98,41 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         
         public String toString() {
             StringBuffer buffer = new StringBuffer();
-            //double myAccuracy = prefetch.getCache().stats.getPrefetchAccuracy(prefetch);
-            double myAccuracy = prefetch.getCache().stats.getHardcodedPrefetchAccuracy(prefetch);
-            buffer.append("PrefetchTask: ").append("class ").append(prefetch.getPrefetchClass())
-                  .append(" accuracy ").append(myAccuracy)
+            buffer.append("PrefetchTask: ").append("class ").append(prefetchClass)
+                  .append(" accuracy ").append(accuracy)
                   .append(" fetcher: ").append(prefetch.toString());
             return buffer.toString();
         }
     }
 
-    private PriorityBlockingQueue<PrefetchTask> deferredPrefetches = 
-        new PriorityBlockingQueue<PrefetchTask>();
+    private PrefetchTaskQueue deferredPrefetches = new PrefetchTaskQueue();
     
-    private static final int NUM_CONCURRENT_PREFETCHES = 1;
+    // Accuracy changes reported by CacheStats, by prefetch class, 
+    //  waiting to be applied to deferredPrefetches in one batch.
+    private ConcurrentHashMap<Integer, Double> pendingAccuracyChanges =
+        new ConcurrentHashMap<Integer, Double>();
+    
+    // Number of deferred prefetches to look at when estimating
+    //  the typical size of the next few prefetches.
+    private static final int CONCURRENCY_SIZE_SAMPLE = 16;
+
+    /**
+     * One of the concurrency.getLimit() in-flight prefetch slots.
+     *  Prefetches that go out in one BatchFetcher request share a slot;
+     *  it's freed when the last of them leaves prefetchesInProgress.
+     */
+    static class PrefetchSlot {
+        final AtomicInteger members = new AtomicInteger();
+    }
 
-    private static NetworkStats HARDCODED_INITIAL_THREEG_STATS = null;
+    // Every task here holds a slot.  slotsInUse is bounded by
+    //  concurrency.getLimit(), which changes with the network conditions;
+    //  the monitor thread is the only one that takes slots, and it
+    //  checks the limit first.
     private BlockingQueue<PrefetchTask> prefetchesInProgress = 
-        new ArrayBlockingQueue<PrefetchTask>(NUM_CONCURRENT_PREFETCHES);
+        new LinkedBlockingQueue<PrefetchTask>();
+    private final AtomicInteger slotsInUse = new AtomicInteger();
+    private PrefetchConcurrency concurrency = new PrefetchConcurrency();
     
     private static boolean fixedAdaptiveParamsEnabled = false;
     private static double fixedEnergyWeight;
@@ -105,225 +142,612 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
     private GoalAdaptiveResourceWeight dataWeight;
     
     private int mLastEnergySpent; // in mJ
-    private EnergyUsage energyUsage;
-    private ProcNetworkStats mDataSpent;
+    private Platform.EnergyMeter energyMeter;
     
-    // These map TYPE_WIFI or TYPE_MOBILE to the network stats.
-    private Map<Integer, NetworkStats> currentNetworkStats;
+    // The networks to prefetch over, most preferred first; see setNetworks().
+    //  Sets of them are bitmasks in an int.
+    private static final int MAX_NETWORKS = 8;
+    private static volatile List<PrefetchNetwork> configuredNetworks = defaultNetworks();
+    private static volatile boolean stripingEnabled = false;
+    
+    private PrefetchNetwork[] networks;
+    // The first WIFI and first CELLULAR network, or -1 if there's none.
+    //  Fetching on demand is expected to use the wifi network when wifi
+    //  is up, and the cellular one otherwise.
+    private int wifiNet;
+    private int cellularNet;
+    
+    // These are indexed by network.
+    //  dataSpent is null for networks that aren't metered.
+    private ProcNetworkStats[] dataSpent;
+    private NetworkStats[] currentNetworkStats;
+    private boolean[] networkUp;
+    // keyed by network index.
     private AverageNetworkStats averageNetworkStats;
     
-    private PassiveThreegEstimate threegEstimate = new PassiveThreegEstimate();
+    private PassiveThreegEstimate threegEstimate;
     
     private MonitorThread monitorThread;
     
     @Override
-    public void setup(Context context, Date goalTime, double energyBudget, int dataBudget) {
-        super.setup(context, goalTime, energyBudget, dataBudget);
+    public void setup(Platform platform, long goalTimeNanos, double energyBudget, int dataBudget) {
+        super.setup(platform, goalTimeNanos, energyBudget, dataBudget);
         
-        this.context = context;
+        this.platform = platform;
+        clock = platform.clock();
+        lastResourceStatsUpdateNanos = clock.nanoTime();
         
-        long millisUntilGoal = goalTime.getTime() - System.currentTimeMillis();
-        logPrint(String.format("Setup adaptive strategy with energy budget %.3f%% data budget %d bytes  goal %d ms from now",
-                               energyBudget, dataBudget, millisUntilGoal));
+        long millisUntilGoal = TimeUnit.NANOSECONDS.toMillis(goalTimeNanos - clock.nanoTime());
+        logPrint("Setup adaptive strategy with energy budget %.3f%% data budget %d bytes  goal %d ms from now",
+                 energyBudget, dataBudget, millisUntilGoal);
         
         double energyBudgetJoules = EnergyEstimates.convertBatteryPercentToJoules(energyBudget);
-        energyWeight = new GoalAdaptiveResourceWeight(this, "energy", energyBudgetJoules, goalTime);
-        dataWeight = new GoalAdaptiveResourceWeight(this, "data", dataBudget, goalTime);
+        energyWeight = new GoalAdaptiveResourceWeight(this, "energy", energyBudgetJoules, goalTimeNanos,
+                                                      clock, !driven);
+        dataWeight = new GoalAdaptiveResourceWeight(this, "data", dataBudget, goalTimeNanos,
+                                                    clock, !driven);
         
         mLastEnergySpent = 0;
-        energyUsage = new EnergyUsage();
-        mDataSpent = new ProcNetworkStats(CELLULAR_IFNAME);
-        
-        // set from initial values in trace
-        HARDCODED_INITIAL_THREEG_STATS = new NetworkStats();
-//        HARDCODED_INITIAL_THREEG_STATS.bandwidthDown = 51196;
-//        HARDCODED_INITIAL_THREEG_STATS.bandwidthUp = 1497;
-//        HARDCODED_INITIAL_THREEG_STATS.rttMillis = 207;
-        
-        // walking trace 1
-        HARDCODED_INITIAL_THREEG_STATS.bandwidthDown = 66052; //test
-        HARDCODED_INITIAL_THREEG_STATS.bandwidthUp = 6792;
-        HARDCODED_INITIAL_THREEG_STATS.rttMillis = 143;
-
-        // walking trace 1, reversed
-//        HARDCODED_INITIAL_THREEG_STATS.bandwidthDown = 87620;
-//        HARDCODED_INITIAL_THREEG_STATS.bandwidthUp = 18924;
-//        HARDCODED_INITIAL_THREEG_STATS.rttMillis = 115;
-
-        currentNetworkStats = NetworkStats.getAllNetworkStats(context);
-        currentNetworkStats.put(ConnectivityManager.TYPE_MOBILE, HARDCODED_INITIAL_THREEG_STATS);
+        energyMeter = platform.energyMeter();
+        
+        List<PrefetchNetwork> configured = configuredNetworks;
+        networks = configured.toArray(new PrefetchNetwork[configured.size()]);
+        wifiNet = cellularNet = -1;
+        dataSpent = new ProcNetworkStats[networks.length];
+        for (int net = 0; net < networks.length; ++net) {
+            if (networks[net].isMetered()) {
+                dataSpent[net] = new ProcNetworkStats(networks[net].ifname,
+                                                      platform.counterSampler());
+                if (cellularNet < 0) {
+                    cellularNet = net;
+                }
+            } else if (wifiNet < 0) {
+                wifiNet = net;
+            }
+        }
+        evaluator.setStriping(stripingEnabled);
+        threegEstimate = new PassiveThreegEstimate(platform);
+        
+        Map<Integer, NetworkStats> initialStats = NetworkStats.getNetworkStats(platform, networks);
+        if (cellularNet >= 0) {
+            initialStats.put(cellularNet, priors.cellularStats.copy());
+        }
+        currentNetworkStats = new NetworkStats[networks.length];
+        networkUp = new boolean[networks.length];
+        for (Integer net : initialStats.keySet()) {
+            currentNetworkStats[net] = initialStats.get(net);
+            networkUp[net] = true;
+        }
         averageNetworkStats = new AverageNetworkStats();
-        averageNetworkStats.initialize(currentNetworkStats);
+        averageNetworkStats.initialize(initialStats);
         
         monitorThread = new MonitorThread();
-        monitorThread.start();
+        cache.stats.setPriorityAccuracyListener(new CacheStats.PriorityAccuracyListener() {
+            public void onPriorityAccuracyChanged(int prefetchClass, double accuracy) {
+                pendingAccuracyChanges.put(prefetchClass, accuracy);
+                monitorThread.wakeup();
+            }
+        });
+        wifiTracker.addAvailabilityListener(new WifiTracker.AvailabilityListener() {
+            public void onWifiAvailabilityChanged(boolean available) {
+                monitorThread.wakeup();
+            }
+        });
+        GoalAdaptiveResourceWeight.WeightListener weightListener = 
+            new GoalAdaptiveResourceWeight.WeightListener() {
+                public void onWeightChanged(GoalAdaptiveResourceWeight weight) {
+                    monitorThread.wakeup();
+                }
+            };
+        energyWeight.setWeightListener(weightListener);
+        dataWeight.setWeightListener(weightListener);
+        if (!driven) {
+            monitorThread.start();
+        }
     }
     
     @Override
-    public void updateGoalTime(Date newGoalTime) {
-        energyWeight.updateGoalTime(newGoalTime);
-        dataWeight.updateGoalTime(newGoalTime);
+    public void updateGoalTime(long newGoalTimeNanos) {
+        energyWeight.updateGoalTime(newGoalTimeNanos);
+        dataWeight.updateGoalTime(newGoalTimeNanos);
+    }
+    
+    /**
+     * Prefetch over these networks, most preferred first, starting with
+     * the next setup().  A network's restriction label comes from its
+     * kind (see PrefetchNetwork.restrictionLabel()), so restricting a
+     * fetch to one wifi network lets IntNW use any of them.  The default
+     * is wifi, then cellular on rmnet0.
+     */
+    public static void setNetworks(List<PrefetchNetwork> networks) {
+        if (networks.isEmpty() || networks.size() > MAX_NETWORKS) {
+            throw new IllegalArgumentException(String.format("Need 1 to %d networks; got %d",
+                                                             MAX_NETWORKS,
+                                                             networks.size()));
+        }
+        configuredNetworks = new ArrayList<PrefetchNetwork>(networks);
+    }
+    
+    /**
+     * Let a prefetch (or batch) be striped across all the available
+     * networks when its cost on all of them together is below its
+     * benefit.  Off by default.  Takes effect at the next setup().
+     */
+    public static void setStripingEnabled(boolean enabled) {
+        stripingEnabled = enabled;
+    }
+    
+    private static List<PrefetchNetwork> defaultNetworks() {
+        List<PrefetchNetwork> networks = new ArrayList<PrefetchNetwork>();
+        networks.add(PrefetchNetwork.wifi());
+        // TODO: determine this from Android APIs
+        networks.add(PrefetchNetwork.cellular("rmnet0"));
+        return networks;
     }
     
     public static void setStaticParams(double energyWeight, double dataWeight) {
         fixedAdaptiveParamsEnabled = true;
         fixedEnergyWeight = energyWeight;
         fixedDataWeight = dataWeight;
+        fixedParamsEpoch++;
     }
 
-    private Date lastResourceStatsUpdate = new Date();
-    private Context context;
+    private static final long RESOURCE_STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private long lastResourceStatsUpdateNanos;
+    private Platform platform;
+    private Clock clock;
     
     private synchronized void updateStats() {
-        if (System.currentTimeMillis() - lastResourceStatsUpdate.getTime() > 1000) {
+        long now = clock.nanoTime();
+        if (now - lastResourceStatsUpdateNanos > RESOURCE_STATS_INTERVAL_NANOS) {
             updateEnergyStats();
             updateDataStats();
-            lastResourceStatsUpdate = new Date();
+            lastResourceStatsUpdateNanos = now;
         }
         updateNetworkStats();
     }
 
     private synchronized void updateDataStats() {
-        long dataSpent = mDataSpent.getTotalBytes();
-        mDataSpent.updateStats();
-        long dataSpentRecently = mDataSpent.getTotalBytes() - dataSpent;
+        long dataSpentRecently = 0;
+        for (ProcNetworkStats spent : dataSpent) {
+            if (spent != null) {
+                long before = spent.getTotalBytes();
+                spent.updateStats();
+                dataSpentRecently += spent.getTotalBytes() - before;
+            }
+        }
         dataWeight.reportSpentResource(dataSpentRecently);
     }
 
     private synchronized void updateEnergyStats() {
-        int energySpent = energyUsage.energyConsumed();
+        int energySpent = energyMeter.energyConsumed();
         double newEnergySpent = energySpent - mLastEnergySpent;
         mLastEnergySpent = energySpent;
         energyWeight.reportSpentResource(newEnergySpent / 1000.0);
     }
 
     private synchronized void updateNetworkStats() {
-        Map<Integer, NetworkStats> newStats = NetworkStats.getAllNetworkStats(context);
-//        for (Integer type : currentNetworkStats.keySet()) {
-//            NetworkStats newStats = currentNetworkStats.get(type);
-//            averageNetworkStats.add(type, newStats);
-//        }
-        // Only update wifi, because the 3G measurement is stale.
-        if (newStats.containsKey(ConnectivityManager.TYPE_WIFI)) {
-            NetworkStats wifiStats = newStats.get(ConnectivityManager.TYPE_WIFI);
-            currentNetworkStats.put(ConnectivityManager.TYPE_WIFI, wifiStats);
-            averageNetworkStats.add(ConnectivityManager.TYPE_WIFI, wifiStats);
+        Map<Integer, NetworkStats> newStats = NetworkStats.getNetworkStats(platform, networks);
+        for (int net = 0; net < networks.length; ++net) {
+            networkUp[net] = newStats.containsKey(net);
+            // Don't update the primary cellular network, 
+            //  because its measurement is stale.
+            if (net == cellularNet || !newStats.containsKey(net)) {
+                continue;
+            }
+            NetworkStats stats = newStats.get(net);
+            NetworkStats oldStats = currentNetworkStats[net];
+            currentNetworkStats[net] = stats;
+            NetworkStats oldAverage = averageNetworkStats.get(net);
+            oldAverage = (oldAverage == null) ? null : oldAverage.copy();
+            averageNetworkStats.add(net, stats);
+            if (!stats.sameAs(oldStats) || 
+                !averageNetworkStats.get(net).sameAs(oldAverage)) {
+                networkEpoch++;
+            }
+        }
+        
+        // expected costs depend on wifi availability too; it drifts
+        //  slowly, so only count whole-percent changes.
+        int availabilityPercent = (int) (wifiTracker.availability() * 100.0);
+        if (availabilityPercent != lastAvailabilityPercent) {
+            lastAvailabilityPercent = availabilityPercent;
+            networkEpoch++;
+        }
+    }
+    
+    // see CostCache.
+    private CostCache costCache = new CostCache();
+    private long networkEpoch = 0;
+    private int lastAvailabilityPercent = -1;
+    private static volatile long fixedParamsEpoch = 0;
+    
+    private synchronized long networkEpoch() {
+        return networkEpoch;
+    }
+    
+    private long budgetEpoch() {
+        return energyWeight.epoch() + dataWeight.epoch() + fixedParamsEpoch;
+    }
+    
+    /**
+     * Wifi is up when the WifiTracker says so, and the primary cellular
+     * network is assumed to always be up.  Any others are up when the
+     * scout has stats for them.
+     */
+    private boolean isNetworkAvailable(int net) {
+        if (net == wifiNet) {
+            return wifiTracker.isWifiAvailable();
+        } else if (net == cellularNet) {
+            return true;
+        }
+        return networkUp[net];
+    }
+    
+    /**
+     * @return the labels that restrict a fetch to the networks in mask.
+     *         If those are all the networks that are up, no labels, so as
+     *         to allow use of a network that appears later.
+     */
+    private int restrictionLabels(int mask, int availableMask) {
+        if (mask == availableMask) {
+            return 0;
+        }
+        int labels = 0;
+        for (int net = 0; net < networks.length; ++net) {
+            if ((mask & (1 << net)) != 0) {
+                labels |= networks[net].restrictionLabel();
+            }
+        }
+        return labels;
+    }
+    
+    private HintEvaluator evaluator = new HintEvaluator();
+    private EvaluatorCostModel costModel = new EvaluatorCostModel();
+    
+    private class EvaluatorCostModel implements HintEvaluator.CostModel {
+        HintEvaluator.Hints hints;
+        
+        public double duration(int hint, int network) {
+            return currentPrefetchDuration(hints.tasks[hint].prefetch, network);
+        }
+        
+        public void costTerms(int network, int bytes, double duration, double[] terms) {
+            Double now = costCache.get(bytes, network, HintEvaluator.NOW);
+            Double later = costCache.get(bytes, network, HintEvaluator.LATER);
+            if (now != null && later != null) {
+                terms[HintEvaluator.NOW] = now;
+                terms[HintEvaluator.LATER] = later;
+                return;
+            }
+            calculateCostTerms(bytes, network, duration, terms);
+            costCache.put(bytes, network, HintEvaluator.NOW, terms[HintEvaluator.NOW]);
+            costCache.put(bytes, network, HintEvaluator.LATER, terms[HintEvaluator.LATER]);
         }
     }
 
+    // Bounds on how long the monitor thread waits to re-check deferred
+    //  prefetches when nothing signals it.  Everything that changes the
+    //  decision inputs (hints, completions, wifi coming and going, budget
+    //  weights, hint accuracy) wakes it up directly; the timer only
+    //  covers slow drift in network and energy estimates.
+    static final long MIN_RECHECK_MS = 200;
+    static final long MAX_RECHECK_MS = 30 * 1000;
+    // extra wait per unit of (cost - benefit) / benefit.
+    static final long RECHECK_MS_PER_MARGIN = 5 * 1000;
+    static final long NO_RECHECK = 0;
+    
+    /**
+     * @return how long to wait before re-checking a prefetch deferred with
+     *  this cost and benefit.  The further the cost is above the benefit,
+     *  the longer it'll take for drift to flip the decision.
+     */
+    static long recheckDelayMillis(double cost, double benefit) {
+        if (benefit <= 0.0 || Double.isNaN(cost) || Double.isInfinite(cost)) {
+            // only an accuracy or budget change (which signals) can help.
+            return MAX_RECHECK_MS;
+        }
+        double margin = Math.max(0.0, (cost - benefit) / benefit);
+        double delay = MIN_RECHECK_MS + margin * RECHECK_MS_PER_MARGIN;
+        return (long) Math.min(MAX_RECHECK_MS, delay);
+    }
+    
     class MonitorThread extends Thread {
-        BlockingQueue<PrefetchTask> tasksToEvaluate = 
-            new LinkedBlockingQueue<PrefetchTask>();
+        private boolean signalled = false;
+        // the soonest re-check asked for during this pass, or NO_RECHECK.
+        private long recheckDelay = NO_RECHECK;
         
         @Override
         public void run() {
-            final int SAMPLE_PERIOD_MS = 200;
-            
             while (true) {
                 try {
-                    updateStats();
-                    reevaluateAllDeferredPrefetches();
-                    waitForWakeup(SAMPLE_PERIOD_MS);
+                    waitForWakeup(pass());
                 } catch (InterruptedException e) {
                     break;
                 }
             }
         }
+        
+        /**
+         * Look at the deferred prefetches once.
+         * @return how long until the next look is due, or NO_RECHECK
+         *         if only a signal should prompt it.
+         */
+        long pass() throws InterruptedException {
+            // this measures the decisions' own cost, so it's real time.
+            long startNanos = System.nanoTime();
+            recheckDelay = NO_RECHECK;
+            updateStats();
+            reevaluateAllDeferredPrefetches();
+            long settling = wifiTracker.millisUntilSettled();
+            if (settling > 0) {
+                // wifi just came up; isWifiAvailable() will change soon.
+                scheduleRecheck(settling);
+            }
+            cache.stats.latency.record(LatencyMetrics.Metric.DECISION_LOOP,
+                                       CacheFetcher.DEFAULT_PREFETCH_CLASS, LatencyMetrics.Network.ANY,
+                                       System.nanoTime() - startNanos);
+            return recheckDelay;
+        }
+        
+        /** @return true iff signalled since the last call; clears the signal. */
+        synchronized boolean takeSignal() {
+            boolean wasSignalled = signalled;
+            signalled = false;
+            return wasSignalled;
+        }
 
+        /** Wait for a signal, or until the timeout (if any) passes. */
         private synchronized void waitForWakeup(long waitMillis) throws InterruptedException {
-            wait(waitMillis);
+            if (!signalled) {
+                wait(waitMillis);
+            }
+            signalled = false;
+        }
+        
+        /** Called on the monitor thread, during a pass. */
+        void scheduleRecheck(long delayMillis) {
+            if (recheckDelay == NO_RECHECK || delayMillis < recheckDelay) {
+                recheckDelay = Math.max(1, delayMillis);
+            }
         }
 
         private void reevaluateAllDeferredPrefetches() throws InterruptedException {
-            PrefetchTask firstFetch = prefetchesInProgress.peek();
-            if (firstFetch != null && cannotComplete(firstFetch)) {
-                logPrint(String.format("Prefetch 0x%08x was interrupted; re-deferring",
-                                       firstFetch.prefetch.hashCode()));
-                prefetchesInProgress.remove(firstFetch);
-                firstFetch.reset();
-                deferDecision(firstFetch);
+            boolean interrupted = false;
+            for (PrefetchTask task : prefetchesInProgress) {
+                if (cannotComplete(task) && prefetchesInProgress.remove(task)) {
+                    releaseSlot(task);
+                    task.reset();
+                    logPrint("Prefetch 0x%08x was interrupted; re-deferring with %d bytes left",
+                             task.prefetch.hashCode(), task.prefetch.bytesToTransfer());
+                    deferDecision(task);
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                scheduleRecheck(MIN_RECHECK_MS);
                 return;
             }
             
-            if (prefetchesInProgress.remainingCapacity() == 0) {
+            applyAccuracyChanges();
+            updateConcurrency();
+            
+            if (!hasPrefetchSlot()) {
                 // too many prefetches in progress; defer
-                logPrint(String.format("%d prefetches outstanding (first is 0x%08x); deferring", 
-                        prefetchesInProgress.size(), 
-                        firstFetch == null ? 0 : firstFetch.prefetch.hashCode()));
+                PrefetchTask firstFetch = prefetchesInProgress.peek();
+                logPrint("%d prefetches outstanding in %d slots (first is 0x%08x); deferring", 
+                        prefetchesInProgress.size(), slotsInUse.get(),
+                        firstFetch == null ? 0 : firstFetch.prefetch.hashCode());
                 return;
             }
 
             // TODO: check whether we have new information to prompt re-evaluation?
             
-            deferredPrefetches.drainTo(tasksToEvaluate);
-            if (tasksToEvaluate.isEmpty()) {
+            // Tasks stay in the queue while they're evaluated; only the
+            //  ones that get issued (or were issued elsewhere) come out.
+            int numDeferred = deferredPrefetches.size();
+            if (numDeferred == 0) {
                 logPrint("No prefetches queued");
                 return;
             }
-            logPrint(String.format("Reevaluating %d deferred prefetches", tasksToEvaluate.size()));
+            logPrint("Reevaluating %d deferred prefetches", numDeferred);
 
-            PrefetchBatch batch = new PrefetchBatch();
-            while (!tasksToEvaluate.isEmpty()) {
-                batch.addPrefetch(tasksToEvaluate.remove());
-                if (batch.size() > 1) {
-                    logPrint(String.format("Evaluating prefetch 0x%08x batched with %d others", 
-                                           batch.first().prefetch.hashCode(), batch.size() - 1));
-                } else {
-                    logPrint(String.format("Evaluating prefetch 0x%08x", batch.first().prefetch.hashCode()));
+            updateNetworkStats();
+            costCache.validate(networkEpoch(), budgetEpoch(), cache.stats.accuracyEpoch());
+            HintEvaluator.Hints hints = 
+                HintEvaluator.Hints.capture(deferredPrefetches.orderedSnapshot(),
+                                            numDeferred, cache.stats,
+                                            calculateExpectedNetworkStats());
+            for (int i = 0; i < hints.size; ++i) {
+                if (hints.issued[i]) {
+                    alreadyIssued(hints.tasks[i]);
+                    deferredPrefetches.remove(hints.tasks[i].prefetch);
                 }
-                if (alreadyIssued(batch.first())) {
-                    batch.pop();
-                    continue;
+            }
+            
+            boolean[] available = new boolean[networks.length];
+            int availableMask = 0;
+            for (int net = 0; net < networks.length; ++net) {
+                available[net] = isNetworkAvailable(net);
+                if (available[net]) {
+                    availableMask |= (1 << net);
                 }
-                if (shouldIssuePrefetch(batch)) {
-                    if (!wifiTracker.isWifiAvailable()) {
-                        threegEstimate.beginEstimation(batch.first().prefetch);
-                    }
-                    issuePrefetch(batch.first());
-                    batch.pop();
+            }
+            // passive estimate is only meaningful for a prefetch
+            //  that has the cellular link to itself.
+            int cellularAlone = (cellularNet >= 0 && availableMask == (1 << cellularNet)) ?
+                availableMask : 0;
+            costModel.hints = hints;
+            evaluator.evaluate(hints, available, costModel);
+            
+            // worthwhile hints rank ahead of all the others.
+            int next = 0;
+            while (next < evaluator.numRanked && hasPrefetchSlot()) {
+                int hint = evaluator.ranked[next];
+                int chosen = evaluator.networks[hint];
+                if (chosen == 0) {
                     break;
                 }
+                PrefetchBatch batch = new PrefetchBatch();
+                batch.addPrefetch(hints.tasks[hint]);
+                logPrint("Cost = %s; benefit = %s; issuing prefetch 0x%08x", 
+                         evaluator.cost[hint], evaluator.benefit[hint],
+                         batch.first().prefetch.hashCode());
+                if (chosen == cellularAlone && prefetchesInProgress.isEmpty()) {
+                    threegEstimate.beginEstimation(batch.first().prefetch);
+                }
+                issueBatch(batch, restrictionLabels(chosen, availableMask));
+                next++;
+            }
+            if (!hasPrefetchSlot()) {
+                return;
+            }
+            
+            int batchSize = evaluator.findBatch(next, costModel);
+            if (batchSize > 0) {
+                PrefetchBatch batch = new PrefetchBatch();
+                for (int k = next; k < next + batchSize; ++k) {
+                    batch.addPrefetch(hints.tasks[evaluator.ranked[k]]);
+                }
+                logPrint("Cost = %s; benefit = %s; issuing prefetch 0x%08x batched with %d others", 
+                         evaluator.batchCost, evaluator.batchBenefit,
+                         batch.first().prefetch.hashCode(), batchSize - 1);
+                // the cost was amortized over the whole batch,
+                //  so issue the whole batch.
+                issueBatch(batch, restrictionLabels(evaluator.batchNetworks, availableMask));
+                next += batchSize;
             }
             
-            // add back any tasks that I didn't issue; they'll go to 
-            //  their original place in the queue.
-            batch.drainTo(deferredPrefetches);
-            tasksToEvaluate.drainTo(deferredPrefetches);
+            if (next < evaluator.numRanked) {
+                long delay = MAX_RECHECK_MS;
+                for (int k = next; k < evaluator.numRanked; ++k) {
+                    int hint = evaluator.ranked[k];
+                    delay = Math.min(delay, recheckDelayMillis(evaluator.cost[hint],
+                                                               evaluator.benefit[hint]));
+                }
+                int best = evaluator.ranked[next];
+                logPrint("Cost = %s; benefit = %s; deferring prefetch 0x%08x and %d others", 
+                         evaluator.cost[best], evaluator.benefit[best],
+                         hints.tasks[best].prefetch.hashCode(), evaluator.numRanked - next - 1);
+                scheduleRecheck(delay);
+            }
+        }
+
+        private void applyAccuracyChanges() {
+            if (pendingAccuracyChanges.isEmpty()) {
+                return;
+            }
+            Map<Integer, Double> changes = new HashMap<Integer, Double>();
+            for (Integer prefetchClass : pendingAccuracyChanges.keySet()) {
+                Double accuracy = pendingAccuracyChanges.remove(prefetchClass);
+                if (accuracy != null) {
+                    changes.put(prefetchClass, accuracy);
+                }
+            }
+            int changed = deferredPrefetches.reprioritize(changes);
+            logPrint("Accuracy changed for %d prefetch classes; reprioritized %d deferred prefetches",
+                     changes.size(), changed);
         }
 
-        private boolean cannotComplete(PrefetchTask firstFetch) {
-            if (firstFetch.prefetch.hasLabels(IntNWLabels.WIFI_ONLY) &&
-                !wifiTracker.isWifiAvailable()) {
-                return true;
-            } // else: should handle the 3G-only case too, but it's unlikely
-            return false;
+        /** @return true iff the prefetch is restricted to networks that are all down. */
+        private boolean cannotComplete(PrefetchTask task) {
+            int restriction = task.prefetch.getLabels() & IntNWLabels.ALL_NET_RESTRICTION_LABELS;
+            if (restriction == 0) {
+                return false;
+            }
+            for (int net = 0; net < networks.length; ++net) {
+                if ((restriction & networks[net].restrictionLabel()) != 0 &&
+                    isNetworkAvailable(net)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean hasPrefetchSlot() {
+            return slotsInUse.get() < concurrency.getLimit();
+        }
+        
+        /**
+         * Size the number of in-flight prefetches to the bandwidth-delay
+         * product of the network they'll most likely use, and resize
+         * the cache's background pool to match.
+         */
+        private void updateConcurrency() {
+            int sampled = 0;
+            long sampledBytes = 0;
+            for (PrefetchTask task : deferredPrefetches.sample(CONCURRENCY_SIZE_SAMPLE)) {
+                sampledBytes += task.prefetch.bytesToTransfer();
+                sampled++;
+            }
+            if (sampled == 0) {
+                return;
+            }
+            int typicalItemBytes = (int) (sampledBytes / sampled);
+            
+            NetworkStats stats = null;
+            for (int net = 0; net < networks.length && stats == null; ++net) {
+                if (isNetworkAvailable(net)) {
+                    stats = currentNetworkStats[net];
+                }
+            }
+            
+            if (concurrency.update(stats, typicalItemBytes)) {
+                int limit = concurrency.getLimit();
+                logPrint("Concurrent prefetch limit now %d (typical size %d bytes)",
+                         limit, typicalItemBytes);
+                cache.setBackgroundConcurrency(limit);
+            }
         }
 
         void removeTask(FetchFuture<?> prefetch) {
-            removePrefetchFromList(tasksToEvaluate, prefetch);
-            removePrefetchFromList(deferredPrefetches, prefetch);
+            deferredPrefetches.remove(prefetch);
         }
 
         synchronized void wakeup() {
+            signalled = true;
             notify();
         }
     }
 
+    /*
+     * For a driven strategy (see PrefetchStrategy.driven), these stand
+     * in for the monitor thread and the budget weights' timers.
+     */
+    
+    /** @return true iff something asked for a pass since the last one. */
+    boolean takeWakeup() {
+        return monitorThread.takeSignal();
+    }
+    
+    /** @see MonitorThread#pass() */
+    long runPass() throws InterruptedException {
+        return monitorThread.pass();
+    }
+    
+    /** Do what the weights' timers do every UPDATE_DURATION_MILLIS. */
+    void updateWeights() {
+        energyWeight.forceUpdateWeight();
+        dataWeight.forceUpdateWeight();
+    }
+
     @Override
     public void onDemandFetch(FetchFuture<?> prefetch) {
-        logPrint(String.format("Demand fetch arrived for fetcher 0x%08x; removing its prefetch",
-                               prefetch.hashCode()));
-        PrefetchTask dummy = new PrefetchTask(prefetch);
-        //prefetchesInProgress.remove(dummy);
-        removePrefetchFromList(prefetchesInProgress, prefetch);
+        logPrint("Demand fetch arrived for fetcher 0x%08x; removing its prefetch",
+                 prefetch.hashCode());
+        if (!prefetch.isRunning()) {
+            removePrefetchFromList(prefetchesInProgress, prefetch);
+        }
+        // else it keeps its pool thread, even if it's promoted in place,
+        //  so it keeps its slot until its run reports that it's done.
         monitorThread.removeTask(prefetch);
         monitorThread.wakeup();
     }
     
     @Override
     public void onPrefetchDone(FetchFuture<?> prefetch, boolean cancelled) {
-        logPrint(String.format("Prefetch %s for fetcher 0x%08x",
-                 cancelled ? "cancelled" : "done", prefetch.hashCode()));
+        logPrint("Prefetch %s for fetcher 0x%08x",
+                 cancelled ? "cancelled" : "done", prefetch.hashCode());
         if (cancelled) {
             monitorThread.removeTask(prefetch);
         }
@@ -346,9 +770,9 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         // These can be very very wrong sometimes, and that affects cost calculations badly.
         //   i.e. when I have wifi, I think the prefetch will have astronomical cost on average,
         //   so of course I must prefetch it right now.
-        logPrint(String.format("New passive 3G bandwidth-down estimate: %d bytes/sec (not using; just logging)", threegBandwidthEstimate));
-//        logPrint(String.format("New avg 3G bandwidth-down value: %d bytes/sec", 
-//                               averageNetworkStats.get(threegType).bandwidthDown));
+        logPrint("New passive 3G bandwidth-down estimate: %d bytes/sec (not using; just logging)", threegBandwidthEstimate);
+//        logPrint("New avg 3G bandwidth-down value: %d bytes/sec", 
+//                               averageNetworkStats.get(threegType).bandwidthDown);
                                
     }
 
@@ -360,8 +784,16 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
                 break;
             }
         }
-        if (victim != null) {
-            prefetches.remove(victim);
+        if (victim != null && prefetches.remove(victim)) {
+            releaseSlot(victim);
+        }
+    }
+
+    private void releaseSlot(PrefetchTask task) {
+        PrefetchSlot slot = task.slot;
+        task.slot = null;
+        if (slot != null && slot.members.decrementAndGet() == 0) {
+            slotsInUse.decrementAndGet();
         }
     }
 
@@ -371,134 +803,52 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         //  Queue instead of calling issuePrefetch so that
         //  issuePrefetch never hangs on prefetchesInProgress.offer();
         //  otherwise there's a race with
-        //  prefetchesInProgress.remainingCapacity()
+        //  the concurrency limit check.
         deferDecision(new PrefetchTask(prefetch));
-        if (deferredPrefetches.size() == 1) {
-            monitorThread.wakeup();
-        }
+        monitorThread.wakeup();
     }
 
-    private boolean shouldIssuePrefetch(PrefetchBatch batch) {
-        updateNetworkStats();
-
-        /* if wifiCost < benefit and threegCost > benefit,
-         *   issue prefetch as wifi-preferred.
-         * if wifiCost > benefit and threegCost < benefit (less likely),
-         *   issue prefetch as 3G-preferred.
-         * if wifiCost < benefit and threegCost < benefit, 
-         *   this is the uncertain point.  Could either issue it with no preference 
-         *   or with a preference based on which cost is lower.
-         * If we issue it with no preference, we should really be calculating the cost
-         *   of doing the prefetch on both networks - but it's probably smaller than
-         *   the cost of doing it on 3G.
-         * Jason's advice: pick one, document it, and make it easy to change.
-         *   (i.e. toggling one line of code)
-         *   This is the place to do that.
-         */
-        Double cost = null;
-        
-        if (alreadyIssued(batch.first())) {
-            // caller will "issue" the prefetch by realizing that it's already done 
-            //  and removing it from the queue.
-            logPrint(String.format("Already issued prefetch 0x%x; will remove it", batch.first().prefetch.hashCode()));
-            return true;
-        }
-        
-        Double threegCost = calculateCost(batch, ConnectivityManager.TYPE_MOBILE);
-        Double benefit = calculateBenefit(batch);
-
-        batch.first().prefetch.clearLabels(IntNWLabels.ALL_NET_RESTRICTION_LABELS);
-        if (wifiTracker.isWifiAvailable()) {
-            Double wifiCost = calculateCost(batch, ConnectivityManager.TYPE_WIFI);
-
-            // here's a conservative should-I-stripe-it calculation,
-            //  if we want to try that later
-            /*
-            if ((wifiCost + threegCost) < benefit) {
-                cost = wifiCost = threegCost;
-                // no label preference; default to striping
-            } else
-            */
-            if (wifiCost < benefit && threegCost < benefit) {
-                batch.first().prefetch.addLabels(IntNWLabels.WIFI_ONLY);
-                cost = wifiCost;
-            } else if (wifiCost < benefit && threegCost > benefit) {
-                batch.first().prefetch.addLabels(IntNWLabels.WIFI_ONLY);
-                cost = wifiCost;
-            } else if (wifiCost > benefit && threegCost < benefit) {
-                batch.first().prefetch.addLabels(IntNWLabels.THREEG_ONLY);
-                cost = threegCost;
-            } else {
-                // cost is too high; will defer either way
-                cost = wifiCost;
-            }
-        } else {
-            cost = threegCost;
-            // don't set a preference, so as to allow use of wifi if it appears
-        }
-        
-        final boolean shouldIssuePrefetch = cost < benefit;
-        
-        logPrint(String.format("Cost = %s; benefit = %s; %s prefetch 0x%08x", 
-                               cost.toString(), benefit.toString(),
-                               shouldIssuePrefetch ? "issuing" : "deferring",
-                               batch.first().prefetch.hashCode()));
-        return shouldIssuePrefetch;
-    }
-    
     private static double PROHIBITIVE_ENERGY_COST = 1.071 * Math.pow(10, 20); // U.S. energy consumption, 2007
     private static double PROHIBITIVE_DATA_COST = 200 * Math.pow(2, 40); // 200TB, about the size of Google's index
     
-    private double calculateCost(PrefetchBatch batch, int netType) {
-        double energyCostNow = currentEnergyCost(batch, netType);
-        double dataCostNow = currentDataCost(batch, netType);
+    /**
+     * Fill in the two terms of the cost of prefetching datalen bytes on
+     * network net:  cost = terms[NOW] - (hint accuracy * terms[LATER]).
+     * NOW is the weighted cost of fetching it now; LATER is the weighted
+     * expected cost of fetching it on demand, which an accurate hint saves.
+     */
+    private void calculateCostTerms(int datalen, int net, double duration, double[] terms) {
+        double energyCostNow = currentEnergyCost(datalen, net);
+        double dataCostNow = currentDataCost(datalen, net);
         
-        double duration = currentPrefetchDuration(batch, netType);
         double energyWeight = calculateEnergyWeight(energyCostNow, duration);
         double dataWeight = calculateDataWeight(dataCostNow, duration);
         
-        double energyCostFuture = averageEnergyCost(batch);
-        double dataCostFuture = averageDataCost(batch);
-        
-        //double hintAccuracy = batch.first().prefetch.getCache().stats.getPrefetchAccuracy(batch.first().prefetch);
-        double hintAccuracy = batch.first().prefetch.getCache().stats.getHardcodedPrefetchAccuracy(batch.first().prefetch);
-        double energyCostDelta = energyCostNow - (hintAccuracy * energyCostFuture);
-        double dataCostDelta = dataCostNow - (hintAccuracy * dataCostFuture);
-        
-        double weightedEnergyCost = energyWeight * energyCostDelta;
-        double weightedDataCost = dataWeight * dataCostDelta;
-        double totalCost = weightedEnergyCost + weightedDataCost;
-        logCost("Energy", energyCostNow, energyCostFuture, hintAccuracy, energyCostDelta,
-                energyWeight, weightedEnergyCost);
-        logCost("Data", dataCostNow, dataCostFuture, hintAccuracy, dataCostDelta, 
-                dataWeight, weightedDataCost);
-        logPrint(String.format("Total cost: %s", String.valueOf(totalCost)));
-        return totalCost;
-    }
-
-    private double currentPrefetchDuration(PrefetchBatch batch, int netType) {
-        NetworkStats stats = null;
-        if (netType == ConnectivityManager.TYPE_MOBILE) {
-            stats = currentNetworkStats.get(ConnectivityManager.TYPE_MOBILE);
-        } else {
-            stats = currentNetworkStats.get(ConnectivityManager.TYPE_WIFI);
-            if (stats == null) {
-                // spending rate will be high, wifi cost will be higher
-                return 1;
-            }
+        double energyCostFuture = averageEnergyCost(datalen);
+        double dataCostFuture = averageDataCost(datalen);
+        
+        terms[HintEvaluator.NOW] = energyWeight * energyCostNow + dataWeight * dataCostNow;
+        terms[HintEvaluator.LATER] = energyWeight * energyCostFuture + dataWeight * dataCostFuture;
+        logCost("Energy", energyCostNow, energyCostFuture, energyWeight);
+        logCost("Data", dataCostNow, dataCostFuture, dataWeight);
+        logPrint("Weighted cost of %d bytes on %s:  now %s later %s",
+                 datalen, networks[net], terms[HintEvaluator.NOW], terms[HintEvaluator.LATER]);
+    }
+
+    private double currentPrefetchDuration(FetchFuture<?> prefetch, int net) {
+        NetworkStats stats = currentNetworkStats[net];
+        if (stats == null) {
+            // spending rate will be high, cost will be higher
+            return 1;
         }
-        return batch.estimateFetchTime(stats.bandwidthDown, stats.bandwidthUp, stats.rttMillis);
+        return prefetch.estimateFetchTime(stats.bandwidthDown, stats.bandwidthUp, stats.rttMillis);
     }
 
-    private void logCost(String type, 
-                         double costNow, double costFuture, double hintAccuracy, double costDelta,
-                         double weight, double weightedCost) {
-        logPrint(String.format("%s cost:  now %s later %s hint accuracy %s delta %s weight %s  weighted cost %s",
-                               type,
-                               String.valueOf(costNow), String.valueOf(costFuture),
-                               String.valueOf(hintAccuracy),
-                               String.valueOf(costDelta), String.valueOf(weight),
-                               String.valueOf(weightedCost)));
+    private void logCost(String type, double costNow, double costFuture, double weight) {
+        if (!isLogging()) {
+            return;
+        }
+        logPrint("%s cost:  now %s later %s weight %s", type, costNow, costFuture, weight);
     }
 
     private double calculateEnergyWeight(double prefetchCost, double prefetchDuration) {
@@ -517,120 +867,121 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         }
     }
     
-    private double currentEnergyCost(PrefetchBatch batch, int netType) {
+    private double currentEnergyCost(int datalen, int net) {
         if (energyWeight.supplyIsExhausted()) {
             return PROHIBITIVE_ENERGY_COST;
         }
         
-        int datalen = batch.bytesToTransfer();
+        NetworkStats stats = currentNetworkStats[net];
+        if (stats == null) {
+            // should always have the average stats.  fall back on those
+            stats = averageNetworkStats.get(net);
+            if (stats == null) {
+                // shouldn't happen in my experiments.
+                return PROHIBITIVE_ENERGY_COST;
+            }
+        }
+        logPrint("Calculating energy cost on %s... net estimates: bw_down %d bw_up %d rtt %d",
+                 networks[net], stats.bandwidthDown, stats.bandwidthUp, stats.rttMillis);
         double energyCost;
-        if (netType == ConnectivityManager.TYPE_MOBILE) {
-            NetworkStats mobileStats = currentNetworkStats.get(ConnectivityManager.TYPE_MOBILE);
-            logPrint(String.format("Calculating energy cost on 3G... net estimates: bw_down %d bw_up %d rtt %d",
-                                   mobileStats.bandwidthDown, mobileStats.bandwidthUp, mobileStats.rttMillis));
+        if (networks[net].kind == PrefetchNetwork.Kind.CELLULAR) {
             energyCost = 
                 EnergyEstimates.estimateMobileEnergyCost(datalen, 
-                                                         mobileStats.bandwidthDown,
-                                                         mobileStats.rttMillis);
+                                                         stats.bandwidthDown,
+                                                         stats.rttMillis);
         } else {
-            NetworkStats wifiStats = currentNetworkStats.get(ConnectivityManager.TYPE_WIFI);
-            if (wifiStats == null) {
-                // should always have the average stats.  fall back on those
-                wifiStats = averageNetworkStats.get(ConnectivityManager.TYPE_WIFI);
-                if (wifiStats == null) {
-                    // shouldn't happen in my experiments.
-                    return PROHIBITIVE_ENERGY_COST;
-                }
-            }
-            logPrint(String.format("Calculating energy cost on wifi... net estimates: bw_down %d bw_up %d rtt %d",
-                                   wifiStats.bandwidthDown, 
-                                   wifiStats.bandwidthUp,
-                                   wifiStats.rttMillis));
             energyCost =
                 EnergyEstimates.estimateWifiEnergyCost(datalen, 
-                                                       wifiStats.bandwidthDown,
-                                                       wifiStats.rttMillis);
+                                                       stats.bandwidthDown,
+                                                       stats.rttMillis);
         } 
         
         return energyCost / 1000.0; // mJ to J
     }
     
-    private double averageEnergyCost(PrefetchBatch batch) {
-        int datalen = batch.bytesToTransfer();
-        NetworkStats wifiStats = averageNetworkStats.get(ConnectivityManager.TYPE_WIFI);
-        NetworkStats mobileStats = averageNetworkStats.get(ConnectivityManager.TYPE_MOBILE);
+    private double averageEnergyCost(int datalen) {
+        NetworkStats wifiStats = (wifiNet < 0) ? null : averageNetworkStats.get(wifiNet);
+        NetworkStats mobileStats = (cellularNet < 0) ? null : averageNetworkStats.get(cellularNet);
 
-        logPrint(String.format("Calculating average energy cost"));
+        logPrint("Calculating average energy cost");
 
-        double mobileEnergyCost = 
-            EnergyEstimates.estimateMobileEnergyCostAverage(datalen, 
-                                                            mobileStats.bandwidthDown,
-                                                            mobileStats.rttMillis);
-        logPrint(String.format("  avg cost on 3G: %f mJ avg net estimates: bw_down %d bw_up %d rtt %d",
-                                mobileEnergyCost,
-                                mobileStats.bandwidthDown,
-                                mobileStats.bandwidthUp, 
-                                mobileStats.rttMillis));
+        double mobileEnergyCost = 0.0;
+        if (mobileStats != null) {
+            mobileEnergyCost = 
+                EnergyEstimates.estimateMobileEnergyCostAverage(datalen, 
+                                                                mobileStats.bandwidthDown,
+                                                                mobileStats.rttMillis);
+            logPrint("  avg cost on 3G: %f mJ avg net estimates: bw_down %d bw_up %d rtt %d",
+                     mobileEnergyCost,
+                     mobileStats.bandwidthDown,
+                     mobileStats.bandwidthUp, 
+                     mobileStats.rttMillis);
+        }
 
         if (wifiStats == null) {
             return mobileEnergyCost / 1000.0;
         }
         
-        double wifiAvailability = wifiTracker.availability();
+        double wifiAvailability = expectedWifiAvailability();
         double wifiEnergyCost = 
             EnergyEstimates.estimateWifiEnergyCost(datalen, 
                                                    wifiStats.bandwidthDown,
                                                    wifiStats.rttMillis);
         
-        logPrint(String.format("  avg cost on wifi: %f mJ avg net estimates: bw_down %d bw_up %d rtt %d",
-                                wifiEnergyCost, 
-                                wifiStats.bandwidthDown,
-                                wifiStats.bandwidthUp,
-                                wifiStats.rttMillis));
-        logPrint(String.format("  expected wifi availability: %.2f%%", wifiAvailability * 100.0));
+        logPrint("  avg cost on wifi: %f mJ avg net estimates: bw_down %d bw_up %d rtt %d",
+                  wifiEnergyCost, 
+                  wifiStats.bandwidthDown,
+                  wifiStats.bandwidthUp,
+                  wifiStats.rttMillis);
+        logPrint("  expected wifi availability: %.2f%%", wifiAvailability * 100.0);
         
         return expectedValue(wifiEnergyCost, mobileEnergyCost, wifiAvailability) / 1000.0;
     }
 
-    private double currentDataCost(PrefetchBatch batch, int netType) {
-        if (netType == ConnectivityManager.TYPE_WIFI) {
+    private double currentDataCost(int datalen, int net) {
+        if (!networks[net].isMetered()) {
             return 0;
         } else {
             if (dataWeight.supplyIsExhausted()) {
                 return PROHIBITIVE_DATA_COST;
             }
-            return batch.bytesToTransfer();
+            return datalen;
         }
     }
     
-    private double averageDataCost(PrefetchBatch batch) {
-        return expectedValue(0, batch.bytesToTransfer(), wifiTracker.availability());
+    private double averageDataCost(int datalen) {
+        return expectedValue(0, datalen, expectedWifiAvailability());
     }
-
-    private double calculateBenefit(PrefetchBatch batch) {
-        // Application implements this computation.
-        // averageNetworkStats contains an estimate of the average network conditions
-        //   that the fetch might encounter, so estimateFetchTime represents the 
-        //   average benefit of prefetching (taking size into account).
-        NetworkStats expectedNetworkStats = calculateExpectedNetworkStats();
-        double benefit = batch.estimateFetchTime(expectedNetworkStats.bandwidthDown,
-                                                 expectedNetworkStats.bandwidthUp,
-                                                 expectedNetworkStats.rttMillis);
-        FetchFuture<?> prefetch = batch.first().prefetch;
-        //double accuracy = prefetch.getCache().stats.getPrefetchAccuracy(prefetch);
-        double accuracy = prefetch.getCache().stats.getHardcodedPrefetchAccuracy(prefetch);
-        //Log.d(TAG, String.format("Computed prefetch accuracy: %f", accuracy));
-        return (accuracy * benefit);
+    
+    /**
+     * @return the chance that a demand fetch will find wifi; 
+     *         0 or 1 if there's no wifi or no cellular network.
+     */
+    private double expectedWifiAvailability() {
+        if (wifiNet < 0) {
+            return 0.0;
+        } else if (cellularNet < 0) {
+            return 1.0;
+        }
+        return wifiTracker.availability();
     }
 
+    /**
+     * averageNetworkStats contains an estimate of the average network
+     * conditions that a fetch might encounter, so the app's fetch time
+     * estimate under these stats is the average benefit of prefetching.
+     */
     private NetworkStats calculateExpectedNetworkStats() {
-        NetworkStats wifiStats = averageNetworkStats.get(ConnectivityManager.TYPE_WIFI);
-        NetworkStats mobileStats = averageNetworkStats.get(ConnectivityManager.TYPE_MOBILE);
-        if (wifiStats == null) {
-            return mobileStats;
+        NetworkStats wifiStats = (wifiNet < 0) ? null : averageNetworkStats.get(wifiNet);
+        NetworkStats mobileStats = (cellularNet < 0) ? null : averageNetworkStats.get(cellularNet);
+        if (wifiStats == null || mobileStats == null) {
+            if (wifiStats != null) {
+                return wifiStats;
+            }
+            return (mobileStats != null) ? mobileStats : new NetworkStats();
         }
         
-        double wifiAvailability = wifiTracker.availability();
+        double wifiAvailability = expectedWifiAvailability();
         NetworkStats expectedStats = new NetworkStats();
         expectedStats.bandwidthDown = (int) expectedValue(wifiStats.bandwidthDown,
                                                           mobileStats.bandwidthDown,
@@ -650,23 +1001,61 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         return probability * valueIfTrue + (1 - probability) * valueIfFalse;
     }
 
-    private void issuePrefetch(PrefetchTask task) {
-        if (alreadyIssued(task)) {
-            return;
-        }
+    /**
+     * Issue the prefetches in the batch at once, restricted to the networks
+     * in netLabels (if any).  Those whose fetchers share a BatchFetcher go
+     * out in a single request and take a single slot; the rest take one
+     * slot each, and those that don't fit in the free slots stay deferred.
+     */
+    private void issueBatch(PrefetchBatch batch, int netLabels) {
+        batch.clearLabels(IntNWLabels.ALL_NET_RESTRICTION_LABELS);
+        batch.addLabels(netLabels);
+        List<PrefetchTask> tasks = new ArrayList<PrefetchTask>();
+        batch.drainTo(tasks);
         
-        if (!prefetchesInProgress.offer(task)) {
-            // shouldn't happen, because only one thread calls this,
-            //  and it always checks prefetchesInProgress.remainingCapacity() > 0 
-            //  before doing so.
-            Log.e(TAG, "WARNING: pending queue refused prefetch.  Shouldn't happen.");
+        // only this thread takes slots, so this can only grow meanwhile.
+        int freeSlots = concurrency.getLimit() - slotsInUse.get();
+        Map<BatchFetcher<?>, PrefetchSlot> sharedSlots = 
+            new HashMap<BatchFetcher<?>, PrefetchSlot>();
+        List<FetchFuture<?>> toIssue = new ArrayList<FetchFuture<?>>();
+        int noRoom = 0;
+        for (PrefetchTask task : tasks) {
+            if (alreadyIssued(task)) {
+                deferredPrefetches.remove(task.prefetch);
+                continue;
+            }
+            BatchFetcher<?> batchFetcher = task.prefetch.getBatchFetcher();
+            PrefetchSlot slot = (batchFetcher == null) ? null : sharedSlots.get(batchFetcher);
+            if (slot == null) {
+                if (freeSlots <= 0) {
+                    noRoom++;
+                    continue;
+                }
+                freeSlots--;
+                slot = new PrefetchSlot();
+                slotsInUse.incrementAndGet();
+                if (batchFetcher != null) {
+                    sharedSlots.put(batchFetcher, slot);
+                }
+            }
+            deferredPrefetches.remove(task.prefetch);
+            slot.members.incrementAndGet();
+            task.slot = slot;
+            if (!prefetchesInProgress.offer(task)) {
+                // shouldn't happen; the queue is unbounded, and only the
+                //  monitor thread calls this, after checking the concurrency limit.
+                Log.e(TAG, "WARNING: pending queue refused prefetch.  Shouldn't happen.");
+            }
+            toIssue.add(task.prefetch);
         }
-
-        try {
-            task.prefetch.startAsync(false);
-        } catch (CancellationException e) {
-            Log.e(TAG, "Prefetch cancelled; discarding");
+        if (toIssue.size() > 1) {
+            logPrint("Issuing %d prefetches together, starting with 0x%08x",
+                     toIssue.size(), toIssue.get(0).hashCode());
+        }
+        if (noRoom > 0) {
+            logPrint("No free slots for %d of the batch; deferring them", noRoom);
         }
+        BatchedFetch.start(toIssue);
     }
 
     private boolean alreadyIssued(PrefetchTask task) {
@@ -676,8 +1065,8 @@ public class AdaptivePrefetchStrategy extends PrefetchStrategy {
         //  was already issued; it'll only hang up future prefetches
         boolean issued = prefetch.wasIssued() || prefetch.isCancelled();
         if (issued) {
-            logPrint(String.format("Ignoring already-issued prefetch 0x%08x", 
-                                   prefetch.hashCode()));
+            logPrint("Ignoring already-issued prefetch 0x%08x", 
+                     prefetch.hashCode());
         }
         return issued;
     }
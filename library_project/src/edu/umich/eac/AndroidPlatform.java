@@ -0,0 +1,167 @@
+package edu.umich.eac;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Bundle;
+import android.util.Log;
+import edu.umich.libpowertutor.EnergyUsage;
+
+/**
+ * The Android system services, the scout (through libeac_support) and
+ * PowerTutor.  The native library is only loaded once something needs it.
+ */
+public class AndroidPlatform extends Platform {
+    private static final String TAG = AndroidPlatform.class.getName();
+
+    private final Context context;
+    private final WifiConnectivity connectivity = new WifiConnectivity();
+
+    /** @param context may be null, for logging and storage only. */
+    public AndroidPlatform(Context context) {
+        this.context = context;
+    }
+
+    private class WifiConnectivity extends BroadcastReceiver implements Connectivity {
+        private CopyOnWriteArrayList<Listener> listeners =
+            new CopyOnWriteArrayList<Listener>();
+        private boolean registered = false;
+
+        private WifiManager wifiManager() {
+            if (context == null) {
+                return null;
+            }
+            return (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        }
+
+        public boolean isWifiConnected() {
+            WifiManager wifi = wifiManager();
+            return (wifi != null && wifi.isWifiEnabled() &&
+                    wifi.getConnectionInfo().getSupplicantState() == SupplicantState.COMPLETED &&
+                    wifi.getDhcpInfo() != null);
+        }
+
+        public int wifiIpAddress() {
+            WifiManager wifi = wifiManager();
+            if (wifi == null) {
+                return 0;
+            }
+            WifiInfo wifiInfo = wifi.getConnectionInfo();
+            return (wifiInfo == null) ? 0 : wifiInfo.getIpAddress();
+        }
+
+        public boolean isIpConnected(int ipAddr) {
+            loadNativeLibrary();
+            return askScoutIfIpIsConnected(ipAddr);
+        }
+
+        public synchronized void addListener(Listener listener) {
+            listeners.add(listener);
+            if (!registered && context != null) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+                context.registerReceiver(this, filter);
+                registered = true;
+            }
+        }
+
+        public synchronized void removeListener(Listener listener) {
+            listeners.remove(listener);
+            if (registered && listeners.isEmpty()) {
+                context.unregisterReceiver(this);
+                registered = false;
+            }
+        }
+
+        @Override
+        public void onReceive(Context unused, Intent intent) {
+            Log.d(TAG, "Got update: intent = " + intent.toString());
+            Bundle extras = intent.getExtras();
+            if (extras != null) {
+                for (String key : extras.keySet()) {
+                    Log.d(TAG, key + "=>" + extras.get(key));
+                }
+            }
+            assert(intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION));
+            NetworkInfo networkInfo =
+                    intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
+            if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+                boolean connected = networkInfo.isConnected();
+                for (Listener listener : listeners) {
+                    listener.onWifiConnectivityChanged(connected);
+                }
+            }
+        }
+    }
+
+    public Connectivity connectivity() {
+        return connectivity;
+    }
+
+    private final InterfaceStats scoutStats = new InterfaceStats() {
+        public void report(Sink sink) {
+            loadNativeLibrary();
+            NetworkStatsBuffer.Snapshot snapshot = NetworkStatsBuffer.shared(clock()).read();
+            for (int i = 0; i < snapshot.count; ++i) {
+                sink.add(snapshot.ipAddrs[i], snapshot.bandwidthDown[i],
+                         snapshot.bandwidthUp[i], snapshot.rttMillis[i]);
+            }
+        }
+    };
+
+    public InterfaceStats interfaceStats() {
+        return scoutStats;
+    }
+
+    public EnergyMeter energyMeter() {
+        final EnergyUsage usage = new EnergyUsage();
+        return new EnergyMeter() {
+            public int energyConsumed() {
+                return usage.energyConsumed();
+            }
+        };
+    }
+
+    private static final Logger logcat = new Logger() {
+        public void v(String tag, String msg) {
+            Log.v(tag, msg);
+        }
+        public void d(String tag, String msg) {
+            Log.d(tag, msg);
+        }
+        public void e(String tag, String msg) {
+            Log.e(tag, msg);
+        }
+        public void e(String tag, String msg, Throwable tr) {
+            Log.e(tag, msg, tr);
+        }
+    };
+
+    public Logger logger() {
+        return logcat;
+    }
+
+    public File storageDirectory() {
+        return new File("/sdcard/intnw");
+    }
+
+    private static boolean nativeLibraryLoaded = false;
+
+    private static synchronized void loadNativeLibrary() {
+        if (!nativeLibraryLoaded) {
+            System.loadLibrary("eac_support");
+            nativeLibraryLoaded = true;
+        }
+    }
+
+    private static native boolean askScoutIfIpIsConnected(int ipAddr);
+}
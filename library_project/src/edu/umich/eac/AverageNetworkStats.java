@@ -18,7 +18,7 @@ public class AverageNetworkStats {
     /**
      * If the network type is not in the map, insert its stats.
      * If the network type is already in the map, update the stats as a running average.
-     * @param type The network type; currently either TYPE_WIFI or TYPE_MOBILE
+     * @param type The network; AdaptivePrefetchStrategy uses its network index
      * @param stats The new stats to add for this network type
      */
     public void add(Integer type, NetworkStats newStats) {
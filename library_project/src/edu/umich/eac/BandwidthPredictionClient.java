@@ -0,0 +1,280 @@
+package edu.umich.eac;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Client for the bandwidth prediction server.
+ *
+ * Keeps one connection open and sends the requests for every prediction
+ * interval at once, then reads all the replies.  If the server has
+ * closed the connection (or anything else goes wrong), it reconnects and
+ * tries once more.
+ *
+ * Readers call latest(), which returns the last set of predictions
+ * without blocking.  When that's older than the TTL, latest() starts a
+ * refresh on a background thread; the caller gets the old snapshot
+ * until the new one arrives.
+ */
+class BandwidthPredictionClient {
+    private static final String TAG = BandwidthPredictionClient.class.getName();
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int READ_TIMEOUT_MS = 2000;
+    // snapshots older than this many TTLs are too stale to use.
+    private static final int MAX_AGE_TTLS = 10;
+
+    /** One set of predictions.  Never modified after it's published. */
+    static class Snapshot {
+        final double[] avgBandwidthDown;
+        final double[] stddevBandwidthDown;
+        final double[] avgBandwidthUp;
+        final double[] stddevBandwidthUp;
+        // on nowMillis()'s timeline.
+        final long updateTimeMillis;
+
+        Snapshot(int intervals, long updateTimeMillis) {
+            avgBandwidthDown = new double[intervals];
+            stddevBandwidthDown = new double[intervals];
+            avgBandwidthUp = new double[intervals];
+            stddevBandwidthUp = new double[intervals];
+            this.updateTimeMillis = updateTimeMillis;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int intervals;
+    private final long ttlMillis;
+    private final Clock clock;
+    // all the interval requests, ready to send.
+    private final byte[] requests;
+
+    // guards the connection; held for a whole request/reply exchange.
+    private final Object connectionLock = new Object();
+    private Socket sock;
+    private BufferedReader in;
+    private OutputStream out;
+
+    private volatile Snapshot snapshot;
+    private boolean refreshing = false;
+    private boolean attempted = false;
+    private long lastAttemptMillis;
+    private int connections = 0;
+
+    private final ExecutorService refresher =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BandwidthPredictionClient refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    BandwidthPredictionClient(String host, int port, int intervals, double step,
+                              long ttlMillis, Clock clock) {
+        this.host = host;
+        this.port = port;
+        this.intervals = intervals;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < intervals; ++i) {
+            double future = i * step;
+            builder.append(String.format("average %f %f both\n", future, future + step));
+        }
+        requests = builder.toString().getBytes();
+    }
+
+    /**
+     * @return the latest predictions, or null if there aren't any recent
+     *         ones.  Never blocks; starts a refresh if they're stale.
+     */
+    Snapshot latest() {
+        Snapshot current = snapshot;
+        long now = nowMillis();
+        if (current == null || now - current.updateTimeMillis >= ttlMillis) {
+            startRefresh(now);
+        }
+        if (current == null || now - current.updateTimeMillis >= ttlMillis * MAX_AGE_TTLS) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Wait for the first predictions to arrive.
+     * @return true iff there are some.
+     */
+    boolean awaitFirst(long timeoutMillis) throws InterruptedException {
+        long deadline = nowMillis() + timeoutMillis;
+        synchronized (this) {
+            while (snapshot == null) {
+                long wait = deadline - nowMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                startRefresh(nowMillis());
+                wait(Math.min(wait, ttlMillis));
+            }
+        }
+        return true;
+    }
+
+    /** @return monotonic milliseconds, so a wall clock change can't make stale predictions look fresh. */
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+    }
+
+    private synchronized void startRefresh(long now) {
+        // don't hammer a server that's down; one attempt per TTL.
+        if (refreshing || (attempted && now - lastAttemptMillis < ttlMillis)) {
+            return;
+        }
+        refreshing = true;
+        attempted = true;
+        lastAttemptMillis = now;
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to get bandwidth predictions: " + e.getMessage());
+                } finally {
+                    synchronized (BandwidthPredictionClient.this) {
+                        refreshing = false;
+                        BandwidthPredictionClient.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /** Fetch new predictions now, on the calling thread. */
+    Snapshot refresh() throws IOException {
+        Snapshot fresh;
+        synchronized (connectionLock) {
+            boolean reused = (sock != null);
+            try {
+                fresh = fetch();
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                // maybe the server hung up on the old connection; try a new one.
+                fresh = fetch();
+            }
+        }
+        synchronized (this) {
+            snapshot = fresh;
+            notifyAll();
+        }
+        return fresh;
+    }
+
+    private Snapshot fetch() throws IOException {
+        try {
+            if (sock == null) {
+                connect();
+            }
+            out.write(requests);
+            out.flush();
+
+            Snapshot fresh = new Snapshot(intervals, nowMillis());
+            for (int i = 0; i < intervals; ++i) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Failed to read line from prediction server socket");
+                }
+                parseReply(line, fresh, i);
+            }
+            return fresh;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket newSock = new Socket();
+        newSock.setTcpNoDelay(true);
+        newSock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        newSock.setSoTimeout(READ_TIMEOUT_MS);
+        sock = newSock;
+        out = sock.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(sock.getInputStream()), 1024);
+        synchronized (this) {
+            connections++;
+        }
+    }
+
+    private void disconnect() {
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+        sock = null;
+        in = null;
+        out = null;
+    }
+
+    /**
+     * A reply looks like "<label> <avg down> <stddev down> <label>
+     * <avg up> <stddev up>", separated by runs of spaces.
+     */
+    static void parseReply(String line, Snapshot snapshot, int interval) throws IOException {
+        int pos = 0;
+        int len = line.length();
+        for (int field = 0; field < 6; ++field) {
+            while (pos < len && line.charAt(pos) == ' ') {
+                pos++;
+            }
+            int start = pos;
+            while (pos < len && line.charAt(pos) != ' ') {
+                pos++;
+            }
+            if (start == pos) {
+                throw new IOException("Short reply from prediction server: " + line);
+            }
+            if (field == 0 || field == 3) {
+                continue;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(line.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad reply from prediction server: " + line);
+            }
+            switch (field) {
+            case 1: snapshot.avgBandwidthDown[interval] = value; break;
+            case 2: snapshot.stddevBandwidthDown[interval] = value; break;
+            case 4: snapshot.avgBandwidthUp[interval] = value; break;
+            case 5: snapshot.stddevBandwidthUp[interval] = value; break;
+            }
+        }
+    }
+
+    synchronized int connections() {
+        return connections;
+    }
+
+    void close() {
+        refresher.shutdownNow();
+        synchronized (connectionLock) {
+            disconnect();
+        }
+    }
+}
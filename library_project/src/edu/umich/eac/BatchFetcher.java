@@ -0,0 +1,35 @@
+package edu.umich.eac;
+
+import java.util.List;
+
+/**
+ * Fetches several data items in one request: one connection, one round
+ * trip, one radio wake-up.  Return one from CacheFetcher.getBatchFetcher()
+ * to let the cache issue prefetches together.
+ *
+ * Prefetches whose fetchers return the same BatchFetcher (by equals())
+ * may be handed to it together when the prefetch strategy decides
+ * to issue them as a batch.  Each item's Future completes as soon as
+ * its result is delivered, without waiting for the rest of the batch.
+ */
+public interface BatchFetcher<V> {
+    /**
+     * Fetch all of these items, delivering each result through
+     * results as it arrives.  Items that are neither delivered nor
+     * failed by the time this returns (or throws) are fetched
+     * individually with their own call().
+     *
+     * @param items The fetchers for the items to fetch.
+     * @param labels The labels the items would have been fetched with;
+     *               see CacheFetcher.call().
+     * @param results Where to report each item's outcome, by its index
+     *                in items.  Safe to call from any thread.
+     */
+    void fetchAll(List<CacheFetcher<V>> items, int labels, Results<V> results)
+        throws Exception;
+    
+    public interface Results<V> {
+        void deliver(int index, V result);
+        void fail(int index, Exception cause);
+    }
+}
@@ -0,0 +1,143 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+
+/**
+ * Several prefetches issued together through their shared BatchFetcher,
+ * as one task on the cache's background executor.
+ */
+class BatchedFetch<V> implements Runnable, BatchFetcher.Results<V> {
+    private static final String TAG = BatchedFetch.class.getName();
+    
+    private BatchFetcher<V> batchFetcher;
+    private List<CacheFetcher<V>> items = new ArrayList<CacheFetcher<V>>();
+    private List<FetchFuture<V>.BatchedRun> runs = new ArrayList<FetchFuture<V>.BatchedRun>();
+    // result sizes, taken up front; see CallableWrapperFetcher.call().
+    private List<Integer> resultSizes = new ArrayList<Integer>();
+    private boolean[] settled;
+    private int labels;
+    
+    /**
+     * Start these prefetches all at once.  Those that share a batch
+     * fetcher go out together in one request per batch fetcher;
+     * the rest are started individually.
+     */
+    static void start(List<FetchFuture<?>> prefetches) {
+        Map<BatchFetcher<?>, List<FetchFuture<?>>> groups = 
+            new LinkedHashMap<BatchFetcher<?>, List<FetchFuture<?>>>();
+        for (FetchFuture<?> prefetch : prefetches) {
+            BatchFetcher<?> batchFetcher = prefetch.getBatchFetcher();
+            if (batchFetcher == null) {
+                startAlone(prefetch);
+                continue;
+            }
+            List<FetchFuture<?>> group = groups.get(batchFetcher);
+            if (group == null) {
+                group = new ArrayList<FetchFuture<?>>();
+                groups.put(batchFetcher, group);
+            }
+            group.add(prefetch);
+        }
+        
+        for (Map.Entry<BatchFetcher<?>, List<FetchFuture<?>>> entry : groups.entrySet()) {
+            List<FetchFuture<?>> group = entry.getValue();
+            if (group.size() == 1) {
+                startAlone(group.get(0));
+            } else {
+                startGroup(entry.getKey(), group);
+            }
+        }
+    }
+    
+    private static void startAlone(FetchFuture<?> prefetch) {
+        try {
+            prefetch.startAsync(false);
+        } catch (CancellationException e) {
+            Log.e(TAG, "Prefetch cancelled; discarding");
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <V> void startGroup(BatchFetcher<V> batchFetcher, 
+                                       List<FetchFuture<?>> group) {
+        // equal batch fetchers fetch the same type of item.
+        BatchedFetch<V> batch = new BatchedFetch<V>(batchFetcher);
+        EnergyAdaptiveCache cache = null;
+        for (FetchFuture<?> prefetch : group) {
+            if (batch.add((FetchFuture<V>) prefetch)) {
+                cache = prefetch.getCache();
+            }
+        }
+        if (cache != null) {
+            batch.settled = new boolean[batch.runs.size()];
+            cache.execute(batch, batch.labels);
+        }
+    }
+    
+    private BatchedFetch(BatchFetcher<V> batchFetcher) {
+        this.batchFetcher = batchFetcher;
+    }
+    
+    private boolean add(FetchFuture<V> prefetch) {
+        FetchFuture<V>.BatchedRun run;
+        try {
+            run = prefetch.issueInBatch();
+        } catch (CancellationException e) {
+            Log.e(TAG, "Prefetch cancelled; discarding");
+            return false;
+        }
+        if (run == null) {
+            // already issued some other way.
+            return false;
+        }
+        if (runs.isEmpty()) {
+            labels = prefetch.getLabels();
+        }
+        items.add(prefetch.getFetcher());
+        runs.add(run);
+        resultSizes.add(prefetch.resultSize());
+        return true;
+    }
+    
+    public void run() {
+        Log.d(TAG, String.format("Fetching %d items in one batch", items.size()));
+        try {
+            batchFetcher.fetchAll(items, labels, this);
+        } catch (Exception e) {
+            Log.e(TAG, String.format("Batch fetch failed: %s; fetching the rest individually", 
+                                     e.getMessage()));
+        } finally {
+            for (int i = 0; i < runs.size(); ++i) {
+                if (settle(i)) {
+                    runs.get(i).fallBack();
+                }
+            }
+        }
+    }
+    
+    public void deliver(int index, V result) {
+        if (settle(index)) {
+            runs.get(index).succeed(result, resultSizes.get(index));
+        }
+    }
+    
+    public void fail(int index, Exception cause) {
+        if (settle(index)) {
+            runs.get(index).fail(cause);
+        }
+    }
+    
+    /** @return true iff this item's outcome wasn't already reported. */
+    private synchronized boolean settle(int index) {
+        if (settled[index]) {
+            return false;
+        }
+        settled[index] = true;
+        return true;
+    }
+}
@@ -29,6 +29,33 @@ public abstract class CacheFetcher<V> {
      */
     public void onCancelled() {}
 
+    /** Called when the fetch is cancelled for good, not just interrupted. */
+    void discardProgress() {}
+
+    /** @return the size of the complete result, for the result store. */
+    int resultSize() {
+        return bytesToTransfer();
+    }
+
+    /**
+     * Called when the app demands an item whose prefetch is already
+     * running.  The running call() carries on as the demand fetch, now
+     * with these labels (ONDEMAND instead of BACKGROUND); override to
+     * apply them to a transfer in progress, e.g. to re-label its socket.
+     * Called on the demanding thread, not the one running call().
+     */
+    public void onPromoted(int labels) {}
+
+    /**
+     * Override to return true if a running prefetch can't take on its
+     * new labels when it's promoted to a demand fetch.  Then the cache
+     * cancels it (see onCancelled) and calls call() again with the
+     * demand labels, as it did before promotion in place.
+     */
+    public boolean restartOnPromotion() {
+        return false;
+    }
+
     /**
      * Override to separate prefetch hints by class, where different classes
      * may differ significantly in terms of the accuracy of the prefetch hint.
@@ -40,4 +67,40 @@ public abstract class CacheFetcher<V> {
     public int getPrefetchClass() {
         return DEFAULT_PREFETCH_CLASS;
     }
+
+    /**
+     * Override to identify the data item this fetcher retrieves.
+     * Fetchers that return equal non-null keys are assumed to fetch the
+     * same data, so the cache can return a completed result for one of
+     * them to the others instead of fetching it again.
+     * The key must implement equals() and hashCode().
+     * @return A key for the fetched item, or null (the default) if the
+     *         result shouldn't be reused.
+     */
+    public Object getCacheKey() {
+        return null;
+    }
+
+    /**
+     * Override to let the cache keep this fetcher's results on disk
+     * (see EnergyAdaptiveCache.enablePersistentStore()), so a prefetched
+     * result survives the process being killed.  Requires a cache key
+     * whose toString() identifies the item across restarts.
+     * @return A codec for the fetched value, or null (the default) if
+     *         results shouldn't be persisted.
+     */
+    public ValueCodec<V> getValueCodec() {
+        return null;
+    }
+
+    /**
+     * Override to let the cache fetch this item together with others
+     * in one request, e.g. through one connection to the same server.
+     * Fetchers that return equal BatchFetchers can be batched together.
+     * @return The batch fetcher for this item, or null (the default)
+     *         if it can only be fetched on its own.
+     */
+    public BatchFetcher<V> getBatchFetcher() {
+        return null;
+    }
 }
@@ -7,143 +7,345 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.commons.math.stat.descriptive.SummaryStatistics;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umich.eac.PrefetchAccuracy.Application;
 
-import android.util.Log;
 
+/**
+ * Counts what the cache does, for its decisions and for printCacheStats().
+ *
+ * Every get() and hint goes through here, from any number of app
+ * threads, so nothing here takes a cache-wide lock: the counts are
+ * StripedCounters, and each prefetch class's accuracy has its own
+ * lock (see PrefetchAccuracy).  Reads don't lock either; snapshot()
+ * gives a consistent-enough view for reporting.
+ */
 class CacheStats {
     private static final String TAG = CacheStats.class.getName();
+    private static final int PRIORITY_ACCURACY_STEPS = 100;
+    
+    private final StripedCounter numDemandFetches = new StripedCounter();
+    private final StripedCounter numCacheHits = new StripedCounter();
+    private final StripedCounter numHintedPrefetches = new StripedCounter();
+    private final StripedCounter numCancelledFetches = new StripedCounter();
+    private final StripedCounter numStoreHits = new StripedCounter();
+    private final StripedCounter numStoreMisses = new StripedCounter();
+    private final StripedCounter numPersistentStoreHits = new StripedCounter();
+    private final StripedCounter numCoalescedRequests = new StripedCounter();
+    private final StripedCounter numPromotedInPlace = new StripedCounter();
+    private final StripedCounter numCompletedFetches = new StripedCounter();
+    
+    // recorded without any stats lock; see LatencyMetrics.
+    final LatencyMetrics latency = new LatencyMetrics();
+    // bumped whenever some prefetch class's accuracy changes.
+    private final AtomicLong accuracyEpoch = new AtomicLong();
     
-    // promotion delay is in milliseconds
-    //private final long promotionDelayInit = 5000;
-    //private SummaryStatistics promotionDelay = new SummaryStatistics();
-    private int numDemandFetches = 0;
-    private int numCacheHits = 0;
-    private int numHintedPrefetches = 0;
-    private int numCancelledFetches = 0;
+    /** What's kept for each prefetch class. */
+    private static class ClassStats {
+        final PrefetchAccuracy accuracy;
+        // the priority accuracy last reported for this class; NaN if none yet.
+        //  Written under this object's lock.
+        volatile double reportedPriorityAccuracy = Double.NaN;
+        
+        ClassStats(PrefetchAccuracy accuracy) {
+            this.accuracy = accuracy;
+        }
+    }
+    
+    private final ConcurrentMap<Integer, ClassStats> statsByClass =
+        new ConcurrentHashMap<Integer, ClassStats>();
+
+    /**
+     * Told when the accuracy that orders a class's deferred prefetches
+     * changes.  Called with that class's stats lock held, so it should
+     * only record the change and return.
+     */
+    interface PriorityAccuracyListener {
+        void onPriorityAccuracyChanged(int prefetchClass, double accuracy);
+    }
     
-    //private PrefetchAccuracy prefetchAccuracy = new PrefetchAccuracy();
-    private Map<Integer, PrefetchAccuracy> prefetchAccuracyByClass =
-        new HashMap<Integer, PrefetchAccuracy>();
+    private volatile PriorityAccuracyListener priorityListener;
+
+    private final Clock clock;
 
     public CacheStats() {
-        // fake value to start so that prefetches aren't 
-        //  immediately considered not promoted 
-        //promotionDelay.addValue(promotionDelayInit);
+        this(Clock.SYSTEM);
     }
     
-    private PrefetchAccuracy getAccuracyByClass(FetchFuture<?> fetchFuture) {
+    CacheStats(Clock clock) {
+        this.clock = clock;
+    }
+    
+    private ClassStats getClassStats(FetchFuture<?> fetchFuture) {
         int prefetchClass = fetchFuture.getPrefetchClass();
-        if (!prefetchAccuracyByClass.containsKey(prefetchClass)) {
-            prefetchAccuracyByClass.put(prefetchClass, new PrefetchAccuracy(prefetchClass));
+        ClassStats classStats = statsByClass.get(prefetchClass);
+        if (classStats == null) {
+            ClassStats created = new ClassStats(new PrefetchAccuracy(prefetchClass, clock));
+            classStats = statsByClass.putIfAbsent(prefetchClass, created);
+            if (classStats == null) {
+                classStats = created;
+            }
         }
-        return prefetchAccuracyByClass.get(prefetchClass);
+        return classStats;
     }
     
-    synchronized <V> void onPrefetchIssued(FetchFuture<V> fetchFuture) {
+    private PrefetchAccuracy getAccuracyByClass(FetchFuture<?> fetchFuture) {
+        return getClassStats(fetchFuture).accuracy;
+    }
+    
+    <V> void onPrefetchIssued(FetchFuture<V> fetchFuture) {
         PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
         accuracy.addIssuedPrefetch(fetchFuture);
         
         EnergyAdaptiveCache.logEvent("prefetch-start", fetchFuture.hashCode());
     }
     
-    synchronized <V> void onPrefetchHint(FetchFuture<V> fetchFuture) {
-        PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
-        accuracy.addPrefetchHint(fetchFuture);
-        numHintedPrefetches++;
+    <V> void onPrefetchHint(FetchFuture<V> fetchFuture) {
+        fetchFuture.markHinted();
+        ClassStats classStats = getClassStats(fetchFuture);
+        classStats.accuracy.addPrefetchHint(fetchFuture);
+        numHintedPrefetches.increment();
+        checkPriorityAccuracy(fetchFuture, classStats);
 
         EnergyAdaptiveCache.logEvent("hint", fetchFuture.hashCode());
     }
     
-    synchronized <V> void onPrefetchDone(FetchFuture<V> fetchFuture) {
+    <V> void onPrefetchDone(FetchFuture<V> fetchFuture) {
         EnergyAdaptiveCache.logEvent("prefetch-done", fetchFuture.hashCode());
     }
+    
+    /** Call when a fetch's result arrives from the network. */
+    <V> void onFetchCompleted(FetchFuture<V> fetchFuture) {
+        numCompletedFetches.increment();
+    }
+
+    /**
+     * Call when a hint or fetch is served from the result store
+     * instead of the network.
+     */
+    <V> void onResultStoreHit(FetchFuture<V> fetchFuture) {
+        numStoreHits.increment();
+        EnergyAdaptiveCache.logEvent("store-hit", fetchFuture.hashCode());
+    }
+    
+    <V> void onPersistentStoreHit(FetchFuture<V> fetchFuture) {
+        numPersistentStoreHits.increment();
+        EnergyAdaptiveCache.logEvent("disk-store-hit", fetchFuture.hashCode());
+    }
+    
+    void onResultStoreMiss() {
+        numStoreMisses.increment();
+    }
+
+    /**
+     * Call when a hint or fetch joins an unfinished fetch of the same item,
+     * rather than creating a new one.  It's neither a new hint nor a new
+     * fetch; if the app then calls get(), that's a demand fetch of
+     * the shared item.
+     */
+    <V> void onCoalescedRequest(FetchFuture<V> fetchFuture) {
+        numCoalescedRequests.increment();
+        EnergyAdaptiveCache.logEvent("coalesced", fetchFuture.hashCode());
+    }
 
-    synchronized <V> void onUnhintedDemandFetch(FetchFuture<V> fetchFuture) {
+    <V> void onUnhintedDemandFetch(FetchFuture<V> fetchFuture) {
         PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
         accuracy.addUnhintedPrefetch(fetchFuture);
-        numHintedPrefetches++;
+        numHintedPrefetches.increment();
     }
     
-    synchronized <V> void onDemandFetch(FetchFuture<V> fetchFuture) {
+    <V> void onDemandFetch(FetchFuture<V> fetchFuture) {
         // prefetch->fetch delay
-        long promotion_delay = fetchFuture.millisSinceCreated();
-        //promotionDelay.addValue(promotion_delay);
-        
-        PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
-        accuracy.markDemandFetched(fetchFuture);
+        if (fetchFuture.isFirstDemandOfHint()) {
+            latency.record(LatencyMetrics.Metric.HINT_TO_DEMAND, fetchFuture.getPrefetchClass(),
+                           fetchFuture.issuedNetwork(), fetchFuture.nanosSinceCreated());
+        }
         
-        // promotion rate
-        numDemandFetches++;
+        ClassStats classStats = getClassStats(fetchFuture);
+        classStats.accuracy.markDemandFetched(fetchFuture);
+        checkPriorityAccuracy(fetchFuture, classStats);
         
+        // promotion rate; count the demand before the hit.  Readers read
+        //  hits before demands, so they never see more hits than demands.
+        numDemandFetches.increment();
         if (fetchFuture.isDone()) {
-            numCacheHits++;
+            numCacheHits.increment();
         }
         
         EnergyAdaptiveCache.logEvent("demand-fetch-start", fetchFuture.hashCode());
     }
     
-    synchronized <V> void onDemandFetchDone(FetchFuture<V> fetchFuture) {
+    /**
+     * Call when a demand fetch takes over a running prefetch
+     * instead of restarting it.
+     */
+    <V> void onPromotedInPlace(FetchFuture<V> fetchFuture) {
+        numPromotedInPlace.increment();
+        EnergyAdaptiveCache.logEvent("promoted", fetchFuture.hashCode());
+    }
+    
+    <V> void onDemandFetchDone(FetchFuture<V> fetchFuture) {
         EnergyAdaptiveCache.logEvent("demand-fetch-done", fetchFuture.hashCode());
     }
     
-    synchronized <V> void onFetchCancelled(FetchFuture<V> fetchFuture) {
-        PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
-        accuracy.removePrefetch(fetchFuture);
-        numCancelledFetches++;
+    <V> void onFetchCancelled(FetchFuture<V> fetchFuture) {
+        ClassStats classStats = getClassStats(fetchFuture);
+        classStats.accuracy.removePrefetch(fetchFuture);
+        numCancelledFetches.increment();
+        checkPriorityAccuracy(fetchFuture, classStats);
         
         EnergyAdaptiveCache.logEvent("cancel", fetchFuture.hashCode());
     }
     
-    synchronized double getPrefetchAccuracy(FetchFuture<?> fetchFuture) {
+    double getPrefetchAccuracy(FetchFuture<?> fetchFuture) {
         PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
         return accuracy.getAccuracy();
     }
     
-    synchronized double getHardcodedPrefetchAccuracy(FetchFuture<?> fetchFuture) {
+    /**
+     * @return The accuracy of this fetch's prefetch class, with older
+     *         hints counting for less.
+     */
+    double getDecayedPrefetchAccuracy(FetchFuture<?> fetchFuture) {
+        PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
+        return accuracy.getDecayedAccuracy();
+    }
+    
+    double getHardcodedPrefetchAccuracy(FetchFuture<?> fetchFuture) {
         PrefetchAccuracy accuracy = getAccuracyByClass(fetchFuture);
         return accuracy.getHardcodedAccuracy(Application.EMAIL);
 //        return accuracy.getHardcodedAccuracy(Application.NEWS);
     }
     
     /**
-     * @return The [avg, stdev] promotion delay of this cache.
+     * @return The accuracy that deferred prefetches are ordered by: the
+     *         decayed accuracy, rounded to PRIORITY_ACCURACY_STEPS so that
+     *         a class is only re-keyed when it moves by a whole step.
      */
-//    synchronized double[] getPromotionDelay() {
-//        double avgDelay = promotionDelay.getMean();
-//        double stddevDelay = promotionDelay.getStandardDeviation(); 
-//        double ret[] = {avgDelay, stddevDelay};
-//        return ret;
-//    }
+    double getPriorityAccuracy(FetchFuture<?> fetchFuture) {
+        double accuracy = getDecayedPrefetchAccuracy(fetchFuture);
+        return Math.round(accuracy * PRIORITY_ACCURACY_STEPS) / (double) PRIORITY_ACCURACY_STEPS;
+    }
+    
+    void setPriorityAccuracyListener(PriorityAccuracyListener listener) {
+        priorityListener = listener;
+    }
+    
+    private void checkPriorityAccuracy(FetchFuture<?> fetchFuture, ClassStats classStats) {
+        double accuracy = getPriorityAccuracy(fetchFuture);
+        if (accuracy == classStats.reportedPriorityAccuracy) {
+            // the usual case; nothing to lock.
+            return;
+        }
+        synchronized (classStats) {
+            double reported = classStats.reportedPriorityAccuracy;
+            if (accuracy == reported) {
+                return;
+            }
+            classStats.reportedPriorityAccuracy = accuracy;
+            accuracyEpoch.incrementAndGet();
+            PriorityAccuracyListener listener = priorityListener;
+            if (!Double.isNaN(reported) && listener != null) {
+                listener.onPriorityAccuracyChanged(fetchFuture.getPrefetchClass(), accuracy);
+            }
+        }
+    }
+
+    int numHints() {
+        return (int) numHintedPrefetches.sum();
+    }
+
+    int numCompletedFetches() {
+        return (int) numCompletedFetches.sum();
+    }
+
+    int numDemandRequests() {
+        return (int) numDemandFetches.sum();
+    }
 
-    synchronized int numHints() {
-        return numHintedPrefetches;
+    int numHits() {
+        return (int) numCacheHits.sum();
     }
 
-    synchronized int numCompletedFetches() {
-        // TODO Auto-generated method stub
-        return 0;
+    int numMisses() {
+        // hits first; see onDemandFetch.
+        int hits = numHits();
+        return numDemandRequests() - hits;
     }
 
-    synchronized int numDemandRequests() {
-        return numDemandFetches;
+    int numStoreHits() {
+        return (int) numStoreHits.sum();
     }
 
-    synchronized int numHits() {
-        return numCacheHits;
+    int numPersistentStoreHits() {
+        return (int) numPersistentStoreHits.sum();
     }
 
-    synchronized int numMisses() {
-        return numDemandFetches - numCacheHits;
+    int numStoreMisses() {
+        return (int) numStoreMisses.sum();
     }
 
-    synchronized double getHitRate() {
-        return ((double) numCacheHits) / ((double) numDemandFetches);
+    int numCoalescedRequests() {
+        return (int) numCoalescedRequests.sum();
+    }
+
+    long accuracyEpoch() {
+        return accuracyEpoch.get();
+    }
+    
+    int numPromotedInPlace() {
+        return (int) numPromotedInPlace.sum();
+    }
+    
+    double getHitRate() {
+        // hits first; see onDemandFetch.
+        int hits = numHits();
+        return ((double) hits) / ((double) numDemandRequests());
+    }
+    
+    /** The counts at one moment, more or less; see snapshot(). */
+    static class Snapshot {
+        final int hints;
+        final int completedFetches;
+        final int demandRequests;
+        final int hits;
+        final int storeHits;
+        final int storeMisses;
+        final int persistentStoreHits;
+        final int coalescedRequests;
+        final int promotedInPlace;
+        
+        private Snapshot(CacheStats stats) {
+            // hits before demands; see onDemandFetch.
+            hits = stats.numHits();
+            demandRequests = stats.numDemandRequests();
+            hints = stats.numHints();
+            completedFetches = stats.numCompletedFetches();
+            storeHits = stats.numStoreHits();
+            storeMisses = stats.numStoreMisses();
+            persistentStoreHits = stats.numPersistentStoreHits();
+            coalescedRequests = stats.numCoalescedRequests();
+            promotedInPlace = stats.numPromotedInPlace();
+        }
+        
+        int misses() {
+            return demandRequests - hits;
+        }
+        
+        double hitRate() {
+            return ((double) hits) / ((double) demandRequests);
+        }
+    }
+    
+    /**
+     * @return the counts, read without stopping anyone from updating them.
+     *         Each count is exact as of some moment during the call.
+     */
+    Snapshot snapshot() {
+        return new Snapshot(this);
     }
     
     private class LogOutputStream extends OutputStream {
@@ -169,18 +371,30 @@ class CacheStats {
     }
     private LogOutputStream logStream = new LogOutputStream("CacheStats");
     
-    synchronized void printCacheStats() {
+    void printCacheStats() {
         printCacheStatsToFile(logStream);
     }
     
-    synchronized void printCacheStatsToFile(OutputStream out) {
+    void printCacheStatsToFile(OutputStream out) {
+        Snapshot counts = snapshot();
         PrintWriter writer = new PrintWriter(out, true);
         writer.println("Cache stats:");
-        writer.format("  Items hinted: %d\n", numHints());
-        writer.format("  Items fetched: %d\n", numCompletedFetches());
-        writer.format("  Demand requests: %d\n", numDemandRequests());
-        writer.format("  Cache hits: %d\n", numHits());
-        writer.format("  Cache misses: %d\n", numMisses());
-        writer.format("  Hit rate: %.02f %%\n", getHitRate() * 100.0);
+        writer.format("  Items hinted: %d\n", counts.hints);
+        writer.format("  Items fetched: %d\n", counts.completedFetches);
+        writer.format("  Demand requests: %d\n", counts.demandRequests);
+        writer.format("  Cache hits: %d\n", counts.hits);
+        writer.format("  Cache misses: %d\n", counts.misses());
+        writer.format("  Hit rate: %.02f %%\n", counts.hitRate() * 100.0);
+        writer.format("  Result store hits: %d\n", counts.storeHits);
+        writer.format("  Result store misses: %d\n", counts.storeMisses);
+        writer.format("  Persistent store hits: %d\n", counts.persistentStoreHits);
+        writer.format("  Coalesced requests: %d\n", counts.coalescedRequests);
+        LatencyMetrics.Snapshot latencies = latency.snapshot();
+        for (LatencyMetrics.Metric metric : LatencyMetrics.Metric.values()) {
+            LatencyHistogram.Snapshot histogram = latencies.get(metric);
+            if (histogram.count() > 0) {
+                writer.format("  %s: %s\n", metric, histogram);
+            }
+        }
     }
 }
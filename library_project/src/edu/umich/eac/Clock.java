@@ -0,0 +1,28 @@
+package edu.umich.eac;
+
+/**
+ * Where the cache's decisions get the time from; see Platform.clock().
+ * TraceSimulator replaces it with a virtual clock.
+ *
+ * Intervals and deadlines are measured with nanoTime(), which doesn't
+ * jump when the wall clock is set (e.g. by NTP or the cell network).
+ * currentTimeMillis() is only for converting the app's wall-clock
+ * goal times onto that timeline, once, when they come in.
+ */
+public interface Clock {
+    /** @return monotonic time in nanoseconds, from an arbitrary origin. */
+    long nanoTime();
+
+    /** @return the wall-clock time, in milliseconds since the epoch. */
+    long currentTimeMillis();
+
+    Clock SYSTEM = new Clock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
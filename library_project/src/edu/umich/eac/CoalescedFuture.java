@@ -0,0 +1,149 @@
+package edu.umich.eac;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * One caller's handle on a fetch that may be shared with other callers
+ * that hinted or fetched the same cache key.
+ *
+ * Every handle on a shared FetchFuture holds a reference to it.
+ * Cancelling a handle only affects that caller; the shared fetch is
+ * cancelled when the last handle on it is cancelled (or collected).
+ */
+class CoalescedFuture<V> implements ListenableFuture<V> {
+    private static final String TAG = CoalescedFuture.class.getName();
+
+    private final FetchFuture<V> shared;
+    private boolean cancelled = false;
+
+    CoalescedFuture(FetchFuture<V> shared) {
+        this.shared = shared;
+        shared.retain();
+    }
+
+    FetchFuture<V> getShared() {
+        return shared;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (cancelled) {
+                return true;
+            }
+            if (shared.isDone() && !shared.isCancelled()) {
+                // already completed; nothing to cancel.
+                return false;
+            }
+            cancelled = true;
+        }
+        shared.release(mayInterruptIfRunning);
+        return true;
+    }
+
+    public V get() throws InterruptedException, ExecutionException,
+                          CancellationException {
+        checkCancelled();
+        return shared.get();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException,
+               TimeoutException, CancellationException {
+        checkCancelled();
+        return shared.get(timeout, unit);
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled || shared.isCancelled();
+    }
+
+    public synchronized boolean isDone() {
+        return cancelled || shared.isDone();
+    }
+
+    public void addListener(FetchListener<? super V> listener, Executor executor) {
+        shared.addListener(new HandleListener(listener), executor);
+    }
+    
+    public void getAsync(FetchListener<? super V> listener, Executor executor) {
+        final HandleListener wrapped = new HandleListener(listener);
+        if (isCancelled()) {
+            // still deliver on the caller's executor, like every other outcome.
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        wrapped.onCancelled();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Listener's executor rejected it: " + e.getMessage());
+            }
+            return;
+        }
+        shared.getAsync(wrapped, executor);
+    }
+    
+    /**
+     * Passes the shared fetch's outcome through to this caller's listener,
+     * unless this handle was cancelled first; then the listener just
+     * hears onCancelled.
+     */
+    private class HandleListener implements FetchListener<V> {
+        private final FetchListener<? super V> listener;
+        
+        HandleListener(FetchListener<? super V> listener) {
+            this.listener = listener;
+        }
+        
+        public void onSuccess(V result) {
+            if (isHandleCancelled()) {
+                listener.onCancelled();
+            } else {
+                listener.onSuccess(result);
+            }
+        }
+        
+        public void onFailure(Throwable cause) {
+            if (isHandleCancelled()) {
+                listener.onCancelled();
+            } else {
+                listener.onFailure(cause);
+            }
+        }
+        
+        public void onCancelled() {
+            listener.onCancelled();
+        }
+    }
+    
+    private synchronized boolean isHandleCancelled() {
+        return cancelled;
+    }
+    
+    private synchronized void checkCancelled() throws CancellationException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    public String toString() {
+        return "CoalescedFuture of " + shared.toString();
+    }
+
+    protected void finalize() throws Throwable {
+        try {
+            if (!isDone()) {
+                Log.d(TAG, "Releasing shared fetch because its handle was garbage-collected");
+                cancel(true);
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+}
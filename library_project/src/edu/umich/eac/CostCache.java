@@ -0,0 +1,111 @@
+package edu.umich.eac;
+
+import java.util.HashMap;
+
+/**
+ * Memoized prefetch cost terms, so re-evaluating a queue whose
+ * inputs haven't changed doesn't redo the energy estimates and budget
+ * weight lookaheads for every hint.
+ *
+ * Entries are keyed by (size bucket, network type, term), where the
+ * term is HintEvaluator.NOW or HintEvaluator.LATER.
+ * Everything else a cost depends on is summed up by three epochs: the
+ * network stats, the budget weights, and the hint accuracies.  When any
+ * of them moves, every entry is stale, so the cache is cleared.
+ *
+ * Sizes within a bucket differ by less than 1/64, so this assumes a
+ * fetch's time estimate depends (mostly) on its size, as the default
+ * CacheFetcher.estimateFetchTime() does.
+ */
+class CostCache {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int MAX_ENTRIES = 4096;
+    
+    private static class Key {
+        final int sizeBucket;
+        final int netType;
+        final int term;
+        
+        Key(int bytes, int netType, int term) {
+            this.sizeBucket = sizeBucket(bytes);
+            this.netType = netType;
+            this.term = term;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return (sizeBucket == key.sizeBucket && netType == key.netType &&
+                    term == key.term);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (sizeBucket * 31 + netType) * 31 + term;
+        }
+    }
+    
+    private HashMap<Key, Double> values = new HashMap<Key, Double>();
+    private long networkEpoch = -1;
+    private long budgetEpoch = -1;
+    private long accuracyEpoch = -1;
+    private int hits = 0;
+    private int misses = 0;
+    
+    /**
+     * Note the current epochs; if any has moved since the last call,
+     * forget everything.
+     */
+    synchronized void validate(long networkEpoch, long budgetEpoch, long accuracyEpoch) {
+        if (networkEpoch != this.networkEpoch || budgetEpoch != this.budgetEpoch ||
+            accuracyEpoch != this.accuracyEpoch) {
+            values.clear();
+            this.networkEpoch = networkEpoch;
+            this.budgetEpoch = budgetEpoch;
+            this.accuracyEpoch = accuracyEpoch;
+        }
+    }
+    
+    /** @return the memoized value, or null if there isn't one. */
+    synchronized Double get(int bytes, int netType, int term) {
+        Double value = values.get(new Key(bytes, netType, term));
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+    
+    synchronized void put(int bytes, int netType, int term, double value) {
+        if (values.size() >= MAX_ENTRIES) {
+            // a queue this varied won't be re-evaluated unchanged anyway.
+            values.clear();
+        }
+        values.put(new Key(bytes, netType, term), value);
+    }
+    
+    synchronized int hits() {
+        return hits;
+    }
+    
+    synchronized int misses() {
+        return misses;
+    }
+    
+    /**
+     * @return a bucket number for this size.  Sizes below 64 bytes get
+     *         their own buckets; above that, each power of two is split
+     *         into 64 buckets.
+     */
+    static int sizeBucket(int bytes) {
+        if (bytes < (1 << SUB_BUCKET_BITS)) {
+            return bytes;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(bytes);
+        return (exponent << 8) | (bytes >>> (exponent - SUB_BUCKET_BITS));
+    }
+}
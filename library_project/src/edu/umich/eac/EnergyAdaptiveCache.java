@@ -1,17 +1,22 @@
 package edu.umich.eac;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.CancellationException;
-import java.util.Date;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
-import android.util.Log;
 
 import edu.umich.eac.FetchFuture;
 import edu.umich.eac.CacheFetcher;
@@ -19,7 +24,7 @@ import edu.umich.eac.CacheFetcher;
 public class EnergyAdaptiveCache {
     private static String TAG = EnergyAdaptiveCache.class.getName();
     
-    private ExecutorService bg_executor;
+    private ThreadPoolExecutor bg_executor;
     private ExecutorService fg_executor;
     
     /** Hints a future access and gets a Future for that access.
@@ -30,15 +35,31 @@ public class EnergyAdaptiveCache {
      *  @param fetcher Application-specific logic to fetch a data item
      *                 and return an object representing it.
      *  @return A Future that can be used later to actually carry out
-     *          the hinted access, via get().
+     *          the hinted access, via get().  It's also a
+     *          ListenableFuture, for getting the result without blocking.
      */
     public <V> Future<V> prefetch(CacheFetcher<V> fetcher) {
         try {
-            FetchFuture<V> fetchFuture = new FetchFuture<V>(fetcher, this);
-            stats.onPrefetchHint(fetchFuture);
+            FetchFuture<V> fetchFuture = fetchFromStore(fetcher, false);
+            if (fetchFuture != null) {
+                // already have it; nothing for the strategy to decide.
+                return fetchFuture;
+            }
+            Future<V> handle;
+            synchronized (inFlight) {
+                FetchFuture<V> shared = findInFlight(fetcher);
+                if (shared != null) {
+                    // same item is already hinted or being fetched; share it.
+                    stats.onCoalescedRequest(shared);
+                    return new CoalescedFuture<V>(shared);
+                }
+                
+                fetchFuture = newFetch(fetcher, false);
+                handle = registerInFlight(fetchFuture);
+            }
             strategy.onPrefetchEnqueued(fetchFuture);
             
-            return fetchFuture;
+            return handle;
         } catch (CancellationException e) {
             // shouldn't happen; the app can't cancel the prefetch 
             //  yet because it doesn't have a Future.
@@ -48,6 +69,22 @@ public class EnergyAdaptiveCache {
         }
     }
     
+    /** Hint many future accesses at once; the same as calling
+     *  prefetch() on each, in order.  Native callers use this to
+     *  hint a batch in one call.
+     *
+     *  @return A Future for each fetcher, or null where the fetcher is null.
+     */
+    public Future<?>[] prefetchAll(CacheFetcher<?>[] fetchers) {
+        Future<?>[] futures = new Future<?>[fetchers.length];
+        for (int i = 0; i < fetchers.length; ++i) {
+            if (fetchers[i] != null) {
+                futures[i] = prefetch(fetchers[i]);
+            }
+        }
+        return futures;
+    }
+    
     /** Hint a future access and start prefetching it immediately,
      *  bypassing any deferral decision.
      *
@@ -60,51 +97,293 @@ public class EnergyAdaptiveCache {
     /** "Hint" an immediate access and start fetching it immediately.
      *
      *  This is useful for demand fetches that weren't hinted in advance.
+     *  If the same item (by cache key) is already hinted or being
+     *  fetched, this joins that fetch and promotes it to a demand fetch.
      */
     public <V> Future<V> fetch(CacheFetcher<V> fetcher) {
         return fetchNow(fetcher, true);
     }
     
     private <V> Future<V> fetchNow(CacheFetcher<V> fetcher, boolean demand) {
+        FetchFuture<V> fetchFuture = fetchFromStore(fetcher, demand);
+        if (fetchFuture != null) {
+            return fetchFuture;
+        }
+        Future<V> handle;
+        boolean joined = false;
+        synchronized (inFlight) {
+            fetchFuture = findInFlight(fetcher);
+            if (fetchFuture != null) {
+                stats.onCoalescedRequest(fetchFuture);
+                handle = new CoalescedFuture<V>(fetchFuture);
+                joined = true;
+            } else {
+                fetchFuture = newFetch(fetcher, demand);
+                handle = registerInFlight(fetchFuture);
+            }
+        }
+        try {
+            if (!joined) {
+                fetchFuture.startAsync(demand);
+            } else if (demand) {
+                fetchFuture.promote();
+            } else if (!fetchFuture.wasIssued()) {
+                fetchFuture.startAsync(false);
+            }
+        } catch (CancellationException e) {
+            Log.e(TAG, "No-defer prefetch cancelled before it was sent");
+            handle = null;
+        }
+        return handle;
+    }
+    
+    // Fetches for keyed fetchers that haven't finished yet, so that
+    //  concurrent hints and fetches for the same key share one fetch.
+    //  Weak, so that an abandoned fetch can still be garbage-collected.
+    private Map<Object, WeakReference<FetchFuture<?>>> inFlight = 
+        new HashMap<Object, WeakReference<FetchFuture<?>>>();
+    private int inFlightPurgeThreshold = MIN_IN_FLIGHT_PURGE_THRESHOLD;
+    private static final int MIN_IN_FLIGHT_PURGE_THRESHOLD = 64;
+    
+    /** @return the unfinished fetch for the fetcher's cache key,
+     *          or null if there isn't one.  Call with inFlight locked.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> FetchFuture<V> findInFlight(CacheFetcher<V> fetcher) {
+        Object key = fetcher.getCacheKey();
+        if (key == null) {
+            return null;
+        }
+        WeakReference<FetchFuture<?>> ref = inFlight.get(key);
+        if (ref == null) {
+            return null;
+        }
+        FetchFuture<?> shared = ref.get();
+        if (shared == null || shared.isDone()) {
+            inFlight.remove(key);
+            return null;
+        }
+        return (FetchFuture<V>) shared;
+    }
+    
+    /** Start tracking a new fetch, if it has a cache key.
+     *  Call with inFlight locked.
+     *  
+     *  @return the Future to give to the app for this fetch.
+     */
+    private <V> Future<V> registerInFlight(FetchFuture<V> fetchFuture) {
+        Object key = fetchFuture.getCacheKey();
+        if (key == null) {
+            return fetchFuture;
+        }
+        
+        if (inFlight.size() >= inFlightPurgeThreshold) {
+            Iterator<WeakReference<FetchFuture<?>>> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                FetchFuture<?> f = it.next().get();
+                if (f == null || f.isDone()) {
+                    it.remove();
+                }
+            }
+            inFlightPurgeThreshold = Math.max(MIN_IN_FLIGHT_PURGE_THRESHOLD, 
+                                              inFlight.size() * 2);
+        }
+        inFlight.put(key, new WeakReference<FetchFuture<?>>(fetchFuture));
+        
+        // every caller of a keyed fetch gets its own handle,
+        //  so one caller's cancel() doesn't cancel the others' fetch.
+        return new CoalescedFuture<V>(fetchFuture);
+    }
+    
+    /** Called when a fetch completes or is cancelled; 
+     *  later requests for its key can't join it anymore.
+     */
+    void onFetchFinished(FetchFuture<?> fetchFuture) {
+        Object key = fetchFuture.getCacheKey();
+        if (key == null) {
+            return;
+        }
+        synchronized (inFlight) {
+            WeakReference<FetchFuture<?>> ref = inFlight.get(key);
+            if (ref != null && ref.get() == fetchFuture) {
+                inFlight.remove(key);
+            }
+        }
+    }
+    
+    /** Create a new fetch and count it as a hint or unhinted fetch. */
+    private <V> FetchFuture<V> newFetch(CacheFetcher<V> fetcher, boolean demand) {
         FetchFuture<V> fetchFuture = new FetchFuture<V>(fetcher, this);
         if (demand) {
             stats.onUnhintedDemandFetch(fetchFuture);
         } else {
             // only to preserve the stats invariant of hint-before-fetch
-            //  also, only called from prefetchNow, so only happens in tests.
+            //  for prefetchNow, which only happens in tests.
             stats.onPrefetchHint(fetchFuture);
         }
-        try {
-            fetchFuture.startAsync(demand);
-        } catch (CancellationException e) {
-            Log.e(TAG, "No-defer prefetch cancelled before it was sent");
-            fetchFuture = null;
-        }
         return fetchFuture;
     }
     
-    <V> Future<V> submit(Callable<V> fetcher, int demand_labels) {
-        if ((demand_labels & IntNWLabels.BACKGROUND) != 0) {
-            return bg_executor.submit(fetcher);
+    /** Serve this fetcher's item from the result stores, if possible.
+     *  Call without inFlight locked: the persistent store decodes from
+     *  disk, and other hints and fetches shouldn't wait for that.
+     *
+     *  @return a fetch completed from a store, or null if neither has it.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> FetchFuture<V> fetchFromStore(CacheFetcher<V> fetcher, boolean demand) {
+        Object key = fetcher.getCacheKey();
+        if (key == null) {
+            return null;
+        }
+        Object stored = resultStore.get(key);
+        if (stored != null) {
+            FetchFuture<V> fetchFuture = newFetch(fetcher, demand);
+            fetchFuture.completeWith((V) stored);
+            stats.onResultStoreHit(fetchFuture);
+            return fetchFuture;
+        }
+        
+        PersistentPrefetchStore diskStore = persistentStore;
+        ValueCodec<V> codec = fetcher.getValueCodec();
+        if (diskStore != null && codec != null) {
+            V persisted = diskStore.get(key.toString(), codec);
+            if (persisted != null) {
+                FetchFuture<V> fetchFuture = newFetch(fetcher, demand);
+                fetchFuture.completeWith(persisted);
+                stats.onPersistentStoreHit(fetchFuture);
+                return fetchFuture;
+            }
+        }
+        stats.onResultStoreMiss();
+        return null;
+    }
+    
+    /** Called when a fetcher finishes, so that later hints or fetches
+     *  with the same cache key can reuse the result.
+     */
+    <V> void storeResult(CacheFetcher<V> fetcher, V result, int resultSize) {
+        Object key = fetcher.getCacheKey();
+        if (key != null && result != null) {
+            resultStore.put(key, result, resultSize);
+            
+            PersistentPrefetchStore diskStore = persistentStore;
+            ValueCodec<V> codec = fetcher.getValueCodec();
+            if (diskStore != null && codec != null) {
+                diskStore.put(key.toString(), codec, result);
+            }
+        }
+    }
+    
+    /** Forget the stored result for this cache key, so that later hints
+     *  and fetches of it go back to the network.  A fetch of the key
+     *  that's already running isn't cancelled, but later requests
+     *  don't join it.
+     *
+     *  @param key as returned by CacheFetcher.getCacheKey().
+     */
+    public void invalidate(Object key) {
+        synchronized (inFlight) {
+            inFlight.remove(key);
+        }
+        resultStore.remove(key);
+        PersistentPrefetchStore diskStore = persistentStore;
+        if (diskStore != null) {
+            diskStore.remove(key.toString());
+        }
+    }
+    
+    /** Keep results of fetchers that provide a ValueCodec in a disk-backed
+     *  store in this directory, so that prefetched data survives the
+     *  process being killed.  Hints and fetches for items already in the
+     *  store are served from it, without network I/O.
+     *
+     *  @param directory Where to keep the store; reopened if it exists.
+     *  @param maxBytes Approximate limit on the store's disk usage.
+     */
+    public void enablePersistentStore(File directory, long maxBytes) throws IOException {
+        persistentStore = new PersistentPrefetchStore(directory, maxBytes);
+    }
+    
+    /** Set the maximum total size of the completed results kept for
+     *  reuse by later hints and fetches (see CacheFetcher.getCacheKey()).
+     *  Zero disables result reuse.
+     */
+    public void setResultStoreCapacity(long maxBytes) {
+        resultStore.setCapacity(maxBytes);
+    }
+    
+    /**
+     * Prefetch threads run at low priority, so they don't compete with
+     *  the app for the CPU.  A prefetch promoted to a demand fetch while
+     *  it's running gets its thread raised back to normal priority.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        
+        public Thread newThread(Runnable r) {
+            Thread thread = defaultFactory.newThread(r);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+    
+    void execute(Runnable fetchTask, int demand_labels) {
+        if (fetchExecutor != null) {
+            fetchExecutor.execute(fetchTask);
+        } else if ((demand_labels & IntNWLabels.BACKGROUND) != 0) {
+            bg_executor.execute(fetchTask);
+        } else {
+            fg_executor.execute(fetchTask);
+        }
+    }
+    
+    /** Resize the background pool to run this many prefetches at once.
+     *
+     *  Called by the prefetch strategy as its concurrency limit changes.
+     *  Shrinking doesn't interrupt running prefetches; the extra
+     *  threads exit as they become idle.
+     */
+    synchronized void setBackgroundConcurrency(int numThreads) {
+        if (numThreads < 1 || numThreads == bg_executor.getCorePoolSize()) {
+            return;
+        }
+        // core size must never exceed max size, so order the updates
+        //  according to the direction of the change.
+        if (numThreads > bg_executor.getMaximumPoolSize()) {
+            bg_executor.setMaximumPoolSize(numThreads);
+            bg_executor.setCorePoolSize(numThreads);
         } else {
-            return fg_executor.submit(fetcher);
+            bg_executor.setCorePoolSize(numThreads);
+            bg_executor.setMaximumPoolSize(numThreads);
         }
+        Log.d(TAG, String.format("Background prefetch threads: %d", numThreads));
+    }
+    
+    int getBackgroundConcurrency() {
+        return bg_executor.getCorePoolSize();
     }
     
-    CacheStats stats = new CacheStats();
+    CacheStats stats;
+    
+    private static final long DEFAULT_RESULT_STORE_BYTES = 4 * 1024 * 1024;
+    private PrefetchResultStore resultStore = 
+        new PrefetchResultStore(DEFAULT_RESULT_STORE_BYTES);
+    private volatile PersistentPrefetchStore persistentStore = null;
 
     private long relGoalTimeEpochMillis;
     
-    // Bound on the number of in-flight prefetches, similar to before.
-    // Bounding this to only one thread for now, because unless I'm
+    // Initial bound on the number of in-flight prefetches.
+    // Starting with only one thread, because unless I'm
     //  prefetching a lot of tiny things, the RTT that I save by
     //  pipelining prefetches won't really matter much.
-    //  This also simplifies application code by not requiring
-    //  it to do the pipelining and maintaining the order of
-    //  prefetches.
+    //  The adaptive strategy grows the pool (see PrefetchConcurrency)
+    //  when the bandwidth-delay product says pipelining will help.
     public static final int NUM_THREADS = 1;
     
-    private static final String LOG_FILENAME = "/sdcard/intnw/prefetching.log";
+    // binary; see EventLog.decode for the text version.
+    private static final String LOG_FILENAME = 
+        new File(Platform.current().storageDirectory(), "prefetching.events").getPath();
     
     /* Should only call this one if the strategy ignores the params. */
     public EnergyAdaptiveCache(Context context, PrefetchStrategyType strategyType) {
@@ -115,52 +394,105 @@ public class EnergyAdaptiveCache {
                                long goalTimeEpochMillis,
                                double energyBudget,
                                int dataBudget) {
-        long nowMillis = System.currentTimeMillis();
+        this(new AndroidPlatform(context), strategyType, 
+             goalTimeEpochMillis, energyBudget, dataBudget);
+    }
+    
+    /** Run on something other than Android; see Platform. */
+    public EnergyAdaptiveCache(Platform platform, PrefetchStrategyType strategyType) {
+        this(platform, strategyType, System.currentTimeMillis(), 0.0, 0);
+    }
+    public EnergyAdaptiveCache(Platform platform,
+                               PrefetchStrategyType strategyType,
+                               long goalTimeEpochMillis,
+                               double energyBudget,
+                               int dataBudget) {
+        this(platform, strategyType, goalTimeEpochMillis, energyBudget, dataBudget,
+             new PrefetchStrategy.Priors(), null);
+    }
+    
+    /**
+     * For TraceSimulator: if fetchExecutor isn't null, every fetch runs
+     * on it, and the strategy is left for the caller to drive
+     * (see PrefetchStrategy.driven).
+     */
+    EnergyAdaptiveCache(Platform platform,
+                        PrefetchStrategyType strategyType,
+                        long goalTimeEpochMillis,
+                        double energyBudget,
+                        int dataBudget,
+                        PrefetchStrategy.Priors priors,
+                        Executor fetchExecutor) {
+        this.platform = platform;
+        this.fetchExecutor = fetchExecutor;
+        stats = new CacheStats(platform.clock());
+        long nowMillis = platform.clock().currentTimeMillis();
         if (goalTimeEpochMillis > nowMillis) {
             relGoalTimeEpochMillis = goalTimeEpochMillis - nowMillis;
         } else {
             relGoalTimeEpochMillis = 0;
         }
-        Date goalTime = new Date(goalTimeEpochMillis);
+        // the wall clock is only read here; from now on the goal is
+        //  a point on the monotonic clock.
+        long goalTimeNanos = platform.clock().nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(goalTimeEpochMillis - nowMillis);
         
         Log.d(TAG, String.format("Created a new EnergyAdaptiveCache; energyBudget %.3f%%, dataBudget %d bytes  goalTimeEpochMillis %d  goal %d ms from now",
                                  energyBudget, dataBudget, goalTimeEpochMillis, relGoalTimeEpochMillis));
-        bg_executor = Executors.newFixedThreadPool(NUM_THREADS);
+        bg_executor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 
+                                             0L, TimeUnit.MILLISECONDS,
+                                             new LinkedBlockingQueue<Runnable>(),
+                                             new BackgroundThreadFactory());
         fg_executor = Executors.newCachedThreadPool();
 
         logEvent("new-run", 0);
-        strategy = PrefetchStrategy.create(context, strategyType, goalTime, 
-                                           energyBudget, dataBudget);
+        strategy = PrefetchStrategy.create(this, platform, strategyType, goalTimeNanos, 
+                                           energyBudget, dataBudget,
+                                           priors, fetchExecutor != null);
+    }
+    
+    private final Platform platform;
+    private final Executor fetchExecutor;
+    
+    Clock clock() {
+        return platform.clock();
+    }
+    
+    /**
+     * @return this cache's latency histograms; take a snapshot() to read
+     *         them, or see MetricsExporter.
+     */
+    public LatencyMetrics metrics() {
+        return stats.latency;
     }
     
     /** update the goal time of this cache to be
      *  as if the experiment had started startDelayedMillis ago.
      */
     public void updateGoalTime(int startDelayedMillis) {
-        strategy.updateGoalTime(new Date(System.currentTimeMillis() + 
-                                         relGoalTimeEpochMillis - 
-                                         startDelayedMillis));
+        strategy.updateGoalTime(clock().nanoTime() + 
+                                TimeUnit.MILLISECONDS.toNanos(relGoalTimeEpochMillis - 
+                                                              startDelayedMillis));
     }
 
     PrefetchStrategy strategy;
     
-    private static PrintWriter logFileWriter;
-    static {
-        try {
-            logFileWriter = new PrintWriter(new FileWriter(LOG_FILENAME, true), true);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to create log file: " + e.getMessage());
-        }
-    }
+    static final EventLog eventLog = EventLog.open(LOG_FILENAME, EventLog.Level.INFO);
     
     static void logEvent(String type) {
         logEvent(type, 0);
     }
     
     static void logEvent(String type, int fetchId) {
-        if (logFileWriter != null) {
-            long now = System.currentTimeMillis();
-            logFileWriter.println(String.format("%d %s 0x%08x", now, type, fetchId));
-        }
+        eventLog.event(EventLog.Level.INFO, type, fetchId, 0);
+    }
+    
+    /**
+     * Set the least severe level that gets logged, for both the cache's
+     *  event log and the strategies' decision log.
+     */
+    static void setLogLevel(EventLog.Level level) {
+        eventLog.setLevel(level);
+        PrefetchStrategy.decisionLog.setLevel(level);
     }
 }
@@ -0,0 +1,412 @@
+package edu.umich.eac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Asynchronous, binary event log.
+ *
+ * Callers claim a slot in a fixed-size ring with a single CAS and fill
+ * it in; they never format strings, take locks, or touch the disk.  If
+ * the ring is full, the record is dropped and counted rather than
+ * blocking the caller.  A background thread drains the ring in batches
+ * through a buffered stream.
+ *
+ * There are two kinds of records:
+ *   events:   [time][type][fetch id][payload], 22 bytes on disk
+ *   messages: a format string and its arguments, formatted by the
+ *             drainer thread and stored as text.
+ * Event type names are written once, as definition records the first
+ * time each type is drained, so a log can be decoded on its own.
+ * decode() turns a log back into the old text format:
+ *   "<millis> <type> 0x<fetch id>" or "<millis> <message>"
+ */
+class EventLog {
+    private static final String TAG = EventLog.class.getName();
+
+    enum Level {
+        DEBUG, INFO, WARN, OFF
+    }
+
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final long DRAIN_PERIOD_NANOS = 100 * 1000 * 1000;
+    private static final long FLUSH_TIMEOUT_NANOS = 5000L * 1000 * 1000;
+
+    private static final byte RECORD_TYPE_DEF = 0;
+    private static final byte RECORD_EVENT = 1;
+    private static final byte RECORD_MESSAGE = 2;
+
+    private final int capacity;
+    private final int mask;
+
+    // ring slots
+    private final long[] times;
+    private final int[] types;
+    private final int[] fetchIds;
+    private final long[] payloads;
+    private final String[] formats;
+    private final Object[][] args;
+
+    // sequence + 1 of the record in each slot, once it's filled in.
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(0);
+    private volatile long drained = 0;
+    // records up to here have been flushed to the stream.
+    private volatile long flushed = 0;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private volatile Level level;
+    private final String name;
+    private final Clock clock;
+
+    // event type names, indexed by type id.
+    private final ConcurrentHashMap<String, Integer> typeIds =
+        new ConcurrentHashMap<String, Integer>();
+    private final ArrayList<String> typeNames = new ArrayList<String>();
+    private int typesWritten = 0;
+
+    private DataOutputStream out;
+    private Thread drainer;
+
+    /**
+     * Open a log that appends to this file.  If the file can't be opened,
+     *  the log is disabled and calls to it cost almost nothing.
+     */
+    static EventLog open(String filename, Level level) {
+        // shared by every cache in the process, so not any one platform's clock.
+        OutputStream stream = null;
+        try {
+            stream = new FileOutputStream(filename, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create log file: " + e.getMessage());
+        }
+        return new EventLog(new File(filename).getName(), stream, level, DEFAULT_CAPACITY,
+                            Clock.SYSTEM);
+    }
+
+    /**
+     * @param stream where drained records go, or null to disable the log.
+     * @param capacity number of ring slots; rounded up to a power of two.
+     */
+    EventLog(String name, OutputStream stream, Level level, int capacity, Clock clock) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.name = name;
+        this.clock = clock;
+        times = new long[size];
+        types = new int[size];
+        fetchIds = new int[size];
+        payloads = new long[size];
+        formats = new String[size];
+        args = new Object[size][];
+        published = new AtomicLongArray(size);
+
+        if (stream == null) {
+            this.level = Level.OFF;
+            return;
+        }
+        this.level = level;
+        out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "EventLog drainer: " + name);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    void setLevel(Level newLevel) {
+        if (out != null) {
+            level = newLevel;
+        }
+    }
+
+    boolean isEnabled(Level recordLevel) {
+        return recordLevel.ordinal() >= level.ordinal();
+    }
+
+    /** @return the number of records dropped because the ring was full. */
+    long droppedRecords() {
+        return dropped.get();
+    }
+
+    void event(Level recordLevel, String type, int fetchId, long payload) {
+        if (!isEnabled(recordLevel)) {
+            return;
+        }
+        long seq = claim();
+        if (seq < 0) {
+            return;
+        }
+        int slot = (int) (seq & mask);
+        times[slot] = clock.currentTimeMillis();
+        types[slot] = typeId(type);
+        fetchIds[slot] = fetchId;
+        payloads[slot] = payload;
+        publish(seq, slot);
+    }
+
+    /**
+     * Log a message.  It's formatted with String.format on the drainer
+     *  thread, so the arguments shouldn't change after this call.
+     */
+    void message(Level recordLevel, String format, Object... formatArgs) {
+        if (!isEnabled(recordLevel)) {
+            return;
+        }
+        long seq = claim();
+        if (seq < 0) {
+            return;
+        }
+        int slot = (int) (seq & mask);
+        times[slot] = clock.currentTimeMillis();
+        formats[slot] = format;
+        args[slot] = formatArgs;
+        publish(seq, slot);
+    }
+
+    /**
+     * Wait until everything logged so far is written out.
+     * @return true iff it was, before the timeout.
+     */
+    boolean flush() {
+        if (drainer == null) {
+            return true;
+        }
+        long target = claimed.get();
+        long deadline = clock.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (flushed < target) {
+            LockSupport.unpark(drainer);
+            if (clock.nanoTime() - deadline > 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the sequence number of the claimed slot, or -1 if full. */
+    private long claim() {
+        while (true) {
+            long seq = claimed.get();
+            if (seq - drained >= capacity) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    private void publish(long seq, int slot) {
+        published.set(slot, seq + 1);
+        if ((seq & (capacity / 2 - 1)) == 0 && seq > 0) {
+            // half a ring's worth since the last nudge; don't wait for the timer.
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private int typeId(String type) {
+        Integer id = typeIds.get(type);
+        if (id != null) {
+            return id;
+        }
+        synchronized (typeNames) {
+            id = typeIds.get(type);
+            if (id == null) {
+                id = typeNames.size();
+                typeNames.add(type);
+                typeIds.put(type, id);
+            }
+            return id;
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            try {
+                if (drainBatch() > 0) {
+                    out.flush();
+                    flushed = drained;
+                } else {
+                    LockSupport.parkNanos(DRAIN_PERIOD_NANOS);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Failed to write %s: %s; disabling it",
+                                         name, e.getMessage()));
+                level = Level.OFF;
+                drainDiscarding();
+                return;
+            }
+        }
+    }
+
+    /** Write out all records that are ready, in order. */
+    private int drainBatch() throws IOException {
+        int count = 0;
+        long seq = drained;
+        while (true) {
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq + 1) {
+                break;
+            }
+            if (formats[slot] != null) {
+                out.writeByte(RECORD_MESSAGE);
+                out.writeLong(times[slot]);
+                out.writeUTF(formatMessage(formats[slot], args[slot]));
+                formats[slot] = null;
+                args[slot] = null;
+            } else {
+                writeTypeDefs(types[slot]);
+                out.writeByte(RECORD_EVENT);
+                out.writeLong(times[slot]);
+                out.writeShort(types[slot]);
+                out.writeInt(fetchIds[slot]);
+                out.writeLong(payloads[slot]);
+            }
+            seq++;
+            drained = seq;
+            count++;
+        }
+        return count;
+    }
+
+    private void drainDiscarding() {
+        while (true) {
+            long seq = drained;
+            int slot = (int) (seq & mask);
+            if (published.get(slot) == seq + 1) {
+                formats[slot] = null;
+                args[slot] = null;
+                drained = seq + 1;
+            } else if (claimed.get() == seq) {
+                // nothing else in flight; with level OFF, nothing else will come.
+                return;
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void writeTypeDefs(int upTo) throws IOException {
+        while (typesWritten <= upTo) {
+            String typeName;
+            synchronized (typeNames) {
+                typeName = typeNames.get(typesWritten);
+            }
+            out.writeByte(RECORD_TYPE_DEF);
+            out.writeShort(typesWritten);
+            out.writeUTF(typeName);
+            typesWritten++;
+        }
+    }
+
+    private static String formatMessage(String format, Object[] formatArgs) {
+        if (formatArgs == null || formatArgs.length == 0) {
+            return format;
+        }
+        try {
+            return String.format(format, formatArgs);
+        } catch (RuntimeException e) {
+            return format + " (bad format: " + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Translate a binary log into the text format the old
+     *  synchronous loggers wrote.
+     */
+    static void decode(InputStream input, PrintWriter output) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        ArrayList<String> names = new ArrayList<String>();
+        while (true) {
+            int kind;
+            try {
+                kind = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+            try {
+                switch (kind) {
+                case RECORD_TYPE_DEF: {
+                    int id = in.readShort();
+                    String typeName = in.readUTF();
+                    // each run of the app starts its ids over at zero.
+                    while (names.size() <= id) {
+                        names.add(null);
+                    }
+                    names.set(id, typeName);
+                    break;
+                }
+                case RECORD_EVENT: {
+                    long time = in.readLong();
+                    int type = in.readShort();
+                    int fetchId = in.readInt();
+                    long payload = in.readLong();
+                    String typeName = (type < names.size()) ? names.get(type) : null;
+                    if (typeName == null) {
+                        typeName = "type-" + type;
+                    }
+                    if (payload != 0) {
+                        output.println(String.format("%d %s 0x%08x %d", time, typeName,
+                                                     fetchId, payload));
+                    } else {
+                        output.println(String.format("%d %s 0x%08x", time, typeName, fetchId));
+                    }
+                    break;
+                }
+                case RECORD_MESSAGE: {
+                    long time = in.readLong();
+                    output.println(String.format("%d %s", time, in.readUTF()));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown record type " + kind);
+                }
+            } catch (EOFException e) {
+                // truncated last record; the app died mid-write.
+                break;
+            }
+        }
+        output.flush();
+    }
+
+    /** Decode log files to stdout: java edu.umich.eac.EventLog FILE... */
+    public static void main(String[] argv) throws IOException {
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(System.out), false);
+        for (String filename : argv) {
+            InputStream input = new BufferedInputStream(new FileInputStream(filename));
+            try {
+                decode(input, output);
+            } finally {
+                input.close();
+            }
+        }
+        output.flush();
+    }
+}
@@ -1,27 +1,70 @@
 package edu.umich.eac;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-import android.util.Log;
 
 import edu.umich.eac.CacheFetcher;
 import edu.umich.eac.IntNWLabels;
 
-class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
+class FetchFuture<V> implements ListenableFuture<V>, Comparable<FetchFuture<V>> {
     Future<V> realFuture;
     CallableWrapperFetcher fetcher;
     boolean cancelled;
-    private Date timeCreated;
+    // on the cache's clock.nanoTime().
+    private final long nanosCreated;
+    private long nanosIssued;
+    // whether the app hinted this fetch, and whether it's been demanded
+    //  since; so the hint->demand delay is recorded once, and only for hints.
+    private volatile boolean hinted = false;
+    private final AtomicBoolean demanded = new AtomicBoolean(false);
+    // what the fetch was restricted to when it was issued, for the metrics.
+    private LatencyMetrics.Network issuedNetwork = LatencyMetrics.Network.ANY;
+    
+    // number of CoalescedFutures sharing this fetch.
+    private int holders = 0;
+    
+    private static class Registration<V> {
+        final FetchListener<? super V> listener;
+        final Executor executor;
+        // registered by getAsync, so it does the demand-fetch accounting.
+        final boolean demand;
+        // for a demand: when it was made, and whether the item was already here.
+        final long demandedNanos;
+        final boolean hit;
+        
+        Registration(FetchListener<? super V> listener, Executor executor, boolean demand,
+                     long demandedNanos, boolean hit) {
+            this.listener = listener;
+            this.executor = executor;
+            this.demand = demand;
+            this.demandedNanos = demandedNanos;
+            this.hit = hit;
+        }
+    }
+    
+    // listeners waiting for the outcome; delivered once, when completed is set.
+    private List<Registration<V>> listeners = new ArrayList<Registration<V>>();
+    private boolean completed = false;
+    
+    // where this fetch's hint sits in its class's accuracy window.
+    //  Guarded by the PrefetchAccuracy's lock.
+    PrefetchAccuracy accuracyTracker;
+    long accuracySeq = -1;
     private EnergyAdaptiveCache cache;
     EnergyAdaptiveCache getCache() {
         return cache;
@@ -32,6 +75,9 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
         CacheFetcher<V> labeledFetcher;
         FetchFuture<V> future;
         private boolean running = false;
+        // the thread running call(), and its priority before any promotion.
+        private Thread runner;
+        private int runnerPriority;
         private ReentrantLock lock;
         private Condition condition;
         
@@ -48,11 +94,17 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
         }
 
         public V call() throws Exception {
-            markRunning();
+            boolean asPrefetch = markRunning();
             
+            // some fetchers report zero bytes remaining once they finish,
+            //  so get the result size for the result store up front.
+            int resultSize = labeledFetcher.resultSize();
             V result;
             try {
                 result = labeledFetcher.call(labels);
+                cache.storeResult(labeledFetcher, result, resultSize);
+                cache.onFetchFinished(future);
+                onFetched();
             } catch (Exception e) {
                 // log?
                 throw e;
@@ -61,26 +113,71 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
                 if (!isDemand()) {
                     cache.stats.onPrefetchDone(future);
                     cache.strategy.onPrefetchDone(future, false);
+                } else if (asPrefetch) {
+                    // promoted in place; the strategy kept its slot until now.
+                    cache.strategy.onPrefetchDone(future, false);
                 }
             }
             return result;
         }
         
-        private void markRunning() {
+        /** @return true iff it's starting as a prefetch. */
+        private boolean markRunning() {
             lock.lock();
-            running = true;
-            lock.unlock();
+            try {
+                running = true;
+                runner = Thread.currentThread();
+                runnerPriority = runner.getPriority();
+                return !isDemand();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        boolean isRunning() {
+            lock.lock();
+            try {
+                return running;
+            } finally {
+                lock.unlock();
+            }
         }
         
         private void markFinished() {
             lock.lock();
             try {
                 running = false;
+                if (runner.getPriority() != runnerPriority) {
+                    // pool threads are reused; put it back.
+                    runner.setPriority(runnerPriority);
+                }
+                runner = null;
                 condition.signalAll();
             } finally {
                 lock.unlock();
             }
         }
+        
+        /**
+         * If call() is running, turn it into a demand fetch where it is:
+         * give it the demand labels and a foreground thread priority.
+         * @return true iff it was running.
+         */
+        boolean promoteIfRunning(int demandLabels) {
+            lock.lock();
+            try {
+                if (!running) {
+                    return false;
+                }
+                labels = demandLabels;
+                if (runner.getPriority() < Thread.NORM_PRIORITY) {
+                    runner.setPriority(Thread.NORM_PRIORITY);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
 
         void waitUntilDone() {
             lock.lock();
@@ -107,6 +204,11 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
         return (realFuture != null);
     }
     
+    /** @return true iff its call() is running on some thread right now. */
+    boolean isRunning() {
+        return fetcher.isRunning();
+    }
+    
     public void addLabels(int labels) {
         fetcher.labels |= labels;
     }
@@ -134,23 +236,89 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
     public int getPrefetchClass() {
         return fetcher.labeledFetcher.getPrefetchClass();
     }
+    
+    Object getCacheKey() {
+        return fetcher.labeledFetcher.getCacheKey();
+    }
+    
+    ValueCodec<V> getValueCodec() {
+        return fetcher.labeledFetcher.getValueCodec();
+    }
 
     FetchFuture(CacheFetcher<V> fetcher_, EnergyAdaptiveCache cache_) {
         realFuture = null;
         fetcher = new CallableWrapperFetcher(fetcher_, this);
         cancelled = false;
         cache = cache_;
-        timeCreated = new Date();
+        nanosCreated = cache.clock().nanoTime();
+    }
+    
+    /**
+     * Complete this future with an already-available result,
+     * e.g. from the cache's result store, without running the fetcher.
+     */
+    void completeWith(final V result) {
+        FutureTask<V> done = new FutureTask<V>(new Callable<V>() {
+            public V call() {
+                return result;
+            }
+        });
+        done.run();
+        synchronized (this) {
+            realFuture = done;
+        }
+        fireCompletion();
     }
     
     long millisSinceCreated() {
-        return new Date().getTime() - timeCreated.getTime();
+        return TimeUnit.NANOSECONDS.toMillis(nanosSinceCreated());
+    }
+    
+    long nanosSinceCreated() {
+        return cache.clock().nanoTime() - nanosCreated;
+    }
+    
+    LatencyMetrics.Network issuedNetwork() {
+        return issuedNetwork;
+    }
+    
+    void markHinted() {
+        hinted = true;
+    }
+    
+    /** @return true iff this fetch was hinted and this is its first demand. */
+    boolean isFirstDemandOfHint() {
+        return hinted && demanded.compareAndSet(false, true);
+    }
+    
+    private void recordLatency(LatencyMetrics.Metric metric, long nanos) {
+        cache.stats.latency.record(metric, getPrefetchClass(), issuedNetwork, nanos);
+    }
+    
+    // call with the lock held, just before the fetch goes out.
+    private void markIssued() {
+        nanosIssued = cache.clock().nanoTime();
+        issuedNetwork = cache.strategy.networkOf(fetcher.labels);
+    }
+    
+    /** The fetch's result arrived. */
+    private void onFetched() {
+        recordLatency(LatencyMetrics.Metric.ISSUE_TO_COMPLETE,
+                      cache.clock().nanoTime() - nanosIssued);
+        cache.stats.onFetchCompleted(this);
+    }
+    
+    private void recordDemandWait(long demandedNanos, boolean hit) {
+        recordLatency(hit ? LatencyMetrics.Metric.DEMAND_WAIT_HIT : LatencyMetrics.Metric.DEMAND_WAIT_MISS,
+                      cache.clock().nanoTime() - demandedNanos);
     }
     
     public boolean cancel(boolean mayInterruptIfRunning) {
         if (cancelled) {
             return true;
         }
+        // the time this takes is the caller's CPU and waiting, so it's real time.
+        long startNanos = System.nanoTime();
         cache.stats.onFetchCancelled(this);
         cache.strategy.onPrefetchDone(this, true);
         
@@ -161,58 +329,311 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
         Future<V> f = getFutureRef();
         if (f == null) {
             cancelled = true;
-            return true;
         } else {
             cancelled = f.cancel(mayInterruptIfRunning);
-            return cancelled;
+        }
+        if (cancelled) {
+            cache.onFetchFinished(this);
+            fetcher.labeledFetcher.discardProgress();
+            fireCompletion();
+            recordLatency(LatencyMetrics.Metric.CANCEL, System.nanoTime() - startNanos);
+        }
+        return cancelled;
+    }
+    
+    synchronized void retain() {
+        holders++;
+    }
+    
+    /** 
+     * Called when a CoalescedFuture sharing this fetch is cancelled.
+     * The fetch is cancelled when nobody is left waiting for it.
+     */
+    void release(boolean mayInterruptIfRunning) {
+        boolean last;
+        synchronized (this) {
+            last = (--holders == 0);
+        }
+        if (last) {
+            cancel(mayInterruptIfRunning);
         }
     }
+    
+    /**
+     * Start this fetch as a demand fetch now, without waiting for it,
+     * e.g. when a demand fetch for the same item joins this one.
+     */
+    void promote() throws CancellationException {
+        cache.strategy.onDemandFetch(this);
+        establishFuture(true);
+    }
 
     private synchronized void establishFuture(boolean demand)
         throws CancellationException {
         if (cancelled) throw new CancellationException();
         if (demand) {
+            int demandLabels = ((fetcher.labels & ~IntNWLabels.BACKGROUND & 
+                                 ~IntNWLabels.ALL_NET_RESTRICTION_LABELS) |
+                                IntNWLabels.ONDEMAND);
             if (realFuture != null && !fetcher.isDemand() && 
                 !realFuture.isDone()) {
                 // there's a pending background prefetch.
-                // cancel it and start a demand fetch.
-                // XXX: this might be bad if the fetch is 
-                //      large and almost done.  Hence label promotion.
-                
-                realFuture.cancel(true);
-                fetcher.labeledFetcher.onCancelled();
-                fetcher.waitUntilDone();
-                realFuture = null;
+                if (!fetcher.labeledFetcher.restartOnPromotion() &&
+                    fetcher.promoteIfRunning(demandLabels)) {
+                    // it's already transferring; let it finish as the
+                    //  demand fetch rather than throwing that work away.
+                    cache.stats.onPromotedInPlace(this);
+                    fetcher.labeledFetcher.onPromoted(demandLabels);
+                } else {
+                    // not started yet, or the fetcher can't be promoted;
+                    //  cancel it and start a demand fetch.
+                    
+                    // forget it first, so its cancellation isn't
+                    //  taken as the outcome of this fetch.
+                    Future<V> stale = realFuture;
+                    realFuture = null;
+                    stale.cancel(true);
+                    fetcher.labeledFetcher.onCancelled();
+                    fetcher.waitUntilDone();
+                }
             }
             
-            clearLabels(IntNWLabels.BACKGROUND);
-            addLabels(IntNWLabels.ONDEMAND);
-            clearLabels(IntNWLabels.ALL_NET_RESTRICTION_LABELS);
+            fetcher.labels = demandLabels;
         } else {
             clearLabels(IntNWLabels.ONDEMAND);
             addLabels(IntNWLabels.BACKGROUND);
         }
         
         if (realFuture == null) {
+            markIssued();
             if (!demand) {
                 cache.stats.onPrefetchIssued(this);
+                recordLatency(LatencyMetrics.Metric.HINT_TO_ISSUE, nanosIssued - nanosCreated);
             }
             
             // haven't submitted it yet; better do it now
-            realFuture = cache.submit(fetcher, fetcher.labels);
+            submitRun();
         }
     }
     
+    // call with the lock held.
+    private void submitRun() {
+        FutureTask<V> run = new FutureTask<V>(fetcher) {
+            @Override
+            protected void done() {
+                onRunDone(this);
+            }
+        };
+        realFuture = run;
+        cache.execute(run, fetcher.labels);
+    }
+    
+    BatchFetcher<V> getBatchFetcher() {
+        return fetcher.labeledFetcher.getBatchFetcher();
+    }
+    
+    CacheFetcher<V> getFetcher() {
+        return fetcher.labeledFetcher;
+    }
+    
+    int resultSize() {
+        return fetcher.labeledFetcher.resultSize();
+    }
+    
+    int getLabels() {
+        return fetcher.labels;
+    }
+    
+    /**
+     * Issue this prefetch as one item of a batch, instead of running
+     * its own fetcher.  The batch completes it through the returned run.
+     * @return the run, or null if this was already issued.
+     */
+    synchronized BatchedRun issueInBatch() throws CancellationException {
+        if (cancelled) throw new CancellationException();
+        if (realFuture != null) {
+            return null;
+        }
+        clearLabels(IntNWLabels.ONDEMAND);
+        addLabels(IntNWLabels.BACKGROUND);
+        markIssued();
+        cache.stats.onPrefetchIssued(this);
+        recordLatency(LatencyMetrics.Metric.HINT_TO_ISSUE, nanosIssued - nanosCreated);
+        
+        BatchedRun run = new BatchedRun();
+        realFuture = run;
+        return run;
+    }
+    
+    /**
+     * This prefetch's share of a batched fetch.  It never runs
+     * by itself; the batch sets its outcome as results arrive.
+     */
+    class BatchedRun extends FutureTask<V> {
+        BatchedRun() {
+            super(new Callable<V>() {
+                public V call() {
+                    throw new IllegalStateException("Batched prefetch run on its own");
+                }
+            });
+        }
+        
+        @Override
+        protected void done() {
+            onRunDone(this);
+        }
+        
+        void succeed(V result, int resultSize) {
+            if (!isCurrent()) {
+                return;
+            }
+            cache.storeResult(fetcher.labeledFetcher, result, resultSize);
+            cache.onFetchFinished(FetchFuture.this);
+            onFetched();
+            onBatchedPrefetchDone();
+            set(result);
+        }
+        
+        void fail(Exception cause) {
+            if (!isCurrent()) {
+                return;
+            }
+            onBatchedPrefetchDone();
+            setException(cause);
+        }
+        
+        /** The batch didn't fetch this item; fetch it on its own. */
+        void fallBack() {
+            synchronized (FetchFuture.this) {
+                if (realFuture != this || cancelled) {
+                    return;
+                }
+                submitRun();
+            }
+        }
+        
+        private boolean isCurrent() {
+            synchronized (FetchFuture.this) {
+                // a demand fetch or cancellation may have taken over.
+                return realFuture == this && !cancelled;
+            }
+        }
+        
+        private void onBatchedPrefetchDone() {
+            if (!fetcher.isDemand()) {
+                cache.stats.onPrefetchDone(FetchFuture.this);
+                cache.strategy.onPrefetchDone(FetchFuture.this, false);
+            }
+        }
+    }
+    
+    private void onRunDone(Future<V> run) {
+        synchronized (this) {
+            if (run != realFuture) {
+                // superseded by a restart or reset; not the final outcome.
+                return;
+            }
+        }
+        fireCompletion();
+    }
+    
+    public void addListener(FetchListener<? super V> listener, Executor executor) {
+        register(new Registration<V>(listener, executor, false, 0, false));
+    }
+    
+    public void getAsync(FetchListener<? super V> listener, Executor executor) {
+        long demandedNanos = cache.clock().nanoTime();
+        boolean hit = isDone();
+        try {
+            cache.stats.onDemandFetch(this);
+            cache.strategy.onDemandFetch(this);
+            establishFuture(true);
+        } catch (CancellationException e) {
+            // the listener will hear about it.
+        }
+        register(new Registration<V>(listener, executor, true, demandedNanos, hit));
+    }
+    
+    private void register(Registration<V> registration) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(registration);
+                return;
+            }
+        }
+        dispatch(registration);
+    }
+    
+    /** Deliver the outcome to the listeners.  Only the first call does anything. */
+    private void fireCompletion() {
+        List<Registration<V>> toNotify;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            toNotify = listeners;
+            listeners = null;
+        }
+        for (Registration<V> registration : toNotify) {
+            dispatch(registration);
+        }
+    }
+    
+    private void dispatch(final Registration<V> registration) {
+        try {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    deliver(registration);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(AdaptivePrefetchStrategy.TAG, "Listener's executor rejected it: " + e.getMessage());
+        }
+    }
+    
+    private void deliver(Registration<V> registration) {
+        Future<V> f = getFutureRef();
+        if (cancelled || f == null || f.isCancelled()) {
+            registration.listener.onCancelled();
+            return;
+        }
+        V result;
+        try {
+            // already done; doesn't block.
+            result = f.get();
+        } catch (CancellationException e) {
+            registration.listener.onCancelled();
+            return;
+        } catch (ExecutionException e) {
+            registration.listener.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            registration.listener.onFailure(e);
+            return;
+        }
+        if (registration.demand) {
+            recordDemandWait(registration.demandedNanos, registration.hit);
+            cache.stats.onDemandFetchDone(this);
+            cache.strategy.onPrefetchDone(this, false);
+        }
+        registration.listener.onSuccess(result);
+    }
+    
     private synchronized Future<V> getFutureRef() {
         return realFuture;
     }
     
     public V get() throws InterruptedException, ExecutionException, 
                           CancellationException {
+        long demandedNanos = cache.clock().nanoTime();
+        boolean hit = isDone();
         cache.stats.onDemandFetch(this);
         cache.strategy.onDemandFetch(this);
         establishFuture(true);
         V result = realFuture.get();
+        recordDemandWait(demandedNanos, hit);
         cache.stats.onDemandFetchDone(this);
         cache.strategy.onPrefetchDone(this, false);
         return result;
@@ -221,10 +642,13 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
     public V get(long timeout, TimeUnit unit) 
         throws InterruptedException, ExecutionException, 
                TimeoutException, CancellationException {
+        long demandedNanos = cache.clock().nanoTime();
+        boolean hit = isDone();
         cache.stats.onDemandFetch(this);
         cache.strategy.onDemandFetch(this);
         establishFuture(true);
         V result = realFuture.get(timeout, unit);
+        recordDemandWait(demandedNanos, hit);
         cache.stats.onDemandFetchDone(this);
         cache.strategy.onPrefetchDone(this, false);
         return result;
@@ -266,13 +690,15 @@ class FetchFuture<V> implements Future<V>, Comparable<FetchFuture<V>> {
      * Cancel the real future, but don't cancel the prefetch.
      * This is used to interrupt a prefetch that was started but can't finish
      * due to its required network type going away.
+     * A ResumableCacheFetcher keeps what it received so far.
      */
     synchronized void reset() {
-        if (realFuture != null) {
-            realFuture.cancel(true);
+        Future<V> stale = realFuture;
+        realFuture = null;
+        if (stale != null) {
+            stale.cancel(true);
         }
         fetcher.labeledFetcher.onCancelled();
         fetcher.waitUntilDone();
-        realFuture = null;
     }
 }
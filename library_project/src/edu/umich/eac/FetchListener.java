@@ -0,0 +1,19 @@
+package edu.umich.eac;
+
+/**
+ * Told how a fetch turned out, without a thread blocking in get().
+ * See ListenableFuture.
+ *
+ * Exactly one of these is called, once, on the executor the listener
+ * was registered with.
+ */
+public interface FetchListener<V> {
+    /** The fetch finished and produced this result. */
+    void onSuccess(V result);
+    
+    /** The fetcher threw this exception. */
+    void onFailure(Throwable cause);
+    
+    /** The fetch was cancelled before it finished. */
+    void onCancelled();
+}
@@ -0,0 +1,85 @@
+package edu.umich.eac;
+
+/**
+ * Approximate, aging access-frequency counts for cache admission (TinyLFU).
+ *
+ * A count-min sketch with four rows of small saturating counters.
+ * The estimate for a key is the minimum of its four counters, which
+ * can only overestimate.  After a fixed number of increments, every
+ * counter is halved, so old popularity fades and the sketch tracks
+ * recent frequency rather than all-time frequency.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {
+        0x97cb3127, 0x7fd9b3c1, 0x5f356495, 0x2127599b
+    };
+
+    private final byte[] table;
+    private final int width;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries Roughly how many distinct keys the
+     *        owning cache can hold at once.
+     */
+    FrequencySketch(int expectedEntries) {
+        int w = 16;
+        while (w < expectedEntries && w < (1 << 24)) {
+            w <<= 1;
+        }
+        width = w;
+        mask = w - 1;
+        table = new byte[DEPTH * w];
+        sampleSize = 10 * w;
+    }
+
+    /** Record one access of the key. */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; ++row) {
+            int index = indexOf(hash, row);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /** @return the estimated number of recent accesses of the key. */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; ++row) {
+            min = Math.min(min, table[indexOf(hash, row)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        h ^= (h >>> 17);
+        return (row * width) + (h & mask);
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return h;
+    }
+}
@@ -3,50 +3,89 @@ package edu.umich.eac;
 import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
-import android.util.Log;
 
 public class GoalAdaptiveResourceWeight {
-    private static final int UPDATE_DURATION_MILLIS = 1000;
+    static final int UPDATE_DURATION_MILLIS = 1000;
     private static final double PROHIBITIVELY_LARGE_WEIGHT = Math.pow(2, 200); // really large, but shouldn't overflow (max ~ 2^1023)
     
     private static final String TAG = GoalAdaptiveResourceWeight.class.getName();
     private static final int EWMA_SWITCH_THRESHOLD = 100;
     private double lastSupply;
     final private double initialSupply;
-    private Date goalTime;
+    // on clock.nanoTime()'s timeline, as are all the times here.
+    private long goalTimeNanos;
     private double weight;
     private Timer updateTimer;
     private TimerTask updateTask;
     
     private double lastSpendingRate;
-    private Date lastResourceUseSample;
+    // bumped whenever something that getWeight() depends on changes.
+    private long epoch = 0;
+    private long lastResourceUseSampleNanos;
     private AdaptivePrefetchStrategy strategy;
     private String type;
     private int spendingRateUpdateCount;
+    private final Clock clock;
     
-    private void logPrint(String msg) {
+    /** Told when the weight changes enough to matter to decisions. */
+    interface WeightListener {
+        void onWeightChanged(GoalAdaptiveResourceWeight weight);
+    }
+    
+    // relative change in weight since the last notification
+    //  that's worth re-evaluating deferred prefetches for.
+    static final double WEIGHT_CHANGE_THRESHOLD = 0.05;
+    
+    private WeightListener listener;
+    private double lastNotifiedWeight;
+    
+    synchronized void setWeightListener(WeightListener listener) {
+        this.listener = listener;
+        lastNotifiedWeight = weight;
+    }
+    
+    private void logPrint(String format, Object... args) {
         if (strategy != null) {
-            strategy.logPrint(msg);
+            strategy.logPrint(format, args);
         }
     }
     
     public GoalAdaptiveResourceWeight(AdaptivePrefetchStrategy strategy, String type,
                                       double supply, Date goalTime) {
+        this(strategy, type, supply,
+             Clock.SYSTEM.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                 goalTime.getTime() - Clock.SYSTEM.currentTimeMillis()),
+             Clock.SYSTEM, true);
+    }
+    
+    /**
+     * @param goalTimeNanos when the supply should run out, on clock.nanoTime().
+     * @param periodicUpdates if false, there's no timer; the weight
+     *        only changes when forceUpdateWeight() is called.
+     */
+    GoalAdaptiveResourceWeight(AdaptivePrefetchStrategy strategy, String type,
+                               double supply, long goalTimeNanos,
+                               Clock clock, boolean periodicUpdates) {
         this.strategy = strategy;
+        this.clock = clock;
         this.type = type;
         initialSupply = supply;
         this.lastSupply = supply;
-        this.goalTime = goalTime;
-        lastResourceUseSample = new Date();
+        this.goalTimeNanos = goalTimeNanos;
+        lastResourceUseSampleNanos = clock.nanoTime();
         
-        lastSpendingRate = supply / secondsUntil(goalTime);
+        lastSpendingRate = supply / secondsUntil(goalTimeNanos);
         spendingRateUpdateCount = 1;
                 
         // large starting weight: I'll spend my entire budget to save
         //  an amount of time as big as my entire goal.
-        this.weight = secondsUntil(goalTime) / supply;
+        this.weight = secondsUntil(goalTimeNanos) / supply;
         
+        if (!periodicUpdates) {
+            return;
+        }
         updateTimer = new Timer();
         updateTask = new TimerTask() {
             @Override
@@ -59,46 +98,45 @@ public class GoalAdaptiveResourceWeight {
 
     private double smoothingFactor() {
         // from Odyssey.
-        Date now = new Date();
-        if (goalTime.before(now)) {
+        if (goalTimeNanos - clock.nanoTime() < 0) {
             return 0.0;
         } else {
-            return Math.pow(2, -1.0 / (0.1 * secondsUntil(this.goalTime)));
+            return Math.pow(2, -1.0 / (0.1 * secondsUntil(goalTimeNanos)));
         }
     }
 
-    private double secondsUntil(Date date) {
-        return ((double) (date.getTime() - System.currentTimeMillis())) / 1000.0;
-    }
+    private static final double NANOS_PER_SECOND = 1000000000.0;
     
-    private double secondsSince(Date date) {
-        return ((double) (System.currentTimeMillis() - date.getTime())) / 1000.0;
+    private double secondsUntil(long nanos) {
+        return (nanos - clock.nanoTime()) / NANOS_PER_SECOND;
     }
     
     public synchronized void reportSpentResource(double amount) {
-        double samplePeriod = secondsSince(lastResourceUseSample);
-        lastResourceUseSample = new Date();
+        long now = clock.nanoTime();
+        double samplePeriod = (now - lastResourceUseSampleNanos) / NANOS_PER_SECOND;
+        lastResourceUseSampleNanos = now;
 
-        logPrint(String.format("Old %s spending rate: %s   old supply: %s",
-                               type, 
-                               String.valueOf(lastSpendingRate), 
-                               String.valueOf(lastSupply)));
-        logPrint(String.format("current %s spent amount %s over past %s seconds",
-                               type, 
-                               String.valueOf(amount), 
-                               String.valueOf(samplePeriod)));
+        logPrint("Old %s spending rate: %s   old supply: %s",
+                 type, 
+                 lastSpendingRate, 
+                 lastSupply);
+        logPrint("current %s spent amount %s over past %s seconds",
+                 type, 
+                 amount, 
+                 samplePeriod);
         
         double rateSample = amount / samplePeriod;
         double alpha = smoothingFactor();
         lastSpendingRate = calculateNewSpendingRate(lastSpendingRate, rateSample);
         spendingRateUpdateCount++;
         lastSupply -= amount;
+        epoch++;
         
-        logPrint(String.format("New %s spending rate: %s   new supply: %s  (alpha %s)",
-                               type, 
-                               String.valueOf(lastSpendingRate), 
-                               String.valueOf(lastSupply), 
-                               String.valueOf(alpha)));
+        logPrint("New %s spending rate: %s   new supply: %s  (alpha %s)",
+                 type, 
+                 lastSpendingRate, 
+                 lastSupply, 
+                 alpha);
     }
 
     private double calculateNewSpendingRate(double oldRate, double rateSample) {
@@ -112,7 +150,7 @@ public class GoalAdaptiveResourceWeight {
         }
     }
     
-    synchronized void forceUpdateWeight() {
+    void forceUpdateWeight() {
         updateWeight();
     }
     
@@ -121,40 +159,55 @@ public class GoalAdaptiveResourceWeight {
         return (lastSupply <= 0.0 || adjustedSupply <= 0.0);
     }
     
-    private synchronized void updateWeight() {
-        weight = calculateNewWeight(weight, lastSupply, lastSpendingRate);
+    private void updateWeight() {
+        WeightListener toNotify = null;
+        synchronized (this) {
+            double newWeight = calculateNewWeight(weight, lastSupply, lastSpendingRate);
+            if (newWeight != weight) {
+                weight = newWeight;
+                epoch++;
+            }
+            if (listener != null &&
+                Math.abs(weight - lastNotifiedWeight) > WEIGHT_CHANGE_THRESHOLD * lastNotifiedWeight) {
+                lastNotifiedWeight = weight;
+                toNotify = listener;
+            }
+        }
+        // outside the lock; the listener may ask for the weight.
+        if (toNotify != null) {
+            toNotify.onWeightChanged(this);
+        }
     }
     
     private synchronized double calculateNewWeight(double oldWeight, double supply, double spendingRate) {
-        Date now = new Date();
         double newWeight = oldWeight;
         
-        logPrint(String.format("Old %s weight: %s", type, String.valueOf(oldWeight)));
+        logPrint("Old %s weight: %s", type, oldWeight);
         // "fudge factor" to avoid overshooting budget.  Borrowed from Odyssey.
         double adjustedSupply = computeAdjustedSupply(supply);
         if (supply <= 0.0 || adjustedSupply <= 0.0) {
             return PROHIBITIVELY_LARGE_WEIGHT;
-        } else if (now.after(goalTime)) {
+        } else if (clock.nanoTime() - goalTimeNanos > 0) {
             // goal reached; spend away!  (We shouldn't see this in our experiments.)
             // weight = 0.0;
             // on second thought, let's try to avoid spending like crazy at the end
             //  due to subtle timing issues.
             return PROHIBITIVELY_LARGE_WEIGHT;
         } else {
-            double futureDemand = spendingRate * secondsUntil(goalTime);
-            logPrint(String.format("%s spending rate: %s  adjusted supply: %s", 
-                                   type, String.valueOf(spendingRate), String.valueOf(adjustedSupply)));
-            logPrint(String.format("Future %s demand: %s  weight %s  multiplier %s",
-                                   type, 
-                                   String.valueOf(futureDemand), 
-                                   String.valueOf(oldWeight), 
-                                   String.valueOf(futureDemand / adjustedSupply)));
+            double futureDemand = spendingRate * secondsUntil(goalTimeNanos);
+            logPrint("%s spending rate: %s  adjusted supply: %s", 
+                     type, spendingRate, adjustedSupply);
+            logPrint("Future %s demand: %s  weight %s  multiplier %s",
+                     type, 
+                     futureDemand, 
+                     oldWeight, 
+                     futureDemand / adjustedSupply);
             newWeight *= (futureDemand / adjustedSupply);
         }
         newWeight = Math.max(newWeight, aggressiveNonZeroWeight());
         newWeight = Math.min(newWeight, PROHIBITIVELY_LARGE_WEIGHT); // make sure it doesn't grow without bound
         
-        logPrint(String.format("New %s weight: %s", type, String.valueOf(newWeight)));
+        logPrint("New %s weight: %s", type, newWeight);
         return newWeight;
     }
 
@@ -190,16 +243,23 @@ public class GoalAdaptiveResourceWeight {
     // return the resource cost weight assuming I issue the given prefetch.
     // the values passed in here are for current cost, not delta cost.
     public synchronized double getWeight(String type, double prefetchCost, double prefetchDuration) {
-        logPrint(String.format("Calculating lookahead %s weight: cost %s duration %s",
-                               type, String.valueOf(prefetchCost), String.valueOf(prefetchDuration)));
+        logPrint("Calculating lookahead %s weight: cost %s duration %s",
+                 type, prefetchCost, prefetchDuration);
         double spendingRate = 
             calculateNewSpendingRate(lastSpendingRate, lastSpendingRate + (prefetchCost / prefetchDuration));
-        logPrint(String.format("Lookahead %s spending rate: %s", 
-                               type, String.valueOf(spendingRate)));
+        logPrint("Lookahead %s spending rate: %s", 
+                 type, spendingRate);
         return calculateNewWeight(weight, lastSupply - prefetchCost, spendingRate);
     }
 
-    public synchronized void updateGoalTime(Date newGoalTime) {
-        goalTime = newGoalTime;
+    /** @param newGoalTimeNanos on clock.nanoTime()'s timeline. */
+    synchronized void updateGoalTime(long newGoalTimeNanos) {
+        goalTimeNanos = newGoalTimeNanos;
+        epoch++;
+    }
+    
+    /** @return a number that changes whenever the weights might. */
+    synchronized long epoch() {
+        return epoch;
     }
 }
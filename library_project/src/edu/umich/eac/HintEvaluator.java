@@ -0,0 +1,485 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.umich.eac.AdaptivePrefetchStrategy.PrefetchTask;
+
+/**
+ * Evaluates the cost and benefit of every deferred prefetch at once.
+ *
+ * The deferred hints are copied into a struct-of-arrays snapshot
+ * (Hints), so evaluating thousands of them is arithmetic over primitive
+ * arrays rather than calls through PrefetchTasks and FetchFutures.
+ * The expensive part of a cost, the energy estimates and budget weight
+ * lookaheads, depends only on the item's size and the network, so
+ * it's computed once per size bucket (see CostCache) as two terms:
+ *   cost = now - accuracy * later
+ * Big snapshots are split into chunks evaluated on all cores.
+ *
+ * Each hint goes on the most preferred available network where its
+ * cost is below its benefit, or (with striping on) across all of them.
+ * After evaluate(), hints are ranked globally by benefit minus cost,
+ * best first; ties go to the older hint.
+ */
+class HintEvaluator {
+    /** Snapshots at least this big are evaluated in parallel. */
+    static final int PARALLEL_THRESHOLD = 4096;
+    private static final int MIN_CHUNK = 2048;
+    /** Longest batch findBatch() will consider. */
+    static final int MAX_BATCH = 256;
+
+    static final int NOW = 0;
+    static final int LATER = 1;
+
+    /** Supplies the parts of the cost model that aren't simple arithmetic. */
+    interface CostModel {
+        /** @return the time (in seconds) to fetch this hint on this network. */
+        double duration(int hint, int network);
+
+        /**
+         * Fill in terms[NOW] and terms[LATER] for fetching this many
+         * bytes on this network, taking this long.
+         */
+        void costTerms(int network, int bytes, double duration, double[] terms);
+    }
+
+    /** Struct-of-arrays snapshot of the deferred hints. */
+    static class Hints {
+        int size = 0;
+        PrefetchTask[] tasks;
+        int[] bytes;
+        // hint accuracy of the prefetch's class
+        double[] accuracy;
+        // fetch time under the expected network conditions;
+        //  the benefit of prefetching, if the hint is accurate.
+        double[] fetchTime;
+        // issued or cancelled since it was queued; just needs removing.
+        boolean[] issued;
+
+        Hints(int capacity) {
+            capacity = Math.max(capacity, 1);
+            tasks = new PrefetchTask[capacity];
+            bytes = new int[capacity];
+            accuracy = new double[capacity];
+            fetchTime = new double[capacity];
+            issued = new boolean[capacity];
+        }
+
+        /** Append a hint; only tests leave task null. */
+        void add(PrefetchTask task, int numBytes, double hintAccuracy,
+                 double expectedFetchTime, boolean alreadyIssued) {
+            if (size == bytes.length) {
+                int capacity = size * 2;
+                tasks = Arrays.copyOf(tasks, capacity);
+                bytes = Arrays.copyOf(bytes, capacity);
+                accuracy = Arrays.copyOf(accuracy, capacity);
+                fetchTime = Arrays.copyOf(fetchTime, capacity);
+                issued = Arrays.copyOf(issued, capacity);
+            }
+            tasks[size] = task;
+            bytes[size] = numBytes;
+            accuracy[size] = hintAccuracy;
+            fetchTime[size] = expectedFetchTime;
+            issued[size] = alreadyIssued;
+            size++;
+        }
+
+        /**
+         * Copy out the deferred tasks, in the order given; ranking breaks
+         * ties by that order.  This is the only part that calls into the
+         * app's fetchers, once per hint.
+         */
+        static Hints capture(Iterator<PrefetchTask> tasks, int expectedSize,
+                             CacheStats stats, NetworkStats expected) {
+            Hints hints = new Hints(expectedSize);
+            // accuracy is per class; look each class up once.
+            int lastClass = 0;
+            double lastAccuracy = Double.NaN;
+            while (tasks.hasNext()) {
+                PrefetchTask task = tasks.next();
+                FetchFuture<?> prefetch = task.prefetch;
+                boolean issued = prefetch.wasIssued() || prefetch.isCancelled();
+                if (issued) {
+                    hints.add(task, 0, 0.0, 0.0, true);
+                    continue;
+                }
+                if (Double.isNaN(lastAccuracy) || task.prefetchClass != lastClass) {
+                    lastClass = task.prefetchClass;
+                    lastAccuracy = stats.getHardcodedPrefetchAccuracy(prefetch);
+                }
+                hints.add(task, prefetch.bytesToTransfer(), lastAccuracy,
+                          prefetch.estimateFetchTime(expected.bandwidthDown,
+                                                     expected.bandwidthUp,
+                                                     expected.rttMillis),
+                          false);
+            }
+            return hints;
+        }
+    }
+
+    private static ExecutorService pool;
+    private static int numCores = Runtime.getRuntime().availableProcessors();
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Math.max(1, numCores - 1), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HintEvaluator worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    // results of the last evaluate(), indexed by hint.
+    //  networks has bit i set to issue it on network i (several bits
+    //  to stripe it), or is 0 to defer it.
+    int[] networks = new int[0];
+    double[] cost = new double[0];
+    double[] benefit = new double[0];
+    // hint indices, best first; issued hints aren't included.
+    int[] ranked = new int[0];
+    int numRanked = 0;
+
+    private Hints hints;
+    private int numNetworks;
+    private boolean[] available;
+    private int availableMask;
+    private int numAvailable;
+    private int[] bucket = new int[0];
+    private double[] score = new double[0];
+
+    // per-size-bucket cost terms, densely packed:
+    //  terms[(slot * numNetworks + network) * 2 + NOW or LATER]
+    private int[] bucketSlot = newBucketSlots();
+    private int[] slotBucket = new int[16];
+    private int numSlots = 0;
+    private double[] terms = new double[0];
+
+    private boolean parallel = true;
+    private boolean striping = false;
+
+    /** For benchmarks: evaluate everything on the calling thread. */
+    void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * With striping on, a hint whose cost on all the available networks
+     * put together is below its benefit goes on all of them at once.
+     */
+    void setStriping(boolean striping) {
+        this.striping = striping;
+    }
+
+    /**
+     * Evaluate every hint in the snapshot.
+     * @param available which networks can be used now, in order of
+     *                  preference.  A hint goes on the most preferred
+     *                  network where its cost is below its benefit.
+     */
+    void evaluate(Hints hints, boolean[] available, CostModel model) {
+        this.hints = hints;
+        this.numNetworks = available.length;
+        this.available = available;
+        availableMask = 0;
+        numAvailable = 0;
+        for (int net = 0; net < numNetworks; ++net) {
+            if (available[net]) {
+                availableMask |= (1 << net);
+                numAvailable++;
+            }
+        }
+        int n = hints.size;
+        if (networks.length < n) {
+            int capacity = Math.max(n, networks.length * 2);
+            networks = new int[capacity];
+            cost = new double[capacity];
+            benefit = new double[capacity];
+            ranked = new int[capacity];
+            bucket = new int[capacity];
+            score = new double[capacity];
+        }
+
+        runChunked(n, new Chunk() {
+            public void run(int from, int to) {
+                computeBuckets(from, to);
+            }
+        });
+        fillCostTerms(model);
+        runChunked(n, new Chunk() {
+            public void run(int from, int to) {
+                evaluateRange(from, to);
+            }
+        });
+        rank();
+        clearBucketSlots();
+    }
+
+    /**
+     * After evaluate(): find the shortest run of ranked hints, starting
+     * at ranked[start], that's worth issuing together, though none of
+     * them is worth issuing alone.  Its cost is for one request of their
+     * total size.  Looks at no more than MAX_BATCH hints.
+     * @return the number of hints in the batch, or 0 if no batch is
+     *         worth it.  batchNetworks, batchCost and batchBenefit
+     *         describe the batch.
+     */
+    int findBatch(int start, CostModel model) {
+        int end = Math.min(numRanked, start + MAX_BATCH);
+        if (end - start < 2) {
+            return 0;
+        }
+        int first = ranked[start];
+        double firstAccuracy = hints.accuracy[first];
+        long bytes = 0;
+        double fetchTime = 0.0;
+        double[] duration = new double[numNetworks];
+        double[] netCost = new double[numNetworks];
+        double[] batchTerms = new double[2];
+        for (int k = start; k < end; ++k) {
+            int hint = ranked[k];
+            bytes += hints.bytes[hint];
+            fetchTime += hints.fetchTime[hint];
+            for (int net = 0; net < numNetworks; ++net) {
+                if (available[net]) {
+                    duration[net] += model.duration(hint, net);
+                }
+            }
+            if (k == start) {
+                continue;
+            }
+
+            // the whole batch is judged by its first hint's accuracy.
+            int batchBytes = (int) Math.min(bytes, Integer.MAX_VALUE);
+            double batchBenefit = firstAccuracy * fetchTime;
+            for (int net = 0; net < numNetworks; ++net) {
+                if (available[net]) {
+                    model.costTerms(net, batchBytes, duration[net], batchTerms);
+                    netCost[net] = batchTerms[NOW] - firstAccuracy * batchTerms[LATER];
+                }
+            }
+            int chosen = chooseNetworks(netCost, batchBenefit);
+            if (chosen != 0) {
+                batchNetworks = chosen;
+                batchCost = costOf(chosen, netCost);
+                this.batchBenefit = batchBenefit;
+                return k - start + 1;
+            }
+        }
+        return 0;
+    }
+
+    int batchNetworks = 0;
+    double batchCost;
+    double batchBenefit;
+
+    private interface Chunk {
+        void run(int from, int to);
+    }
+
+    private void runChunked(int n, final Chunk chunk) {
+        int chunks = Math.min(numCores, n / MIN_CHUNK);
+        if (!parallel || n < PARALLEL_THRESHOLD || chunks < 2) {
+            chunk.run(0, n);
+            return;
+        }
+        int per = (n + chunks - 1) / chunks;
+        List<Future<?>> pending = new ArrayList<Future<?>>(chunks - 1);
+        for (int c = 1; c < chunks; ++c) {
+            final int from = c * per;
+            final int to = Math.min(n, from + per);
+            pending.add(pool().submit(new Runnable() {
+                public void run() {
+                    chunk.run(from, to);
+                }
+            }));
+        }
+        // this thread takes the first chunk.
+        chunk.run(0, Math.min(n, per));
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during evaluation", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Evaluation failed", e.getCause());
+            }
+        }
+    }
+
+    private void computeBuckets(int from, int to) {
+        for (int i = from; i < to; ++i) {
+            bucket[i] = CostCache.sizeBucket(Math.max(0, hints.bytes[i]));
+        }
+    }
+
+    /** Serial: the cost model may call into native code and locks. */
+    private void fillCostTerms(CostModel model) {
+        double[] netTerms = new double[2];
+        for (int i = 0; i < hints.size; ++i) {
+            if (hints.issued[i] || bucketSlot[bucket[i]] >= 0) {
+                continue;
+            }
+            int slot = numSlots++;
+            bucketSlot[bucket[i]] = slot;
+            if (slot == slotBucket.length) {
+                slotBucket = Arrays.copyOf(slotBucket, slot * 2);
+            }
+            slotBucket[slot] = bucket[i];
+            int needed = numSlots * numNetworks * 2;
+            if (terms.length < needed) {
+                terms = Arrays.copyOf(terms, Math.max(needed, terms.length * 2));
+            }
+            for (int net = 0; net < numNetworks; ++net) {
+                if (!available[net]) {
+                    continue;
+                }
+                model.costTerms(net, hints.bytes[i], model.duration(i, net), netTerms);
+                int base = (slot * numNetworks + net) * 2;
+                terms[base + NOW] = netTerms[NOW];
+                terms[base + LATER] = netTerms[LATER];
+            }
+        }
+    }
+
+    private void evaluateRange(int from, int to) {
+        double[] netCost = new double[numNetworks];
+        for (int i = from; i < to; ++i) {
+            networks[i] = 0;
+            if (hints.issued[i]) {
+                cost[i] = benefit[i] = 0.0;
+                score[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            double accuracy = hints.accuracy[i];
+            double hintBenefit = accuracy * hints.fetchTime[i];
+            int base = bucketSlot[bucket[i]] * numNetworks * 2;
+            for (int net = 0; net < numNetworks; ++net) {
+                if (available[net]) {
+                    int offset = base + net * 2;
+                    netCost[net] = terms[offset + NOW] - accuracy * terms[offset + LATER];
+                }
+            }
+            int chosen = chooseNetworks(netCost, hintBenefit);
+            networks[i] = chosen;
+            cost[i] = costOf(chosen, netCost);
+            benefit[i] = hintBenefit;
+            score[i] = hintBenefit - cost[i];
+        }
+    }
+
+    /**
+     * @return the networks to issue on, given the cost on each available
+     *         network, or 0 if none is worth it.  Striping is judged
+     *         conservatively: it costs what all the networks cost.
+     */
+    private int chooseNetworks(double[] netCost, double benefit) {
+        if (striping && numAvailable > 1 && costOf(availableMask, netCost) < benefit) {
+            return availableMask;
+        }
+        for (int net = 0; net < numNetworks; ++net) {
+            if (available[net] && netCost[net] < benefit) {
+                return (1 << net);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the total cost on these networks.  If there are none,
+     *         the cost on the preferred available network.
+     */
+    private double costOf(int mask, double[] netCost) {
+        if (mask == 0) {
+            for (int net = 0; net < numNetworks; ++net) {
+                if (available[net]) {
+                    return netCost[net];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+        double total = 0.0;
+        for (int net = 0; net < numNetworks; ++net) {
+            if ((mask & (1 << net)) != 0) {
+                total += netCost[net];
+            }
+        }
+        return total;
+    }
+
+    private void rank() {
+        numRanked = 0;
+        for (int i = 0; i < hints.size; ++i) {
+            if (!hints.issued[i]) {
+                ranked[numRanked++] = i;
+            }
+        }
+        int[] scratch = new int[numRanked];
+        mergeSort(ranked, scratch, 0, numRanked);
+    }
+
+    /** @return true iff hint a ranks before hint b. */
+    private boolean before(int a, int b) {
+        if (score[a] != score[b]) {
+            return score[a] > score[b];
+        }
+        // hints are captured in the deferred queue's priority order.
+        return a < b;
+    }
+
+    private void mergeSort(int[] a, int[] scratch, int from, int to) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; ++i) {
+                int x = a[i];
+                int j = i - 1;
+                while (j >= from && before(x, a[j])) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = x;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, scratch, from, mid);
+        mergeSort(a, scratch, mid, to);
+        if (!before(a[mid], a[mid - 1])) {
+            return;
+        }
+        System.arraycopy(a, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; ++k) {
+            if (j >= to || (i < mid && !before(scratch[j], scratch[i]))) {
+                a[k] = scratch[i++];
+            } else {
+                a[k] = scratch[j++];
+            }
+        }
+    }
+
+    private static int[] newBucketSlots() {
+        int[] slots = new int[CostCache.sizeBucket(Integer.MAX_VALUE) + 1];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+
+    private void clearBucketSlots() {
+        for (int slot = 0; slot < numSlots; ++slot) {
+            bucketSlot[slotBucket[slot]] = -1;
+        }
+        numSlots = 0;
+    }
+}
@@ -0,0 +1,305 @@
+package edu.umich.eac;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the cache on a plain (Linux) JVM.
+ *
+ * By default, wifi is any interface that sysfs says is wireless and up,
+ * and interface stats come from each up interface's link speed.  There's
+ * no scout to measure latency, so every interface gets DEFAULT_RTT_MS.
+ *
+ * Simulations can take over instead: once setWifiConnected() or
+ * setInterfaceStats() is called, the values given are used from then on.
+ * Energy is whatever has been passed to addEnergy().  Logs go to stderr.
+ * The clock is the system's unless setClock() says otherwise.
+ */
+public class HostPlatform extends Platform {
+    static final int DEFAULT_RTT_MS = 20;
+    private static final int BYTES_PER_MEGABIT = 125000;
+
+    public enum LogLevel { VERBOSE, DEBUG, ERROR, NONE }
+
+    private final String sysfsNet;
+    private volatile LogLevel logLevel = LogLevel.ERROR;
+    private final File storageDirectory;
+    private volatile Clock clock = Clock.SYSTEM;
+    private SysfsCounterSampler counterSampler;
+
+    // simulated values; null until set.
+    private Boolean wifiConnected = null;
+    private int wifiIpAddress = 0;
+    private List<int[]> interfaceStats = null;
+    private final AtomicInteger energyConsumed = new AtomicInteger();
+
+    private final CopyOnWriteArrayList<Connectivity.Listener> listeners =
+        new CopyOnWriteArrayList<Connectivity.Listener>();
+
+    public HostPlatform() {
+        this("/sys/class/net/",
+             new File(System.getProperty("java.io.tmpdir"), "intnw"));
+    }
+
+    /**
+     * @param sysfsNet the directory holding one directory per interface.
+     * @param storageDirectory where to write event logs.
+     */
+    public HostPlatform(String sysfsNet, File storageDirectory) {
+        this.sysfsNet = sysfsNet.endsWith("/") ? sysfsNet : sysfsNet + "/";
+        this.storageDirectory = storageDirectory;
+    }
+
+    public void setLogLevel(LogLevel level) {
+        logLevel = level;
+    }
+
+    /**
+     * Pretend that wifi is (dis)connected, with this address, and tell
+     * the listeners.
+     */
+    public void setWifiConnected(boolean connected, int ipAddr) {
+        synchronized (this) {
+            wifiConnected = connected;
+            wifiIpAddress = connected ? ipAddr : 0;
+        }
+        for (Connectivity.Listener listener : listeners) {
+            listener.onWifiConnectivityChanged(connected);
+        }
+    }
+
+    /** Report these stats for this address; replaces the sysfs ones. */
+    public synchronized void setInterfaceStats(int ipAddr, int bandwidthDown,
+                                               int bandwidthUp, int rttMillis) {
+        removeInterfaceStats(ipAddr);
+        interfaceStats.add(new int[] { ipAddr, bandwidthDown, bandwidthUp, rttMillis });
+    }
+
+    /** Stop reporting stats for this address. */
+    public synchronized void removeInterfaceStats(int ipAddr) {
+        if (interfaceStats == null) {
+            interfaceStats = new ArrayList<int[]>();
+        }
+        for (int i = 0; i < interfaceStats.size(); ++i) {
+            if (interfaceStats.get(i)[0] == ipAddr) {
+                interfaceStats.remove(i);
+                break;
+            }
+        }
+    }
+
+    public void addEnergy(int energy) {
+        energyConsumed.addAndGet(energy);
+    }
+
+    /** Run the caches created from now on with this clock. */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    private final Connectivity connectivity = new Connectivity() {
+        public boolean isWifiConnected() {
+            synchronized (HostPlatform.this) {
+                if (wifiConnected != null) {
+                    return wifiConnected;
+                }
+            }
+            return wifiInterface() != null;
+        }
+
+        public int wifiIpAddress() {
+            synchronized (HostPlatform.this) {
+                if (wifiConnected != null) {
+                    return wifiIpAddress;
+                }
+            }
+            String iface = wifiInterface();
+            return (iface == null) ? 0 : ipAddress(iface);
+        }
+
+        public boolean isIpConnected(int ipAddr) {
+            if (ipAddr == 0) {
+                return false;
+            }
+            synchronized (HostPlatform.this) {
+                if (wifiConnected != null && ipAddr == wifiIpAddress) {
+                    return wifiConnected;
+                }
+            }
+            for (String iface : upInterfaces()) {
+                if (ipAddress(iface) == ipAddr) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void addListener(Listener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(Listener listener) {
+            listeners.remove(listener);
+        }
+    };
+
+    public Connectivity connectivity() {
+        return connectivity;
+    }
+
+    private final InterfaceStats stats = new InterfaceStats() {
+        public void report(Sink sink) {
+            synchronized (HostPlatform.this) {
+                if (interfaceStats != null) {
+                    for (int[] stats : interfaceStats) {
+                        sink.add(stats[0], stats[1], stats[2], stats[3]);
+                    }
+                    return;
+                }
+            }
+            for (String iface : upInterfaces()) {
+                int ipAddr = ipAddress(iface);
+                long speedMbps = readLong(iface + "/speed");
+                if (ipAddr == 0 || speedMbps <= 0) {
+                    continue;
+                }
+                int bandwidth = (int) Math.min(Integer.MAX_VALUE, speedMbps * BYTES_PER_MEGABIT);
+                sink.add(ipAddr, bandwidth, bandwidth, DEFAULT_RTT_MS);
+            }
+        }
+    };
+
+    public InterfaceStats interfaceStats() {
+        return stats;
+    }
+
+    public EnergyMeter energyMeter() {
+        final int start = energyConsumed.get();
+        return new EnergyMeter() {
+            public int energyConsumed() {
+                return energyConsumed.get() - start;
+            }
+        };
+    }
+
+    private final Logger stderr = new Logger() {
+        private void print(LogLevel level, String tag, String msg, Throwable tr) {
+            if (level.compareTo(logLevel) < 0) {
+                return;
+            }
+            System.err.println(String.format("%s %s: %s", level.name().charAt(0), tag, msg));
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+        public void v(String tag, String msg) {
+            print(LogLevel.VERBOSE, tag, msg, null);
+        }
+        public void d(String tag, String msg) {
+            print(LogLevel.DEBUG, tag, msg, null);
+        }
+        public void e(String tag, String msg) {
+            print(LogLevel.ERROR, tag, msg, null);
+        }
+        public void e(String tag, String msg, Throwable tr) {
+            print(LogLevel.ERROR, tag, msg, tr);
+        }
+    };
+
+    public Logger logger() {
+        return stderr;
+    }
+
+    public File storageDirectory() {
+        return storageDirectory;
+    }
+
+    public Clock clock() {
+        return clock;
+    }
+
+    synchronized SysfsCounterSampler counterSampler() {
+        if (counterSampler == null) {
+            counterSampler = new SysfsCounterSampler(sysfsNet);
+        }
+        return counterSampler;
+    }
+
+    /** @return the interfaces sysfs says are up, other than loopback. */
+    List<String> upInterfaces() {
+        String[] names = new File(sysfsNet).list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<String> up = new ArrayList<String>();
+        for (String name : names) {
+            if (!name.equals("lo") && "up".equals(readLine(name + "/operstate"))) {
+                up.add(name);
+            }
+        }
+        return up;
+    }
+
+    private String wifiInterface() {
+        for (String iface : upInterfaces()) {
+            if (new File(sysfsNet + iface + "/wireless").isDirectory()) {
+                return iface;
+            }
+        }
+        return null;
+    }
+
+    /** @return the interface's first IPv4 address, as WifiInfo has it, or 0. */
+    private static int ipAddress(String iface) {
+        try {
+            NetworkInterface netIface = NetworkInterface.getByName(iface);
+            if (netIface == null) {
+                return 0;
+            }
+            for (InetAddress addr : Collections.list(netIface.getInetAddresses())) {
+                if (addr instanceof Inet4Address) {
+                    return PrefetchNetwork.toInt(addr.getAddress());
+                }
+            }
+        } catch (SocketException e) {
+            // treat as having no address
+        }
+        return 0;
+    }
+
+    private String readLine(String path) {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(sysfsNet + path));
+            try {
+                return in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private long readLong(String path) {
+        String line = readLine(path);
+        if (line == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -9,6 +9,8 @@ public class IntNWLabels {
     
     private static final int NET_RESTRICTION_SHIFT = 16;
     
+    // IntNW only knows these two; a fetch with both set may use
+    //  (and stripe across) either kind of network.
     public static final int WIFI_ONLY = 1 << NET_RESTRICTION_SHIFT;
     public static final int THREEG_ONLY = 2 << NET_RESTRICTION_SHIFT;
     public static final int ALL_NET_RESTRICTION_LABELS = WIFI_ONLY | THREEG_ONLY;
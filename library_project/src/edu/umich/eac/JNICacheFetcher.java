@@ -9,7 +9,6 @@
 package edu.umich.eac;
 
 import edu.umich.eac.CacheFetcher;
-import android.util.Log;
 
 public class JNICacheFetcher extends CacheFetcher<SWIGTYPE_p_void> {
   private int swigCPtr;
@@ -48,6 +47,11 @@ public class JNICacheFetcher extends CacheFetcher<SWIGTYPE_p_void> {
     return (cPtr == 0) ? null : new SWIGTYPE_p_void(cPtr, false);
   }
   
+  // native fetchers only see their labels when call() starts.
+  public boolean restartOnPromotion() {
+    return true;
+  }
+  
   public int bytesToTransfer() {
     return eacJNI.JNICacheFetcher_bytesToTransfer(swigCPtr, this);
   }
@@ -0,0 +1,155 @@
+package edu.umich.eac;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in nanoseconds, into log-linear buckets: each power
+ * of two is split into SUB_BUCKETS equal parts, so a value's bucket is
+ * within 1/SUB_BUCKETS of it.  Recording is a few atomic adds and never
+ * allocates, so it's cheap enough for the fetch path.
+ *
+ * Snapshots are immutable and can be merged, e.g. across prefetch classes,
+ * or across caches or runs.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // the last bucket also takes everything from 2^MAX_EXPONENT ns (~5 hours) up.
+    private static final int MAX_EXPONENT = 44;
+    static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Record one latency.  Negative ones count as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sum.addAndGet(nanos);
+        long oldMax;
+        while (nanos > (oldMax = max.get()) && !max.compareAndSet(oldMax, nanos)) {
+            // lost a race with another record(); try again.
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the smallest value that falls in this bucket. */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+    }
+
+    /** @return the largest value that falls in this bucket. */
+    static long upperBound(int bucket) {
+        if (bucket == NUM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * @return the counts so far.  Taken while recording goes on, it may
+     *         be missing a sum or max from a record() that's in progress.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[NUM_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.get(), max.get());
+    }
+
+    /** An immutable copy of a histogram's counts. */
+    public static class Snapshot {
+        public static final Snapshot EMPTY = new Snapshot(new long[NUM_BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /** @return the mean latency in nanoseconds, or 0 if there are none. */
+        public double mean() {
+            return (count == 0) ? 0.0 : ((double) sum) / count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @param percent in [0, 100].
+         * @return the latency in nanoseconds that this percentage of the
+         *         recorded ones are at or below, to within a bucket;
+         *         0 if there are none.
+         */
+        public long percentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percent / 100.0);
+            rank = Math.max(1, Math.min(count, rank));
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+
+        /** @return a snapshot with both snapshots' latencies. */
+        public Snapshot merge(Snapshot other) {
+            if (other.count == 0) {
+                return this;
+            } else if (count == 0) {
+                return other;
+            }
+            long[] merged = new long[NUM_BUCKETS];
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count,
+                                sum + other.sum, Math.max(max, other.max));
+        }
+
+        public String toString() {
+            return String.format("n=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                                 count, mean() / 1e6, percentile(50) / 1e6,
+                                 percentile(95) / 1e6, percentile(99) / 1e6, max / 1e6);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package edu.umich.eac;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Where a cache's time goes: a LatencyHistogram for each metric, prefetch
+ * class and network.  See EnergyAdaptiveCache.metrics().
+ *
+ * Each histogram is created the first time something is recorded in it;
+ * after that, recording doesn't allocate.  (Prefetch classes outside
+ * -128..127 box to a new Integer on each lookup.)
+ */
+public class LatencyMetrics {
+    public enum Metric {
+        // from the hint to the prefetch being issued.
+        HINT_TO_ISSUE,
+        // from the hint to the app first demanding the item.
+        HINT_TO_DEMAND,
+        // from a fetch being issued to its result arriving.
+        ISSUE_TO_COMPLETE,
+        // the app's wait for an item that had already arrived...
+        DEMAND_WAIT_HIT,
+        // ...or hadn't.
+        DEMAND_WAIT_MISS,
+        // how long cancel() took, including waiting for the fetcher to stop.
+        CANCEL,
+        // one pass of the adaptive strategy's decisions.  Not per class or network.
+        DECISION_LOOP
+        // CANCEL and DECISION_LOOP are the library's own costs, so they're
+        //  always in real time; the rest are on the cache's Clock.
+    }
+
+    /** The network a fetch was restricted to when it was issued. */
+    public enum Network {
+        WIFI,
+        CELLULAR,
+        // not restricted, or restricted to networks of both kinds.
+        ANY
+    }
+
+    private static final int METRICS = Metric.values().length;
+    private static final int NETWORKS = Network.values().length;
+
+    private final ConcurrentMap<Integer, AtomicReferenceArray<LatencyHistogram>> byClass =
+        new ConcurrentHashMap<Integer, AtomicReferenceArray<LatencyHistogram>>();
+    private final LatencyHistogram decisionLoop = new LatencyHistogram();
+
+    /** The class and network don't matter for DECISION_LOOP. */
+    public void record(Metric metric, int prefetchClass, Network network, long nanos) {
+        if (metric == Metric.DECISION_LOOP) {
+            decisionLoop.record(nanos);
+            return;
+        }
+        AtomicReferenceArray<LatencyHistogram> cells = byClass.get(prefetchClass);
+        if (cells == null) {
+            cells = new AtomicReferenceArray<LatencyHistogram>(METRICS * NETWORKS);
+            AtomicReferenceArray<LatencyHistogram> raced = byClass.putIfAbsent(prefetchClass, cells);
+            if (raced != null) {
+                cells = raced;
+            }
+        }
+        int cell = metric.ordinal() * NETWORKS + network.ordinal();
+        LatencyHistogram histogram = cells.get(cell);
+        if (histogram == null) {
+            cells.compareAndSet(cell, null, new LatencyHistogram());
+            histogram = cells.get(cell);
+        }
+        histogram.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        Map<Integer, LatencyHistogram.Snapshot[]> classes =
+            new HashMap<Integer, LatencyHistogram.Snapshot[]>();
+        for (Map.Entry<Integer, AtomicReferenceArray<LatencyHistogram>> entry : byClass.entrySet()) {
+            AtomicReferenceArray<LatencyHistogram> cells = entry.getValue();
+            LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[cells.length()];
+            for (int i = 0; i < snapshots.length; ++i) {
+                LatencyHistogram histogram = cells.get(i);
+                snapshots[i] = (histogram == null) ?
+                    LatencyHistogram.Snapshot.EMPTY : histogram.snapshot();
+            }
+            classes.put(entry.getKey(), snapshots);
+        }
+        return new Snapshot(classes, decisionLoop.snapshot());
+    }
+
+    /** An immutable copy of all the histograms. */
+    public static class Snapshot {
+        private final Map<Integer, LatencyHistogram.Snapshot[]> byClass;
+        private final LatencyHistogram.Snapshot decisionLoop;
+
+        private Snapshot(Map<Integer, LatencyHistogram.Snapshot[]> byClass,
+                         LatencyHistogram.Snapshot decisionLoop) {
+            this.byClass = byClass;
+            this.decisionLoop = decisionLoop;
+        }
+
+        /** @return the prefetch classes that have anything recorded. */
+        public Set<Integer> prefetchClasses() {
+            return Collections.unmodifiableSet(byClass.keySet());
+        }
+
+        /** @return the latencies for this metric, class and network. */
+        public LatencyHistogram.Snapshot get(Metric metric, int prefetchClass, Network network) {
+            if (metric == Metric.DECISION_LOOP) {
+                return decisionLoop;
+            }
+            LatencyHistogram.Snapshot[] cells = byClass.get(prefetchClass);
+            if (cells == null) {
+                return LatencyHistogram.Snapshot.EMPTY;
+            }
+            return cells[metric.ordinal() * NETWORKS + network.ordinal()];
+        }
+
+        /** @return the latencies for this metric and class, on any network. */
+        public LatencyHistogram.Snapshot get(Metric metric, int prefetchClass) {
+            if (metric == Metric.DECISION_LOOP) {
+                return decisionLoop;
+            }
+            LatencyHistogram.Snapshot merged = LatencyHistogram.Snapshot.EMPTY;
+            for (Network network : Network.values()) {
+                merged = merged.merge(get(metric, prefetchClass, network));
+            }
+            return merged;
+        }
+
+        /** @return the latencies for this metric on this network, in any class. */
+        public LatencyHistogram.Snapshot get(Metric metric, Network network) {
+            if (metric == Metric.DECISION_LOOP) {
+                return decisionLoop;
+            }
+            LatencyHistogram.Snapshot merged = LatencyHistogram.Snapshot.EMPTY;
+            for (Integer prefetchClass : byClass.keySet()) {
+                merged = merged.merge(get(metric, prefetchClass, network));
+            }
+            return merged;
+        }
+
+        /** @return all the latencies for this metric. */
+        public LatencyHistogram.Snapshot get(Metric metric) {
+            if (metric == Metric.DECISION_LOOP) {
+                return decisionLoop;
+            }
+            LatencyHistogram.Snapshot merged = LatencyHistogram.Snapshot.EMPTY;
+            for (Network network : Network.values()) {
+                merged = merged.merge(get(metric, network));
+            }
+            return merged;
+        }
+
+        /** @return a snapshot with both snapshots' latencies, e.g. from two caches. */
+        public Snapshot merge(Snapshot other) {
+            Map<Integer, LatencyHistogram.Snapshot[]> merged =
+                new HashMap<Integer, LatencyHistogram.Snapshot[]>(byClass);
+            for (Map.Entry<Integer, LatencyHistogram.Snapshot[]> entry : other.byClass.entrySet()) {
+                LatencyHistogram.Snapshot[] mine = merged.get(entry.getKey());
+                LatencyHistogram.Snapshot[] theirs = entry.getValue();
+                if (mine == null) {
+                    merged.put(entry.getKey(), theirs);
+                    continue;
+                }
+                LatencyHistogram.Snapshot[] both = new LatencyHistogram.Snapshot[mine.length];
+                for (int i = 0; i < both.length; ++i) {
+                    both[i] = mine[i].merge(theirs[i]);
+                }
+                merged.put(entry.getKey(), both);
+            }
+            return new Snapshot(merged, decisionLoop.merge(other.decisionLoop));
+        }
+
+        /** One line per non-empty histogram, then the totals. */
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Integer prefetchClass : byClass.keySet()) {
+                for (Metric metric : Metric.values()) {
+                    for (Network network : Network.values()) {
+                        LatencyHistogram.Snapshot latencies = get(metric, prefetchClass, network);
+                        if (metric != Metric.DECISION_LOOP && latencies.count() > 0) {
+                            builder.append(String.format("%s class %d %s: %s\n",
+                                                         metric, prefetchClass, network, latencies));
+                        }
+                    }
+                }
+            }
+            for (Metric metric : Metric.values()) {
+                LatencyHistogram.Snapshot latencies = get(metric);
+                if (latencies.count() > 0) {
+                    builder.append(String.format("%s: %s\n", metric, latencies));
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
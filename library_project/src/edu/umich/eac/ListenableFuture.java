@@ -0,0 +1,28 @@
+package edu.umich.eac;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * A Future that can also report its outcome through callbacks.
+ *
+ * Every Future returned by EnergyAdaptiveCache.prefetch() and fetch()
+ * implements this interface, so an app can cast to it and consume
+ * prefetched items without parking a thread in get() for each one.
+ */
+public interface ListenableFuture<V> extends Future<V> {
+    /**
+     * Observe the fetch without asking for it.  Unlike get(), this
+     * doesn't count as a demand fetch or change when the prefetch is
+     * issued.  If the fetch has already finished, the listener is
+     * called right away (on the executor).
+     */
+    void addListener(FetchListener<? super V> listener, Executor executor);
+    
+    /**
+     * The non-blocking equivalent of get(): demand the item now, and
+     * have the listener called when it arrives.  Counts as a demand
+     * fetch, just like get().
+     */
+    void getAsync(FetchListener<? super V> listener, Executor executor);
+}
@@ -0,0 +1,25 @@
+package edu.umich.eac;
+
+/**
+ * Stands in for android.util.Log, so that logging goes to the current
+ * Platform's logger.
+ */
+final class Log {
+    private Log() {}
+
+    static void v(String tag, String msg) {
+        Platform.current().logger().v(tag, msg);
+    }
+
+    static void d(String tag, String msg) {
+        Platform.current().logger().d(tag, msg);
+    }
+
+    static void e(String tag, String msg) {
+        Platform.current().logger().e(tag, msg);
+    }
+
+    static void e(String tag, String msg, Throwable tr) {
+        Platform.current().logger().e(tag, msg, tr);
+    }
+}
@@ -0,0 +1,76 @@
+package edu.umich.eac;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Hands a cache's latency metrics to a Sink every so often, e.g.
+ *   new MetricsExporter(cache.metrics(), 60 * 1000, MetricsExporter.LOG).start();
+ * Each snapshot has everything since the cache was created; a sink that
+ * wants per-period numbers can keep the last one.
+ */
+public class MetricsExporter {
+    private static final String TAG = MetricsExporter.class.getName();
+
+    public interface Sink {
+        /** Called on the exporter's own thread. */
+        void export(LatencyMetrics.Snapshot snapshot);
+    }
+
+    /** Writes each snapshot to the debug log. */
+    public static final Sink LOG = new Sink() {
+        public void export(LatencyMetrics.Snapshot snapshot) {
+            for (String line : snapshot.toString().split("\n")) {
+                if (line.length() > 0) {
+                    Log.d(TAG, line);
+                }
+            }
+        }
+    };
+
+    private final LatencyMetrics metrics;
+    private final long periodMillis;
+    private final Sink sink;
+    private Timer timer;
+
+    public MetricsExporter(LatencyMetrics metrics, long periodMillis, Sink sink) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Export period must be positive");
+        }
+        this.metrics = metrics;
+        this.periodMillis = periodMillis;
+        this.sink = sink;
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("MetricsExporter", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                exportNow();
+            }
+        }, periodMillis, periodMillis);
+    }
+
+    /** Stop exporting, after one last export. */
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        timer.cancel();
+        timer = null;
+        exportNow();
+    }
+
+    void exportNow() {
+        try {
+            sink.export(metrics.snapshot());
+        } catch (RuntimeException e) {
+            // keep exporting; the next one may work.
+            Log.e(TAG, "Metrics export failed", e);
+        }
+    }
+}
@@ -3,18 +3,31 @@ package edu.umich.eac;
 import java.util.HashMap;
 import java.util.Map;
 
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
-
 class NetworkStats {
+    // getAllNetworkStats() keys; the same as ConnectivityManager's.
+    static final int TYPE_MOBILE = 0;
+    static final int TYPE_WIFI = 1;
+    
     // TODO: get real network stats.
     public int bandwidthDown = 1250000;
     public int bandwidthUp = 1250000;
     public int rttMillis = 1;
     
+    NetworkStats copy() {
+        NetworkStats other = new NetworkStats();
+        other.bandwidthDown = bandwidthDown;
+        other.bandwidthUp = bandwidthUp;
+        other.rttMillis = rttMillis;
+        return other;
+    }
+    
+    boolean sameAs(NetworkStats other) {
+        return (other != null &&
+                bandwidthDown == other.bandwidthDown &&
+                bandwidthUp == other.bandwidthUp &&
+                rttMillis == other.rttMillis);
+    }
+    
     public void updateAsAverage(NetworkStats newStats, int numPreviousStats) {
         bandwidthDown = ((bandwidthDown * numPreviousStats) 
                          + newStats.bandwidthDown) / (numPreviousStats + 1);
@@ -24,14 +37,32 @@ class NetworkStats {
                      + newStats.rttMillis) / (numPreviousStats + 1);
     }
     
-    public static native NetworkStats getBestNetworkStats();
+    /** @return the stats of the network with the most bandwidth. */
+    public static NetworkStats getBestNetworkStats() {
+        final NetworkStats best = new NetworkStats();
+        best.bandwidthDown = 0;
+        best.bandwidthUp = 0;
+        best.rttMillis = 0;
+        Platform.current().interfaceStats().report(new Platform.InterfaceStats.Sink() {
+            int bestBandwidth = -1;
+            public void add(int ipAddr, int bandwidthDown, int bandwidthUp, int rttMillis) {
+                if (bandwidthDown + bandwidthUp > bestBandwidth) {
+                    bestBandwidth = bandwidthDown + bandwidthUp;
+                    best.bandwidthDown = bandwidthDown;
+                    best.bandwidthUp = bandwidthUp;
+                    best.rttMillis = rttMillis;
+                }
+            }
+        });
+        return best;
+    }
     
-    public static Map<Integer, NetworkStats> getAllNetworkStats(Context context) {
-        Map<Integer, NetworkStats> stats = getAllNetworkStatsByIp();
+    public static Map<Integer, NetworkStats> getAllNetworkStats(Platform platform) {
+        Map<Integer, NetworkStats> stats = getAllNetworkStatsByIp(platform);
         
         Map<Integer, NetworkStats> netStatsByNetType = new HashMap<Integer, NetworkStats>();
         for (Integer ipAddr : stats.keySet()) {
-            Integer netType = getNetType(context, ipAddr);
+            Integer netType = getNetType(platform, ipAddr);
             if (netType != null && statsValid(stats.get(ipAddr))) {
                 netStatsByNetType.put(netType, stats.get(ipAddr));
             }
@@ -39,6 +70,45 @@ class NetworkStats {
         return netStatsByNetType;
     }
     
+    /**
+     * @return the stats of each of these networks that's up, keyed by
+     *         its index in the array.  As with getAllNetworkStats(), an
+     *         address no network claims is taken to be cellular; it goes
+     *         to the first CELLULAR network.
+     */
+    static Map<Integer, NetworkStats> getNetworkStats(Platform platform,
+                                                      PrefetchNetwork[] networks) {
+        Map<Integer, NetworkStats> stats = getAllNetworkStatsByIp(platform);
+
+        int fallback = -1;
+        for (int i = 0; i < networks.length && fallback < 0; ++i) {
+            if (networks[i].kind == PrefetchNetwork.Kind.CELLULAR) {
+                fallback = i;
+            }
+        }
+        Map<Integer, NetworkStats> statsByNetwork = new HashMap<Integer, NetworkStats>();
+        NetworkStats unclaimed = null;
+        for (Integer ipAddr : stats.keySet()) {
+            if (!statsValid(stats.get(ipAddr))) {
+                continue;
+            }
+            boolean claimed = false;
+            for (int i = 0; i < networks.length && !claimed; ++i) {
+                if (networks[i].hasAddress(platform, ipAddr)) {
+                    statsByNetwork.put(i, stats.get(ipAddr));
+                    claimed = true;
+                }
+            }
+            if (!claimed) {
+                unclaimed = stats.get(ipAddr);
+            }
+        }
+        if (unclaimed != null && fallback >= 0 && !statsByNetwork.containsKey(fallback)) {
+            statsByNetwork.put(fallback, unclaimed);
+        }
+        return statsByNetwork;
+    }
+
     private static boolean statsValid(NetworkStats stats) {
         if (stats.bandwidthDown == 1250000 && 
             stats.bandwidthUp == 1250000 &&
@@ -57,27 +127,31 @@ class NetworkStats {
         }
     }
 
-    private static Integer getNetType(Context context, int ipAddr) {
-        WifiManager wifi = 
-            (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        if (wifi == null) {
-            return ConnectivityManager.TYPE_MOBILE;
-        }
-        WifiInfo wifiInfo = wifi.getConnectionInfo();
-        if (wifiInfo == null) {
-            return ConnectivityManager.TYPE_MOBILE;
-        }
-        if (wifiInfo.getIpAddress() == ipAddr) {
-            return ConnectivityManager.TYPE_WIFI;
+    private static Integer getNetType(Platform platform, int ipAddr) {
+        if (platform.connectivity().wifiIpAddress() == ipAddr) {
+            return TYPE_WIFI;
         } else {
-            return ConnectivityManager.TYPE_MOBILE;
+            return TYPE_MOBILE;
         }
     }
     
     // returns (IP, stats) mapping of all available networks.
-    static native Map<Integer, NetworkStats> getAllNetworkStatsByIp();
+    static Map<Integer, NetworkStats> getAllNetworkStatsByIp() {
+        return getAllNetworkStatsByIp(Platform.current());
+    }
     
-    static {
-        System.loadLibrary("eac_support");
+    static Map<Integer, NetworkStats> getAllNetworkStatsByIp(Platform platform) {
+        final Map<Integer, NetworkStats> stats = new HashMap<Integer, NetworkStats>();
+        platform.interfaceStats().report(new Platform.InterfaceStats.Sink() {
+            public void add(int ipAddr, int bandwidthDown, int bandwidthUp, int rttMillis) {
+                // callers may keep and modify these, so they're always new.
+                NetworkStats netStats = new NetworkStats();
+                netStats.bandwidthDown = bandwidthDown;
+                netStats.bandwidthUp = bandwidthUp;
+                netStats.rttMillis = rttMillis;
+                stats.put(ipAddr, netStats);
+            }
+        });
+        return stats;
     }
 }
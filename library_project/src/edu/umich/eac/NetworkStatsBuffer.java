@@ -0,0 +1,164 @@
+package edu.umich.eac;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The scout's per-interface stats, as the native side leaves them in a
+ * direct buffer.  Layout (native-order ints; must match intnw_ipc.cpp):
+ *
+ *   seq, count, then MAX_INTERFACES records of (ip, down, up, rtt).
+ *
+ * The native side only rewrites the buffer when the stats have changed,
+ * and makes seq odd while it does so.  Readers take a copy and retry if
+ * seq was odd or moved underneath them; they only decode the records
+ * again when seq has changed since the last copy.  ByteBuffer reads are
+ * plain loads, so the copy is fenced on both sides (see fence()) to
+ * keep the record reads between the two reads of seq.
+ *
+ * Asking the scout for stats is still a native call, but it carries no
+ * Java objects, and it happens at most once per REFRESH_INTERVAL_MS;
+ * callers in between use the last copy.
+ */
+class NetworkStatsBuffer {
+    static final int MAX_INTERFACES = 16;
+    static final int SEQ = 0;
+    static final int COUNT = 4;
+    static final int RECORDS = 8;
+    static final int RECORD_SIZE = 16;
+    static final int IP = 0;
+    static final int DOWN = 4;
+    static final int UP = 8;
+    static final int RTT = 12;
+    static final int SIZE = RECORDS + MAX_INTERFACES * RECORD_SIZE;
+
+    static final long REFRESH_INTERVAL_MS = 500;
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MS);
+
+    /** A consistent copy of the buffer's contents. */
+    static class Snapshot {
+        final int seq;
+        final int count;
+        final int[] ipAddrs;
+        final int[] bandwidthDown;
+        final int[] bandwidthUp;
+        final int[] rttMillis;
+
+        Snapshot(int seq, int count) {
+            this.seq = seq;
+            this.count = count;
+            ipAddrs = new int[count];
+            bandwidthDown = new int[count];
+            bandwidthUp = new int[count];
+            rttMillis = new int[count];
+        }
+    }
+
+    private static NetworkStatsBuffer shared;
+    // only ever touched by fence().
+    private static volatile int fenceField;
+
+    /**
+     * The buffer the native library fills.  Load the library first.
+     * There's only one per process, so it runs on the clock of whoever
+     * asks for it first.
+     */
+    static synchronized NetworkStatsBuffer shared(Clock clock) {
+        if (shared == null) {
+            ByteBuffer buffer = newBuffer();
+            if (!attach(buffer)) {
+                throw new IllegalStateException("Can't attach native network stats buffer");
+            }
+            shared = new NetworkStatsBuffer(buffer, new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            }, clock);
+        }
+        return shared;
+    }
+
+    static ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    private final ByteBuffer buffer;
+    private final Runnable refresher;
+    private final Clock clock;
+    // clock.nanoTime() of the last refresh.
+    private final AtomicLong lastRefreshNanos;
+    private volatile Snapshot latest;
+
+    /**
+     * @param refresher asks the writer to bring the buffer up to date;
+     *                  it returns once the buffer has been updated.
+     */
+    NetworkStatsBuffer(ByteBuffer buffer, Runnable refresher, Clock clock) {
+        this.buffer = buffer;
+        this.refresher = refresher;
+        this.clock = clock;
+        lastRefreshNanos = new AtomicLong(clock.nanoTime() - REFRESH_INTERVAL_NANOS);
+    }
+
+    /** @return the current stats, refreshing them first if they're due. */
+    Snapshot read() {
+        long now = clock.nanoTime();
+        long last = lastRefreshNanos.get();
+        if (now - last >= REFRESH_INTERVAL_NANOS && lastRefreshNanos.compareAndSet(last, now)) {
+            refresher.run();
+        }
+
+        Snapshot current = latest;
+        if (current != null && current.seq == buffer.getInt(SEQ)) {
+            return current;
+        }
+        current = copy();
+        latest = current;
+        return current;
+    }
+
+    /**
+     * Keeps memory accesses from moving across this call, like the
+     * native side's __sync_synchronize().  Android has no fence API, but
+     * a volatile store followed by a volatile load is a full barrier on
+     * both ART and HotSpot.
+     */
+    static void fence() {
+        fenceField = 0;
+        if (fenceField != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    private Snapshot copy() {
+        while (true) {
+            int seq = buffer.getInt(SEQ);
+            if ((seq & 1) != 0) {
+                // mid-update
+                Thread.yield();
+                continue;
+            }
+            fence();
+            int count = Math.max(0, Math.min(buffer.getInt(COUNT), MAX_INTERFACES));
+            Snapshot snapshot = new Snapshot(seq, count);
+            for (int i = 0; i < count; ++i) {
+                int record = RECORDS + i * RECORD_SIZE;
+                snapshot.ipAddrs[i] = buffer.getInt(record + IP);
+                snapshot.bandwidthDown[i] = buffer.getInt(record + DOWN);
+                snapshot.bandwidthUp[i] = buffer.getInt(record + UP);
+                snapshot.rttMillis[i] = buffer.getInt(record + RTT);
+            }
+            fence();
+            if (buffer.getInt(SEQ) == seq) {
+                return snapshot;
+            }
+        }
+    }
+
+    private static native boolean attach(ByteBuffer buffer);
+
+    /** @return the buffer's sequence number after the refresh. */
+    private static native int refresh();
+}
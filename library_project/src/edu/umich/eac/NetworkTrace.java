@@ -0,0 +1,129 @@
+package edu.umich.eac;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wifi and cellular conditions over time, for TraceSimulator.
+ *
+ * One line per change:
+ *   seconds  wifiDown wifiUp wifiRttMs  cellDown cellUp cellRttMs
+ * with bandwidths in bytes/sec.  Each line holds until the next one;
+ * the last one marks the end of the trace.  A wifi bandwidth of zero
+ * means wifi isn't available.  Blank lines and lines starting with #
+ * are ignored.
+ */
+public class NetworkTrace {
+    static final int WIFI = 0;
+    static final int CELLULAR = 1;
+
+    /** The conditions from one line of the trace. */
+    static class Conditions {
+        final long startMillis;
+        // indexed by WIFI or CELLULAR.
+        final int[] bandwidthDown = new int[2];
+        final int[] bandwidthUp = new int[2];
+        final int[] rttMillis = new int[2];
+
+        Conditions(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        boolean wifiAvailable() {
+            return bandwidthDown[WIFI] > 0;
+        }
+
+        NetworkStats stats(int network) {
+            NetworkStats stats = new NetworkStats();
+            stats.bandwidthDown = bandwidthDown[network];
+            stats.bandwidthUp = bandwidthUp[network];
+            stats.rttMillis = rttMillis[network];
+            return stats;
+        }
+    }
+
+    private final List<Conditions> steps;
+
+    NetworkTrace(List<Conditions> steps) {
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("Empty network trace");
+        }
+        this.steps = steps;
+    }
+
+    public static NetworkTrace read(String filename) throws IOException {
+        return read(new FileReader(filename));
+    }
+
+    public static NetworkTrace read(Reader input) throws IOException {
+        BufferedReader in = new BufferedReader(input);
+        List<Conditions> steps = new ArrayList<Conditions>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 7) {
+                    throw new IOException(String.format("Line %d: expected 7 fields, got %d",
+                                                        lineNumber, fields.length));
+                }
+                try {
+                    Conditions step = new Conditions(Math.round(Double.parseDouble(fields[0]) * 1000));
+                    for (int net = WIFI; net <= CELLULAR; ++net) {
+                        step.bandwidthDown[net] = Integer.parseInt(fields[1 + net * 3]);
+                        step.bandwidthUp[net] = Integer.parseInt(fields[2 + net * 3]);
+                        step.rttMillis[net] = Integer.parseInt(fields[3 + net * 3]);
+                    }
+                    if (!steps.isEmpty() &&
+                        step.startMillis < steps.get(steps.size() - 1).startMillis) {
+                        throw new IOException(String.format("Line %d: time goes backwards",
+                                                            lineNumber));
+                    }
+                    steps.add(step);
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("Line %d: %s", lineNumber, e.getMessage()));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new NetworkTrace(steps);
+    }
+
+    int size() {
+        return steps.size();
+    }
+
+    Conditions get(int step) {
+        return steps.get(step);
+    }
+
+    /** @return how long the trace lasts, in milliseconds. */
+    long durationMillis() {
+        return steps.get(steps.size() - 1).startMillis;
+    }
+
+    /** @return the fraction of the trace during which wifi is available. */
+    double wifiAvailability() {
+        long duration = durationMillis();
+        if (duration <= 0) {
+            return steps.get(0).wifiAvailable() ? 1.0 : 0.0;
+        }
+        long available = 0;
+        for (int i = 0; i + 1 < steps.size(); ++i) {
+            if (steps.get(i).wifiAvailable()) {
+                available += steps.get(i + 1).startMillis - steps.get(i).startMillis;
+            }
+        }
+        return ((double) available) / duration;
+    }
+}
@@ -0,0 +1,153 @@
+package edu.umich.eac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The data a ResumableCacheFetcher has received so far, kept across
+ * interrupted attempts so the next attempt can pick up where the last
+ * one stopped.
+ *
+ * Data is kept in memory up to a limit, then spilled to a temporary
+ * file.  Along with the data, the fetcher can keep a resume token:
+ * whatever the server needs to continue the same transfer, e.g. an
+ * HTTP ETag for a Range request.
+ */
+public class PartialFetchBuffer {
+    private static final String TAG = PartialFetchBuffer.class.getName();
+    
+    static final int DEFAULT_MEMORY_LIMIT = 256 * 1024;
+    
+    private File spillDir;
+    private int memoryLimit;
+    
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File spillFile;
+    private OutputStream spill;
+    private long offset = 0;
+    private String resumeToken;
+    
+    /**
+     * @param spillDir where to spill data that doesn't fit in memory,
+     *                 or null for the system's temporary directory.
+     * @param memoryLimit how many bytes to keep in memory before spilling.
+     */
+    public PartialFetchBuffer(File spillDir, int memoryLimit) {
+        this.spillDir = spillDir;
+        this.memoryLimit = memoryLimit;
+    }
+    
+    /** @return the number of bytes received so far; where to resume. */
+    public synchronized long offset() {
+        return offset;
+    }
+    
+    /** @return the token saved with the data, or null if there isn't one. */
+    public synchronized String getResumeToken() {
+        return resumeToken;
+    }
+    
+    public synchronized void setResumeToken(String token) {
+        resumeToken = token;
+    }
+    
+    public synchronized void append(byte[] data, int off, int len) throws IOException {
+        if (spill == null && memory.size() + len > memoryLimit) {
+            spillToFile();
+        }
+        if (spill != null) {
+            spill.write(data, off, len);
+        } else {
+            memory.write(data, off, len);
+        }
+        offset += len;
+    }
+    
+    /** Append the buffer's remaining bytes, consuming them. */
+    public void append(ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            append(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            append(copy, 0, copy.length);
+        }
+    }
+    
+    /** @return everything received so far, as one array. */
+    public synchronized byte[] toByteArray() throws IOException {
+        if (spill == null) {
+            return memory.toByteArray();
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Partial fetch too large for an array: " + offset);
+        }
+        byte[] data = new byte[(int) offset];
+        InputStream in = openData();
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Spill file truncated");
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+    
+    /** @return a stream over everything received so far. */
+    public synchronized InputStream openData() throws IOException {
+        if (spill == null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        spill.flush();
+        return new FileInputStream(spillFile);
+    }
+    
+    /**
+     * Throw away what's been received; the next attempt starts from zero.
+     * Call when the server can't resume, e.g. because the item changed.
+     */
+    public synchronized void restart() {
+        memory.reset();
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // deleting it anyway
+            }
+            if (!spillFile.delete()) {
+                Log.e(TAG, "Failed to delete spill file " + spillFile);
+            }
+            spill = null;
+            spillFile = null;
+        }
+        offset = 0;
+        resumeToken = null;
+    }
+    
+    synchronized boolean isSpilled() {
+        return spill != null;
+    }
+    
+    private void spillToFile() throws IOException {
+        spillFile = File.createTempFile("eac-partial", ".tmp", spillDir);
+        spillFile.deleteOnExit();
+        spill = new FileOutputStream(spillFile);
+        memory.writeTo(spill);
+        memory = new ByteArrayOutputStream();
+    }
+}
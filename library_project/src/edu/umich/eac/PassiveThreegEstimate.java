@@ -1,6 +1,6 @@
 package edu.umich.eac;
 
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 public class PassiveThreegEstimate {
     // ignore small fetches when passively estimating bandwidth.
@@ -14,13 +14,19 @@ public class PassiveThreegEstimate {
     
     private FetchFuture<?> prefetch;
     private int startingSize;
-    private Date startingTime;
-    private ProcNetworkStats wifiStats = new ProcNetworkStats("eth0");
+    private long startingNanos;
+    private ProcNetworkStats wifiStats;
+    private Clock clock;
+    
+    PassiveThreegEstimate(Platform platform) {
+        wifiStats = new ProcNetworkStats("eth0", platform.counterSampler());
+        clock = platform.clock();
+    }
     
     public void beginEstimation(FetchFuture<?> prefetch) {
         this.prefetch = prefetch;
         this.startingSize = prefetch.bytesToTransfer();
-        this.startingTime = new Date();
+        this.startingNanos = clock.nanoTime();
         wifiStats.updateStats();
     }
     
@@ -30,7 +36,7 @@ public class PassiveThreegEstimate {
             int endingSize = prefetch.bytesToTransfer();
             int bytesTransferred = startingSize - endingSize;
             
-            double durationSecs = ((double)(System.currentTimeMillis() - startingTime.getTime())) / 1000.0;
+            double durationSecs = ((double)(clock.nanoTime() - startingNanos)) / TimeUnit.SECONDS.toNanos(1);
             
             long startWifiBytes = wifiStats.getTotalBytes();
             wifiStats.updateStats();
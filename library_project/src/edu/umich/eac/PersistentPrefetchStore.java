@@ -0,0 +1,348 @@
+package edu.umich.eac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Disk-backed store of completed fetch results that survives process
+ * restarts, so the energy spent prefetching isn't lost when Android
+ * kills the app.
+ *
+ * Results are appended to a log of fixed-size, memory-mapped segment
+ * files.  Each record is
+ *
+ *   [magic][key length][value length][crc32][key bytes][value bytes]
+ *
+ * The magic number is written last, so a record torn by a crash is
+ * never seen as valid.  The key-to-record index lives only in memory and
+ * is rebuilt by scanning the segments on open; later records for a key
+ * replace earlier ones.  A tombstone (a record with a value length of
+ * TOMBSTONE and no value) removes its key.  When the log grows past its size limit, the
+ * oldest segment is dropped whole.
+ *
+ * Reads decode straight from the mapped segment, without copying.
+ */
+class PersistentPrefetchStore {
+    private static final String TAG = PersistentPrefetchStore.class.getName();
+
+    static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int RECORD_MAGIC = 0x45414331; // "EAC1"
+    private static final int HEADER_BYTES = 16;
+    private static final int TOMBSTONE = -1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static class Location {
+        final Segment segment;
+        final int valueOffset;
+        final int valueLength;
+
+        Location(Segment segment, int valueOffset, int valueLength) {
+            this.segment = segment;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private File directory;
+    private int segmentBytes;
+    private int maxSegments;
+    private ArrayList<Segment> segments = new ArrayList<Segment>();
+    private Map<String, Location> index = new HashMap<String, Location>();
+
+    /**
+     * Open (or create) the store in this directory and rebuild its index.
+     * @param maxBytes Approximate limit on the store's disk usage.
+     */
+    PersistentPrefetchStore(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, DEFAULT_SEGMENT_BYTES);
+    }
+
+    PersistentPrefetchStore(File directory, long maxBytes, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create store directory " + directory);
+        }
+        openExistingSegments();
+        if (segments.isEmpty()) {
+            addSegment(0);
+        }
+    }
+
+    /**
+     * @return The stored value for this key, decoded with the codec,
+     *         or null if there isn't one.
+     */
+    synchronized <V> V get(String key, ValueCodec<V> codec) {
+        Location loc = index.get(key);
+        if (loc == null) {
+            return null;
+        }
+        ByteBuffer view = loc.segment.buffer.duplicate();
+        view.limit(loc.valueOffset + loc.valueLength);
+        view.position(loc.valueOffset);
+        return codec.decode(view.slice().asReadOnlyBuffer());
+    }
+
+    synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Append a value to the log.
+     * @return true iff the value was stored.
+     */
+    synchronized <V> boolean put(String key, ValueCodec<V> codec, V value) {
+        byte[] keyBytes = encodeKey(key);
+        int valueLength = codec.encodedSize(value);
+        int recordLength = HEADER_BYTES + keyBytes.length + valueLength;
+        if (recordLength > segmentBytes) {
+            return false;
+        }
+
+        Segment segment = segmentWithRoom(recordLength);
+        int start = segment.writePosition;
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(start + HEADER_BYTES);
+        out.put(keyBytes);
+        int valueOffset = out.position();
+        ByteBuffer valueOut = out.slice();
+        valueOut.limit(valueLength);
+        codec.encode(value, valueOut);
+        if (valueOut.position() != valueLength) {
+            Log.e(TAG, String.format("Codec wrote %d bytes; expected %d; not storing",
+                                     valueOut.position(), valueLength));
+            return false;
+        }
+
+        out.position(start + 4);
+        out.putInt(keyBytes.length);
+        out.putInt(valueLength);
+        out.putInt(checksum(segment.buffer, start + HEADER_BYTES,
+                            keyBytes.length + valueLength));
+        // magic goes in last, so that a partially-written record is never valid.
+        out.putInt(start, RECORD_MAGIC);
+
+        segment.writePosition = start + recordLength;
+        index.put(key, new Location(segment, valueOffset, valueLength));
+        return true;
+    }
+
+    /** Remove the key's value, by appending a tombstone for it. */
+    synchronized void remove(String key) {
+        if (!index.containsKey(key)) {
+            return;
+        }
+        byte[] keyBytes = encodeKey(key);
+        int recordLength = HEADER_BYTES + keyBytes.length;
+        index.remove(key);
+        if (recordLength > segmentBytes) {
+            // then the key was never stored, either.
+            return;
+        }
+
+        Segment segment = segmentWithRoom(recordLength);
+        int start = segment.writePosition;
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(start + 4);
+        out.putInt(keyBytes.length);
+        out.putInt(TOMBSTONE);
+        out.position(start + HEADER_BYTES);
+        out.put(keyBytes);
+        out.position(start + 12);
+        out.putInt(checksum(segment.buffer, start + HEADER_BYTES, keyBytes.length));
+        out.putInt(start, RECORD_MAGIC);
+        segment.writePosition = start + recordLength;
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /** Flush everything written so far to disk. */
+    synchronized void sync() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private Segment currentSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /** @return the segment to append a record of this length to. */
+    private Segment segmentWithRoom(int recordLength) {
+        Segment segment = currentSegment();
+        if (segment.writePosition + recordLength > segmentBytes) {
+            segment.buffer.force();
+            segment = addSegment(segment.number + 1);
+        }
+        return segment;
+    }
+
+    private Segment addSegment(int number) {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX,
+                                                      number, SEGMENT_SUFFIX));
+        Segment segment;
+        try {
+            segment = new Segment(number, file, map(file));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create segment " + file + ": " + e.getMessage());
+            throw new IllegalStateException(e);
+        }
+        segments.add(segment);
+
+        while (segments.size() > maxSegments) {
+            dropOldestSegment();
+        }
+        return segment;
+    }
+
+    private void dropOldestSegment() {
+        Segment oldest = segments.remove(0);
+        Iterator<Location> it = index.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().segment == oldest) {
+                it.remove();
+            }
+        }
+        if (!oldest.file.delete()) {
+            Log.e(TAG, "Failed to delete old segment " + oldest.file);
+        }
+    }
+
+    private void openExistingSegments() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            int number;
+            try {
+                number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                         name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File file = new File(directory, name);
+            Segment segment = new Segment(number, file, map(file));
+            segments.add(segment);
+            scan(segment);
+        }
+        while (segments.size() > maxSegments) {
+            dropOldestSegment();
+        }
+    }
+
+    /** Add a segment's valid records to the index and find its end. */
+    private void scan(Segment segment) {
+        ByteBuffer in = segment.buffer.duplicate();
+        int pos = 0;
+        while (pos + HEADER_BYTES <= segmentBytes) {
+            if (in.getInt(pos) != RECORD_MAGIC) {
+                break;
+            }
+            int keyLength = in.getInt(pos + 4);
+            int valueLength = in.getInt(pos + 8);
+            int crc = in.getInt(pos + 12);
+            boolean tombstone = (valueLength == TOMBSTONE);
+            if (tombstone) {
+                valueLength = 0;
+            }
+            int payload = keyLength + valueLength;
+            if (keyLength < 0 || valueLength < 0 ||
+                pos + HEADER_BYTES + payload > segmentBytes ||
+                checksum(segment.buffer, pos + HEADER_BYTES, payload) != crc) {
+                Log.e(TAG, String.format("Corrupt record at %s:%d; ignoring the rest",
+                                         segment.file.getName(), pos));
+                break;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            in.position(pos + HEADER_BYTES);
+            in.get(keyBytes);
+            if (tombstone) {
+                index.remove(decodeKey(keyBytes));
+            } else {
+                index.put(decodeKey(keyBytes),
+                          new Location(segment, pos + HEADER_BYTES + keyLength, valueLength));
+            }
+            pos += HEADER_BYTES + payload;
+        }
+        segment.writePosition = pos;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(length, 4096)];
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(remaining, chunk.length);
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeKey(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decodeKey(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
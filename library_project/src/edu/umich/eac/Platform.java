@@ -0,0 +1,104 @@
+package edu.umich.eac;
+
+import java.io.File;
+
+/**
+ * What the cache needs from the system it runs on: connectivity state,
+ * per-interface network stats, energy metering, logging and a place to
+ * write its logs.
+ *
+ * Each cache gets its providers from the Platform it was created with;
+ * AndroidPlatform is the one behind the Context constructors.
+ * HostPlatform runs the same engine on a plain JVM, e.g. for
+ * simulations and benchmarks.
+ *
+ * Logging and storage are process-wide (some logs are opened when their
+ * classes load), so they come from current().  To use something other
+ * than the default, install() it before creating any caches.
+ */
+public abstract class Platform {
+    /** Wifi connectivity, as the system sees it. */
+    public interface Connectivity {
+        /** Told when wifi connects or disconnects. */
+        interface Listener {
+            void onWifiConnectivityChanged(boolean connected);
+        }
+
+        /** @return true iff wifi is associated and has an address. */
+        boolean isWifiConnected();
+
+        /** @return wifi's IPv4 address, in WifiInfo's byte order, or 0. */
+        int wifiIpAddress();
+
+        /** @return true iff this address can actually reach the network. */
+        boolean isIpConnected(int ipAddr);
+
+        void addListener(Listener listener);
+        void removeListener(Listener listener);
+    }
+
+    /** Estimated bandwidth and latency of each interface that's up. */
+    public interface InterfaceStats {
+        interface Sink {
+            void add(int ipAddr, int bandwidthDown, int bandwidthUp, int rttMillis);
+        }
+
+        /** Add each interface's stats to the sink. */
+        void report(Sink sink);
+    }
+
+    public interface EnergyMeter {
+        /** @return energy used since the meter was created. */
+        int energyConsumed();
+    }
+
+    public interface Logger {
+        void v(String tag, String msg);
+        void d(String tag, String msg);
+        void e(String tag, String msg);
+        void e(String tag, String msg, Throwable tr);
+    }
+
+    public abstract Connectivity connectivity();
+    public abstract InterfaceStats interfaceStats();
+    public abstract EnergyMeter energyMeter();
+    public abstract Logger logger();
+
+    /** @return where to write event logs. */
+    public abstract File storageDirectory();
+
+    /** @return the clock the cache's decisions run on. */
+    public Clock clock() {
+        return Clock.SYSTEM;
+    }
+
+    /** @return where ProcNetworkStats gets interface byte counters. */
+    SysfsCounterSampler counterSampler() {
+        return SysfsCounterSampler.shared();
+    }
+
+    private static volatile Platform current;
+
+    /** @return the process-wide platform. */
+    public static Platform current() {
+        Platform platform = current;
+        if (platform == null) {
+            synchronized (Platform.class) {
+                if (current == null) {
+                    current = isAndroid() ? new AndroidPlatform(null) : new HostPlatform();
+                }
+                platform = current;
+            }
+        }
+        return platform;
+    }
+
+    /** Use this platform for logging and storage from now on. */
+    public static synchronized void install(Platform platform) {
+        current = platform;
+    }
+
+    private static boolean isAndroid() {
+        return "Dalvik".equals(System.getProperty("java.vm.name"));
+    }
+}
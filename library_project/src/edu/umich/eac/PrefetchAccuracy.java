@@ -1,13 +1,44 @@
 package edu.umich.eac;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Tracks how many of a prefetch class's hints the app actually uses.
+ *
+ * Keeps only the most recent WINDOW_SIZE hints, in a ring of bits,
+ * so memory is fixed and every update is O(1).  Each hint remembers its
+ * own sequence number (on its FetchFuture), so consuming or cancelling
+ * a hint needs no search and can't be confused by hash collisions.
+ *
+ * Alongside the windowed ratio, it keeps a time-decayed accuracy in
+ * which each hint's weight halves every DECAY_HALF_LIFE_MS, so recent
+ * behavior counts for more than old behavior.
+ */
 class PrefetchAccuracy {
+    static final int WINDOW_SIZE = 1024;
+    static final long DECAY_HALF_LIFE_MS = 30 * 60 * 1000;
+
+    private static final double DECAY_RATE = Math.log(2.0) / DECAY_HALF_LIFE_MS;
+
     private int prefetchClass;
+    private Clock clock = Clock.SYSTEM;
+
+    // ring of the last WINDOW_SIZE hints, indexed by (seq % WINDOW_SIZE).
+    //  A hint is live until it's cancelled or pushed out of the window.
+    private long[] liveBits = new long[WINDOW_SIZE / 64];
+    private long[] consumedBits = new long[WINDOW_SIZE / 64];
+    private long[] hintTimes = new long[WINDOW_SIZE];
+    private long nextSeq = 0;
+    private int liveHints = 0;
+    private int consumedHints = 0;
+
+    // decayed sums of hint weights, as of decayTime.
+    private double decayedHints = 0.0;
+    private double decayedConsumed = 0.0;
+    private long decayTime = 0;
+
     /**
      * Computes the accuracy of the prefetch hints so far.
      * @return accuracy in the range [0.0, 1.0].
@@ -17,37 +48,37 @@ class PrefetchAccuracy {
          * divided by the total number of hints.
          * e.g. if the hint consumption pattern is 0010010100,
          * where 1 is consumed and 0 is not, the accuracy is 3/10.
-         * 
+         *
          * Note that the accuracy is zero to start.  This means that
          * we won't prefetch until after the first consumption.
          */
-        
-        // TODO: decay impact of older hints.
-        
-        int utilizedPrefetchHints = 0;
-        for (int i = 0; i < prefetchHintsConsumed.size(); ++i) {
-            boolean consumed = prefetchHintsConsumed.get(i);
-            if (consumed) {
-                utilizedPrefetchHints++;
-            }
+        if (liveHints == 0) {
+            return 0.0;
         }
-        int hintedPrefetches = prefetchHintsConsumed.size();
-        
-        if (hintedPrefetches == 0) {
+        return ((double) consumedHints) / ((double) liveHints);
+    }
+
+    /**
+     * Like getAccuracy, but each hint is weighted by its age,
+     * halving every DECAY_HALF_LIFE_MS.
+     * @return accuracy in the range [0.0, 1.0].
+     */
+    public synchronized double getDecayedAccuracy() {
+        decayTo(now());
+        if (decayedHints <= 0.0) {
             return 0.0;
         }
-        
-        return ((double) utilizedPrefetchHints) / ((double) hintedPrefetches);
+        return Math.max(0.0, Math.min(1.0, decayedConsumed / decayedHints));
     }
-    
+
     public enum Application {
         EMAIL, NEWS
     }
-    
+
     public enum NewsreaderPrefetchClass {
         FEED0, FEED1, FEED2, FEED3, FEED4
     }
-    
+
     public double getHardcodedAccuracy(Application app) {
         switch (app) {
         case EMAIL:
@@ -56,20 +87,36 @@ class PrefetchAccuracy {
             return newsreaderPrefetchAccuracyByFeed.get(prefetchClass);
             //return 0.64; // 16 out of 25 articles read
         }
-        
+
         // NOTREACHED
         return 1.0;
     }
-    
+
     /**
      * Call when the application hints a prefetch.
      * @param prefetch
      */
     public synchronized <V> void addPrefetchHint(FetchFuture<V> prefetch) {
-        prefetchHintHashes.add(prefetch.hashCode());
-        prefetchHintsConsumed.add(false);
+        long seq = nextSeq++;
+        int slot = (int) (seq % WINDOW_SIZE);
+        if (seq >= WINDOW_SIZE) {
+            // the oldest hint falls out of the window.
+            forgetSlot(slot);
+        }
+
+        long time = now();
+        decayTo(time);
+        decayedHints += 1.0;
+
+        setBit(liveBits, slot);
+        clearBit(consumedBits, slot);
+        hintTimes[slot] = time;
+        liveHints++;
+
+        prefetch.accuracyTracker = this;
+        prefetch.accuracySeq = seq;
     }
-    
+
     /**
      * Call when the prefetch strategy issues a prefetch.
      * @param prefetch
@@ -77,7 +124,7 @@ class PrefetchAccuracy {
     public synchronized <V> void addIssuedPrefetch(FetchFuture<V> prefetch) {
         // ignore
     }
-    
+
     /**
      * Call when the application demand-fetches a data item
      * not first hinted as a prefetch.
@@ -86,45 +133,122 @@ class PrefetchAccuracy {
     public synchronized <V> void addUnhintedPrefetch(FetchFuture<V> fetch) {
         // ignore
     }
-    
+
     /**
      * Call when the application demand-fetches a data item
      * that it has hinted before.
      * @param prefetch
      */
     public synchronized <V> void markDemandFetched(FetchFuture<V> prefetch) {
-        final int prefetchId = prefetch.hashCode();
-        int depth = prefetchHintHashes.indexOf(prefetchId);
-        if (depth >= 0) {
-            assert(depth < prefetchHintsConsumed.size());
-            prefetchHintsConsumed.set(depth, true);
+        int slot = liveSlot(prefetch);
+        if (slot < 0 || testBit(consumedBits, slot)) {
+            return;
         }
+        setBit(consumedBits, slot);
+        consumedHints++;
+
+        decayTo(now());
+        decayedConsumed += weight(slot);
     }
-    
-    /** 
+
+    /**
      * Call when a prefetch is cancelled.
-     * This can happen explicitly via the cancel method or 
+     * This can happen explicitly via the cancel method or
      * implicitly via garbage collection (which just calls cancel).
      * @param prefetch
      */
     public synchronized <V> void removePrefetch(FetchFuture<V> prefetch) {
-        int index = prefetchHintHashes.indexOf(prefetch.hashCode());
-        assert(index != -1);
-        prefetchHintHashes.remove(index);
-        prefetchHintsConsumed.remove(index);
+        int slot = liveSlot(prefetch);
+        if (slot < 0) {
+            return;
+        }
+        decayTo(now());
+        double w = weight(slot);
+        decayedHints = Math.max(0.0, decayedHints - w);
+        if (testBit(consumedBits, slot)) {
+            decayedConsumed = Math.max(0.0, decayedConsumed - w);
+        }
+        forgetSlot(slot);
+        prefetch.accuracyTracker = null;
     }
-    
+
     public PrefetchAccuracy() {
-        prefetchHintHashes = new ArrayList<Integer>();
-        prefetchHintsConsumed = new ArrayList<Boolean>();
         prefetchClass = 0;
+        decayTime = now();
     }
-    
+
     public PrefetchAccuracy(int prefetchClass) {
         this();
         this.prefetchClass = prefetchClass;
     }
-    
+
+    PrefetchAccuracy(int prefetchClass, Clock clock) {
+        this.prefetchClass = prefetchClass;
+        this.clock = clock;
+        decayTime = now();
+    }
+
+    /**
+     * @return monotonic milliseconds, from an arbitrary origin.
+     * Overridden by tests to control the passage of time.
+     */
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+    }
+
+    /**
+     * @return the prefetch's slot in the window, or -1 if its hint
+     *         isn't in the window (never hinted here, cancelled, or too old).
+     */
+    private int liveSlot(FetchFuture<?> prefetch) {
+        long seq = prefetch.accuracySeq;
+        if (prefetch.accuracyTracker != this || seq < 0 || seq < nextSeq - WINDOW_SIZE) {
+            return -1;
+        }
+        int slot = (int) (seq % WINDOW_SIZE);
+        return testBit(liveBits, slot) ? slot : -1;
+    }
+
+    /** Drop a hint from the windowed counts.  Its decayed weight stays. */
+    private void forgetSlot(int slot) {
+        if (!testBit(liveBits, slot)) {
+            return;
+        }
+        liveHints--;
+        if (testBit(consumedBits, slot)) {
+            consumedHints--;
+        }
+        clearBit(liveBits, slot);
+        clearBit(consumedBits, slot);
+    }
+
+    private void decayTo(long time) {
+        if (time > decayTime) {
+            double factor = Math.exp(-DECAY_RATE * (time - decayTime));
+            decayedHints *= factor;
+            decayedConsumed *= factor;
+            decayTime = time;
+        }
+    }
+
+    /** @return the current weight of the hint in this slot. */
+    private double weight(int slot) {
+        long age = Math.max(0, decayTime - hintTimes[slot]);
+        return Math.exp(-DECAY_RATE * age);
+    }
+
+    private static boolean testBit(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void setBit(long[] bits, int i) {
+        bits[i >>> 6] |= (1L << i);
+    }
+
+    private static void clearBit(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
     private static Map<Integer, Double> newsreaderPrefetchAccuracyByFeed;
     static {
         newsreaderPrefetchAccuracyByFeed = new HashMap<Integer, Double>();
@@ -135,7 +259,4 @@ class PrefetchAccuracy {
         newsreaderPrefetchAccuracyByFeed.put(NewsreaderPrefetchClass.FEED4.ordinal(), 2.0/3.0);
         newsreaderPrefetchAccuracyByFeed.put(CacheFetcher.DEFAULT_PREFETCH_CLASS, 16.0/25.0);
     }
-    
-    private ArrayList<Integer> prefetchHintHashes;
-    private ArrayList<Boolean> prefetchHintsConsumed;
 }
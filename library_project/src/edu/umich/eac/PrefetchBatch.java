@@ -32,6 +32,19 @@ public class PrefetchBatch {
         return fetchTime;
     }
 
+    /** Give every prefetch in the batch these labels. */
+    public void addLabels(int labels) {
+        for (PrefetchTask task : prefetches) {
+            task.prefetch.addLabels(labels);
+        }
+    }
+    
+    public void clearLabels(int labels) {
+        for (PrefetchTask task : prefetches) {
+            task.prefetch.clearLabels(labels);
+        }
+    }
+
     public PrefetchTask first() {
         return prefetches.get(0);
     }
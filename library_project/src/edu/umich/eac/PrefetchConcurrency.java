@@ -0,0 +1,58 @@
+package edu.umich.eac;
+
+/**
+ * Decides how many prefetches to keep in flight at once.
+ *
+ * A single outstanding prefetch leaves the link idle for a full RTT
+ * between items, which dominates when the items are small (mail headers,
+ * feed entries).  To keep the link busy, we need enough prefetches in
+ * flight to cover the bandwidth-delay product: while one item's bytes
+ * are arriving, the requests for the next few are already on the wire.
+ *
+ * For an item of S bytes on a link with bandwidth B and round-trip time R,
+ * one transfer occupies the link for S/B seconds and then waits R seconds
+ * for the next request's first byte, so keeping the link full takes
+ * (S/B + R) / (S/B) = 1 + B*R/S transfers in flight.
+ */
+class PrefetchConcurrency {
+    static final int MIN_CONCURRENT_PREFETCHES = 1;
+    static final int MAX_CONCURRENT_PREFETCHES = 8;
+
+    private int limit = MIN_CONCURRENT_PREFETCHES;
+
+    /**
+     * @return The number of prefetches that should be in flight
+     *         at the moment.
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Recompute the concurrency limit for the current network conditions.
+     * @param stats Current stats of the network the prefetches will use.
+     * @param typicalItemBytes Typical size of the prefetches about to be issued.
+     * @return true iff the limit changed.
+     */
+    public synchronized boolean update(NetworkStats stats, int typicalItemBytes) {
+        int newLimit = slotsFor(stats, typicalItemBytes);
+        if (newLimit != limit) {
+            limit = newLimit;
+            return true;
+        }
+        return false;
+    }
+
+    static int slotsFor(NetworkStats stats, int itemBytes) {
+        if (stats == null || itemBytes <= 0 ||
+            stats.bandwidthDown <= 0 || stats.rttMillis <= 0) {
+            return MIN_CONCURRENT_PREFETCHES;
+        }
+
+        double bdpBytes = ((double) stats.bandwidthDown) * (stats.rttMillis / 1000.0);
+        int slots = (int) Math.floor(1.0 + (bdpBytes / itemBytes));
+        slots = Math.max(slots, MIN_CONCURRENT_PREFETCHES);
+        slots = Math.min(slots, MAX_CONCURRENT_PREFETCHES);
+        return slots;
+    }
+}
@@ -0,0 +1,93 @@
+package edu.umich.eac;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+
+/**
+ * A network interface that AdaptivePrefetchStrategy can prefetch over.
+ * Its position in the list given to AdaptivePrefetchStrategy.setNetworks()
+ * is its preference; its kind picks its restriction label.
+ */
+public class PrefetchNetwork {
+    public enum Kind {
+        // energy-cheap, free of data charges
+        WIFI,
+        // metered; counts against the data budget
+        CELLULAR
+    }
+
+    final Kind kind;
+    final String ifname;
+
+    /**
+     * @param ifname the interface name, e.g. "rmnet0".  May be null for
+     *               a WIFI network, meaning whichever interface has the
+     *               address the platform reports for wifi.
+     */
+    public PrefetchNetwork(Kind kind, String ifname) {
+        if (kind == Kind.CELLULAR && ifname == null) {
+            throw new IllegalArgumentException("Cellular networks need an interface name");
+        }
+        this.kind = kind;
+        this.ifname = ifname;
+    }
+
+    public static PrefetchNetwork wifi() {
+        return new PrefetchNetwork(Kind.WIFI, null);
+    }
+
+    public static PrefetchNetwork cellular(String ifname) {
+        return new PrefetchNetwork(Kind.CELLULAR, ifname);
+    }
+
+    boolean isMetered() {
+        return kind == Kind.CELLULAR;
+    }
+
+    /**
+     * @return the IntNW label that restricts a fetch to this network.
+     *         IntNW has one per kind, so networks of the same kind share it.
+     */
+    int restrictionLabel() {
+        return (kind == Kind.WIFI) ? IntNWLabels.WIFI_ONLY : IntNWLabels.THREEG_ONLY;
+    }
+
+    /**
+     * @param ipAddr an IPv4 address in the byte order WifiInfo uses
+     *               (first octet in the low byte).
+     * @return true iff this interface has that address.
+     */
+    boolean hasAddress(Platform platform, int ipAddr) {
+        if (ifname == null) {
+            return platform.connectivity().wifiIpAddress() == ipAddr;
+        }
+        try {
+            NetworkInterface iface = NetworkInterface.getByName(ifname);
+            if (iface == null) {
+                return false;
+            }
+            Enumeration<InetAddress> addrs = iface.getInetAddresses();
+            while (addrs.hasMoreElements()) {
+                InetAddress addr = addrs.nextElement();
+                if (addr instanceof Inet4Address && toInt(addr.getAddress()) == ipAddr) {
+                    return true;
+                }
+            }
+        } catch (SocketException e) {
+            // interface went away
+        }
+        return false;
+    }
+
+    static int toInt(byte[] addr) {
+        return ((addr[0] & 0xff) | ((addr[1] & 0xff) << 8) |
+                ((addr[2] & 0xff) << 16) | ((addr[3] & 0xff) << 24));
+    }
+
+    public String toString() {
+        return kind + "(" + (ifname == null ? "default" : ifname) + ")";
+    }
+}
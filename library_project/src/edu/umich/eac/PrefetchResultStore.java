@@ -0,0 +1,313 @@
+package edu.umich.eac;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-bounded in-memory store of completed fetch results, keyed by
+ * CacheFetcher.getCacheKey().
+ *
+ * Admission and eviction follow W-TinyLFU: new results go into a small
+ * LRU window; results leaving the window compete for space in the main
+ * region against its LRU victim, and only get in if they've been
+ * accessed more often recently (per a FrequencySketch).  The main region
+ * is a segmented LRU: results start in probation and move to the
+ * protected segment when read again.  This keeps frequently re-read items
+ * resident through scans of one-off prefetches.
+ */
+class PrefetchResultStore {
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    // used only to size the frequency sketch.
+    private static final int TYPICAL_ITEM_BYTES = 4096;
+
+    private static class Node {
+        final Object key;
+        Object value;
+        int weight;
+
+        Node(Object key, Object value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private long maxBytes;
+    private long windowMaxBytes;
+    private long protectedMaxBytes;
+
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    // access-ordered: iteration starts at the least recently used.
+    private LinkedHashMap<Object, Node> window = newSegment();
+    private LinkedHashMap<Object, Node> probation = newSegment();
+    private LinkedHashMap<Object, Node> protectedSegment = newSegment();
+
+    private FrequencySketch sketch;
+    // what the sketch was sized for.
+    private int sketchEntries = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    PrefetchResultStore(long maxBytes) {
+        setCapacity(maxBytes);
+    }
+
+    /**
+     * Change the store's capacity, evicting as needed.
+     * A capacity of zero disables the store.
+     */
+    synchronized void setCapacity(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        windowMaxBytes = (long) (this.maxBytes * WINDOW_FRACTION);
+        protectedMaxBytes = (long) ((this.maxBytes - windowMaxBytes) * PROTECTED_FRACTION);
+
+        long expectedEntries = this.maxBytes / TYPICAL_ITEM_BYTES;
+        resizeSketch((int) Math.min(Math.max(expectedEntries, 64), 1 << 16));
+
+        while (windowBytes > windowMaxBytes) {
+            evictFrom(window);
+        }
+        while (mainBytes() > mainMaxBytes()) {
+            evictMainVictim();
+        }
+    }
+
+    /**
+     * Size the sketch for this many entries, carrying over the
+     * frequencies of the results that are resident.
+     */
+    private void resizeSketch(int entries) {
+        if (sketch != null && entries == sketchEntries) {
+            return;
+        }
+        FrequencySketch resized = new FrequencySketch(entries);
+        if (sketch != null) {
+            carryOver(window, resized);
+            carryOver(probation, resized);
+            carryOver(protectedSegment, resized);
+        }
+        sketch = resized;
+        sketchEntries = entries;
+    }
+
+    private void carryOver(LinkedHashMap<Object, Node> segment, FrequencySketch resized) {
+        for (Object key : segment.keySet()) {
+            for (int i = sketch.frequency(key); i > 0; --i) {
+                resized.increment(key);
+            }
+        }
+    }
+
+    synchronized long getCapacity() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The stored result for this key, or null if there isn't one.
+     */
+    synchronized Object get(Object key) {
+        if (maxBytes == 0) {
+            return null;
+        }
+        sketch.increment(key);
+
+        Node node = window.get(key);
+        if (node == null) {
+            node = protectedSegment.get(key);
+        }
+        if (node == null) {
+            node = probation.remove(key);
+            if (node != null) {
+                // second access; promote
+                probationBytes -= node.weight;
+                protectedSegment.put(key, node);
+                protectedBytes += node.weight;
+                demoteProtectedOverflow();
+            }
+        }
+
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return node.value;
+    }
+
+    /**
+     * Offer a completed result to the store.
+     * @param weight Size of the result in bytes.
+     */
+    synchronized void put(Object key, Object value, int weight) {
+        weight = Math.max(weight, 1);
+        if (maxBytes == 0 || weight > mainMaxBytes()) {
+            return;
+        }
+
+        if (replace(window, key, value, weight)) {
+            windowBytes += weight;
+        } else if (replace(probation, key, value, weight)) {
+            probationBytes += weight;
+        } else if (replace(protectedSegment, key, value, weight)) {
+            protectedBytes += weight;
+            demoteProtectedOverflow();
+        } else {
+            sketch.increment(key);
+            window.put(key, new Node(key, value, weight));
+            windowBytes += weight;
+        }
+
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            Node candidate = removeEldest(window);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+        while (mainBytes() > mainMaxBytes()) {
+            evictMainVictim();
+        }
+    }
+
+    synchronized void remove(Object key) {
+        Node node = window.remove(key);
+        if (node != null) {
+            windowBytes -= node.weight;
+            return;
+        }
+        node = probation.remove(key);
+        if (node != null) {
+            probationBytes -= node.weight;
+            return;
+        }
+        node = protectedSegment.remove(key);
+        if (node != null) {
+            protectedBytes -= node.weight;
+        }
+    }
+
+    synchronized long sizeInBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    synchronized long hitCount() {
+        return hits;
+    }
+
+    synchronized long missCount() {
+        return misses;
+    }
+
+    synchronized long evictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Move a result evicted from the window into the main region,
+     * if it's more popular than everything it would displace.  The
+     * victims are only evicted once the candidate has beaten them all.
+     */
+    private void admit(Node candidate) {
+        int candidateFreq = sketch.frequency(candidate.key);
+        long needed = mainBytes() + candidate.weight - mainMaxBytes();
+        int victims = 0;
+        // in eviction order: probation's LRU end first, then protected's.
+        Iterator<Node> probationIt = probation.values().iterator();
+        Iterator<Node> protectedIt = protectedSegment.values().iterator();
+        while (needed > 0) {
+            Node victim;
+            if (probationIt.hasNext()) {
+                victim = probationIt.next();
+            } else if (protectedIt.hasNext()) {
+                victim = protectedIt.next();
+            } else {
+                break;
+            }
+            if (candidateFreq <= sketch.frequency(victim.key)) {
+                // a victim is at least as popular; reject the candidate.
+                evictions++;
+                return;
+            }
+            needed -= victim.weight;
+            victims++;
+        }
+        for (int i = 0; i < victims; ++i) {
+            evictMainVictim();
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.weight;
+    }
+
+    private void evictMainVictim() {
+        if (!probation.isEmpty()) {
+            probationBytes -= evictFrom(probation);
+        } else if (!protectedSegment.isEmpty()) {
+            protectedBytes -= evictFrom(protectedSegment);
+        }
+    }
+
+    private void demoteProtectedOverflow() {
+        while (protectedBytes > protectedMaxBytes && protectedSegment.size() > 1) {
+            Node demoted = removeEldest(protectedSegment);
+            protectedBytes -= demoted.weight;
+            probation.put(demoted.key, demoted);
+            probationBytes += demoted.weight;
+        }
+    }
+
+    private int evictFrom(LinkedHashMap<Object, Node> segment) {
+        Node victim = removeEldest(segment);
+        if (segment == window) {
+            windowBytes -= victim.weight;
+        }
+        evictions++;
+        return victim.weight;
+    }
+
+    private boolean replace(LinkedHashMap<Object, Node> segment, Object key,
+                            Object value, int weight) {
+        Node node = segment.get(key);
+        if (node == null) {
+            return false;
+        }
+        if (segment == window) {
+            windowBytes -= node.weight;
+        } else if (segment == probation) {
+            probationBytes -= node.weight;
+        } else {
+            protectedBytes -= node.weight;
+        }
+        node.value = value;
+        node.weight = weight;
+        return true;
+    }
+
+    private static Node removeEldest(LinkedHashMap<Object, Node> segment) {
+        Iterator<Map.Entry<Object, Node>> it = segment.entrySet().iterator();
+        Node eldest = it.next().getValue();
+        it.remove();
+        return eldest;
+    }
+
+    private long mainBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    private long mainMaxBytes() {
+        return maxBytes - windowMaxBytes;
+    }
+
+    private static LinkedHashMap<Object, Node> newSegment() {
+        return new LinkedHashMap<Object, Node>(16, 0.75f, true);
+    }
+}
@@ -1,14 +1,10 @@
 package edu.umich.eac;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Date;
+import java.io.File;
 import java.util.Map;
 import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
 
-import android.content.Context;
-import android.util.Log;
 import edu.umich.eac.PrefetchStrategyType;
 import edu.umich.eac.AggressivePrefetchStrategy;
 import edu.umich.eac.ConservativePrefetchStrategy;
@@ -20,7 +16,39 @@ abstract class PrefetchStrategy {
     // based on the first A2 walking trace, SoE -> Broken Egg.
     private static final double HARDCODED_HISTORICAL_WIFI_AVAILABILITY = 0.177907;
 
+    /**
+     * What a strategy assumes about the networks before it has seen
+     * them for itself.  The defaults come from the traces our
+     * experiments replay; TraceSimulator takes them from its trace.
+     */
+    static class Priors {
+        double wifiAvailability = HARDCODED_HISTORICAL_WIFI_AVAILABILITY;
+        // The cellular stats are never measured while running, so these stay put.
+        NetworkStats cellularStats = new NetworkStats();
+        {
+            // set from initial values in trace
+//            cellularStats.bandwidthDown = 51196;
+//            cellularStats.bandwidthUp = 1497;
+//            cellularStats.rttMillis = 207;
+            
+            // walking trace 1
+            cellularStats.bandwidthDown = 66052; //test
+            cellularStats.bandwidthUp = 6792;
+            cellularStats.rttMillis = 143;
+
+            // walking trace 1, reversed
+//            cellularStats.bandwidthDown = 87620;
+//            cellularStats.bandwidthUp = 18924;
+//            cellularStats.rttMillis = 115;
+        }
+    }
+    
+    protected Priors priors = new Priors();
     protected WifiTracker wifiTracker;
+    protected EnergyAdaptiveCache cache;
+    // if true, the strategy starts no threads or timers of its own;
+    //  whoever created it (TraceSimulator) drives it instead.
+    boolean driven = false;
     public abstract void onPrefetchEnqueued(FetchFuture<?> prefetch);
     public void onPrefetchDone(FetchFuture<?> prefetch, boolean cancelled) {}
     public void onDemandFetch(FetchFuture<?> prefetch) {}
@@ -29,35 +57,56 @@ abstract class PrefetchStrategy {
      * Initialize the object with the strategy parameters.
      * Subclasses should override this to get the info.
      * 
-     * @param goalTime Ending time of the goals
+     * @param goalTimeNanos Ending time of the goals, on platform.clock().nanoTime()
      * @param energyGoal Amount of energy spendable before goalTime
      *        (note: units are currently %-battery.)
      * @param dataGoal Bytes of mobile data spendable before goalTime
      */
-    public void setup(Context context, Date goalTime, double energyGoal, int dataGoal) {
+    public void setup(Platform platform, long goalTimeNanos, double energyGoal, int dataGoal) {
         // initialize the wifi availability from the trace.
-        wifiTracker = new WifiTracker(context, 
-                                      HARDCODED_HISTORICAL_WIFI_AVAILABILITY, 
-                                      goalTime.getTime() - System.currentTimeMillis());
-        try {
-            logFileWriter = new PrintWriter(new FileWriter(LOG_FILENAME, true), true);
-        } catch (IOException e) {
-            Log.e(this.getClass().getName(), "Failed to create log file: " + e.getMessage());
-        }
+        wifiTracker = new WifiTracker(platform, 
+                                      priors.wifiAvailability, 
+                                      TimeUnit.NANOSECONDS.toMillis(
+                                          goalTimeNanos - platform.clock().nanoTime()));
     }
     
     /**
      * Update the goal time.  Used to synchronize the user-replay script
      *  with the prefetch strategy.
-     * @param newGoalTime new ending time of the goals.
+     * @param newGoalTimeNanos new ending time of the goals, as in setup().
      */
-    public void updateGoalTime(Date newGoalTime) {}
+    public void updateGoalTime(long newGoalTimeNanos) {}
     
-    public static PrefetchStrategy create(Context context,
+    /** @return the kind of network these labels restrict a fetch to, for the metrics. */
+    LatencyMetrics.Network networkOf(int labels) {
+        switch (labels & IntNWLabels.ALL_NET_RESTRICTION_LABELS) {
+        case IntNWLabels.WIFI_ONLY:
+            return LatencyMetrics.Network.WIFI;
+        case IntNWLabels.THREEG_ONLY:
+            return LatencyMetrics.Network.CELLULAR;
+        default:
+            return LatencyMetrics.Network.ANY;
+        }
+    }
+    
+    public static PrefetchStrategy create(EnergyAdaptiveCache cache,
+                                          Platform platform,
                                           PrefetchStrategyType type,
-                                          Date goalTime,
+                                          long goalTimeNanos,
                                           double energyGoal,
                                           int dataGoal) {
+        return create(cache, platform, type, goalTimeNanos, energyGoal, dataGoal,
+                      new Priors(), false);
+    }
+    
+    static PrefetchStrategy create(EnergyAdaptiveCache cache,
+                                   Platform platform,
+                                   PrefetchStrategyType type,
+                                   long goalTimeNanos,
+                                   double energyGoal,
+                                   int dataGoal,
+                                   Priors priors,
+                                   boolean driven) {
         PrefetchStrategy strategy = null;
         Class<?> cls = strategies.get(type);
         try {
@@ -67,7 +116,10 @@ abstract class PrefetchStrategy {
         } catch (InstantiationException e) {
             e.printStackTrace();
         }
-        strategy.setup(context, goalTime, energyGoal, dataGoal);
+        strategy.cache = cache;
+        strategy.priors = priors;
+        strategy.driven = driven;
+        strategy.setup(platform, goalTimeNanos, energyGoal, dataGoal);
         return strategy;
     }
     
@@ -86,13 +138,21 @@ abstract class PrefetchStrategy {
                        SizeLimitPrefetchStrategy.class);
     }
     
-    private static final String LOG_FILENAME = "/sdcard/intnw/adaptive_prefetch_decisions.log";
+    // binary; see EventLog.decode for the text version.
+    private static final String LOG_FILENAME = 
+        new File(Platform.current().storageDirectory(), "adaptive_prefetch_decisions.events").getPath();
     
-    private PrintWriter logFileWriter;
-    void logPrint(String msg) {
-        if (logFileWriter != null) {
-            final long now = System.currentTimeMillis();
-            logFileWriter.println(String.format("%d %s", now, msg));
-        }
+    static final EventLog decisionLog = EventLog.open(LOG_FILENAME, EventLog.Level.DEBUG);
+    
+    /**
+     * Log a decision.  Formatting happens later, on the log's own thread,
+     *  so pass the values rather than strings made from them.
+     */
+    void logPrint(String format, Object... args) {
+        decisionLog.message(EventLog.Level.DEBUG, format, args);
+    }
+    
+    boolean isLogging() {
+        return decisionLog.isEnabled(EventLog.Level.DEBUG);
     }
 }
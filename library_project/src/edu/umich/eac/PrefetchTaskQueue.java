@@ -0,0 +1,245 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import edu.umich.eac.AdaptivePrefetchStrategy.PrefetchTask;
+
+/**
+ * Priority queue of deferred prefetches, indexed by FetchFuture identity.
+ *
+ * A binary heap ordered by PrefetchTask.compareTo, where each task
+ * remembers its own position in the heap.  Unlike PriorityBlockingQueue,
+ * removing a task by its FetchFuture (on demand fetch or cancellation)
+ * and re-sifting a task whose priority changed are O(log n), not O(n).
+ */
+class PrefetchTaskQueue {
+    private PrefetchTask[] heap = new PrefetchTask[16];
+    private int size = 0;
+    private IdentityHashMap<FetchFuture<?>, PrefetchTask> tasksByPrefetch =
+        new IdentityHashMap<FetchFuture<?>, PrefetchTask>();
+
+    /**
+     * Add a task, unless its prefetch is already queued.
+     * @return true iff the task was added.
+     */
+    synchronized boolean add(PrefetchTask task) {
+        if (tasksByPrefetch.containsKey(task.prefetch)) {
+            return false;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        tasksByPrefetch.put(task.prefetch, task);
+        place(task, size);
+        size++;
+        siftUp(task.heapIndex);
+        return true;
+    }
+
+    /** @return the highest-priority task, or null if the queue is empty. */
+    synchronized PrefetchTask peek() {
+        return (size == 0) ? null : heap[0];
+    }
+
+    /** Remove and return the highest-priority task, or null if empty. */
+    synchronized PrefetchTask poll() {
+        if (size == 0) {
+            return null;
+        }
+        PrefetchTask head = heap[0];
+        removeAt(0);
+        return head;
+    }
+
+    /**
+     * Remove the task for this prefetch, if it's queued.
+     * @return the removed task, or null.
+     */
+    synchronized PrefetchTask remove(FetchFuture<?> prefetch) {
+        PrefetchTask task = tasksByPrefetch.get(prefetch);
+        if (task == null) {
+            return null;
+        }
+        removeAt(task.heapIndex);
+        return task;
+    }
+
+    synchronized boolean contains(FetchFuture<?> prefetch) {
+        return tasksByPrefetch.containsKey(prefetch);
+    }
+
+    /**
+     * Give a queued task a new accuracy and move it to its new place.
+     * Works for both increases and decreases.
+     */
+    synchronized void update(PrefetchTask task, double accuracy) {
+        if (tasksByPrefetch.get(task.prefetch) != task) {
+            return;
+        }
+        if (!task.setAccuracy(accuracy)) {
+            return;
+        }
+        int index = task.heapIndex;
+        siftUp(index);
+        if (heap[index] == task) {
+            siftDown(index);
+        }
+    }
+
+    /**
+     * Apply new accuracies to every queued task of the given prefetch
+     * classes, then restore the heap order in one O(n) pass.
+     * @return the number of tasks whose priority changed.
+     */
+    synchronized int reprioritize(Map<Integer, Double> accuracyByClass) {
+        int changed = 0;
+        for (int i = 0; i < size; ++i) {
+            Double accuracy = accuracyByClass.get(heap[i].prefetchClass);
+            if (accuracy != null && heap[i].setAccuracy(accuracy)) {
+                changed++;
+            }
+        }
+        if (changed > 0) {
+            for (int i = size / 2 - 1; i >= 0; --i) {
+                siftDown(i);
+            }
+        }
+        return changed;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return up to max queued tasks, in no particular order.  Cheap;
+     *         useful for sampling the queue.
+     */
+    synchronized List<PrefetchTask> sample(int max) {
+        int n = Math.min(max, size);
+        ArrayList<PrefetchTask> tasks = new ArrayList<PrefetchTask>(n);
+        for (int i = 0; i < n; ++i) {
+            tasks.add(heap[i]);
+        }
+        return tasks;
+    }
+
+    /**
+     * @return an iterator over the tasks queued right now, in priority order.
+     *         It walks a copy of the heap lazily, so looking at the first
+     *         k tasks costs O(n) for the copy plus O(k log k), and later
+     *         changes to the queue don't affect it.
+     */
+    Iterator<PrefetchTask> orderedSnapshot() {
+        final PrefetchTask[] copy;
+        final int n;
+        synchronized (this) {
+            copy = Arrays.copyOf(heap, size);
+            n = size;
+        }
+        return new Iterator<PrefetchTask>() {
+            // indices into copy; the frontier of the heap walk.
+            private PriorityQueue<Integer> frontier =
+                new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return copy[a].compareTo(copy[b]);
+                    }
+                });
+            {
+                if (n > 0) {
+                    frontier.add(0);
+                }
+            }
+
+            public boolean hasNext() {
+                return !frontier.isEmpty();
+            }
+
+            public PrefetchTask next() {
+                if (frontier.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                int index = frontier.poll();
+                int left = 2 * index + 1;
+                if (left < n) {
+                    frontier.add(left);
+                }
+                if (left + 1 < n) {
+                    frontier.add(left + 1);
+                }
+                return copy[index];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void removeAt(int index) {
+        PrefetchTask victim = heap[index];
+        tasksByPrefetch.remove(victim.prefetch);
+        victim.heapIndex = -1;
+
+        size--;
+        if (index == size) {
+            heap[size] = null;
+            return;
+        }
+        PrefetchTask last = heap[size];
+        heap[size] = null;
+        place(last, index);
+        siftUp(index);
+        if (heap[index] == last) {
+            siftDown(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        PrefetchTask task = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent].compareTo(task) <= 0) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(task, index);
+    }
+
+    private void siftDown(int index) {
+        PrefetchTask task = heap[index];
+        int half = size / 2;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right].compareTo(heap[child]) < 0) {
+                child = right;
+            }
+            if (task.compareTo(heap[child]) <= 0) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(task, index);
+    }
+
+    private void place(PrefetchTask task, int index) {
+        heap[index] = task;
+        task.heapIndex = index;
+    }
+}
@@ -0,0 +1,71 @@
+package edu.umich.eac;
+
+import java.io.File;
+
+/**
+ * A CacheFetcher that can continue an interrupted transfer instead of
+ * starting over.
+ *
+ * When a prefetch is interrupted (e.g. wifi goes away during a
+ * WIFI_ONLY prefetch), the data received so far stays in this
+ * fetcher's PartialFetchBuffer.  When the prefetch is issued again, on
+ * whatever network, call() gets the same buffer and should ask the
+ * server for the data from buffer.offset() onward.  Until the fetch
+ * finishes, bytesToTransfer() counts only the bytes still to come, so
+ * the prefetch strategy weighs only the remaining cost.
+ *
+ * The buffer is emptied when the fetch succeeds or the app cancels it.
+ */
+public abstract class ResumableCacheFetcher<V> extends CacheFetcher<V> {
+    private PartialFetchBuffer partial;
+    
+    protected ResumableCacheFetcher() {
+        this(null);
+    }
+    
+    /**
+     * @param spillDir where to keep partial data that's too big for
+     *                 memory, e.g. the app's cache directory.
+     */
+    protected ResumableCacheFetcher(File spillDir) {
+        partial = new PartialFetchBuffer(spillDir, PartialFetchBuffer.DEFAULT_MEMORY_LIMIT);
+    }
+    
+    /**
+     * Fetch the rest of the item, appending what arrives to partial,
+     * and return the complete result.  If partial.offset() is nonzero,
+     * resume from there (using partial.getResumeToken(), if it was set);
+     * if the server can't resume, call partial.restart() and start over.
+     * Throw (e.g. InterruptedException) if interrupted; what was
+     * appended so far is kept for the next attempt.
+     */
+    public abstract V call(int labels, PartialFetchBuffer partial) throws Exception;
+    
+    /** @return the size of the whole item, in bytes. */
+    public abstract int totalBytes();
+    
+    public final V call(int labels) throws Exception {
+        V result = call(labels, partial);
+        partial.restart();
+        return result;
+    }
+    
+    /** @return the bytes not yet received. */
+    public int bytesToTransfer() {
+        return (int) Math.max(0, totalBytes() - partial.offset());
+    }
+    
+    PartialFetchBuffer getPartialFetch() {
+        return partial;
+    }
+    
+    @Override
+    int resultSize() {
+        return totalBytes();
+    }
+    
+    @Override
+    void discardProgress() {
+        partial.restart();
+    }
+}
@@ -1,9 +1,5 @@
 package edu.umich.eac;
 
-import java.util.Date;
-
-import android.content.Context;
-
 public class SizeLimitPrefetchStrategy extends PrefetchStrategy {
     // K9's default for prefetching
     private static int sizeLimit = 32*1024;
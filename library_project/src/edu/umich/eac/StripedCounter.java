@@ -0,0 +1,51 @@
+package edu.umich.eac;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that many threads can bump at once without contending, like
+ * Java 8's LongAdder (which Android doesn't have): each thread adds to
+ * one of several cells, picked by its id, and sum() adds them up.
+ *
+ * sum() isn't atomic with respect to concurrent adds; it's exact once
+ * they stop, and never counts an add twice.
+ */
+class StripedCounter {
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+    // cells are this many longs apart, so that threads bumping
+    //  different cells don't share a cache line.
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes(int processors) {
+        int stripes = 1;
+        while (stripes < 2 * processors && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    void increment() {
+        cells.incrementAndGet(cell());
+    }
+
+    void add(long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        // thread ids are sequential; spread them over the stripes.
+        int hash = ((int) (id ^ (id >>> 32))) * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PAD;
+    }
+}
@@ -0,0 +1,192 @@
+package edu.umich.eac;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Reads the byte counters of network interfaces from sysfs.
+ *
+ * Each counter file is opened once and kept open; sampling re-reads it
+ * from offset 0 (which makes sysfs regenerate it) into one reused direct
+ * buffer and parses the digits in place, so a sample allocates nothing.
+ * One sample() reads every registered interface.
+ *
+ * The kernel's counters go back to zero when an interface is re-created
+ * (and wrap at 32 bits on some kernels), so the totals here are kept
+ * separately: they only grow, by the amount each counter has grown since
+ * the last sample, or by its new value if it went backwards.
+ */
+class SysfsCounterSampler {
+    private static final String TAG = SysfsCounterSampler.class.getName();
+    private static final String SYSFS_NET = "/sys/class/net/";
+    private static final int RX = 0;
+    private static final int TX = 1;
+
+    private static SysfsCounterSampler shared;
+
+    /** @return the sampler that all of this process's consumers share. */
+    static synchronized SysfsCounterSampler shared() {
+        if (shared == null) {
+            shared = new SysfsCounterSampler(SYSFS_NET);
+        }
+        return shared;
+    }
+
+    private final String root;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+
+    // indexed by slot * 2 + RX or TX.
+    private String[] ifaces = new String[0];
+    private String[] paths = new String[0];
+    private FileChannel[] channels = new FileChannel[0];
+    private long[] lastRaw = new long[0];
+    private long[] totals = new long[0];
+    private boolean[] failed = new boolean[0];
+    private int numSlots = 0;
+
+    /** @param root the directory holding one directory per interface. */
+    SysfsCounterSampler(String root) {
+        this.root = root.endsWith("/") ? root : root + "/";
+    }
+
+    /**
+     * Start sampling this interface's counters (if nobody has yet), and
+     * sample them now, so the caller's starting point is current.
+     * @return the interface's slot, for totalBytesDown/Up.
+     */
+    synchronized int register(String iface) {
+        for (int slot = 0; slot < numSlots; ++slot) {
+            if (ifaces[slot].equals(iface)) {
+                sampleCounter(slot * 2 + RX);
+                sampleCounter(slot * 2 + TX);
+                return slot;
+            }
+        }
+        int slot = numSlots++;
+        if (slot == ifaces.length) {
+            int capacity = Math.max(4, slot * 2);
+            ifaces = Arrays.copyOf(ifaces, capacity);
+            paths = Arrays.copyOf(paths, capacity * 2);
+            channels = Arrays.copyOf(channels, capacity * 2);
+            lastRaw = Arrays.copyOf(lastRaw, capacity * 2);
+            totals = Arrays.copyOf(totals, capacity * 2);
+            failed = Arrays.copyOf(failed, capacity * 2);
+        }
+        ifaces[slot] = iface;
+        paths[slot * 2 + RX] = root + iface + "/statistics/rx_bytes";
+        paths[slot * 2 + TX] = root + iface + "/statistics/tx_bytes";
+        for (int counter = slot * 2; counter < slot * 2 + 2; ++counter) {
+            // counting starts from the first successful read.
+            lastRaw[counter] = -1;
+            totals[counter] = 0;
+            sampleCounter(counter);
+        }
+        return slot;
+    }
+
+    /** Read every registered interface's counters. */
+    synchronized void sample() {
+        for (int counter = 0; counter < numSlots * 2; ++counter) {
+            sampleCounter(counter);
+        }
+    }
+
+    /** @return bytes received on this interface since it was registered. */
+    synchronized long totalBytesDown(int slot) {
+        return totals[slot * 2 + RX];
+    }
+
+    /** @return bytes sent on this interface since it was registered. */
+    synchronized long totalBytesUp(int slot) {
+        return totals[slot * 2 + TX];
+    }
+
+    private void sampleCounter(int counter) {
+        long raw = read(counter);
+        if (raw < 0) {
+            return;
+        }
+        long last = lastRaw[counter];
+        if (last >= 0) {
+            totals[counter] += (raw >= last) ? (raw - last) : raw;
+        }
+        lastRaw[counter] = raw;
+    }
+
+    /**
+     * @return the counter's value, or -1 if it can't be read right now.
+     *         TraceSimulator overrides this to count simulated traffic.
+     */
+    long read(int counter) {
+        try {
+            FileChannel channel = channels[counter];
+            if (channel == null) {
+                channel = new FileInputStream(paths[counter]).getChannel();
+                channels[counter] = channel;
+            }
+            buffer.clear();
+            int len = channel.read(buffer, 0);
+            long value = parse(buffer, len);
+            if (value < 0) {
+                throw new IOException("Malformed counter");
+            }
+            failed[counter] = false;
+            return value;
+        } catch (IOException e) {
+            if (!failed[counter]) {
+                Log.e(TAG, String.format("Can't read %s: %s", paths[counter], e.getMessage()));
+                failed[counter] = true;
+            }
+            // the interface may have gone away; reopen next time.
+            close(counter);
+            return -1;
+        }
+    }
+
+    /** @return the interface that this counter belongs to. */
+    String ifaceOf(int counter) {
+        return ifaces[counter / 2];
+    }
+
+    /** @return true iff this counter is of bytes received. */
+    static boolean countsDown(int counter) {
+        return counter % 2 == RX;
+    }
+
+    /** @return the decimal number at the start of the buffer, or -1 if none. */
+    static long parse(ByteBuffer buffer, int len) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < len; ++i) {
+            int c = buffer.get(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        return (digits == 0) ? -1 : value;
+    }
+
+    private void close(int counter) {
+        if (channels[counter] != null) {
+            try {
+                channels[counter].close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            channels[counter] = null;
+        }
+    }
+
+    /** Close all the counter files; the next sample reopens them. */
+    synchronized void closeAll() {
+        for (int counter = 0; counter < numSlots * 2; ++counter) {
+            close(counter);
+        }
+    }
+}
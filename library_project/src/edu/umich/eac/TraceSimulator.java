@@ -0,0 +1,753 @@
+package edu.umich.eac;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
+
+import edu.umich.libpowertutor.EnergyEstimates;
+
+/**
+ * Replays a NetworkTrace and an AccessTrace through a real
+ * EnergyAdaptiveCache and prefetch strategy on a virtual clock, as fast
+ * as the decisions can be made.
+ *
+ * The cache runs on a HostPlatform whose wifi, interface stats, energy
+ * meter, byte counters and clock all come from the simulation.  Fetches
+ * run on pool threads as usual, but each one waits for its simulated
+ * transfer; virtual time only moves once every fetch that has started is
+ * waiting like that.  The adaptive strategy is driven (see
+ * PrefetchStrategy.driven): its passes and its budget weights' updates
+ * happen at virtual times, on the thread calling run().
+ *
+ * Transfers on a network share its downstream bandwidth equally, after
+ * one RTT of setup.  A transfer restricted to wifi stalls while wifi is
+ * down, until the strategy interrupts it; any other transfer on wifi
+ * moves to cellular.  Energy is charged with the same libpowertutor
+ * estimates that the adaptive strategy's cost model uses.  This assumes
+ * the default networks: wifi, then cellular on rmnet0.
+ *
+ * Runs are independent, so runAll() does many parameter sets at once.
+ */
+public class TraceSimulator {
+    private static final String TAG = TraceSimulator.class.getName();
+
+    // virtual time zero, as the cache sees it.
+    static final long START_MILLIS = 1000L * 1000 * 1000 * 1000;
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int WIFI_IP = PrefetchNetwork.toInt(new byte[] { 10, 0, 0, 1 });
+    private static final int CELLULAR_IP = PrefetchNetwork.toInt(new byte[] { 10, 0, 0, 2 });
+    private static final String CELLULAR_IFACE = "rmnet0";
+    // a pass that keeps asking for another pass right away is a bug.
+    private static final int MAX_PASSES_PER_INSTANT = 1000;
+    // real time to wait for fetch threads to reach their transfers.
+    private static final long SETTLE_TIMEOUT_MS = 10 * 1000;
+
+    /** One configuration of the cache to simulate. */
+    public static class Params {
+        public final PrefetchStrategyType strategy;
+        // in % of the battery, as EnergyAdaptiveCache takes it.
+        public final double energyBudget;
+        public final int dataBudget;
+
+        public Params(PrefetchStrategyType strategy, double energyBudget, int dataBudget) {
+            this.strategy = strategy;
+            this.energyBudget = energyBudget;
+            this.dataBudget = dataBudget;
+        }
+
+        public String toString() {
+            return String.format("%s energy %.3f%% data %d", strategy, energyBudget, dataBudget);
+        }
+    }
+
+    /** What one run cost and how well it did. */
+    public static class Result {
+        public final Params params;
+        public double energyJoules;
+        public long cellularBytes;
+        public int demandFetches;
+        // demanded items that had already been prefetched.
+        public int hits;
+        // demand fetches still waiting when the trace ended.
+        public int unfinishedDemands;
+        public int prefetchesIssued;
+        // prefetched, but never demanded.
+        public long wastedPrefetchBytes;
+        public final DescriptiveStatistics demandLatencyMillis = new DescriptiveStatistics();
+        public long simulatedMillis;
+        public long wallMillis;
+
+        Result(Params params) {
+            this.params = params;
+        }
+
+        public double hitRate() {
+            return (demandFetches == 0) ? 0.0 : ((double) hits) / demandFetches;
+        }
+
+        public String toString() {
+            return String.format("%s: energy %.3f J  cellular %d bytes  hit rate %.3f  " +
+                                 "demand latency mean %.1f ms p95 %.1f ms  " +
+                                 "prefetches %d  wasted %d bytes  unfinished %d  " +
+                                 "(%d s simulated in %d ms)",
+                                 params, energyJoules, cellularBytes, hitRate(),
+                                 demandLatencyMillis.getMean(),
+                                 demandLatencyMillis.getPercentile(95.0),
+                                 prefetchesIssued, wastedPrefetchBytes, unfinishedDemands,
+                                 simulatedMillis / 1000, wallMillis);
+        }
+    }
+
+    private final NetworkTrace network;
+    private final AccessTrace accesses;
+
+    public TraceSimulator(NetworkTrace network, AccessTrace accesses) {
+        this.network = network;
+        this.accesses = accesses;
+    }
+
+    public Result run(Params params) throws InterruptedException {
+        return new Run(params).run();
+    }
+
+    /** Simulate each parameter set, up to this many at once. */
+    public List<Result> runAll(List<Params> paramSets, int threads)
+        throws InterruptedException, ExecutionException {
+        ExecutorService runners = Executors.newFixedThreadPool(threads, daemonThreads);
+        try {
+            List<Future<Result>> pending = new ArrayList<Future<Result>>();
+            for (final Params params : paramSets) {
+                pending.add(runners.submit(new Callable<Result>() {
+                    public Result call() throws InterruptedException {
+                        return run(params);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> result : pending) {
+                results.add(result.get());
+            }
+            return results;
+        } finally {
+            runners.shutdownNow();
+        }
+    }
+
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        private ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = defaultFactory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static class VirtualClock implements Clock {
+        // milliseconds since the start of the traces.
+        volatile long now = 0;
+
+        public long nanoTime() {
+            return TimeUnit.MILLISECONDS.toNanos(now);
+        }
+
+        public long currentTimeMillis() {
+            return START_MILLIS + now;
+        }
+    }
+
+    /** One item's transfer, from one call() of its fetcher. */
+    private static class Transfer {
+        final SimulatedFetcher fetcher;
+        int labels;
+        int network;
+        long readyMillis;
+        double bytesLeft;
+        // moved on the current network since it was last charged for.
+        double unchargedBytes = 0.0;
+        boolean finished = false;
+        boolean failed = false;
+
+        Transfer(SimulatedFetcher fetcher, int labels) {
+            this.fetcher = fetcher;
+            this.labels = labels;
+            bytesLeft = fetcher.bytes;
+        }
+
+        boolean isDemand() {
+            return (labels & IntNWLabels.ONDEMAND) != 0;
+        }
+    }
+
+    /** Transfers its item over the simulated networks. */
+    private static class SimulatedFetcher extends CacheFetcher<String> {
+        final Run run;
+        final String id;
+        final int bytes;
+        final int prefetchClass;
+        // only touched by replay().
+        boolean cancelled = false;
+        // guarded by run.
+        Transfer transfer;
+        boolean prefetched = false;
+        boolean demanded = false;
+
+        SimulatedFetcher(Run run, String id, int bytes, int prefetchClass) {
+            this.run = run;
+            this.id = id;
+            this.bytes = bytes;
+            this.prefetchClass = prefetchClass;
+        }
+
+        @Override
+        public String call(int labels) throws Exception {
+            run.transfer(this, labels);
+            return id;
+        }
+
+        @Override
+        public int bytesToTransfer() {
+            return bytes;
+        }
+
+        @Override
+        public int getPrefetchClass() {
+            return prefetchClass;
+        }
+
+        @Override
+        public void onCancelled() {
+            run.abandon(this);
+        }
+
+        @Override
+        public void onPromoted(int labels) {
+            run.promote(this, labels);
+        }
+
+        public String toString() {
+            return "SimulatedFetcher " + id;
+        }
+    }
+
+    /** Counts the simulated traffic as CELLULAR_IFACE's, and the rest as wifi's. */
+    private static class SimulatedCounters extends SysfsCounterSampler {
+        private final Run run;
+
+        SimulatedCounters(Run run) {
+            super("/nonexistent");
+            this.run = run;
+        }
+
+        @Override
+        long read(int counter) {
+            int network = CELLULAR_IFACE.equals(ifaceOf(counter)) ?
+                NetworkTrace.CELLULAR : NetworkTrace.WIFI;
+            // the transfers are all downloads.
+            return countsDown(counter) ? run.bytesMoved(network) : 0;
+        }
+    }
+
+    private class Run {
+        private final Params params;
+        private final Result result;
+        private final VirtualClock clock = new VirtualClock();
+        private final HostPlatform platform;
+        private final ExecutorService pool = Executors.newCachedThreadPool(daemonThreads);
+
+        // all guarded by this.
+        private NetworkTrace.Conditions conditions;
+        private final List<Transfer> transfers = new ArrayList<Transfer>();
+        private final double[] bytesMoved = new double[2];
+        private double energyMillijoules = 0.0;
+        private int fetchesRunning = 0;
+        private int fetchesWaiting = 0;
+
+        private final Map<String, SimulatedFetcher> items = new HashMap<String, SimulatedFetcher>();
+        private final Map<String, ListenableFuture<String>> futures =
+            new HashMap<String, ListenableFuture<String>>();
+
+        // Runs every fetch on the pool, counting them.
+        private final Executor fetchExecutor = new Executor() {
+            public void execute(final Runnable task) {
+                synchronized (Run.this) {
+                    fetchesRunning++;
+                }
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            synchronized (Run.this) {
+                                fetchesRunning--;
+                                Run.this.notifyAll();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+
+        private final Executor direct = new Executor() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+
+        Run(Params params) {
+            this.params = params;
+            result = new Result(params);
+            platform = new HostPlatform("/nonexistent", Platform.current().storageDirectory()) {
+                private final SysfsCounterSampler counters = new SimulatedCounters(Run.this);
+
+                @Override
+                SysfsCounterSampler counterSampler() {
+                    return counters;
+                }
+            };
+            platform.setClock(clock);
+        }
+
+        Result run() throws InterruptedException {
+            long startWall = System.currentTimeMillis();
+            long end = network.durationMillis();
+            if (accesses.size() > 0) {
+                end = Math.max(end, accesses.get(accesses.size() - 1).timeMillis);
+            }
+
+            int step = 0;
+            applyConditions(network.get(0));
+            while (step + 1 < network.size() && network.get(step + 1).startMillis <= 0) {
+                applyConditions(network.get(++step));
+            }
+            step++;
+
+            PrefetchStrategy.Priors priors = new PrefetchStrategy.Priors();
+            priors.wifiAvailability = network.wifiAvailability();
+            priors.cellularStats = network.get(0).stats(NetworkTrace.CELLULAR);
+            EnergyAdaptiveCache cache =
+                new EnergyAdaptiveCache(platform, params.strategy, clock.currentTimeMillis() + end,
+                                        params.energyBudget, params.dataBudget,
+                                        priors, fetchExecutor);
+            AdaptivePrefetchStrategy adaptive = null;
+            if (cache.strategy instanceof AdaptivePrefetchStrategy) {
+                adaptive = (AdaptivePrefetchStrategy) cache.strategy;
+            }
+
+            int access = 0;
+            long nextWeightUpdate = (adaptive == null) ? NEVER :
+                GoalAdaptiveResourceWeight.UPDATE_DURATION_MILLIS;
+            long nextPass = (adaptive == null) ? NEVER : 0;
+            while (true) {
+                long next = Math.min(nextPass, nextWeightUpdate);
+                if (step < network.size()) {
+                    next = Math.min(next, network.get(step).startMillis);
+                }
+                if (access < accesses.size()) {
+                    next = Math.min(next, accesses.get(access).timeMillis);
+                }
+                next = Math.min(next, nextTransferEvent());
+                if (next > end) {
+                    break;
+                }
+                advanceTo(next);
+
+                while (step < network.size() && network.get(step).startMillis <= next) {
+                    applyConditions(network.get(step++));
+                }
+                while (access < accesses.size() && accesses.get(access).timeMillis <= next) {
+                    replay(cache, accesses.get(access++));
+                    awaitFetches();
+                }
+                if (next >= nextWeightUpdate) {
+                    adaptive.updateWeights();
+                    nextWeightUpdate += GoalAdaptiveResourceWeight.UPDATE_DURATION_MILLIS;
+                }
+                if (adaptive != null) {
+                    nextPass = runPasses(adaptive, next >= nextPass, nextPass);
+                }
+            }
+            advanceTo(end);
+            finish();
+
+            result.simulatedMillis = end;
+            result.wallMillis = System.currentTimeMillis() - startWall;
+            return result;
+        }
+
+        /**
+         * Run the strategy's passes that are due now, as its monitor
+         * thread would.
+         * @return when the next one is due.
+         */
+        private long runPasses(AdaptivePrefetchStrategy adaptive, boolean due, long nextPass)
+            throws InterruptedException {
+            int passes = 0;
+            while (due || adaptive.takeWakeup()) {
+                due = false;
+                long delay = adaptive.runPass();
+                nextPass = (delay == AdaptivePrefetchStrategy.NO_RECHECK) ? NEVER : clock.now + delay;
+                awaitFetches();
+                if (++passes > MAX_PASSES_PER_INSTANT) {
+                    throw new IllegalStateException("Strategy never stops asking for passes");
+                }
+            }
+            return nextPass;
+        }
+
+        private void replay(EnergyAdaptiveCache cache, AccessTrace.Event event) {
+            SimulatedFetcher item = items.get(event.id);
+            if (item != null && item.cancelled) {
+                // anything after a cancel starts over.
+                items.remove(event.id);
+                countWaste(item);
+                item = null;
+            }
+            switch (event.type) {
+            case HINT:
+                item = new SimulatedFetcher(this, event.id, event.bytes, event.prefetchClass);
+                items.put(event.id, item);
+                futures.put(event.id, (ListenableFuture<String>) cache.prefetch(item));
+                break;
+            case DEMAND:
+                if (item == null) {
+                    item = new SimulatedFetcher(this, event.id, event.bytes,
+                                                CacheFetcher.DEFAULT_PREFETCH_CLASS);
+                    items.put(event.id, item);
+                    item.demanded = true;
+                    ListenableFuture<String> future = (ListenableFuture<String>) cache.fetch(item);
+                    futures.put(event.id, future);
+                    future.addListener(new DemandListener(false), direct);
+                } else {
+                    boolean hit;
+                    synchronized (this) {
+                        item.demanded = true;
+                        hit = item.prefetched;
+                    }
+                    futures.get(event.id).getAsync(new DemandListener(hit), direct);
+                }
+                break;
+            case CANCEL:
+                if (item != null) {
+                    futures.remove(event.id).cancel(true);
+                    // kept, so that what was prefetched counts as wasted.
+                    item.cancelled = true;
+                }
+                break;
+            }
+        }
+
+        private class DemandListener implements FetchListener<String> {
+            private final long demandedMillis;
+            private final boolean hit;
+
+            DemandListener(boolean hit) {
+                this.hit = hit;
+                synchronized (Run.this) {
+                    demandedMillis = clock.now;
+                    result.demandFetches++;
+                    result.unfinishedDemands++;
+                    if (hit) {
+                        result.hits++;
+                    }
+                }
+            }
+
+            public void onSuccess(String item) {
+                synchronized (Run.this) {
+                    result.unfinishedDemands--;
+                    result.demandLatencyMillis.addValue(clock.now - demandedMillis);
+                }
+            }
+
+            public void onFailure(Throwable cause) {
+                Log.e(TAG, "Demand fetch failed: " + cause);
+            }
+
+            public void onCancelled() {
+                // still counted as unfinished.
+            }
+        }
+
+        private synchronized void applyConditions(NetworkTrace.Conditions newConditions) {
+            boolean wifiWasAvailable = (conditions != null && conditions.wifiAvailable());
+            conditions = newConditions;
+            NetworkStats wifi = conditions.stats(NetworkTrace.WIFI);
+            NetworkStats cellular = conditions.stats(NetworkTrace.CELLULAR);
+            if (conditions.wifiAvailable()) {
+                platform.setInterfaceStats(WIFI_IP, wifi.bandwidthDown, wifi.bandwidthUp, wifi.rttMillis);
+            } else {
+                platform.removeInterfaceStats(WIFI_IP);
+            }
+            platform.setInterfaceStats(CELLULAR_IP, cellular.bandwidthDown, cellular.bandwidthUp,
+                                       cellular.rttMillis);
+            if (conditions.wifiAvailable() != wifiWasAvailable) {
+                platform.setWifiConnected(conditions.wifiAvailable(), WIFI_IP);
+            }
+
+            if (!conditions.wifiAvailable()) {
+                for (Transfer transfer : transfers) {
+                    if (transfer.network == NetworkTrace.WIFI &&
+                        allowed(transfer.labels, NetworkTrace.CELLULAR)) {
+                        charge(transfer);
+                        startOn(transfer, NetworkTrace.CELLULAR);
+                    }
+                }
+            }
+        }
+
+        private boolean allowed(int labels, int network) {
+            int restriction = labels & IntNWLabels.ALL_NET_RESTRICTION_LABELS;
+            int label = (network == NetworkTrace.WIFI) ?
+                IntNWLabels.WIFI_ONLY : IntNWLabels.THREEG_ONLY;
+            return restriction == 0 || (restriction & label) != 0;
+        }
+
+        private int pickNetwork(int labels) {
+            if (allowed(labels, NetworkTrace.WIFI) &&
+                (conditions.wifiAvailable() || !allowed(labels, NetworkTrace.CELLULAR))) {
+                return NetworkTrace.WIFI;
+            }
+            return NetworkTrace.CELLULAR;
+        }
+
+        private void startOn(Transfer transfer, int network) {
+            transfer.network = network;
+            transfer.readyMillis = clock.now + conditions.rttMillis[network];
+        }
+
+        private boolean usable(int network) {
+            return network == NetworkTrace.CELLULAR || conditions.wifiAvailable();
+        }
+
+        /** @return the rate of each transfer on each network, in bytes/sec. */
+        private double[] rates() {
+            int[] active = new int[2];
+            for (Transfer transfer : transfers) {
+                if (transfer.readyMillis <= clock.now) {
+                    active[transfer.network]++;
+                }
+            }
+            double[] rates = new double[2];
+            for (int net = 0; net < 2; ++net) {
+                if (active[net] > 0 && usable(net)) {
+                    rates[net] = ((double) conditions.bandwidthDown[net]) / active[net];
+                }
+            }
+            return rates;
+        }
+
+        private synchronized long nextTransferEvent() {
+            double[] rates = rates();
+            long next = NEVER;
+            for (Transfer transfer : transfers) {
+                if (transfer.readyMillis > clock.now) {
+                    next = Math.min(next, transfer.readyMillis);
+                } else if (rates[transfer.network] > 0.0) {
+                    long millisLeft = (long) Math.ceil(transfer.bytesLeft * 1000.0 /
+                                                       rates[transfer.network]);
+                    next = Math.min(next, clock.now + Math.max(1, millisLeft));
+                }
+            }
+            return next;
+        }
+
+        /** Move the transfers along to this time, and finish the ones that are done. */
+        private void advanceTo(long time) throws InterruptedException {
+            synchronized (this) {
+                long elapsed = time - clock.now;
+                if (elapsed > 0) {
+                    double[] rates = rates();
+                    for (Transfer transfer : transfers) {
+                        if (transfer.readyMillis > clock.now) {
+                            continue;
+                        }
+                        double moved = Math.min(transfer.bytesLeft,
+                                                rates[transfer.network] * elapsed / 1000.0);
+                        transfer.bytesLeft -= moved;
+                        transfer.unchargedBytes += moved;
+                        bytesMoved[transfer.network] += moved;
+                    }
+                    clock.now = time;
+                }
+                Iterator<Transfer> it = transfers.iterator();
+                while (it.hasNext()) {
+                    Transfer transfer = it.next();
+                    if (transfer.bytesLeft < 0.5 && transfer.readyMillis <= clock.now) {
+                        it.remove();
+                        charge(transfer);
+                        if (!transfer.isDemand()) {
+                            transfer.fetcher.prefetched = true;
+                        }
+                        release(transfer);
+                    }
+                }
+            }
+            awaitFetches();
+        }
+
+        /** Charge for the energy of what the transfer has moved so far. */
+        private void charge(Transfer transfer) {
+            int bytes = (int) Math.round(transfer.unchargedBytes);
+            transfer.unchargedBytes = 0.0;
+            if (bytes == 0) {
+                return;
+            }
+            int net = transfer.network;
+            double cost;
+            if (net == NetworkTrace.CELLULAR) {
+                cost = EnergyEstimates.estimateMobileEnergyCost(bytes, conditions.bandwidthDown[net],
+                                                                conditions.rttMillis[net]);
+            } else {
+                cost = EnergyEstimates.estimateWifiEnergyCost(bytes, conditions.bandwidthDown[net],
+                                                              conditions.rttMillis[net]);
+            }
+            // the meter counts whole mJ.
+            int before = (int) energyMillijoules;
+            energyMillijoules += cost;
+            platform.addEnergy((int) energyMillijoules - before);
+        }
+
+        /** Let the transfer's call() return.  Call with the lock held. */
+        private void release(Transfer transfer) {
+            transfer.finished = true;
+            transfer.fetcher.transfer = null;
+            fetchesWaiting--;
+            notifyAll();
+        }
+
+        /** Called by a fetcher's call(); returns when the transfer is done. */
+        void transfer(SimulatedFetcher fetcher, int labels) throws InterruptedException {
+            Transfer transfer;
+            synchronized (this) {
+                transfer = new Transfer(fetcher, labels);
+                startOn(transfer, pickNetwork(labels));
+                transfers.add(transfer);
+                fetcher.transfer = transfer;
+                if (!transfer.isDemand()) {
+                    result.prefetchesIssued++;
+                }
+                fetchesWaiting++;
+                notifyAll();
+                try {
+                    while (!transfer.finished) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (!transfer.finished) {
+                        stop(transfer);
+                    }
+                    throw e;
+                }
+            }
+            if (transfer.failed) {
+                throw new InterruptedException("Transfer of " + fetcher.id + " stopped");
+            }
+        }
+
+        /** The fetch was cancelled or interrupted; stop its transfer. */
+        synchronized void abandon(SimulatedFetcher fetcher) {
+            if (fetcher.transfer != null) {
+                stop(fetcher.transfer);
+            }
+        }
+
+        private void stop(Transfer transfer) {
+            transfers.remove(transfer);
+            charge(transfer);
+            transfer.failed = true;
+            release(transfer);
+        }
+
+        /** A running prefetch became a demand fetch; it may now use any network. */
+        synchronized void promote(SimulatedFetcher fetcher, int labels) {
+            Transfer transfer = fetcher.transfer;
+            if (transfer == null) {
+                return;
+            }
+            transfer.labels = labels;
+            if (!usable(transfer.network)) {
+                charge(transfer);
+                startOn(transfer, pickNetwork(labels));
+            }
+        }
+
+        synchronized long bytesMoved(int network) {
+            return (long) bytesMoved[network];
+        }
+
+        /** Wait until every fetch that's running is waiting for its transfer. */
+        private synchronized void awaitFetches() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+            while (fetchesRunning != fetchesWaiting) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException(String.format("%d fetches running, but only %d waiting",
+                                                                  fetchesRunning, fetchesWaiting));
+                }
+                wait(wait);
+            }
+        }
+
+        /** Count the item's prefetch as wasted if it was never demanded. */
+        private synchronized void countWaste(SimulatedFetcher item) {
+            if (item.prefetched && !item.demanded) {
+                result.wastedPrefetchBytes += item.bytes;
+            }
+        }
+
+        private void finish() throws InterruptedException {
+            synchronized (this) {
+                for (Transfer transfer : new ArrayList<Transfer>(transfers)) {
+                    stop(transfer);
+                }
+                result.energyJoules = energyMillijoules / 1000.0;
+                result.cellularBytes = Math.round(bytesMoved[NetworkTrace.CELLULAR]);
+                for (SimulatedFetcher item : items.values()) {
+                    countWaste(item);
+                }
+            }
+            awaitFetches();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Simulate each parameter set, and print the results:
+     *   java edu.umich.eac.TraceSimulator NETWORK_TRACE ACCESS_TRACE STRATEGY:ENERGY:DATA...
+     * e.g. adaptive:1.5:2000000 for the adaptive strategy with a budget of
+     * 1.5% of the battery and 2MB of cellular data.
+     */
+    public static void main(String[] argv) throws IOException, InterruptedException, ExecutionException {
+        if (argv.length < 3) {
+            System.err.println("usage: TraceSimulator NETWORK_TRACE ACCESS_TRACE STRATEGY:ENERGY:DATA...");
+            System.exit(1);
+        }
+        TraceSimulator simulator = new TraceSimulator(NetworkTrace.read(argv[0]),
+                                                      AccessTrace.read(argv[1]));
+        List<Params> paramSets = new ArrayList<Params>();
+        for (int i = 2; i < argv.length; ++i) {
+            String[] fields = argv[i].split(":");
+            paramSets.add(new Params(PrefetchStrategyType.valueOf(fields[0].toUpperCase()),
+                                     (fields.length > 1) ? Double.parseDouble(fields[1]) : 0.0,
+                                     (fields.length > 2) ? Integer.parseInt(fields[2]) : 0));
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (Result result : simulator.runAll(paramSets, threads)) {
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package edu.umich.eac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts fetch results to and from bytes, so the cache can keep them
+ * on disk across process restarts.  See CacheFetcher.getValueCodec().
+ */
+public interface ValueCodec<V> {
+    /** @return the number of bytes encode() will write for this value. */
+    int encodedSize(V value);
+
+    /**
+     * Write the value into the buffer, starting at its position.
+     * Exactly encodedSize(value) bytes must be written.
+     */
+    void encode(V value, ByteBuffer out);
+
+    /**
+     * Reconstruct a value from the bytes written by encode().
+     * The buffer is a read-only view of the stored bytes, not a copy;
+     * the returned value may keep referring to it.
+     */
+    V decode(ByteBuffer in);
+}
@@ -1,28 +1,13 @@
 package edu.umich.eac;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.net.ConnectivityManager;
-import android.net.DhcpInfo;
-import android.net.NetworkInfo;
-import android.net.wifi.SupplicantState;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
-import android.os.Bundle;
-import android.util.Log;
+import edu.umich.eac.BandwidthPredictionClient.Snapshot;
 
-public class WifiTracker extends BroadcastReceiver {
+public class WifiTracker implements Platform.Connectivity.Listener {
     public class Prediction {
         public ConditionChange change;
         public double bwDown;
@@ -56,35 +41,42 @@ public class WifiTracker extends BroadcastReceiver {
     public enum ConditionChange {
         NO_CHANGE, BETTER, WORSE
     }
+    
+    /** Told when wifi connects or disconnects. */
+    interface AvailabilityListener {
+        void onWifiAvailabilityChanged(boolean available);
+    }
+    
+    private CopyOnWriteArrayList<AvailabilityListener> listeners = 
+        new CopyOnWriteArrayList<AvailabilityListener>();
+    
+    void addAvailabilityListener(AvailabilityListener listener) {
+        listeners.add(listener);
+    }
 
     public Prediction predictConditionsChange() {
-        try {
-            getPredictedBandwidth();
-            
-            for (int i = 0; i < mAvgBandwidthDown.length; ++i) {
+        Snapshot predicted = predictions.latest();
+        if (predicted != null) {
+            for (int i = 0; i < predicted.avgBandwidthDown.length; ++i) {
                 double time = predictionStep * i;
-                ConditionChange change = getConditionChange(time);
+                ConditionChange change = getConditionChange(predicted, time);
                 if (change != ConditionChange.NO_CHANGE) {
-                    return new Prediction(change, mAvgBandwidthDown[i],
-                                          mAvgBandwidthUp[i], time);
+                    return new Prediction(change, predicted.avgBandwidthDown[i],
+                                          predicted.avgBandwidthUp[i], time);
                 }
             }
-        } catch (IOException e) {
-            // couldn't get bandwidth; assume it's steady
-        } 
+        } // else: couldn't get bandwidth; assume it's steady
         return new Prediction(ConditionChange.NO_CHANGE, 0.0, 0.0, 0.0);
     }
 
     public Prediction getCurrentConditions() {
         Prediction pred = new Prediction(ConditionChange.NO_CHANGE, 
                                          0.0, 0.0, 0.0);
-        try {
-            getPredictedBandwidth();
-            pred.bwDown = mAvgBandwidthDown[0];
-            pred.bwUp = mAvgBandwidthUp[0];
+        Snapshot predicted = predictions.latest();
+        if (predicted != null) {
+            pred.bwDown = predicted.avgBandwidthDown[0];
+            pred.bwUp = predicted.avgBandwidthUp[0];
             pred.timeInFuture = 0.0;
-        } catch (IOException e) {
-            // ignore
         }
         return pred;
     }
@@ -101,17 +93,16 @@ public class WifiTracker extends BroadcastReceiver {
         }
         Prediction pred = new Prediction(ConditionChange.NO_CHANGE,
                                          0.0, 0.0, 0.0);
-        try {
-            getPredictedBandwidth();
-        } catch (IOException e) {
+        Snapshot predicted = predictions.latest();
+        if (predicted == null) {
             return null;
         }
         
         int step = (int) Math.floor(timeInFuture / predictionStep);
-        assert(step < mAvgBandwidthDown.length);
-        pred.change = getConditionChange(timeInFuture);
-        pred.bwDown = mAvgBandwidthDown[step];
-        pred.bwUp = mAvgBandwidthUp[step];
+        assert(step < predicted.avgBandwidthDown.length);
+        pred.change = getConditionChange(predicted, timeInFuture);
+        pred.bwDown = predicted.avgBandwidthDown[step];
+        pred.bwUp = predicted.avgBandwidthUp[step];
         pred.timeInFuture = timeInFuture;
         return pred;
     }
@@ -122,110 +113,112 @@ public class WifiTracker extends BroadcastReceiver {
      * @return Wifi availability, in the range [0.0, 1.0].
      */
     public synchronized double availability() {
-        // XXX: will always return zero if null context is passed to constructor.
-        Date now = new Date();
-        long millisSinceCreation = now.getTime() - trackerCreated.getTime();
-        if (millisSinceCreation == 0) {
+        // XXX: will always return zero if null platform is passed to constructor.
+        long now = clock.nanoTime();
+        long nanosSinceCreation = now - trackerCreatedNanos;
+        if (nanosSinceCreation == 0) {
             return 0.0;
         }
-        long availableMillis = wifiAvailableMillis;
+        long availableNanos = wifiAvailableNanos;
         if (wifiAvailable) {
-            availableMillis += (now.getTime() - lastEvent.getTime());
+            availableNanos += (now - lastEventNanos);
         }
         
-        return ((double) availableMillis) / ((double) millisSinceCreation);
+        return ((double) availableNanos) / ((double) nanosSinceCreation);
     }
     
     static final int WIFI_AVAILABLE_FUDGE_FACTOR_MS = 250;
     
+    /**
+     * @return how long until isWifiAvailable() stops ignoring a recent
+     *         connection, or 0 if it isn't.
+     */
+    synchronized long millisUntilSettled() {
+        if (!wifiAvailable) {
+            return 0;
+        }
+        long sinceEvent = millisSinceLastEvent();
+        return Math.max(0, WIFI_AVAILABLE_FUDGE_FACTOR_MS + 1 - sinceEvent);
+    }
+    
     public synchronized boolean isWifiAvailable() {
-        WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        return (wifi != null && wifi.isWifiEnabled() &&
-                wifi.getConnectionInfo().getSupplicantState() == SupplicantState.COMPLETED &&
-                wifi.getDhcpInfo() != null &&
+        return (platform.connectivity().isWifiConnected() &&
                 wifiAvailable &&
-                (System.currentTimeMillis() - lastEvent.getTime()) > WIFI_AVAILABLE_FUDGE_FACTOR_MS);
+                millisSinceLastEvent() > WIFI_AVAILABLE_FUDGE_FACTOR_MS);
+    }
+    
+    private long millisSinceLastEvent() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - lastEventNanos);
     }
     
-    @Override
-    public void onReceive(Context unused, Intent intent) {
-        Log.d(TAG, "Got update: intent = " + intent.toString());
-        Bundle extras = intent.getExtras();
-        if (extras != null) {
-            for (String key : extras.keySet()) {
-                Log.d(TAG, key + "=>" + extras.get(key));
+    public void onWifiConnectivityChanged(boolean connected) {
+        if (updateAvailability(connected)) {
+            for (AvailabilityListener listener : listeners) {
+                listener.onWifiAvailabilityChanged(connected);
             }
         }
-        assert(intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION));
-        NetworkInfo networkInfo = 
-                intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
-        if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-            updateAvailability(networkInfo);
-        }
     }
 
-    private synchronized void updateAvailability(NetworkInfo networkInfo) {
-        boolean nowConnected = networkInfo.isConnected();
+    /** @return true iff availability changed. */
+    private synchronized boolean updateAvailability(boolean nowConnected) {
         if (nowConnected) {
             if (!wifiAvailable) {
-                lastEvent = new Date();
+                lastEventNanos = clock.nanoTime();
                 wifiAvailable = true;
                 EnergyAdaptiveCache.logEvent("wifi-up", 0);
+                return true;
             }
         } else {
             if (wifiAvailable) {
-                Date now = new Date();
-                wifiAvailableMillis += (now.getTime() - lastEvent.getTime());
-                lastEvent = now;
+                long now = clock.nanoTime();
+                wifiAvailableNanos += (now - lastEventNanos);
+                lastEventNanos = now;
                 wifiAvailable = false;
                 EnergyAdaptiveCache.logEvent("wifi-down", 0);
+                return true;
             }
         }
+        return false;
     }
     
-    public WifiTracker(Context context) {
-        this(context, -1.0, 0);
+    public WifiTracker(Platform platform) {
+        this(platform, -1.0, 0);
     }
     
-    public WifiTracker(Context context, double initAvailability, long durationMillis) {
-        this.context = context;
-        trackerCreated = new Date();
-        lastEvent = trackerCreated;
+    public WifiTracker(Platform platform, double initAvailability, long durationMillis) {
+        this.platform = platform;
+        clock = (platform == null) ? Clock.SYSTEM : platform.clock();
+        predictions = new BandwidthPredictionClient("127.0.0.1", predictionServerPort,
+                                                    predictionIntervals, predictionStep,
+                                                    PREDICTION_TTL_MS, clock);
+        trackerCreatedNanos = clock.nanoTime();
+        lastEventNanos = trackerCreatedNanos;
 
         if (durationMillis > 0) {
             assert(initAvailability >= 0.0 && initAvailability <= 1.0);
             
             // pretend that the tracker has been up for durationMillis and observed
             // (initAvailability) fraction of wifi available.
-            trackerCreated = new Date(trackerCreated.getTime() - durationMillis);
-            wifiAvailableMillis = (long)(durationMillis * initAvailability);
-            lastEvent = new Date();
+            long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            trackerCreatedNanos -= durationNanos;
+            wifiAvailableNanos = (long)(durationNanos * initAvailability);
         }
         
-        if (context != null) {
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-            context.registerReceiver(this, filter);
+        if (platform != null) {
+            platform.connectivity().addListener(this);
         }
     }
     
     public synchronized boolean isWifiUsable() {
-        WifiManager wifi = 
-            (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        WifiInfo wifiInfo = wifi.getConnectionInfo();
-        if (wifiInfo == null) {
-            return false;
-        }
-        int wifiIp = wifiInfo.getIpAddress();
+        Platform.Connectivity connectivity = platform.connectivity();
+        int wifiIp = connectivity.wifiIpAddress();
         if (wifiIp == 0) {
             return false;
         }
         
-        return askScoutIfIpIsConnected(wifiIp);
+        return connectivity.isIpConnected(wifiIp);
     }
     
-    private native boolean askScoutIfIpIsConnected(int ipAddr);
-    
     private static InetAddress intToInetAddress(int n) {
         byte[] ret = new byte[4];
         ret[0] = (byte)((n >> 0  ) & 0xFF);
@@ -243,16 +236,28 @@ public class WifiTracker extends BroadcastReceiver {
         return addr;
     }
 
+    /**
+     * Wait for the first bandwidth predictions, which the get*Conditions
+     * methods don't wait for.
+     * @return true iff there are some.
+     */
+    boolean awaitPredictions(long timeoutMillis) throws InterruptedException {
+        return predictions.awaitFirst(timeoutMillis);
+    }
+
     protected void finalize() throws Throwable {
-        if (context != null) {
-            context.unregisterReceiver(this);
+        predictions.close();
+        if (platform != null) {
+            platform.connectivity().removeListener(this);
         }
     }
 
-    private Context context;
-    private long wifiAvailableMillis = 0;
-    private Date trackerCreated;
-    private Date lastEvent;
+    private Platform platform;
+    private Clock clock;
+    // times on clock.nanoTime().
+    private long wifiAvailableNanos = 0;
+    private long trackerCreatedNanos;
+    private long lastEventNanos;
     private boolean wifiAvailable = false;
     
     // TODO: how much bandwidth change is appreciable?
@@ -266,56 +271,20 @@ public class WifiTracker extends BroadcastReceiver {
 
     private static final String TAG = WifiTracker.class.getName();
     
-    private double[] mAvgBandwidthDown = new double[predictionIntervals];
-    private double[] mAvgBandwidthUp = new double[predictionIntervals];
-    private double[] mStddevBandwidthDown = new double[predictionIntervals];
-    private double[] mStddevBandwidthUp = new double[predictionIntervals];
+    // predictions are refreshed in the background when older than this.
+    private static final long PREDICTION_TTL_MS = 1000;
     
-    private Date mUpdateTime = null;
-    
-    private void getPredictedBandwidth() throws IOException {
-        // TODO: memoize?  bound to fixed update frequency?
-        
-        Socket sock = new Socket("127.0.0.1", predictionServerPort);
-        PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-        for (int i = 0; i < predictionIntervals; ++i) {
-            double future = i * predictionStep;
-            String req = String.format("average %f %f both", future, 
-                                       future + predictionStep);
-            out.println(req);
-        }
-        
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(sock.getInputStream())
-        );
-        for (int i = 0; i < predictionIntervals; ++i) {
-            String line = in.readLine();
-            if (line == null) {
-                throw new IOException("Failed to read line from prediction server socket");
-            }
-            String[] fields = line.trim().split(" +");
-            mAvgBandwidthDown[i] = Double.parseDouble(fields[1]);
-            mStddevBandwidthDown[i] = Double.parseDouble(fields[2]);
-            mAvgBandwidthUp[i] = Double.parseDouble(fields[4]);
-            mStddevBandwidthUp[i] = Double.parseDouble(fields[5]);
-        }
-        out.close();
-        in.close();
-        sock.close();
-        mUpdateTime = new Date();
-    }
+    private BandwidthPredictionClient predictions;
     
-    // assumes bandwidth predictions are up-to-date
-    //  (i.e. call getPredictedBandwidth before this)
-    private ConditionChange getConditionChange(double timeInFuture) {
+    private ConditionChange getConditionChange(Snapshot predicted, double timeInFuture) {
         assert(timeInFuture < predictionHorizon);
         
-        double init_bw = mAvgBandwidthDown[0] + mAvgBandwidthUp[0];
+        double init_bw = predicted.avgBandwidthDown[0] + predicted.avgBandwidthUp[0];
         int step = (int) Math.floor(timeInFuture / predictionStep);
-        double cur_bw = mAvgBandwidthDown[step] + mAvgBandwidthUp[step];
+        double cur_bw = predicted.avgBandwidthDown[step] + predicted.avgBandwidthUp[step];
         double threshold = bwChangeThreshold + 
-                           mStddevBandwidthDown[step] + 
-                           mStddevBandwidthUp[step];
+                           predicted.stddevBandwidthDown[step] + 
+                           predicted.stddevBandwidthUp[step];
         ConditionChange change = ConditionChange.NO_CHANGE;
         if (Math.abs(cur_bw - init_bw) > threshold) {
             if (cur_bw > init_bw) {
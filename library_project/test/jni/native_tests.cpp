@@ -2,6 +2,7 @@
 #include <jni.h>
 #include <time.h>
 #include <string.h>
+#include <vector>
 
 #include <EnergyAdaptiveCache.h>
 #include <JNICacheFetcher.h>
@@ -95,6 +96,38 @@ Java_edu_umich_eac_NativeTest_testWithDelay(JNIEnv *jenv, jobject jobj,
     }
 }
 
+JNIEXPORT void JNICALL 
+Java_edu_umich_eac_NativeTest_testPrefetchAll(JNIEnv *jenv, jobject jobj,
+                                              jobject context)
+{
+    EnergyAdaptiveCache cache(jenv, context, AGGRESSIVE);
+
+    const int numFetchers = 100;
+    std::vector<JNICacheFetcherPtr> fetchers;
+    for (int i = 0; i < numFetchers; ++i) {
+        fetchers.push_back(JNICacheFetcherPtr(new FakeFetcher(0)));
+    }
+    fetchers.push_back(JNICacheFetcherPtr());
+
+    std::vector<Future *> futures = cache.prefetchAll(fetchers);
+    try {
+        assertTrue(jenv, "One future per fetcher", 
+                   futures.size() == fetchers.size());
+        assertTrue(jenv, "No future for NULL fetcher", 
+                   futures[numFetchers] == NULL);
+        for (int i = 0; i < numFetchers; ++i) {
+            const char *str = (const char *)futures[i]->get();
+            assertTrue(jenv, "String matches", strcmp(str, FakeFetcher::msg) == 0);
+            assertTrue(jenv, "Future done", futures[i]->isDone());
+        }
+    } catch (jniunit::AssertionException& e) {
+        // test failed; junit will detect it
+    }
+    for (size_t i = 0; i < futures.size(); ++i) {
+        delete futures[i];
+    }
+}
+
 #ifdef __cplusplus
 }
 #endif
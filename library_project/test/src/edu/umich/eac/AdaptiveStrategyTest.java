@@ -28,4 +28,17 @@ public class AdaptiveStrategyTest extends InstrumentationTestCase {
         Thread.sleep(5000);
         assertTrue(future2.isDone());
     }
+    
+    public void testRecheckDelayGrowsWithMargin() {
+        assertEquals(AdaptivePrefetchStrategy.MIN_RECHECK_MS,
+                     AdaptivePrefetchStrategy.recheckDelayMillis(1.0, 1.0));
+        long near = AdaptivePrefetchStrategy.recheckDelayMillis(1.1, 1.0);
+        long far = AdaptivePrefetchStrategy.recheckDelayMillis(3.0, 1.0);
+        assertTrue(near < far);
+        assertEquals(AdaptivePrefetchStrategy.MAX_RECHECK_MS,
+                     AdaptivePrefetchStrategy.recheckDelayMillis(1000.0, 1.0));
+        // no benefit: nothing but a signal can change the decision
+        assertEquals(AdaptivePrefetchStrategy.MAX_RECHECK_MS,
+                     AdaptivePrefetchStrategy.recheckDelayMillis(1.0, 0.0));
+    }
 }
@@ -0,0 +1,192 @@
+package edu.umich.eac;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.InstrumentationTestCase;
+import edu.umich.eac.BandwidthPredictionClient.Snapshot;
+
+public class BandwidthPredictionClientTest extends InstrumentationTestCase {
+    private static final int INTERVALS = 6;
+
+    /**
+     * Stands in for the prediction server: answers each "average" request
+     * with bandwidths derived from the request's start time.
+     */
+    private static class FakeServer extends Thread {
+        ServerSocket listener;
+        AtomicInteger connections = new AtomicInteger();
+        AtomicInteger requests = new AtomicInteger();
+        // hang up after this many requests on a connection (0: never)
+        volatile int requestsPerConnection = 0;
+        volatile long replyDelayMillis = 0;
+        volatile double bandwidthBase = 1000.0;
+
+        FakeServer() throws IOException {
+            listener = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    final Socket sock = listener.accept();
+                    connections.incrementAndGet();
+                    new Thread() {
+                        public void run() {
+                            serve(sock);
+                        }
+                    }.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket sock) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+                PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
+                int served = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    assertEquals("average", fields[0]);
+                    double start = Double.parseDouble(fields[1]);
+                    requests.incrementAndGet();
+                    if (replyDelayMillis > 0) {
+                        Thread.sleep(replyDelayMillis);
+                    }
+                    out.println(String.format("down   %f %f  up %f   %f",
+                                              bandwidthBase + start, 10.0,
+                                              bandwidthBase / 2 + start, 5.0));
+                    if (++served == requestsPerConnection) {
+                        break;
+                    }
+                }
+                sock.close();
+            } catch (Exception e) {
+                // client went away
+            }
+        }
+
+        void shutdown() throws IOException, InterruptedException {
+            listener.close();
+            // the listening socket may stay open until accept() returns.
+            join();
+        }
+    }
+
+    private FakeServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws IOException, InterruptedException {
+        server.shutdown();
+    }
+
+    private BandwidthPredictionClient newClient(long ttlMillis) {
+        return new BandwidthPredictionClient("127.0.0.1", server.port(), INTERVALS, 5.0, ttlMillis,
+                                              Clock.SYSTEM);
+    }
+
+    public void testParsesPipelinedReplies() throws IOException {
+        BandwidthPredictionClient client = newClient(1000);
+        Snapshot snapshot = client.refresh();
+        for (int i = 0; i < INTERVALS; ++i) {
+            assertEquals(1000.0 + 5.0 * i, snapshot.avgBandwidthDown[i], 0.001);
+            assertEquals(10.0, snapshot.stddevBandwidthDown[i], 0.001);
+            assertEquals(500.0 + 5.0 * i, snapshot.avgBandwidthUp[i], 0.001);
+            assertEquals(5.0, snapshot.stddevBandwidthUp[i], 0.001);
+        }
+        client.close();
+    }
+
+    public void testReusesConnection() throws IOException {
+        BandwidthPredictionClient client = newClient(1000);
+        for (int i = 0; i < 5; ++i) {
+            client.refresh();
+        }
+        assertEquals(1, client.connections());
+        assertEquals(5 * INTERVALS, server.requests.get());
+        client.close();
+    }
+
+    public void testReconnectsWhenServerHangsUp() throws IOException {
+        server.requestsPerConnection = INTERVALS;
+        BandwidthPredictionClient client = newClient(1000);
+        client.refresh();
+        server.bandwidthBase = 2000.0;
+        Snapshot snapshot = client.refresh();
+        assertEquals(2000.0, snapshot.avgBandwidthDown[0], 0.001);
+        assertEquals(2, client.connections());
+        client.close();
+    }
+
+    public void testFailsWithoutServer() throws Exception {
+        BandwidthPredictionClient client = newClient(1000);
+        server.shutdown();
+        try {
+            client.refresh();
+            fail("Should have failed to connect");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(client.latest());
+        client.close();
+    }
+
+    public void testLatestNeverBlocks() throws Exception {
+        server.replyDelayMillis = 100;
+        BandwidthPredictionClient client = newClient(200);
+
+        long start = System.currentTimeMillis();
+        assertNull(client.latest());
+        assertTrue(System.currentTimeMillis() - start < 50);
+        assertTrue(client.awaitFirst(5000));
+        Snapshot first = client.latest();
+        assertNotNull(first);
+
+        // once it's stale, callers keep getting it while it's refreshed.
+        server.bandwidthBase = 3000.0;
+        Thread.sleep(250);
+        start = System.currentTimeMillis();
+        assertSame(first, client.latest());
+        assertTrue(System.currentTimeMillis() - start < 50);
+        for (int i = 0; i < 50 && client.latest() == first; ++i) {
+            Thread.sleep(100);
+        }
+        assertEquals(3000.0, client.latest().avgBandwidthDown[0], 0.001);
+        assertEquals(1, client.connections());
+        client.close();
+    }
+
+    public void testParseReply() throws IOException {
+        Snapshot snapshot = new Snapshot(1, 0);
+        BandwidthPredictionClient.parseReply("  x 1.5   2.5 y 3.5 4.5", snapshot, 0);
+        assertEquals(1.5, snapshot.avgBandwidthDown[0], 0.0);
+        assertEquals(2.5, snapshot.stddevBandwidthDown[0], 0.0);
+        assertEquals(3.5, snapshot.avgBandwidthUp[0], 0.0);
+        assertEquals(4.5, snapshot.stddevBandwidthUp[0], 0.0);
+        try {
+            BandwidthPredictionClient.parseReply("x 1.5 2.5", snapshot, 0);
+            fail("Should have rejected a short reply");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+
+public class BatchFetchTest extends InstrumentationTestCase {
+    private EnergyAdaptiveCache cache;
+
+    @Override
+    protected void setUp() {
+        cache = new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                        PrefetchStrategyType.CONSERVATIVE);
+    }
+
+    /** Fetches items by name; counts requests, not items. */
+    private static class NameServer implements BatchFetcher<String> {
+        int batchRequests = 0;
+        int batchItems = 0;
+        int singleRequests = 0;
+        // if >= 0, the batch stops after delivering this many items.
+        int deliverOnly = -1;
+        boolean failOnSecond = false;
+
+        public void fetchAll(List<CacheFetcher<String>> items, int labels,
+                             Results<String> results) throws Exception {
+            synchronized (this) {
+                batchRequests++;
+                batchItems += items.size();
+            }
+            assertTrue((labels & IntNWLabels.BACKGROUND) != 0);
+            for (int i = 0; i < items.size(); ++i) {
+                if (i == deliverOnly) {
+                    return;
+                }
+                if (failOnSecond && i == 1) {
+                    results.fail(i, new IllegalStateException("no such item"));
+                    continue;
+                }
+                results.deliver(i, ((NamedFetcher) items.get(i)).name);
+            }
+        }
+    }
+
+    private static class NamedFetcher extends CacheFetcher<String> {
+        String name;
+        NameServer server;
+
+        NamedFetcher(String name, NameServer server) {
+            this.name = name;
+            this.server = server;
+        }
+
+        public String call(int labels) {
+            synchronized (server) {
+                server.singleRequests++;
+            }
+            return name;
+        }
+
+        public int bytesToTransfer() {
+            return name.length();
+        }
+
+        public BatchFetcher<String> getBatchFetcher() {
+            return server;
+        }
+    }
+
+    private List<FetchFuture<?>> hintAll(NameServer server, int count) {
+        List<FetchFuture<?>> prefetches = new ArrayList<FetchFuture<?>>();
+        for (int i = 0; i < count; ++i) {
+            prefetches.add((FetchFuture<?>) cache.prefetch(new NamedFetcher("item " + i, server)));
+        }
+        return prefetches;
+    }
+
+    /**
+     * Wait for the prefetches to finish without get(), which would
+     * promote them to demand fetches of their own.
+     */
+    private void awaitAll(List<FetchFuture<?>> prefetches) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(prefetches.size());
+        FetchListener<Object> listener = new FetchListener<Object>() {
+            public void onSuccess(Object result) {
+                done.countDown();
+            }
+
+            public void onFailure(Throwable cause) {
+                done.countDown();
+            }
+
+            public void onCancelled() {
+                done.countDown();
+            }
+        };
+        Executor direct = new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        for (FetchFuture<?> prefetch : prefetches) {
+            prefetch.addListener(listener, direct);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testIssuesOneRequestForBatch() throws Exception {
+        NameServer server = new NameServer();
+        List<FetchFuture<?>> prefetches = hintAll(server, 5);
+        BatchedFetch.start(prefetches);
+        awaitAll(prefetches);
+        for (int i = 0; i < prefetches.size(); ++i) {
+            assertEquals("item " + i, prefetches.get(i).get());
+        }
+        assertEquals(1, server.batchRequests);
+        assertEquals(5, server.batchItems);
+        assertEquals(0, server.singleRequests);
+    }
+
+    public void testUndeliveredItemsFallBack() throws Exception {
+        NameServer server = new NameServer();
+        server.deliverOnly = 2;
+        List<FetchFuture<?>> prefetches = hintAll(server, 4);
+        BatchedFetch.start(prefetches);
+        awaitAll(prefetches);
+        for (int i = 0; i < prefetches.size(); ++i) {
+            assertEquals("item " + i, prefetches.get(i).get());
+        }
+        assertEquals(1, server.batchRequests);
+        assertEquals(2, server.singleRequests);
+    }
+
+    public void testFailureAffectsOnlyItsItem() throws Exception {
+        NameServer server = new NameServer();
+        server.failOnSecond = true;
+        List<FetchFuture<?>> prefetches = hintAll(server, 3);
+        BatchedFetch.start(prefetches);
+        awaitAll(prefetches);
+        assertEquals("item 0", prefetches.get(0).get());
+        try {
+            prefetches.get(1).get();
+            fail("Failed item should throw");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("item 2", prefetches.get(2).get());
+    }
+
+    public void testSkipsIssuedAndUnbatchable() throws Exception {
+        NameServer server = new NameServer();
+        List<FetchFuture<?>> prefetches = hintAll(server, 3);
+        // already demand-fetched
+        assertEquals("item 0", prefetches.get(0).get());
+        FetchFuture<?> unbatchable = (FetchFuture<?>) cache.prefetch(new FakeFetcher("alone"));
+        prefetches.add(unbatchable);
+
+        BatchedFetch.start(prefetches);
+        awaitAll(prefetches);
+        assertEquals("item 1", prefetches.get(1).get());
+        assertEquals("item 2", prefetches.get(2).get());
+        assertEquals("alone", unbatchable.get());
+        assertEquals(1, server.batchRequests);
+        assertEquals(2, server.batchItems);
+        assertEquals(1, server.singleRequests);
+    }
+}
@@ -0,0 +1,125 @@
+package edu.umich.eac;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Hammers the stats counters from more and more threads.  Prints the
+ * throughput at each thread count (striped vs. one shared lock), so the
+ * scaling can be eyeballed, but only checks that no counts get lost;
+ * throughput on a test machine is too noisy to assert on.
+ */
+public class CacheStatsContentionTest extends InstrumentationTestCase {
+    private static final String TAG = CacheStatsContentionTest.class.getName();
+    private static final int OPS_PER_THREAD = 200000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private interface Counter {
+        void increment();
+        long sum();
+    }
+
+    private static class LockedCounter implements Counter {
+        private long count;
+        public synchronized void increment() { count++; }
+        public synchronized long sum() { return count; }
+    }
+
+    private static class Striped implements Counter {
+        private final StripedCounter counter = new StripedCounter();
+        public void increment() { counter.increment(); }
+        public long sum() { return counter.sum(); }
+    }
+
+    /** @return ops per second across all the threads. */
+    private double hammer(final Counter counter, int numThreads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int i = 0; i < numThreads; ++i) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < OPS_PER_THREAD; ++j) {
+                            counter.increment();
+                        }
+                    } catch (InterruptedException e) {
+                        // counted as lost below.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = Math.max(1, System.nanoTime() - begin);
+
+        assertEquals((long) numThreads * OPS_PER_THREAD, counter.sum());
+        return numThreads * (double) OPS_PER_THREAD / (elapsed / 1e9);
+    }
+
+    public void testStripedCounterScaling() throws InterruptedException {
+        for (int numThreads : THREAD_COUNTS) {
+            double locked = hammer(new LockedCounter(), numThreads);
+            double striped = hammer(new Striped(), numThreads);
+            Log.d(TAG, String.format("%d threads: locked %.1f Mops/s, striped %.1f Mops/s",
+                                     numThreads, locked / 1e6, striped / 1e6));
+        }
+    }
+
+    public void testConcurrentStatsEvents() throws InterruptedException {
+        final EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(new HostPlatform(), PrefetchStrategyType.AGGRESSIVE);
+        final CacheStats stats = new CacheStats();
+        final int numThreads = 8;
+        final int perThread = 2000;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final boolean[] sawMoreHitsThanDemands = new boolean[1];
+        long begin = System.nanoTime();
+        for (int i = 0; i < numThreads; ++i) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; ++j) {
+                            FetchFuture<String> fetch =
+                                new FetchFuture<String>(new FakeFetcher("item"), cache);
+                            if (j % 2 == 0) {
+                                // a hit
+                                fetch.completeWith("item");
+                            }
+                            stats.onPrefetchHint(fetch);
+                            stats.onDemandFetch(fetch);
+                            stats.onResultStoreMiss();
+                            CacheStats.Snapshot counts = stats.snapshot();
+                            if (counts.hits > counts.demandRequests) {
+                                synchronized (sawMoreHitsThanDemands) {
+                                    sawMoreHitsThanDemands[0] = true;
+                                }
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        Log.d(TAG, String.format("%d threads: %.1f stats events/s",
+                                 numThreads, 3.0 * numThreads * perThread / seconds));
+
+        synchronized (sawMoreHitsThanDemands) {
+            assertFalse(sawMoreHitsThanDemands[0]);
+        }
+        CacheStats.Snapshot counts = stats.snapshot();
+        assertEquals(numThreads * perThread, counts.hints);
+        assertEquals(numThreads * perThread, counts.demandRequests);
+        assertEquals(numThreads * perThread, counts.storeMisses);
+        assertEquals(numThreads * perThread / 2, counts.hits);
+        assertEquals(0.5, counts.hitRate());
+        assertEquals(stats.getHitRate(), counts.hitRate());
+    }
+}
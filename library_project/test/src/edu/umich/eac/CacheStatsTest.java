@@ -1,9 +1,93 @@
 package edu.umich.eac;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
 import android.test.InstrumentationTestCase;
 
 public class CacheStatsTest extends InstrumentationTestCase {
     public void testHitRate() {
         // TODO
     }
+
+    public void testCompletedFetchesAndLatencies() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(new HostPlatform(), PrefetchStrategyType.AGGRESSIVE);
+        Future<String> prefetched = cache.prefetch(new FakeFetcher("hinted"));
+        // wait for the prefetch without demanding it.
+        while (!prefetched.isDone()) {
+            Thread.sleep(10);
+        }
+        assertEquals("hinted", prefetched.get());
+        // a repeated get() isn't another hint->demand delay.
+        assertEquals("hinted", prefetched.get());
+        assertEquals("unhinted", cache.fetch(new FakeFetcher("unhinted")).get());
+        Future<String> cancelled = cache.prefetch(new FakeFetcher("cancelled"));
+        cancelled.cancel(true);
+
+        assertTrue(cache.stats.numCompletedFetches() >= 2);
+        LatencyMetrics.Snapshot latencies = cache.metrics().snapshot();
+        // the unhinted fetch goes out as a demand fetch.
+        assertEquals(2, latencies.get(LatencyMetrics.Metric.HINT_TO_ISSUE).count());
+        assertEquals(2, latencies.get(LatencyMetrics.Metric.HINT_TO_ISSUE,
+                                      CacheFetcher.DEFAULT_PREFETCH_CLASS,
+                                      LatencyMetrics.Network.ANY).count());
+        assertTrue(latencies.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE).count() >= 2);
+        // only the hinted fetch has a hint->demand delay.
+        assertEquals(1, latencies.get(LatencyMetrics.Metric.HINT_TO_DEMAND).count());
+        // the unhinted fetch may or may not have finished before get().
+        long hits = latencies.get(LatencyMetrics.Metric.DEMAND_WAIT_HIT).count();
+        assertTrue(hits >= 2);
+        assertEquals(3, hits + latencies.get(LatencyMetrics.Metric.DEMAND_WAIT_MISS).count());
+    }
+
+    public void testPriorityAccuracyFollowsDemands() {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(new HostPlatform(), PrefetchStrategyType.AGGRESSIVE);
+        CacheStats stats = new CacheStats();
+        final List<Double> changes = new ArrayList<Double>();
+        stats.setPriorityAccuracyListener(new CacheStats.PriorityAccuracyListener() {
+            public void onPriorityAccuracyChanged(int prefetchClass, double accuracy) {
+                changes.add(accuracy);
+            }
+        });
+        FetchFuture<String> first = new FetchFuture<String>(new FakeFetcher("first"), cache);
+        FetchFuture<String> second = new FetchFuture<String>(new FakeFetcher("second"), cache);
+        stats.onPrefetchHint(first);
+        // the first value isn't a change.
+        assertTrue(changes.isEmpty());
+        assertEquals(0.0, stats.getPriorityAccuracy(first), 0.001);
+
+        stats.onDemandFetch(first);
+        stats.onPrefetchHint(second);
+        assertEquals(2, changes.size());
+        assertEquals(1.0, changes.get(0), 0.001);
+        assertEquals(0.5, changes.get(1), 0.05);
+        assertEquals(changes.get(1), stats.getPriorityAccuracy(second), 0.0);
+    }
+
+    public void testExporterHandsOverSnapshots() throws InterruptedException {
+        LatencyMetrics metrics = new LatencyMetrics();
+        metrics.record(LatencyMetrics.Metric.CANCEL, 0, LatencyMetrics.Network.ANY, 1000);
+        final LatencyMetrics.Snapshot[] exported = new LatencyMetrics.Snapshot[1];
+        MetricsExporter exporter = new MetricsExporter(metrics, 10, new MetricsExporter.Sink() {
+            public void export(LatencyMetrics.Snapshot snapshot) {
+                synchronized (exported) {
+                    exported[0] = snapshot;
+                    exported.notifyAll();
+                }
+            }
+        });
+        exporter.start();
+        synchronized (exported) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (exported[0] == null && System.currentTimeMillis() < deadline) {
+                exported.wait(100);
+            }
+        }
+        exporter.stop();
+        assertNotNull(exported[0]);
+        assertEquals(1, exported[0].get(LatencyMetrics.Metric.CANCEL).count());
+    }
 }
@@ -0,0 +1,111 @@
+package edu.umich.eac;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+import android.test.InstrumentationTestCase;
+
+public class CoalescingTest extends InstrumentationTestCase {
+    private static final String MSG = "The shared string.";
+
+    private class SlowKeyedFetcher extends CacheFetcher<String> {
+        int calls = 0;
+
+        public String call(int labels) throws InterruptedException {
+            synchronized (this) {
+                calls++;
+            }
+            Thread.sleep(1000);
+            return MSG;
+        }
+
+        public int bytesToTransfer() {
+            return MSG.length();
+        }
+
+        public Object getCacheKey() {
+            return "shared-key";
+        }
+    }
+
+    private EnergyAdaptiveCache newCache(PrefetchStrategyType type) {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(), type);
+        cache.setResultStoreCapacity(0);
+        return cache;
+    }
+
+    public void testConcurrentHintsShareOneFetch() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.AGGRESSIVE);
+        SlowKeyedFetcher fetcher = new SlowKeyedFetcher();
+        Future<String> first = cache.prefetch(fetcher);
+        Future<String> second = cache.prefetch(fetcher);
+
+        assertEquals(MSG, first.get());
+        assertEquals(MSG, second.get());
+        assertEquals(1, fetcher.calls);
+        assertEquals(1, cache.stats.numHints());
+        assertEquals(1, cache.stats.numCoalescedRequests());
+        assertEquals(2, cache.stats.numDemandRequests());
+    }
+
+    public void testPrefetchAllCoalescesDuplicates() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.AGGRESSIVE);
+        SlowKeyedFetcher fetcher = new SlowKeyedFetcher();
+        Future<?>[] futures = cache.prefetchAll(
+            new CacheFetcher<?>[] { fetcher, null, fetcher }
+        );
+
+        assertEquals(3, futures.length);
+        assertNull(futures[1]);
+        assertEquals(MSG, futures[0].get());
+        assertEquals(MSG, futures[2].get());
+        assertEquals(1, fetcher.calls);
+        assertEquals(1, cache.stats.numHints());
+        assertEquals(1, cache.stats.numCoalescedRequests());
+    }
+
+    public void testCancelOnlyAffectsOneCaller() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.AGGRESSIVE);
+        SlowKeyedFetcher fetcher = new SlowKeyedFetcher();
+        Future<String> first = cache.prefetch(fetcher);
+        Future<String> second = cache.prefetch(fetcher);
+
+        assertTrue(first.cancel(true));
+        assertTrue(first.isCancelled());
+        try {
+            first.get();
+            fail("Cancelled handle should throw CancellationException");
+        } catch (CancellationException e) {
+            // success
+        }
+
+        assertFalse(second.isCancelled());
+        assertEquals(MSG, second.get());
+        assertEquals(1, fetcher.calls);
+    }
+
+    public void testDemandFetchJoinsDeferredHint() throws Exception {
+        // conservative strategy never issues the hint on its own.
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        SlowKeyedFetcher fetcher = new SlowKeyedFetcher();
+        Future<String> hinted = cache.prefetch(fetcher);
+        Future<String> demanded = cache.fetch(fetcher);
+
+        assertEquals(MSG, demanded.get());
+        assertTrue(hinted.isDone());
+        assertEquals(MSG, hinted.get());
+        assertEquals(1, fetcher.calls);
+    }
+
+    public void testUnkeyedFetchesAreNotShared() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.AGGRESSIVE);
+        FakeFetcher fetcher = new FakeFetcher(MSG);
+        Future<String> first = cache.prefetch(fetcher);
+        Future<String> second = cache.prefetch(fetcher);
+        assertNotSame(first, second);
+        assertEquals(0, cache.stats.numCoalescedRequests());
+        assertEquals(MSG, first.get());
+        assertEquals(MSG, second.get());
+    }
+}
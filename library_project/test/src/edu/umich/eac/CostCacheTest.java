@@ -0,0 +1,54 @@
+package edu.umich.eac;
+
+import android.net.ConnectivityManager;
+import android.test.InstrumentationTestCase;
+
+public class CostCacheTest extends InstrumentationTestCase {
+    private static final int WIFI = ConnectivityManager.TYPE_WIFI;
+    private static final int MOBILE = ConnectivityManager.TYPE_MOBILE;
+
+    public void testSizeBuckets() {
+        for (int i = 0; i < 64; ++i) {
+            assertEquals(i, CostCache.sizeBucket(i));
+        }
+        // within 1/64 of each other: same bucket
+        assertEquals(CostCache.sizeBucket(100000), CostCache.sizeBucket(100100));
+        assertFalse(CostCache.sizeBucket(100000) == CostCache.sizeBucket(103000));
+        // buckets increase with size
+        int last = -1;
+        for (int bytes = 1; bytes < (1 << 30); bytes += 1 + bytes / 100) {
+            int bucket = CostCache.sizeBucket(bytes);
+            assertTrue(bucket >= last);
+            last = bucket;
+        }
+    }
+
+    public void testKeyedBySizeNetworkAndTerm() {
+        CostCache cache = new CostCache();
+        cache.validate(1, 1, 1);
+        cache.put(5000, WIFI, HintEvaluator.NOW, 1.5);
+        assertEquals(1.5, cache.get(5000, WIFI, HintEvaluator.NOW), 0.0);
+        assertNull(cache.get(5000, MOBILE, HintEvaluator.NOW));
+        assertNull(cache.get(5000, WIFI, HintEvaluator.LATER));
+        assertNull(cache.get(50000, WIFI, 0));
+        assertEquals(1, cache.hits());
+        assertEquals(3, cache.misses());
+    }
+
+    public void testEpochChangeClears() {
+        CostCache cache = new CostCache();
+        cache.validate(1, 1, 1);
+        cache.put(5000, WIFI, 0, 1.5);
+        cache.validate(1, 1, 1);
+        assertNotNull(cache.get(5000, WIFI, 0));
+
+        cache.validate(2, 1, 1);
+        assertNull(cache.get(5000, WIFI, 0));
+        cache.put(5000, WIFI, 0, 1.5);
+        cache.validate(2, 2, 1);
+        assertNull(cache.get(5000, WIFI, 0));
+        cache.put(5000, WIFI, 0, 1.5);
+        cache.validate(2, 2, 2);
+        assertNull(cache.get(5000, WIFI, 0));
+    }
+}
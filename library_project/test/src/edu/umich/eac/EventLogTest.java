@@ -0,0 +1,119 @@
+package edu.umich.eac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+
+import android.test.InstrumentationTestCase;
+
+public class EventLogTest extends InstrumentationTestCase {
+    private String decode(ByteArrayOutputStream bytes) throws IOException {
+        StringWriter text = new StringWriter();
+        EventLog.decode(new ByteArrayInputStream(bytes.toByteArray()), new PrintWriter(text));
+        return text.toString();
+    }
+
+    public void testDecodesToTextFormat() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventLog log = new EventLog("test", bytes, EventLog.Level.DEBUG, 64, Clock.SYSTEM);
+        log.event(EventLog.Level.INFO, "hint", 0x1234, 0);
+        log.message(EventLog.Level.DEBUG, "Cost = %s; %s prefetch 0x%08x", 1.5, "issuing", 0xbeef);
+        log.event(EventLog.Level.INFO, "prefetch-done", 0x1234, 4096);
+        log.message(EventLog.Level.DEBUG, "100% literal");
+        assertTrue(log.flush());
+
+        String[] lines = decode(bytes).split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].matches("\\d+ hint 0x00001234"));
+        assertTrue(lines[1].matches("\\d+ Cost = 1.5; issuing prefetch 0x0000beef"));
+        assertTrue(lines[2].matches("\\d+ prefetch-done 0x00001234 4096"));
+        assertTrue(lines[3].matches("\\d+ 100% literal"));
+    }
+
+    public void testLevelFiltering() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventLog log = new EventLog("test", bytes, EventLog.Level.INFO, 64, Clock.SYSTEM);
+        assertFalse(log.isEnabled(EventLog.Level.DEBUG));
+        log.message(EventLog.Level.DEBUG, "filtered");
+        log.event(EventLog.Level.INFO, "kept", 1, 0);
+        log.setLevel(EventLog.Level.OFF);
+        log.event(EventLog.Level.WARN, "filtered-too", 2, 0);
+        assertTrue(log.flush());
+
+        String[] lines = decode(bytes).split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith("kept 0x00000001"));
+    }
+
+    public void testDisabledWithoutStream() {
+        EventLog log = new EventLog("test", null, EventLog.Level.DEBUG, 64, Clock.SYSTEM);
+        assertFalse(log.isEnabled(EventLog.Level.WARN));
+        log.event(EventLog.Level.WARN, "ignored", 0, 0);
+        assertTrue(log.flush());
+    }
+
+    private static class StalledStream extends OutputStream {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            bytes.write(b, off, len);
+        }
+    }
+
+    public void testDropsInsteadOfBlockingWhenFull() throws Exception {
+        StalledStream stream = new StalledStream();
+        EventLog log = new EventLog("test", stream, EventLog.Level.DEBUG, 16, Clock.SYSTEM);
+        // nothing reaches the stream until the drainer's first flush,
+        //  which stalls; so the ring fills up.
+        for (int i = 0; i < 200; ++i) {
+            log.event(EventLog.Level.INFO, "event", i, 0);
+        }
+        assertTrue(log.droppedRecords() > 0);
+        stream.release.countDown();
+        assertTrue(log.flush());
+
+        int lines = decode(stream.bytes).split("\n").length;
+        assertEquals(200 - log.droppedRecords(), lines);
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final EventLog log = new EventLog("test", bytes, EventLog.Level.DEBUG, 1 << 16, Clock.SYSTEM);
+        final int threads = 4;
+        final int perThread = 5000;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final int id = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; ++i) {
+                        log.event(EventLog.Level.INFO, "writer-" + id, i, 0);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(log.flush());
+        assertEquals(0, log.droppedRecords());
+        assertEquals(threads * perThread, decode(bytes).split("\n").length);
+    }
+}
@@ -77,6 +77,59 @@ public class GoalAdaptiveResourceWeightTest extends InstrumentationTestCase {
         fail("Weight should have been updated");
     }
     
+    public void testListenerHearsSignificantChanges() throws InterruptedException {
+        weight = new GoalAdaptiveResourceWeight(null, "test", 10, secondsInFuture(60));
+        final int[] notifications = new int[1];
+        weight.setWeightListener(new GoalAdaptiveResourceWeight.WeightListener() {
+            public void onWeightChanged(GoalAdaptiveResourceWeight changed) {
+                synchronized (notifications) {
+                    notifications[0]++;
+                }
+            }
+        });
+        double initWeight = weight.getWeight();
+        weight.reportSpentResource(5);
+        weight.forceUpdateWeight();
+        double newWeight = weight.getWeight();
+        assertTrue(Math.abs(newWeight - initWeight) > 
+                   GoalAdaptiveResourceWeight.WEIGHT_CHANGE_THRESHOLD * initWeight);
+        synchronized (notifications) {
+            assertTrue(notifications[0] >= 1);
+        }
+    }
+    
+    private static class ManualClock implements Clock {
+        long nanos = 0;
+        long wallMillis = 1000000;
+        
+        public long nanoTime() {
+            return nanos;
+        }
+        
+        public long currentTimeMillis() {
+            return wallMillis;
+        }
+    }
+    
+    public void testWallClockJumpsDontMoveTheGoal() {
+        ManualClock steady = new ManualClock();
+        ManualClock jumpy = new ManualClock();
+        long goal = 60L * 1000 * 1000 * 1000;
+        GoalAdaptiveResourceWeight steadyWeight =
+            new GoalAdaptiveResourceWeight(null, "steady", 10, goal, steady, false);
+        weight = new GoalAdaptiveResourceWeight(null, "jumpy", 10, goal, jumpy, false);
+        
+        steady.nanos = jumpy.nanos = 30L * 1000 * 1000 * 1000;
+        // e.g. NTP setting the clock back an hour
+        jumpy.wallMillis -= 60 * 60 * 1000;
+        steadyWeight.reportSpentResource(5);
+        weight.reportSpentResource(5);
+        steadyWeight.forceUpdateWeight();
+        weight.forceUpdateWeight();
+        assertEquals(steadyWeight.getWeight(), weight.getWeight(), 0.0);
+        assertTrue(weight.getWeight() < 1000.0);
+    }
+    
     private Date secondsInFuture(double seconds) {
         long millis = (long) (seconds * 1000);
         return new Date(System.currentTimeMillis() + millis);
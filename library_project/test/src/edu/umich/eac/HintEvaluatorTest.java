@@ -0,0 +1,228 @@
+package edu.umich.eac;
+
+import java.util.Random;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+public class HintEvaluatorTest extends InstrumentationTestCase {
+    private static final String TAG = HintEvaluatorTest.class.getName();
+
+    // network masks
+    private static final int DEFER = 0;
+    private static final int CHEAP = 1 << 0;
+    private static final int DEAR = 1 << 1;
+
+    /**
+     * Fetch time is bytes / bandwidth; fetching now costs a fixed
+     * overhead plus a price per byte; fetching later costs a (lower)
+     * price per byte.
+     */
+    private static class FakeCostModel implements HintEvaluator.CostModel {
+        HintEvaluator.Hints hints;
+        double[] bandwidth = { 1000.0, 1000.0 };
+        double[] overhead = { 0.0, 0.0 };
+        double[] priceNow = { 0.001, 0.01 };
+        double priceLater = 0.0005;
+        int termCalls = 0;
+
+        public double duration(int hint, int network) {
+            return hints.bytes[hint] / bandwidth[network];
+        }
+
+        public void costTerms(int network, int bytes, double duration, double[] terms) {
+            termCalls++;
+            terms[HintEvaluator.NOW] = overhead[network] + bytes * priceNow[network];
+            terms[HintEvaluator.LATER] = bytes * priceLater;
+        }
+    }
+
+    private FakeCostModel model(HintEvaluator.Hints hints) {
+        FakeCostModel model = new FakeCostModel();
+        model.hints = hints;
+        return model;
+    }
+
+    private static final boolean[] BOTH = { true, true };
+
+    public void testChoosesFirstWorthwhileNetwork() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(4);
+        // 1000 bytes: cost 1.0 - 0.5 acc on CHEAP, 10.0 - 0.5 acc on DEAR
+        hints.add(null, 1000, 1.0, 2.0, false);  // CHEAP: 0.5 < 2.0
+        hints.add(null, 1000, 1.0, 0.1, false);  // neither
+        hints.add(null, 1000, 0.0, 20.0, false); // no accuracy, no benefit
+        HintEvaluator evaluator = new HintEvaluator();
+        FakeCostModel model = model(hints);
+        model.priceNow = new double[] { 0.01, 0.001 };
+        hints.add(null, 1000, 1.0, 5.0, false);  // DEAR only: 0.5 < 5.0 < 9.5
+        evaluator.evaluate(hints, BOTH, model);
+
+        assertEquals(DEAR, evaluator.networks[0]);
+        assertEquals(DEFER, evaluator.networks[1]);
+        assertEquals(DEFER, evaluator.networks[2]);
+        assertEquals(DEAR, evaluator.networks[3]);
+        assertEquals(0.5, evaluator.cost[0], 1e-9);
+        assertEquals(2.0, evaluator.benefit[0], 1e-9);
+        // not worth it anywhere: reports the preferred network's cost
+        assertEquals(9.5, evaluator.cost[1], 1e-9);
+
+        model.priceNow = new double[] { 0.001, 0.01 };
+        evaluator.evaluate(hints, BOTH, model);
+        assertEquals(CHEAP, evaluator.networks[0]);
+        assertEquals(CHEAP, evaluator.networks[3]);
+    }
+
+    public void testSkipsUnavailableNetworks() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(1);
+        hints.add(null, 1000, 1.0, 2.0, false);
+        HintEvaluator evaluator = new HintEvaluator();
+        FakeCostModel model = model(hints);
+        evaluator.evaluate(hints, new boolean[] { false, true }, model);
+        assertEquals(DEFER, evaluator.networks[0]);
+        assertEquals(9.5, evaluator.cost[0], 1e-9);
+
+        hints.fetchTime[0] = 10.0;
+        evaluator.evaluate(hints, new boolean[] { false, true }, model);
+        assertEquals(DEAR, evaluator.networks[0]);
+    }
+
+    public void testRanksByNetBenefitThenQueueOrder() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(2);
+        hints.add(null, 1000, 1.0, 1.0, false);   // score 0.5
+        hints.add(null, 1000, 1.0, 3.0, false);   // score 2.5
+        hints.add(null, 1000, 1.0, 9.0, true);    // issued: not ranked
+        hints.add(null, 1000, 1.0, 1.0, false);   // score 0.5, but later in the queue
+        hints.add(null, 1000, 1.0, 0.1, false);   // deferred
+        HintEvaluator evaluator = new HintEvaluator();
+        evaluator.evaluate(hints, BOTH, model(hints));
+
+        assertEquals(4, evaluator.numRanked);
+        assertEquals(1, evaluator.ranked[0]);
+        assertEquals(0, evaluator.ranked[1]);
+        assertEquals(3, evaluator.ranked[2]);
+        assertEquals(4, evaluator.ranked[3]);
+    }
+
+    public void testCostTermsComputedOncePerBucket() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(16);
+        for (int i = 0; i < 1000; ++i) {
+            hints.add(null, 100000 + (i % 10), 0.5, 1.0, false);
+        }
+        hints.add(null, 5000, 0.5, 1.0, false);
+        HintEvaluator evaluator = new HintEvaluator();
+        FakeCostModel model = model(hints);
+        evaluator.evaluate(hints, BOTH, model);
+        assertEquals(2 * 2, model.termCalls);
+    }
+
+    public void testFindsAmortizedBatch() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(8);
+        for (int i = 0; i < 8; ++i) {
+            hints.add(null, 1000, 1.0, 1.5, false);
+        }
+        HintEvaluator evaluator = new HintEvaluator();
+        FakeCostModel model = model(hints);
+        // each alone: 2.0 + 1.0 - 0.5 = 2.5 > 1.5
+        //  k together: 2.0 + 0.5k < 1.5k  when k > 2
+        model.overhead = new double[] { 2.0, 100.0 };
+        evaluator.evaluate(hints, BOTH, model);
+        for (int i = 0; i < 8; ++i) {
+            assertEquals(DEFER, evaluator.networks[i]);
+        }
+        assertEquals(3, evaluator.findBatch(0, model));
+        assertEquals(CHEAP, evaluator.batchNetworks);
+        assertEquals(3.5, evaluator.batchCost, 1e-9);
+        assertEquals(4.5, evaluator.batchBenefit, 1e-9);
+        // queue order first
+        assertEquals(0, evaluator.ranked[0]);
+
+        assertEquals(3, evaluator.findBatch(5, model));
+        assertEquals(0, evaluator.findBatch(6, model));
+        model.overhead = new double[] { 1000.0, 1000.0 };
+        assertEquals(0, evaluator.findBatch(0, model));
+    }
+
+    public void testStripesWhenCombinedCostIsBelowBenefit() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(2);
+        // costs: 0.5 on CHEAP, 9.5 on DEAR
+        hints.add(null, 1000, 1.0, 20.0, false);
+        hints.add(null, 1000, 1.0, 5.0, false);
+        HintEvaluator evaluator = new HintEvaluator();
+        FakeCostModel model = model(hints);
+        evaluator.evaluate(hints, BOTH, model);
+        assertEquals(CHEAP, evaluator.networks[0]);
+
+        evaluator.setStriping(true);
+        evaluator.evaluate(hints, BOTH, model);
+        assertEquals(CHEAP | DEAR, evaluator.networks[0]);
+        assertEquals(10.0, evaluator.cost[0], 1e-9);
+        // too dear to stripe; falls back on one network
+        assertEquals(CHEAP, evaluator.networks[1]);
+        // nothing to stripe across
+        evaluator.evaluate(hints, new boolean[] { true, false }, model);
+        assertEquals(CHEAP, evaluator.networks[0]);
+    }
+
+    public void testNoNetworksAvailable() {
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(1);
+        hints.add(null, 1000, 1.0, 2.0, false);
+        HintEvaluator evaluator = new HintEvaluator();
+        evaluator.evaluate(hints, new boolean[] { false, false }, model(hints));
+        assertEquals(DEFER, evaluator.networks[0]);
+        assertEquals(Double.POSITIVE_INFINITY, evaluator.cost[0]);
+        assertEquals(1, evaluator.numRanked);
+    }
+
+    private HintEvaluator.Hints randomHints(int n, long seed) {
+        Random random = new Random(seed);
+        HintEvaluator.Hints hints = new HintEvaluator.Hints(16);
+        for (int i = 0; i < n; ++i) {
+            hints.add(null, 1 + random.nextInt(1 << 20), random.nextDouble(),
+                      random.nextDouble() * 1000.0, random.nextInt(50) == 0);
+        }
+        return hints;
+    }
+
+    public void testParallelMatchesSerial() {
+        HintEvaluator.Hints hints = randomHints(4 * HintEvaluator.PARALLEL_THRESHOLD + 17, 42);
+        HintEvaluator serial = new HintEvaluator();
+        serial.setParallel(false);
+        serial.evaluate(hints, BOTH, model(hints));
+        HintEvaluator parallel = new HintEvaluator();
+        parallel.evaluate(hints, BOTH, model(hints));
+
+        assertEquals(serial.numRanked, parallel.numRanked);
+        for (int i = 0; i < hints.size; ++i) {
+            assertEquals(serial.networks[i], parallel.networks[i]);
+            assertEquals(serial.cost[i], parallel.cost[i], 0.0);
+            assertEquals(serial.benefit[i], parallel.benefit[i], 0.0);
+        }
+        for (int k = 0; k < serial.numRanked; ++k) {
+            assertEquals(serial.ranked[k], parallel.ranked[k]);
+        }
+    }
+
+    private double hintsPerSecond(HintEvaluator evaluator, HintEvaluator.Hints hints,
+                                  int rounds) {
+        FakeCostModel model = model(hints);
+        evaluator.evaluate(hints, BOTH, model); // warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            evaluator.evaluate(hints, BOTH, model);
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        return hints.size * rounds / seconds;
+    }
+
+    public void testThroughput() {
+        HintEvaluator.Hints hints = randomHints(100000, 7);
+        HintEvaluator serial = new HintEvaluator();
+        serial.setParallel(false);
+        double serialRate = hintsPerSecond(serial, hints, 10);
+        double parallelRate = hintsPerSecond(new HintEvaluator(), hints, 10);
+        Log.d(TAG, String.format("Evaluated %.0f hints/sec serially, %.0f hints/sec in parallel (%d cores)",
+                                 serialRate, parallelRate,
+                                 Runtime.getRuntime().availableProcessors()));
+        assertTrue(serialRate > 0 && parallelRate > 0);
+    }
+}
@@ -0,0 +1,109 @@
+package edu.umich.eac;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import android.test.InstrumentationTestCase;
+
+public class HostPlatformTest extends InstrumentationTestCase {
+    private File root;
+    private HostPlatform platform;
+
+    @Override
+    protected void setUp() throws IOException {
+        root = File.createTempFile("sysfs", "");
+        root.delete();
+        root.mkdir();
+        platform = new HostPlatform(root.getPath(), root);
+        platform.setLogLevel(HostPlatform.LogLevel.NONE);
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(root);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void addInterface(String name, String operstate, boolean wireless)
+        throws IOException {
+        File dir = new File(root, name);
+        dir.mkdir();
+        FileWriter out = new FileWriter(new File(dir, "operstate"));
+        out.write(operstate + "\n");
+        out.close();
+        if (wireless) {
+            new File(dir, "wireless").mkdir();
+        }
+    }
+
+    public void testUpInterfacesSkipLoopbackAndDown() throws IOException {
+        addInterface("lo", "up", false);
+        addInterface("eth0", "up", false);
+        addInterface("wlan0", "down", true);
+        assertEquals(1, platform.upInterfaces().size());
+        assertEquals("eth0", platform.upInterfaces().get(0));
+        assertFalse(platform.connectivity().isWifiConnected());
+    }
+
+    public void testSimulatedWifiNotifiesTrackers() throws InterruptedException {
+        WifiTracker tracker = new WifiTracker(platform);
+        assertFalse(tracker.isWifiAvailable());
+
+        platform.setWifiConnected(true, 42);
+        assertTrue(platform.connectivity().isWifiConnected());
+        assertEquals(42, platform.connectivity().wifiIpAddress());
+        assertTrue(platform.connectivity().isIpConnected(42));
+        Thread.sleep(WifiTracker.WIFI_AVAILABLE_FUDGE_FACTOR_MS + 50);
+        assertTrue(tracker.isWifiAvailable());
+
+        platform.setWifiConnected(false, 42);
+        assertFalse(tracker.isWifiAvailable());
+        assertFalse(platform.connectivity().isIpConnected(42));
+    }
+
+    public void testSimulatedInterfaceStats() {
+        platform.setWifiConnected(true, 1);
+        platform.setInterfaceStats(1, 1000, 500, 10);
+        platform.setInterfaceStats(2, 200, 100, 300);
+        platform.setInterfaceStats(2, 400, 100, 300);
+
+        Map<Integer, NetworkStats> stats = NetworkStats.getAllNetworkStatsByIp(platform);
+        assertEquals(2, stats.size());
+        assertEquals(1000, stats.get(1).bandwidthDown);
+        assertEquals(400, stats.get(2).bandwidthDown);
+
+        Map<Integer, NetworkStats> byType = NetworkStats.getAllNetworkStats(platform);
+        assertEquals(10, byType.get(NetworkStats.TYPE_WIFI).rttMillis);
+        assertEquals(300, byType.get(NetworkStats.TYPE_MOBILE).rttMillis);
+
+        platform.removeInterfaceStats(2);
+        assertEquals(1, NetworkStats.getAllNetworkStatsByIp(platform).size());
+    }
+
+    public void testEnergyMeterCountsFromCreation() {
+        platform.addEnergy(5);
+        Platform.EnergyMeter meter = platform.energyMeter();
+        assertEquals(0, meter.energyConsumed());
+        platform.addEnergy(7);
+        assertEquals(7, meter.energyConsumed());
+    }
+
+    public void testCacheRunsOnHost() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(platform, PrefetchStrategyType.AGGRESSIVE);
+        Future<String> future = cache.prefetch(new FakeFetcher("on the host"));
+        assertEquals("on the host", future.get());
+    }
+}
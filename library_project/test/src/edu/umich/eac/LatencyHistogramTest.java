@@ -0,0 +1,80 @@
+package edu.umich.eac;
+
+import android.test.InstrumentationTestCase;
+
+public class LatencyHistogramTest extends InstrumentationTestCase {
+    public void testBucketsCoverEveryValue() {
+        long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, 1L << 43 };
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value);
+            // within an eighth of the value
+            long width = LatencyHistogram.upperBound(bucket) - LatencyHistogram.lowerBound(bucket);
+            assertTrue(width <= Math.max(0, value / 8));
+        }
+        for (int bucket = 1; bucket < LatencyHistogram.NUM_BUCKETS; ++bucket) {
+            assertEquals(LatencyHistogram.upperBound(bucket - 1) + 1,
+                         LatencyHistogram.lowerBound(bucket));
+        }
+        // the last bucket takes everything too big for the others.
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketOf((1L << 44) - 1));
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 100; ++millis) {
+            histogram.record(millis * 1000000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.count());
+        assertEquals(50.5e6, snapshot.mean(), 1.0);
+        assertEquals(100000000, snapshot.max());
+        assertEquals(50e6, snapshot.percentile(50), 50e6 / 8);
+        assertEquals(95e6, snapshot.percentile(95), 95e6 / 8);
+        assertEquals(100000000, snapshot.percentile(100));
+        assertEquals(0, LatencyHistogram.Snapshot.EMPTY.percentile(50));
+    }
+
+    public void testSnapshotsAreImmutableAndMerge() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        LatencyHistogram.Snapshot before = first.snapshot();
+        first.record(20);
+        second.record(1000);
+        assertEquals(1, before.count());
+
+        LatencyHistogram.Snapshot merged = first.snapshot().merge(second.snapshot());
+        assertEquals(3, merged.count());
+        assertEquals(1000, merged.max());
+        assertEquals(1030 / 3.0, merged.mean(), 0.001);
+        assertEquals(2, first.snapshot().count());
+    }
+
+    public void testMetricsBreakDownByClassAndNetwork() {
+        LatencyMetrics metrics = new LatencyMetrics();
+        metrics.record(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 1, LatencyMetrics.Network.WIFI, 100);
+        metrics.record(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 1, LatencyMetrics.Network.CELLULAR, 200);
+        metrics.record(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 2, LatencyMetrics.Network.WIFI, 300);
+        metrics.record(LatencyMetrics.Metric.DECISION_LOOP, 0, LatencyMetrics.Network.ANY, 50);
+
+        LatencyMetrics.Snapshot snapshot = metrics.snapshot();
+        metrics.record(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 2, LatencyMetrics.Network.WIFI, 400);
+        assertEquals(2, snapshot.prefetchClasses().size());
+        assertEquals(1, snapshot.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 1,
+                                     LatencyMetrics.Network.WIFI).count());
+        assertEquals(2, snapshot.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE, 1).count());
+        assertEquals(2, snapshot.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE,
+                                     LatencyMetrics.Network.WIFI).count());
+        assertEquals(3, snapshot.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE).count());
+        assertEquals(0, snapshot.get(LatencyMetrics.Metric.CANCEL).count());
+        assertEquals(1, snapshot.get(LatencyMetrics.Metric.DECISION_LOOP).count());
+
+        LatencyMetrics.Snapshot merged = snapshot.merge(metrics.snapshot());
+        assertEquals(7, merged.get(LatencyMetrics.Metric.ISSUE_TO_COMPLETE).count());
+        assertEquals(2, merged.get(LatencyMetrics.Metric.DECISION_LOOP).count());
+    }
+}
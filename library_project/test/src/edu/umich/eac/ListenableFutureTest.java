@@ -0,0 +1,201 @@
+package edu.umich.eac;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+
+public class ListenableFutureTest extends InstrumentationTestCase {
+    private static final String MSG = "The string you asked for.";
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class RecordingListener implements FetchListener<String> {
+        CountDownLatch called = new CountDownLatch(1);
+        int calls = 0;
+        String result;
+        Throwable cause;
+        boolean cancelled;
+
+        public synchronized void onSuccess(String result) {
+            this.result = result;
+            calls++;
+            called.countDown();
+        }
+
+        public synchronized void onFailure(Throwable cause) {
+            this.cause = cause;
+            calls++;
+            called.countDown();
+        }
+
+        public synchronized void onCancelled() {
+            cancelled = true;
+            calls++;
+            called.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Listener called", called.await(10, TimeUnit.SECONDS));
+            // give a duplicate call a chance to show up
+            Thread.sleep(100);
+            synchronized (this) {
+                assertEquals(1, calls);
+            }
+        }
+    }
+
+    private static class SlowFetcher extends CacheFetcher<String> {
+        private long delayMillis;
+
+        SlowFetcher(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        public String call(int labels) throws Exception {
+            Thread.sleep(delayMillis);
+            return MSG;
+        }
+
+        public int bytesToTransfer() {
+            return MSG.length();
+        }
+    }
+
+    private static class FailingFetcher extends SlowFetcher {
+        FailingFetcher() {
+            super(0);
+        }
+
+        public String call(int labels) throws Exception {
+            throw new IllegalStateException("no network");
+        }
+    }
+
+    private EnergyAdaptiveCache newCache(PrefetchStrategyType type) {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(), type);
+        cache.setResultStoreCapacity(0);
+        return cache;
+    }
+
+    private ListenableFuture<String> prefetch(EnergyAdaptiveCache cache,
+                                              CacheFetcher<String> fetcher) {
+        return (ListenableFuture<String>) cache.prefetch(fetcher);
+    }
+
+    public void testGetAsyncCountsAsDemandFetch() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        ListenableFuture<String> future = prefetch(cache, new SlowFetcher(500));
+        RecordingListener listener = new RecordingListener();
+        future.getAsync(listener, DIRECT);
+        listener.await();
+
+        assertEquals(MSG, listener.result);
+        assertTrue(future.isDone());
+        assertEquals(1, cache.stats.numDemandRequests());
+    }
+
+    public void testListenerDoesNotStartFetch() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        ListenableFuture<String> future = prefetch(cache, new SlowFetcher(0));
+        RecordingListener passive = new RecordingListener();
+        future.addListener(passive, DIRECT);
+        Thread.sleep(500);
+        assertEquals(1, passive.called.getCount());
+        assertEquals(0, cache.stats.numDemandRequests());
+
+        // a blocking get() completes it, and the passive listener hears about it.
+        assertEquals(MSG, future.get());
+        passive.await();
+        assertEquals(MSG, passive.result);
+    }
+
+    public void testListenerAfterCompletion() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        ListenableFuture<String> future = prefetch(cache, new SlowFetcher(0));
+        assertEquals(MSG, future.get());
+
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener, DIRECT);
+        listener.await();
+        assertEquals(MSG, listener.result);
+    }
+
+    public void testCancellation() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        ListenableFuture<String> future = prefetch(cache, new SlowFetcher(0));
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener, DIRECT);
+        assertTrue(future.cancel(true));
+        listener.await();
+        assertTrue(listener.cancelled);
+    }
+
+    public void testFailure() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        ListenableFuture<String> future = prefetch(cache, new FailingFetcher());
+        RecordingListener listener = new RecordingListener();
+        future.getAsync(listener, DIRECT);
+        listener.await();
+        assertTrue(listener.cause instanceof IllegalStateException);
+    }
+
+    private static class KeyedFetcher extends SlowFetcher {
+        KeyedFetcher() {
+            super(500);
+        }
+
+        public Object getCacheKey() {
+            return "shared-key";
+        }
+    }
+
+    public void testCancelledHandleOnSharedFetch() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        KeyedFetcher fetcher = new KeyedFetcher();
+        ListenableFuture<String> first = prefetch(cache, fetcher);
+        ListenableFuture<String> second = prefetch(cache, fetcher);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        first.addListener(firstListener, DIRECT);
+        second.getAsync(secondListener, DIRECT);
+        assertTrue(first.cancel(true));
+
+        secondListener.await();
+        assertEquals(MSG, secondListener.result);
+        firstListener.await();
+        assertTrue(firstListener.cancelled);
+    }
+
+    public void testCancelledHandleDeliversOnExecutor() throws Exception {
+        EnergyAdaptiveCache cache = newCache(PrefetchStrategyType.CONSERVATIVE);
+        KeyedFetcher fetcher = new KeyedFetcher();
+        ListenableFuture<String> first = prefetch(cache, fetcher);
+        ListenableFuture<String> second = prefetch(cache, fetcher);
+        assertTrue(second.cancel(true));
+
+        final int[] executed = new int[1];
+        Executor counting = new Executor() {
+            public void execute(Runnable command) {
+                synchronized (executed) {
+                    executed[0]++;
+                }
+                command.run();
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        second.getAsync(listener, counting);
+        listener.await();
+        assertTrue(listener.cancelled);
+        synchronized (executed) {
+            assertEquals(1, executed[0]);
+        }
+        first.cancel(true);
+    }
+}
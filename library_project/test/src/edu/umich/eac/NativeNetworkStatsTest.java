@@ -45,7 +45,7 @@ public class NativeNetworkStatsTest extends InstrumentationTestCase {
     
     public void testGetAllNetworkStatsByType() throws InterruptedException {
         Context context = getInstrumentation().getContext();
-        Map<Integer, NetworkStats> nets = NetworkStats.getAllNetworkStats(context);
+        Map<Integer, NetworkStats> nets = NetworkStats.getAllNetworkStats(new AndroidPlatform(context));
         assertNotNull(nets);
         assertTrue(nets.size() > 0);
     }
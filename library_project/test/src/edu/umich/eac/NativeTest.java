@@ -17,7 +17,12 @@ public class NativeTest extends InstrumentationTestCase {
         testWithDelay(context, 5);
     }
 
+    public void testPrefetchAll() {
+        testPrefetchAll(context);
+    }
+
     private native void testWithDelay(Context context, long delaySecs);
+    private native void testPrefetchAll(Context context);
 
     static {
         System.loadLibrary("eac_native_tests");
@@ -0,0 +1,126 @@
+package edu.umich.eac;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.InstrumentationTestCase;
+import edu.umich.eac.NetworkStatsBuffer.Snapshot;
+
+public class NetworkStatsBufferTest extends InstrumentationTestCase {
+    private ByteBuffer buffer;
+    private AtomicInteger refreshes;
+    private NetworkStatsBuffer stats;
+    private volatile long nowNanos = 0;
+
+    @Override
+    protected void setUp() {
+        buffer = NetworkStatsBuffer.newBuffer();
+        refreshes = new AtomicInteger();
+        stats = new NetworkStatsBuffer(buffer, new Runnable() {
+            public void run() {
+                refreshes.incrementAndGet();
+            }
+        }, new Clock() {
+            public long nanoTime() {
+                return nowNanos;
+            }
+
+            public long currentTimeMillis() {
+                return TimeUnit.NANOSECONDS.toMillis(nowNanos);
+            }
+        });
+    }
+
+    /** Does what the native side does. */
+    private synchronized void write(int... values) {
+        buffer.putInt(NetworkStatsBuffer.SEQ, buffer.getInt(NetworkStatsBuffer.SEQ) + 1);
+        NetworkStatsBuffer.fence();
+        buffer.putInt(NetworkStatsBuffer.COUNT, values.length);
+        for (int i = 0; i < values.length; ++i) {
+            int record = NetworkStatsBuffer.RECORDS + i * NetworkStatsBuffer.RECORD_SIZE;
+            buffer.putInt(record + NetworkStatsBuffer.IP, values[i]);
+            buffer.putInt(record + NetworkStatsBuffer.DOWN, values[i] * 10);
+            buffer.putInt(record + NetworkStatsBuffer.UP, values[i] * 100);
+            buffer.putInt(record + NetworkStatsBuffer.RTT, values[i] * 1000);
+        }
+        NetworkStatsBuffer.fence();
+        buffer.putInt(NetworkStatsBuffer.SEQ, buffer.getInt(NetworkStatsBuffer.SEQ) + 1);
+    }
+
+    public void testDecodesRecords() {
+        write(1, 2, 3);
+        Snapshot snapshot = stats.read();
+        assertEquals(3, snapshot.count);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i + 1, snapshot.ipAddrs[i]);
+            assertEquals((i + 1) * 10, snapshot.bandwidthDown[i]);
+            assertEquals((i + 1) * 100, snapshot.bandwidthUp[i]);
+            assertEquals((i + 1) * 1000, snapshot.rttMillis[i]);
+        }
+    }
+
+    public void testDecodesOnlyWhenChanged() {
+        write(1);
+        Snapshot first = stats.read();
+        assertSame(first, stats.read());
+
+        write(4, 5);
+        Snapshot second = stats.read();
+        assertNotSame(first, second);
+        assertEquals(2, second.count);
+        assertEquals(5, second.ipAddrs[1]);
+    }
+
+    public void testRefreshesAtMostOncePerInterval() {
+        for (int i = 0; i < 100; ++i) {
+            stats.read();
+        }
+        assertEquals(1, refreshes.get());
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(NetworkStatsBuffer.REFRESH_INTERVAL_MS - 1);
+        stats.read();
+        assertEquals(1, refreshes.get());
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(1);
+        stats.read();
+        assertEquals(2, refreshes.get());
+    }
+
+    public void testEmptyUntilWritten() {
+        assertEquals(0, stats.read().count);
+    }
+
+    public void testReadersNeverSeeTornWrites() throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread() {
+            public void run() {
+                for (int value = 1; !done.get(); ++value) {
+                    int count = 1 + value % NetworkStatsBuffer.MAX_INTERFACES;
+                    int[] values = new int[count];
+                    for (int i = 0; i < count; ++i) {
+                        values[i] = value;
+                    }
+                    write(values);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 20000; ++i) {
+                Snapshot snapshot = stats.read();
+                if (snapshot.count == 0) {
+                    continue;
+                }
+                int value = snapshot.ipAddrs[0];
+                assertEquals(1 + value % NetworkStatsBuffer.MAX_INTERFACES, snapshot.count);
+                for (int j = 0; j < snapshot.count; ++j) {
+                    assertEquals(value, snapshot.ipAddrs[j]);
+                    assertEquals(value * 1000, snapshot.rttMillis[j]);
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+}
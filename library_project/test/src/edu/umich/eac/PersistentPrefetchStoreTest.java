@@ -0,0 +1,180 @@
+package edu.umich.eac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+import android.test.InstrumentationTestCase;
+
+public class PersistentPrefetchStoreTest extends InstrumentationTestCase {
+    private File dir;
+
+    static class StringCodec implements ValueCodec<String> {
+        public int encodedSize(String value) {
+            return bytes(value).length;
+        }
+
+        public void encode(String value, ByteBuffer out) {
+            out.put(bytes(value));
+        }
+
+        public String decode(ByteBuffer in) {
+            byte[] data = new byte[in.remaining()];
+            in.get(data);
+            try {
+                return new String(data, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static byte[] bytes(String value) {
+            try {
+                return value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static final StringCodec codec = new StringCodec();
+
+    @Override
+    protected void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"),
+                       "eac-store-test-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testSurvivesReopen() throws IOException {
+        PersistentPrefetchStore store = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        assertTrue(store.put("a", codec, "first"));
+        assertTrue(store.put("b", codec, "second"));
+        assertTrue(store.put("a", codec, "replaced"));
+        store.sync();
+
+        PersistentPrefetchStore reopened = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        assertEquals(2, reopened.size());
+        assertEquals("replaced", reopened.get("a", codec));
+        assertEquals("second", reopened.get("b", codec));
+        assertNull(reopened.get("c", codec));
+
+        // appends go after the existing records.
+        assertTrue(reopened.put("c", codec, "third"));
+        assertEquals("second", reopened.get("b", codec));
+        assertEquals("third", reopened.get("c", codec));
+    }
+
+    public void testRemoveSurvivesReopen() throws IOException {
+        PersistentPrefetchStore store = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        assertTrue(store.put("a", codec, "gone"));
+        assertTrue(store.put("b", codec, "kept"));
+        store.remove("a");
+        assertNull(store.get("a", codec));
+        store.sync();
+
+        PersistentPrefetchStore reopened = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        assertNull(reopened.get("a", codec));
+        assertEquals("kept", reopened.get("b", codec));
+        assertEquals(1, reopened.size());
+
+        // a later put brings it back.
+        assertTrue(reopened.put("a", codec, "again"));
+        reopened.sync();
+        assertEquals("again", new PersistentPrefetchStore(dir, 1 << 20, 4096).get("a", codec));
+    }
+
+    public void testRollsOverAndDropsOldSegments() throws IOException {
+        PersistentPrefetchStore store = new PersistentPrefetchStore(dir, 2 * 1024, 1024);
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 400; ++i) {
+            big.append('x');
+        }
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(store.put("item" + i, codec, big.toString()));
+        }
+        assertFalse(store.contains("item0"));
+        assertTrue(store.contains("item9"));
+        assertEquals(big.toString(), store.get("item9", codec));
+
+        // too big for any segment
+        assertFalse(store.put("huge", codec, big.toString() + big + big));
+    }
+
+    public void testTornRecordIsIgnored() throws IOException {
+        PersistentPrefetchStore store = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        store.put("a", codec, "intact");
+        store.put("b", codec, "torn");
+        store.sync();
+
+        // corrupt the second record's payload, as if the write never finished.
+        File segment = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        int secondRecord = 16 + 1 + "intact".length();
+        raf.seek(secondRecord + 16 + 1);
+        raf.write(new byte[] { 0, 0 });
+        raf.close();
+
+        PersistentPrefetchStore reopened = new PersistentPrefetchStore(dir, 1 << 20, 4096);
+        assertEquals("intact", reopened.get("a", codec));
+        assertNull(reopened.get("b", codec));
+    }
+
+    private static class PersistedFetcher extends FakeFetcher {
+        int calls = 0;
+
+        PersistedFetcher(String theString) {
+            super(theString);
+        }
+
+        @Override
+        public String call(int labels) throws Exception {
+            calls++;
+            return super.call(labels);
+        }
+
+        @Override
+        public Object getCacheKey() {
+            return "persisted-key";
+        }
+
+        @Override
+        public ValueCodec<String> getValueCodec() {
+            return codec;
+        }
+    }
+
+    public void testCacheServesFromDiskAfterRestart() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        cache.enablePersistentStore(dir, 1 << 20);
+        PersistedFetcher fetcher = new PersistedFetcher("Persisted string.");
+        assertEquals("Persisted string.", cache.fetch(fetcher).get());
+        assertEquals(1, fetcher.calls);
+
+        // a new cache, as if the process had been restarted.
+        EnergyAdaptiveCache restarted =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        restarted.enablePersistentStore(dir, 1 << 20);
+        Future<String> future = restarted.prefetch(fetcher);
+        assertTrue(future.isDone());
+        assertEquals("Persisted string.", future.get());
+        assertEquals(1, fetcher.calls);
+        assertEquals(1, restarted.stats.numPersistentStoreHits());
+    }
+}
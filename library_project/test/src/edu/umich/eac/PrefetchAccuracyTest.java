@@ -46,6 +46,57 @@ public class PrefetchAccuracyTest extends InstrumentationTestCase {
         }
     }
     
+    public void testWindowIsBounded() {
+        int total = PrefetchAccuracy.WINDOW_SIZE * 3;
+        FakeFuture[] futures = new FakeFuture[total];
+        for (int i = 0; i < total; ++i) {
+            futures[i] = new FakeFuture(cache);
+            accuracy.addPrefetchHint(futures[i]);
+        }
+        // hints that fell out of the window don't count any more
+        accuracy.markDemandFetched(futures[0]);
+        assertEquals(0.0, accuracy.getAccuracy(), 0.001);
+        
+        int recent = total - PrefetchAccuracy.WINDOW_SIZE;
+        for (int i = recent; i < recent + PrefetchAccuracy.WINDOW_SIZE / 2; ++i) {
+            accuracy.markDemandFetched(futures[i]);
+            accuracy.markDemandFetched(futures[i]); // counted only once
+        }
+        assertEquals(0.5, accuracy.getAccuracy(), 0.001);
+        
+        // cancelled hints leave the window
+        accuracy.removePrefetch(futures[total - 1]);
+        assertEquals(512.0 / 1023.0, accuracy.getAccuracy(), 0.001);
+    }
+    
+    private static class ClockedAccuracy extends PrefetchAccuracy {
+        long time = 0;
+        
+        @Override
+        long now() {
+            return time;
+        }
+    }
+    
+    public void testDecayedAccuracyFavorsRecentHints() {
+        ClockedAccuracy decaying = new ClockedAccuracy();
+        for (int i = 0; i < 10; ++i) {
+            FakeFuture future = new FakeFuture(cache);
+            decaying.addPrefetchHint(future);
+            decaying.markDemandFetched(future);
+        }
+        assertEquals(1.0, decaying.getDecayedAccuracy(), 0.001);
+        
+        // ten unused hints, two half-lives later
+        decaying.time += 2 * PrefetchAccuracy.DECAY_HALF_LIFE_MS;
+        for (int i = 0; i < 10; ++i) {
+            decaying.addPrefetchHint(new FakeFuture(cache));
+        }
+        assertEquals(0.5, decaying.getAccuracy(), 0.001);
+        // old hints weigh 1/4: 2.5 / (2.5 + 10)
+        assertEquals(0.2, decaying.getDecayedAccuracy(), 0.001);
+    }
+    
     public void testAccuracyChangesThroughCacheStats() throws InterruptedException, ExecutionException {
         FakeFetcher fetcher = new FakeFetcher("The string.");
         FetchFuture<?> future = (FetchFuture<?>) cache.prefetch(fetcher);
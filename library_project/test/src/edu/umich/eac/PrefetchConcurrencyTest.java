@@ -0,0 +1,48 @@
+package edu.umich.eac;
+
+import android.test.InstrumentationTestCase;
+
+public class PrefetchConcurrencyTest extends InstrumentationTestCase {
+    private NetworkStats initNetworkStats(int bw_down, int bw_up, int rtt_ms) {
+        NetworkStats stats = new NetworkStats();
+        stats.bandwidthDown = bw_down;
+        stats.bandwidthUp = bw_up;
+        stats.rttMillis = rtt_ms;
+        return stats;
+    }
+
+    public void testLargeItemsUseOneSlot() {
+        // 100 KB/s * 100 ms = 10 KB in flight; a 1 MB item fills the pipe alone.
+        NetworkStats stats = initNetworkStats(100000, 10000, 100);
+        assertEquals(1, PrefetchConcurrency.slotsFor(stats, 1000000));
+    }
+
+    public void testSmallItemsPipeline() {
+        // 10 KB bandwidth-delay product, 2.5 KB items -> 1 + 4 slots
+        NetworkStats stats = initNetworkStats(100000, 10000, 100);
+        assertEquals(5, PrefetchConcurrency.slotsFor(stats, 2500));
+    }
+
+    public void testSlotsAreBounded() {
+        NetworkStats stats = initNetworkStats(1250000, 1250000, 200);
+        assertEquals(PrefetchConcurrency.MAX_CONCURRENT_PREFETCHES,
+                     PrefetchConcurrency.slotsFor(stats, 100));
+        assertEquals(PrefetchConcurrency.MIN_CONCURRENT_PREFETCHES,
+                     PrefetchConcurrency.slotsFor(null, 100));
+        assertEquals(PrefetchConcurrency.MIN_CONCURRENT_PREFETCHES,
+                     PrefetchConcurrency.slotsFor(stats, 0));
+    }
+
+    public void testUpdateReportsChanges() {
+        PrefetchConcurrency concurrency = new PrefetchConcurrency();
+        assertEquals(1, concurrency.getLimit());
+
+        NetworkStats stats = initNetworkStats(100000, 10000, 100);
+        assertTrue(concurrency.update(stats, 2500));
+        assertEquals(5, concurrency.getLimit());
+        assertFalse(concurrency.update(stats, 2500));
+
+        assertTrue(concurrency.update(stats, 1000000));
+        assertEquals(1, concurrency.getLimit());
+    }
+}
@@ -0,0 +1,25 @@
+package edu.umich.eac;
+
+import android.test.InstrumentationTestCase;
+
+public class PrefetchNetworkTest extends InstrumentationTestCase {
+    public void testLabelComesFromKind() {
+        // IntNW reads these bits by kind, whatever order the app lists networks in.
+        assertEquals(IntNWLabels.WIFI_ONLY, PrefetchNetwork.wifi().restrictionLabel());
+        assertEquals(IntNWLabels.THREEG_ONLY,
+                     PrefetchNetwork.cellular("rmnet0").restrictionLabel());
+        assertEquals(IntNWLabels.THREEG_ONLY,
+                     PrefetchNetwork.cellular("rmnet1").restrictionLabel());
+    }
+
+    public void testNetworkOfLabels() {
+        PrefetchStrategy strategy = new AggressivePrefetchStrategy();
+        assertEquals(LatencyMetrics.Network.WIFI,
+                     strategy.networkOf(IntNWLabels.WIFI_ONLY | IntNWLabels.BACKGROUND));
+        assertEquals(LatencyMetrics.Network.CELLULAR,
+                     strategy.networkOf(IntNWLabels.THREEG_ONLY));
+        assertEquals(LatencyMetrics.Network.ANY,
+                     strategy.networkOf(IntNWLabels.ALL_NET_RESTRICTION_LABELS));
+        assertEquals(LatencyMetrics.Network.ANY, strategy.networkOf(IntNWLabels.ONDEMAND));
+    }
+}
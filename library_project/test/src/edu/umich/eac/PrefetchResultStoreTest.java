@@ -0,0 +1,116 @@
+package edu.umich.eac;
+
+import java.util.concurrent.Future;
+
+import android.test.InstrumentationTestCase;
+
+public class PrefetchResultStoreTest extends InstrumentationTestCase {
+    private PrefetchResultStore store;
+
+    @Override
+    protected void setUp() {
+        store = new PrefetchResultStore(10000);
+    }
+
+    public void testHitAndMiss() {
+        assertNull(store.get("a"));
+        store.put("a", "A", 100);
+        assertEquals("A", store.get("a"));
+        assertEquals(1, store.hitCount());
+        assertEquals(1, store.missCount());
+    }
+
+    public void testStaysWithinCapacity() {
+        for (int i = 0; i < 1000; ++i) {
+            store.put("item" + i, Integer.valueOf(i), 100);
+            assertTrue(store.sizeInBytes() <= 10000);
+        }
+        store.put("huge", "too big", 20000);
+        assertNull(store.get("huge"));
+    }
+
+    public void testPopularItemSurvivesScan() {
+        store.put("popular", "P", 1000);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("P", store.get("popular"));
+        }
+
+        // a long scan of one-off items shouldn't push out the popular one.
+        for (int i = 0; i < 500; ++i) {
+            store.put("oneoff" + i, Integer.valueOf(i), 1000);
+        }
+        assertEquals("P", store.get("popular"));
+    }
+
+    public void testRejectedCandidateEvictsNothing() {
+        // a is the main region's LRU victim, then b, which is popular.
+        store.put("a", "A", 4900);
+        store.put("b", "B", 4900);
+        for (int i = 0; i < 5; ++i) {
+            assertEquals("B", store.get("b"));
+        }
+        // more popular than a, less than b, and needs both their space.
+        store.get("c");
+        store.get("c");
+        store.put("c", "C", 9000);
+
+        assertEquals("A", store.get("a"));
+        assertEquals("B", store.get("b"));
+        assertNull(store.get("c"));
+    }
+
+    public void testDisabledStore() {
+        store.setCapacity(0);
+        store.put("a", "A", 100);
+        assertNull(store.get("a"));
+        assertEquals(0, store.sizeInBytes());
+    }
+
+    private static class KeyedFetcher extends FakeFetcher {
+        int calls = 0;
+
+        KeyedFetcher(String theString) {
+            super(theString);
+        }
+
+        @Override
+        public String call(int labels) throws Exception {
+            calls++;
+            return super.call(labels);
+        }
+
+        @Override
+        public Object getCacheKey() {
+            return "the-key";
+        }
+    }
+
+    public void testCacheServesRepeatFetchFromStore() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        KeyedFetcher fetcher = new KeyedFetcher("The string.");
+        Future<String> first = cache.fetch(fetcher);
+        assertEquals("The string.", first.get());
+
+        Future<String> second = cache.fetch(fetcher);
+        assertTrue(second.isDone());
+        assertEquals("The string.", second.get());
+        assertEquals(1, fetcher.calls);
+        assertEquals(1, cache.stats.numStoreHits());
+        assertEquals(2, cache.stats.numHits() + cache.stats.numMisses());
+    }
+
+    public void testInvalidateGoesBackToNetwork() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        KeyedFetcher fetcher = new KeyedFetcher("The string.");
+        assertEquals("The string.", cache.fetch(fetcher).get());
+
+        cache.invalidate(fetcher.getCacheKey());
+        assertEquals("The string.", cache.fetch(fetcher).get());
+        assertEquals(2, fetcher.calls);
+        assertEquals(0, cache.stats.numStoreHits());
+    }
+}
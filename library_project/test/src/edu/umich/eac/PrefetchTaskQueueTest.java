@@ -0,0 +1,134 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.umich.eac.AdaptivePrefetchStrategy.PrefetchTask;
+
+import android.test.InstrumentationTestCase;
+
+public class PrefetchTaskQueueTest extends InstrumentationTestCase {
+    private EnergyAdaptiveCache cache;
+    private PrefetchTaskQueue queue;
+
+    @Override
+    protected void setUp() {
+        cache = new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                        PrefetchStrategyType.CONSERVATIVE);
+        queue = new PrefetchTaskQueue();
+    }
+
+    private static class ClassedFetcher extends FakeFetcher {
+        private int prefetchClass;
+
+        ClassedFetcher(String theString, int prefetchClass) {
+            super(theString);
+            this.prefetchClass = prefetchClass;
+        }
+
+        @Override
+        public int getPrefetchClass() {
+            return prefetchClass;
+        }
+    }
+
+    private List<PrefetchTask> addTasks(int count) {
+        List<PrefetchTask> tasks = new ArrayList<PrefetchTask>();
+        for (int i = 0; i < count; ++i) {
+            FetchFuture<String> future =
+                new FetchFuture<String>(new ClassedFetcher("item " + i, i % 2), cache);
+            PrefetchTask task = new PrefetchTask(future);
+            tasks.add(task);
+            assertTrue(queue.add(task));
+        }
+        return tasks;
+    }
+
+    public void testHintOrderAndDuplicates() {
+        List<PrefetchTask> tasks = addTasks(10);
+        assertFalse(queue.add(new PrefetchTask(tasks.get(3).prefetch)));
+        assertEquals(10, queue.size());
+        assertSame(tasks.get(0), queue.peek());
+        for (PrefetchTask task : tasks) {
+            assertSame(task, queue.poll());
+            assertEquals(-1, task.heapIndex);
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    public void testRemoveByPrefetch() {
+        List<PrefetchTask> tasks = addTasks(1000);
+        Random random = new Random(42);
+        List<PrefetchTask> remaining = new ArrayList<PrefetchTask>();
+        for (PrefetchTask task : tasks) {
+            if (random.nextBoolean()) {
+                assertSame(task, queue.remove(task.prefetch));
+                assertFalse(queue.contains(task.prefetch));
+                assertNull(queue.remove(task.prefetch));
+            } else {
+                remaining.add(task);
+            }
+        }
+        assertEquals(remaining.size(), queue.size());
+
+        Iterator<PrefetchTask> snapshot = queue.orderedSnapshot();
+        for (PrefetchTask task : remaining) {
+            assertSame(task, snapshot.next());
+        }
+        assertFalse(snapshot.hasNext());
+
+        for (PrefetchTask task : remaining) {
+            assertSame(task, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testSnapshotIsUnaffectedByLaterChanges() {
+        List<PrefetchTask> tasks = addTasks(5);
+        Iterator<PrefetchTask> snapshot = queue.orderedSnapshot();
+        queue.remove(tasks.get(0).prefetch);
+        queue.remove(tasks.get(1).prefetch);
+        for (PrefetchTask task : tasks) {
+            assertSame(task, snapshot.next());
+        }
+        assertEquals(3, queue.size());
+        assertSame(tasks.get(2), queue.peek());
+    }
+
+    public void testReprioritizeByClass() {
+        List<PrefetchTask> tasks = addTasks(10);
+        Map<Integer, Double> changes = new HashMap<Integer, Double>();
+        changes.put(1, 0.95);
+        assertEquals(5, queue.reprioritize(changes));
+        // unchanged accuracy; nothing to do
+        assertEquals(0, queue.reprioritize(changes));
+
+        // odd (class 1) tasks now come first, each class still in hint order
+        for (int i = 1; i < tasks.size(); i += 2) {
+            assertSame(tasks.get(i), queue.poll());
+            assertEquals(0.95, tasks.get(i).getAccuracy(), 0.001);
+        }
+        for (int i = 0; i < tasks.size(); i += 2) {
+            assertSame(tasks.get(i), queue.poll());
+        }
+    }
+
+    public void testUpdateMovesTask() {
+        List<PrefetchTask> tasks = addTasks(20);
+        PrefetchTask last = tasks.get(19);
+        queue.update(last, 0.99);
+        assertSame(last, queue.peek());
+        // nothing has been hinted, so the others are all at 0.0.
+        queue.update(last, 0.0);
+        assertSame(tasks.get(0), queue.peek());
+        for (int i = 0; i < 19; ++i) {
+            assertSame(tasks.get(i), queue.poll());
+        }
+        assertSame(last, queue.poll());
+    }
+}
@@ -1,5 +1,7 @@
 package edu.umich.eac;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
@@ -15,10 +17,13 @@ public class PromotionTest extends InstrumentationTestCase {
     PromotionFetcher fetcher;
     private Future<String> future;
     
-    protected void setUp() throws InterruptedException {
+    protected void setUp() {
         cache = new EnergyAdaptiveCache(getInstrumentation().getContext(),
                                         PrefetchStrategyType.AGGRESSIVE);
-        fetcher = new PromotionFetcher();
+    }
+    
+    private void startPrefetch(boolean restartOnPromotion) throws InterruptedException {
+        fetcher = new PromotionFetcher(restartOnPromotion);
         future = cache.prefetchNow(fetcher);
         Thread.currentThread();
         Thread.sleep(1000);
@@ -27,6 +32,7 @@ public class PromotionTest extends InstrumentationTestCase {
     }
 
     public void testWaitForPrefetch() throws Exception {
+        startPrefetch(false);
         try {
              Thread.currentThread();
             // wait for prefetch to complete
@@ -40,24 +46,85 @@ public class PromotionTest extends InstrumentationTestCase {
     }
 
     public void testPromotion() throws Exception {
+        startPrefetch(true);
         try {
-            // should promote BG fetch to FG
+            // should cancel the BG fetch and restart it as FG
             String msg = future.get(1, TimeUnit.SECONDS);
             assertTrue("Did the demand fetch", msg.contains("demand"));
+            assertEquals(0, cache.stats.numPromotedInPlace());
         } catch (TimeoutException e) {
             fail("Demand fetch shouldn't time out");
         }
     }
     
+    public void testPromotionInPlace() throws Exception {
+        startPrefetch(false);
+        try {
+            // should wait on the running BG fetch, now labeled FG
+            String msg = future.get(3, TimeUnit.SECONDS);
+            assertTrue("Kept the prefetch", msg.contains("prefetch"));
+            assertEquals(1, fetcher.calls);
+            assertEquals(1, cache.stats.numPromotedInPlace());
+            assertTrue("Told of promotion", 
+                       (fetcher.promotedLabels & IntNWLabels.ONDEMAND) != 0);
+            assertEquals(0, fetcher.promotedLabels & IntNWLabels.BACKGROUND);
+            assertEquals(Thread.NORM_PRIORITY, fetcher.finalPriority);
+        } catch (TimeoutException e) {
+            fail("Promoted fetch shouldn't time out");
+        }
+    }
+    
+    public void testPromotedRunReportsDone() throws Exception {
+        final List<Thread> doneReporters = new ArrayList<Thread>();
+        cache.strategy = new AggressivePrefetchStrategy() {
+            public void onPrefetchDone(FetchFuture<?> prefetch, boolean cancelled) {
+                synchronized (doneReporters) {
+                    doneReporters.add(Thread.currentThread());
+                }
+            }
+        };
+        startPrefetch(false);
+        assertTrue(future.get(3, TimeUnit.SECONDS).contains("prefetch"));
+        assertEquals(1, cache.stats.numPromotedInPlace());
+        synchronized (doneReporters) {
+            // the strategy hears from the promoted run itself, so it can
+            //  hold the run's slot until the pool thread is free.
+            boolean fromRunner = false;
+            for (Thread thread : doneReporters) {
+                fromRunner |= (thread != Thread.currentThread());
+            }
+            assertTrue(fromRunner);
+        }
+    }
+    
     private class PromotionFetcher extends CacheFetcher<String> {
         private static final String PREFETCH_MSG = "Got prefetch result";
         private static final String DEMAND_FETCH_MSG = "Got demand fetch result";
+        
+        private boolean restart;
+        volatile int calls = 0;
+        volatile int promotedLabels = 0;
+        volatile int finalPriority = 0;
+        
+        PromotionFetcher(boolean restartOnPromotion) {
+            restart = restartOnPromotion;
+        }
+        
+        public boolean restartOnPromotion() {
+            return restart;
+        }
+        
+        public void onPromoted(int labels) {
+            promotedLabels = labels;
+        }
 
         public String call(int labels) throws InterruptedException {
+            calls++;
             if ((labels & IntNWLabels.BACKGROUND) != 0) {
                 Thread.currentThread();
                 // simulate a background fetch taking longer (exaggerated)
                 Thread.sleep(3000);
+                finalPriority = Thread.currentThread().getPriority();
                 return PREFETCH_MSG;
             } else {
                 return DEMAND_FETCH_MSG;
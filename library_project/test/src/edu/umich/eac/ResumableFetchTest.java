@@ -0,0 +1,105 @@
+package edu.umich.eac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+
+public class ResumableFetchTest extends InstrumentationTestCase {
+    private static final int CHUNK = 100;
+
+    private static byte[] item(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    public void testSpillsAndReadsBack() throws Exception {
+        PartialFetchBuffer buffer = new PartialFetchBuffer(null, 1000);
+        byte[] data = item(2500);
+        for (int i = 0; i < data.length; i += CHUNK) {
+            buffer.append(data, i, CHUNK);
+        }
+        assertTrue(buffer.isSpilled());
+        assertEquals(2500, buffer.offset());
+        assertTrue(Arrays.equals(data, buffer.toByteArray()));
+
+        buffer.setResumeToken("etag-1");
+        buffer.restart();
+        assertFalse(buffer.isSpilled());
+        assertEquals(0, buffer.offset());
+        assertNull(buffer.getResumeToken());
+    }
+
+    /** Sends an item a chunk at a time; can be made to stall partway. */
+    private static class ChunkedFetcher extends ResumableCacheFetcher<byte[]> {
+        byte[] data = item(3000);
+        List<Long> startOffsets = new ArrayList<Long>();
+        volatile int stallAt = -1;
+        CountDownLatch stalled = new CountDownLatch(1);
+
+        public byte[] call(int labels, PartialFetchBuffer partial) throws Exception {
+            synchronized (this) {
+                startOffsets.add(partial.offset());
+            }
+            if (partial.offset() > 0) {
+                assertEquals("etag", partial.getResumeToken());
+            }
+            partial.setResumeToken("etag");
+            for (int i = (int) partial.offset(); i < data.length; i += CHUNK) {
+                if (i == stallAt) {
+                    stalled.countDown();
+                    // wait to be interrupted, as if the network went away.
+                    Thread.sleep(60 * 1000);
+                }
+                partial.append(data, i, CHUNK);
+            }
+            return partial.toByteArray();
+        }
+
+        public int totalBytes() {
+            return data.length;
+        }
+    }
+
+    public void testResumesAfterReset() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        ChunkedFetcher fetcher = new ChunkedFetcher();
+        fetcher.stallAt = 1200;
+        FetchFuture<byte[]> future = (FetchFuture<byte[]>) cache.prefetchNow(fetcher);
+        assertTrue(fetcher.stalled.await(10, TimeUnit.SECONDS));
+
+        future.reset();
+        assertEquals(1800, fetcher.bytesToTransfer());
+
+        fetcher.stallAt = -1;
+        byte[] result = future.get(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(fetcher.data, result));
+        assertEquals(Arrays.asList(0L, 1200L), fetcher.startOffsets);
+        assertEquals(0, fetcher.getPartialFetch().offset());
+    }
+
+    public void testCancelDiscardsProgress() throws Exception {
+        EnergyAdaptiveCache cache =
+            new EnergyAdaptiveCache(getInstrumentation().getContext(),
+                                    PrefetchStrategyType.CONSERVATIVE);
+        ChunkedFetcher fetcher = new ChunkedFetcher();
+        fetcher.stallAt = 500;
+        Future<byte[]> future = cache.prefetchNow(fetcher);
+        assertTrue(fetcher.stalled.await(10, TimeUnit.SECONDS));
+        ((FetchFuture<byte[]>) future).reset();
+        assertEquals(500, fetcher.getPartialFetch().offset());
+
+        assertTrue(future.cancel(true));
+        assertEquals(0, fetcher.getPartialFetch().offset());
+        assertEquals(3000, fetcher.bytesToTransfer());
+    }
+}
@@ -0,0 +1,140 @@
+package edu.umich.eac;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.test.InstrumentationTestCase;
+
+public class SysfsCounterSamplerTest extends InstrumentationTestCase {
+    private File root;
+    private SysfsCounterSampler sampler;
+
+    @Override
+    protected void setUp() throws IOException {
+        root = File.createTempFile("sysfs", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+        sampler = new SysfsCounterSampler(root.getPath());
+    }
+
+    @Override
+    protected void tearDown() {
+        sampler.closeAll();
+        deleteAll(root);
+    }
+
+    private void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void setCounters(String iface, long rx, long tx) throws IOException {
+        File dir = new File(root, iface + "/statistics");
+        dir.mkdirs();
+        writeCounter(new File(dir, "rx_bytes"), rx);
+        writeCounter(new File(dir, "tx_bytes"), tx);
+    }
+
+    private void writeCounter(File file, long value) throws IOException {
+        // overwrite in place, like sysfs; the sampler keeps the file open.
+        FileWriter writer = new FileWriter(file);
+        writer.write(value + "\n");
+        writer.close();
+    }
+
+    public void testCountsFromRegistration() throws IOException {
+        setCounters("wlan0", 1000, 500);
+        int slot = sampler.register("wlan0");
+        assertEquals(0, sampler.totalBytesDown(slot));
+        assertEquals(0, sampler.totalBytesUp(slot));
+
+        setCounters("wlan0", 1500, 700);
+        sampler.sample();
+        assertEquals(500, sampler.totalBytesDown(slot));
+        assertEquals(200, sampler.totalBytesUp(slot));
+
+        setCounters("wlan0", 123456789012L, 700);
+        sampler.sample();
+        assertEquals(123456789012L - 1000, sampler.totalBytesDown(slot));
+        assertEquals(200, sampler.totalBytesUp(slot));
+    }
+
+    public void testOnePassSamplesAllInterfaces() throws IOException {
+        setCounters("wlan0", 0, 0);
+        setCounters("rmnet0", 0, 0);
+        int wifi = sampler.register("wlan0");
+        int cellular = sampler.register("rmnet0");
+        assertEquals(wifi, sampler.register("wlan0"));
+
+        setCounters("wlan0", 10, 20);
+        setCounters("rmnet0", 30, 40);
+        sampler.sample();
+        assertEquals(10, sampler.totalBytesDown(wifi));
+        assertEquals(20, sampler.totalBytesUp(wifi));
+        assertEquals(30, sampler.totalBytesDown(cellular));
+        assertEquals(40, sampler.totalBytesUp(cellular));
+    }
+
+    public void testTotalsSurviveCounterReset() throws IOException {
+        setCounters("rmnet0", 1000, 1000);
+        int slot = sampler.register("rmnet0");
+        setCounters("rmnet0", 1100, 1000);
+        sampler.sample();
+
+        // the interface is re-created and its counters start over.
+        setCounters("rmnet0", 50, 0);
+        sampler.sample();
+        assertEquals(150, sampler.totalBytesDown(slot));
+        assertEquals(0, sampler.totalBytesUp(slot));
+    }
+
+    public void testMissingInterface() throws IOException {
+        int slot = sampler.register("ppp0");
+        sampler.sample();
+        assertEquals(0, sampler.totalBytesDown(slot));
+
+        // counting starts once it shows up.
+        setCounters("ppp0", 5000, 6000);
+        sampler.sample();
+        assertEquals(0, sampler.totalBytesDown(slot));
+        setCounters("ppp0", 5001, 6002);
+        sampler.sample();
+        assertEquals(1, sampler.totalBytesDown(slot));
+        assertEquals(2, sampler.totalBytesUp(slot));
+    }
+
+    public void testConsumersShareSampler() throws IOException {
+        setCounters("wlan0", 100, 100);
+        ProcNetworkStats first = new ProcNetworkStats("wlan0", sampler);
+        setCounters("wlan0", 200, 150);
+        ProcNetworkStats second = new ProcNetworkStats("wlan0", sampler);
+        second.updateStats();
+        assertEquals(0, second.getTotalBytes());
+
+        setCounters("wlan0", 300, 150);
+        first.updateStats();
+        second.updateStats();
+        assertEquals(200, first.getBytesDown());
+        assertEquals(50, first.getBytesUp());
+        assertEquals(100, second.getBytesDown());
+        assertEquals(0, second.getBytesUp());
+    }
+
+    public void testParse() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        buffer.put("18446744\n".getBytes());
+        assertEquals(18446744, SysfsCounterSampler.parse(buffer, buffer.position()));
+        assertEquals(184, SysfsCounterSampler.parse(buffer, 3));
+        assertEquals(-1, SysfsCounterSampler.parse(buffer, 0));
+        buffer.clear();
+        buffer.put("\n".getBytes());
+        assertEquals(-1, SysfsCounterSampler.parse(buffer, 1));
+    }
+}
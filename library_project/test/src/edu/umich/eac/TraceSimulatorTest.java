@@ -0,0 +1,106 @@
+package edu.umich.eac;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.InstrumentationTestCase;
+
+public class TraceSimulatorTest extends InstrumentationTestCase {
+    // wifi for the first minute, then only cellular, for ten minutes.
+    private static final String NETWORK =
+        "# seconds  wifi down up rtt  cellular down up rtt\n" +
+        "0    100000 50000 10    20000 5000 200\n" +
+        "60   0 0 0              20000 5000 200\n" +
+        "600  0 0 0              20000 5000 200\n";
+
+    private static final String ACCESSES =
+        "1 hint a 50000\n" +
+        "1 hint b 50000\n" +
+        "1 hint c 50000\n" +
+        "2 hint d 50000\n" +
+        "100 demand a\n" +
+        "200 demand b\n" +
+        "300 demand c\n" +
+        "350 cancel d\n" +
+        "400 demand e 40000\n";
+
+    private TraceSimulator simulator;
+
+    @Override
+    protected void setUp() throws IOException {
+        simulator = new TraceSimulator(NetworkTrace.read(new StringReader(NETWORK)),
+                                       AccessTrace.read(new StringReader(ACCESSES)));
+    }
+
+    public void testTracesParse() throws IOException {
+        NetworkTrace network = NetworkTrace.read(new StringReader(NETWORK));
+        assertEquals(3, network.size());
+        assertEquals(600 * 1000, network.durationMillis());
+        assertEquals(0.1, network.wifiAvailability(), 0.001);
+        assertFalse(network.get(1).wifiAvailable());
+
+        AccessTrace accesses = AccessTrace.read(new StringReader(ACCESSES));
+        assertEquals(9, accesses.size());
+        assertEquals(AccessTrace.Type.DEMAND, accesses.get(4).type);
+        assertEquals(100 * 1000, accesses.get(4).timeMillis);
+
+        try {
+            AccessTrace.read(new StringReader("5 demand a\n4 demand b\n"));
+            fail("Accepted a trace that goes backwards");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testAggressivePrefetchesEverythingOnWifi() throws InterruptedException {
+        TraceSimulator.Result result = simulator.run(
+            new TraceSimulator.Params(PrefetchStrategyType.AGGRESSIVE, 0.0, 0));
+        assertEquals(4, result.prefetchesIssued);
+        assertEquals(4, result.demandFetches);
+        assertEquals(3, result.hits);
+        assertEquals(0, result.unfinishedDemands);
+        // d was prefetched, then cancelled.
+        assertEquals(50000, result.wastedPrefetchBytes);
+        // only the unhinted demand goes over cellular.
+        assertEquals(40000, result.cellularBytes);
+        assertTrue(result.energyJoules >= 0.0);
+        assertTrue("Ran slower than real time", result.wallMillis < result.simulatedMillis);
+    }
+
+    public void testConservativeWaitsForDemands() throws InterruptedException {
+        TraceSimulator.Result result = simulator.run(
+            new TraceSimulator.Params(PrefetchStrategyType.CONSERVATIVE, 0.0, 0));
+        assertEquals(0, result.prefetchesIssued);
+        assertEquals(0, result.hits);
+        assertEquals(0, result.unfinishedDemands);
+        assertEquals(4 * 50000 - 10000, result.cellularBytes);
+        // 50KB at 20KB/sec, plus an RTT.
+        assertEquals(2700.0, result.demandLatencyMillis.getMax(), 1.0);
+    }
+
+    public void testAdaptiveRunsOnVirtualTime() throws InterruptedException {
+        TraceSimulator.Result result = simulator.run(
+            new TraceSimulator.Params(PrefetchStrategyType.ADAPTIVE, 1.0, 1000000));
+        assertEquals(4, result.demandFetches);
+        assertEquals(0, result.unfinishedDemands);
+        assertEquals(600 * 1000, result.simulatedMillis);
+        assertTrue("Ran slower than real time", result.wallMillis < result.simulatedMillis);
+    }
+
+    public void testRunAllKeepsOrder() throws Exception {
+        List<TraceSimulator.Params> paramSets = new ArrayList<TraceSimulator.Params>();
+        paramSets.add(new TraceSimulator.Params(PrefetchStrategyType.CONSERVATIVE, 0.0, 0));
+        paramSets.add(new TraceSimulator.Params(PrefetchStrategyType.AGGRESSIVE, 0.0, 0));
+        paramSets.add(new TraceSimulator.Params(PrefetchStrategyType.CONSERVATIVE, 0.0, 0));
+
+        List<TraceSimulator.Result> results = simulator.runAll(paramSets, 3);
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); ++i) {
+            assertSame(paramSets.get(i), results.get(i).params);
+        }
+        assertEquals(0, results.get(0).hits);
+        assertEquals(3, results.get(1).hits);
+    }
+}
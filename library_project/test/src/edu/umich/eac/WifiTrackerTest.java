@@ -19,14 +19,16 @@ public class WifiTrackerTest extends InstrumentationTestCase {
     private Context context;
     protected void setUp() throws InterruptedException {
         context = getInstrumentation().getContext();
-        predictor = new WifiTracker(context);
+        predictor = new WifiTracker(new AndroidPlatform(context));
     }
     
     private void printPrediction(Prediction pred) {
         System.out.println(pred.toString());
     }
     
-    public void testPrediction() {
+    public void testPrediction() throws InterruptedException {
+        // predictions arrive in the background
+        assertTrue(predictor.awaitPredictions(5000));
         Prediction current = predictor.getCurrentConditions();
         assertTrue(current != null);
         printPrediction(current);
@@ -57,7 +59,7 @@ public class WifiTrackerTest extends InstrumentationTestCase {
             Thread.sleep(1000);
         }
         
-        WifiTracker tracker = new WifiTracker(context);
+        WifiTracker tracker = new WifiTracker(new AndroidPlatform(context));
         assertEquals(0.0, tracker.availability());
         Thread.sleep(5000); // ignore the brief bit of connectivity at the beginning
         assertTrue(tracker.availability() < 0.5);
@@ -77,7 +79,7 @@ public class WifiTrackerTest extends InstrumentationTestCase {
     }
     
     public void testAskScoutIfNetworkIsAvailable() throws SocketException, InterruptedException {
-        WifiTracker tracker = new WifiTracker(context);
+        WifiTracker tracker = new WifiTracker(new AndroidPlatform(context));
         int usableCount = 0, total = 50;
         for (int i = 0; i < total; ++i) {
             boolean usable = tracker.isWifiUsable();